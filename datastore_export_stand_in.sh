@@ -0,0 +1,50 @@
+#!/bin/bash
+
+#===============================================================================
+# Stand-in for the datastore's export program, for trying out streaming ingest
+# (the --export option of the Java processors) without a datastore.  It takes
+# the same arguments as export:
+#
+#    [--start <time>] [--end <time>] --csv <key-value store> <user id> <device>.<channel>
+#
+# but treats the key-value store as a directory of CSV files named
+# <device>.csv, such as the ones export_csv_files_from_datastore.sh writes, and
+# writes the requested device's file to stdout, keeping only the lines from the
+# start time up to, but not including, the end time, if either is given, the
+# same as the processors' --start and --end.  The user id and channel are
+# ignored.
+#===============================================================================
+
+START_TIME=
+END_TIME=
+while [ $# -gt 0 ]
+do
+   case $1 in
+      --start) START_TIME=$2; shift 2;;
+      --end)   END_TIME=$2; shift 2;;
+      --csv)   shift;;
+      *)       break;;
+   esac
+done
+
+if [ $# -ne 3 ]
+then
+   echo "Usage: $0 [--start <time>] [--end <time>] --csv <key-value store> <user id> <device>.<channel>" >&2
+   exit 1
+fi
+
+DEVICE_CHANNEL=$3
+CSV_FILE=$1/${DEVICE_CHANNEL%.*}.csv
+
+if [ ! -f "${CSV_FILE}" ]
+then
+   echo "No data found for ${DEVICE_CHANNEL}" >&2
+   exit 1
+fi
+
+if [ -z "${START_TIME}" -a -z "${END_TIME}" ]
+then
+   cat "${CSV_FILE}"
+else
+   awk -F, -v start="${START_TIME}" -v end="${END_TIME}" 'NR == 1 || ((start == "" || $1 >= start) && (end == "" || $1 < end))' "${CSV_FILE}"
+fi
@@ -0,0 +1,26 @@
+package org.cmucreatelab.benchmark;
+
+import java.io.IOException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A single benchmark, run by the {@link BenchmarkRunner}.  The runner calls {@link #setUp()} once, then calls
+ * {@link #run()} repeatedly during the warmup and measurement iterations, and finally calls {@link #tearDown()}.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public interface Benchmark
+   {
+   @NotNull
+   String getName();
+
+   void setUp() throws IOException;
+
+   /**
+    * Performs one operation.  The returned value is consumed by the runner, so implementations should return
+    * something derived from their work to keep the JIT from eliminating it.
+    */
+   long run() throws IOException;
+
+   void tearDown() throws IOException;
+   }
@@ -0,0 +1,37 @@
+package org.cmucreatelab.benchmark;
+
+import java.io.IOException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public abstract class BenchmarkAdapter implements Benchmark
+   {
+   @NotNull
+   private final String name;
+
+   protected BenchmarkAdapter(@NotNull final String name)
+      {
+      this.name = name;
+      }
+
+   @NotNull
+   @Override
+   public final String getName()
+      {
+      return name;
+      }
+
+   @Override
+   public void setUp() throws IOException
+      {
+      // does nothing by default
+      }
+
+   @Override
+   public void tearDown() throws IOException
+      {
+      // does nothing by default
+      }
+   }
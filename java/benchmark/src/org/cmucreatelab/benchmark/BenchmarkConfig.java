@@ -0,0 +1,103 @@
+package org.cmucreatelab.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Settings shared by all the benchmarks, plus lazily-created synthetic input files.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class BenchmarkConfig
+   {
+   private final int numLines;
+   private final int numRecords;
+   private final int numDevices;
+   @NotNull
+   private final File workingDirectory;
+   private File speckCsvFile = null;
+   private File airNowCsvFile = null;
+   private File devicesCsvFile = null;
+
+   public BenchmarkConfig(final int numLines, final int numRecords, final int numDevices, @NotNull final File workingDirectory)
+      {
+      this.numLines = numLines;
+      this.numRecords = numRecords;
+      this.numDevices = numDevices;
+      this.workingDirectory = workingDirectory;
+      }
+
+   /** Returns the number of lines in the synthetic CSV files. */
+   public int getNumLines()
+      {
+      return numLines;
+      }
+
+   /** Returns the number of records written or dispatched per operation by the record-level benchmarks. */
+   public int getNumRecords()
+      {
+      return numRecords;
+      }
+
+   /** Returns the number of devices used by the metadata benchmarks. */
+   public int getNumDevices()
+      {
+      return numDevices;
+      }
+
+   /** Returns a new file in the working directory, which will be deleted when the JVM exits. */
+   @NotNull
+   public File createTempFile(@NotNull final String prefix, @NotNull final String suffix) throws IOException
+      {
+      final File file = File.createTempFile(prefix, suffix, workingDirectory);
+      file.deleteOnExit();
+      return file;
+      }
+
+   /** Returns a new, empty directory in the working directory, which will be deleted when the JVM exits. */
+   @NotNull
+   public File createTempDirectory(@NotNull final String prefix) throws IOException
+      {
+      final File directory = File.createTempFile(prefix, "", workingDirectory);
+      if (!directory.delete() || !directory.mkdirs())
+         {
+         throw new IOException("Failed to create the directory [" + directory + "]");
+         }
+      directory.deleteOnExit();
+      return directory;
+      }
+
+   @NotNull
+   public synchronized File getSpeckCsvFile() throws IOException
+      {
+      if (speckCsvFile == null)
+         {
+         speckCsvFile = createTempFile("speck_", ".csv");
+         SyntheticData.writeSpeckCsvFile(speckCsvFile, numLines);
+         }
+      return speckCsvFile;
+      }
+
+   @NotNull
+   public synchronized File getAirNowCsvFile() throws IOException
+      {
+      if (airNowCsvFile == null)
+         {
+         airNowCsvFile = createTempFile("airnow_", ".csv");
+         SyntheticData.writeAirNowCsvFile(airNowCsvFile, numLines);
+         }
+      return airNowCsvFile;
+      }
+   
+   @NotNull
+   public synchronized File getDevicesCsvFile() throws IOException
+      {
+      if (devicesCsvFile == null)
+         {
+         devicesCsvFile = createTempFile("devices_", ".csv");
+         SyntheticData.writeDevicesCsvFile(devicesCsvFile, numDevices);
+         }
+      return devicesCsvFile;
+      }
+   }
@@ -0,0 +1,315 @@
+package org.cmucreatelab.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.cmucreatelab.io.IoBenchmarks;
+import org.cmucreatelab.store.StoreBenchmarks;
+import org.cmucreatelab.visualization.VisualizationBenchmarks;
+import org.cmucreatelab.visualization.airnow.AirNowBenchmarks;
+import org.cmucreatelab.visualization.speck.SpeckBenchmarks;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Runs the benchmarks in the style of JMH's throughput mode with the GC profiler: every benchmark gets a number of
+ * timed warmup iterations followed by timed measurement iterations, and for the measurement iterations the runner
+ * reports operations per second, bytes allocated per operation (as measured by the HotSpot thread allocation
+ * counters), the allocation rate, and the number of garbage collections.
+ * </p>
+ * <p>
+ * Results are printed to the console and, if a results file is specified, appended to it as CSV so that they can be
+ * tracked over time.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class BenchmarkRunner
+   {
+   private static final String LINES_OPTION = "--lines";
+   private static final String RECORDS_OPTION = "--records";
+   private static final String DEVICES_OPTION = "--devices";
+   private static final String WARMUP_ITERATIONS_OPTION = "--warmup-iterations";
+   private static final String ITERATIONS_OPTION = "--iterations";
+   private static final String ITERATION_MILLIS_OPTION = "--iteration-millis";
+   private static final String FILTER_OPTION = "--filter";
+   private static final String RESULTS_FILE_OPTION = "--results-file";
+
+   public static void main(final String[] args) throws IOException
+      {
+      int numLines = 1000000;
+      int numRecords = 1000000;
+      int numDevices = 1000;
+      int numWarmupIterations = 3;
+      int numIterations = 5;
+      int iterationMillis = 1000;
+      String filter = null;
+      File resultsFile = null;
+      for (int i = 0; i < args.length; i++)
+         {
+         final String option = args[i];
+         if (i + 1 >= args.length)
+            {
+            System.err.println("Missing value for option: " + option);
+            System.exit(1);
+            }
+         final String value = args[++i];
+         if (LINES_OPTION.equals(option))
+            {
+            numLines = Integer.parseInt(value);
+            }
+         else if (RECORDS_OPTION.equals(option))
+            {
+            numRecords = Integer.parseInt(value);
+            }
+         else if (DEVICES_OPTION.equals(option))
+            {
+            numDevices = Integer.parseInt(value);
+            }
+         else if (WARMUP_ITERATIONS_OPTION.equals(option))
+            {
+            numWarmupIterations = Integer.parseInt(value);
+            }
+         else if (ITERATIONS_OPTION.equals(option))
+            {
+            numIterations = Integer.parseInt(value);
+            }
+         else if (ITERATION_MILLIS_OPTION.equals(option))
+            {
+            iterationMillis = Integer.parseInt(value);
+            }
+         else if (FILTER_OPTION.equals(option))
+            {
+            filter = value.length() > 0 ? value : null;
+            }
+         else if (RESULTS_FILE_OPTION.equals(option))
+            {
+            resultsFile = value.length() > 0 ? new File(value) : null;
+            }
+         else
+            {
+            System.err.println("Unknown option: " + option);
+            System.exit(1);
+            }
+         }
+
+      // keep the per-operation debug logging of the generators out of the measurements
+      Logger.getRootLogger().setLevel(Level.WARN);
+
+      final File workingDirectory = File.createTempFile("benchmark_", "");
+      if (!workingDirectory.delete() || !workingDirectory.mkdirs())
+         {
+         throw new IOException("Failed to create the working directory [" + workingDirectory + "]");
+         }
+      workingDirectory.deleteOnExit();
+
+      final BenchmarkConfig config = new BenchmarkConfig(numLines, numRecords, numDevices, workingDirectory);
+      final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+      benchmarks.addAll(IoBenchmarks.create(config));
+      benchmarks.addAll(SpeckBenchmarks.create(config));
+      benchmarks.addAll(AirNowBenchmarks.create(config));
+      benchmarks.addAll(VisualizationBenchmarks.create(config));
+      benchmarks.addAll(StoreBenchmarks.create(config));
+
+      System.out.println("Lines per CSV file: " + numLines + ", records per operation: " + numRecords + ", devices: " + numDevices);
+      System.out.println("Warmup: " + numWarmupIterations + " x " + iterationMillis + " ms, measurement: " + numIterations + " x " + iterationMillis + " ms");
+      System.out.printf("%-45s %14s %12s %16s %12s %8s%n", "Benchmark", "ops/s", "+/- ops/s", "B/op", "MB/s alloc", "GCs");
+
+      final BenchmarkRunner runner = new BenchmarkRunner(numWarmupIterations, numIterations, iterationMillis);
+      final List<Result> results = new ArrayList<Result>();
+      for (final Benchmark benchmark : benchmarks)
+         {
+         if (filter == null || benchmark.getName().contains(filter))
+            {
+            final Result result = runner.run(benchmark);
+            System.out.printf("%-45s %14.3f %12.3f %16.1f %12.1f %8d%n",
+                              result.name,
+                              result.meanOpsPerSecond,
+                              result.stdDevOpsPerSecond,
+                              result.bytesAllocatedPerOp,
+                              result.allocationRateMegabytesPerSecond,
+                              result.numGarbageCollections);
+            results.add(result);
+            }
+         }
+
+      if (resultsFile != null)
+         {
+         appendResults(resultsFile, results, config);
+         System.out.println("Results appended to " + resultsFile.getCanonicalPath());
+         }
+      }
+
+   private static void appendResults(@NotNull final File resultsFile, @NotNull final List<Result> results, @NotNull final BenchmarkConfig config) throws IOException
+      {
+      final boolean isNewFile = !resultsFile.exists();
+      final PrintWriter writer = new PrintWriter(new FileWriter(resultsFile, true));
+      try
+         {
+         if (isNewFile)
+            {
+            writer.println("timestamp,benchmark,lines,records,devices,opsPerSecond,opsPerSecondStdDev,bytesAllocatedPerOp,allocationRateMBPerSecond,gcCount");
+            }
+         final String timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date());
+         for (final Result result : results)
+            {
+            writer.println(timestamp + "," +
+                           result.name + "," +
+                           config.getNumLines() + "," +
+                           config.getNumRecords() + "," +
+                           config.getNumDevices() + "," +
+                           result.meanOpsPerSecond + "," +
+                           result.stdDevOpsPerSecond + "," +
+                           result.bytesAllocatedPerOp + "," +
+                           result.allocationRateMegabytesPerSecond + "," +
+                           result.numGarbageCollections);
+            }
+         }
+      finally
+         {
+         writer.close();
+         }
+      }
+
+   private static final class Result
+      {
+      @NotNull
+      private final String name;
+      private final double meanOpsPerSecond;
+      private final double stdDevOpsPerSecond;
+      private final double bytesAllocatedPerOp;
+      private final double allocationRateMegabytesPerSecond;
+      private final long numGarbageCollections;
+
+      private Result(@NotNull final String name,
+                     final double meanOpsPerSecond,
+                     final double stdDevOpsPerSecond,
+                     final double bytesAllocatedPerOp,
+                     final double allocationRateMegabytesPerSecond,
+                     final long numGarbageCollections)
+         {
+         this.name = name;
+         this.meanOpsPerSecond = meanOpsPerSecond;
+         this.stdDevOpsPerSecond = stdDevOpsPerSecond;
+         this.bytesAllocatedPerOp = bytesAllocatedPerOp;
+         this.allocationRateMegabytesPerSecond = allocationRateMegabytesPerSecond;
+         this.numGarbageCollections = numGarbageCollections;
+         }
+      }
+
+   private final int numWarmupIterations;
+   private final int numIterations;
+   private final long iterationNanos;
+   @Nullable
+   private final com.sun.management.ThreadMXBean threadMXBean;
+
+   /** Accumulates the values returned by the benchmarks, so that the JIT can't treat their work as dead code. */
+   private long blackhole = 0;
+
+   private BenchmarkRunner(final int numWarmupIterations, final int numIterations, final int iterationMillis)
+      {
+      this.numWarmupIterations = numWarmupIterations;
+      this.numIterations = Math.max(1, numIterations);
+      this.iterationNanos = iterationMillis * 1000000L;
+      final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      threadMXBean = (bean instanceof com.sun.management.ThreadMXBean) ? (com.sun.management.ThreadMXBean)bean : null;
+      }
+
+   @NotNull
+   private Result run(@NotNull final Benchmark benchmark) throws IOException
+      {
+      benchmark.setUp();
+      try
+         {
+         for (int i = 0; i < numWarmupIterations; i++)
+            {
+            runIteration(benchmark);
+            }
+
+         final long threadId = Thread.currentThread().getId();
+         final long allocatedBytesBefore = getAllocatedBytes(threadId);
+         final long garbageCollectionsBefore = getNumGarbageCollections();
+         long totalOps = 0;
+         long totalNanos = 0;
+         final double[] opsPerSecond = new double[numIterations];
+         for (int i = 0; i < numIterations; i++)
+            {
+            final long startTime = System.nanoTime();
+            final long numOps = runIteration(benchmark);
+            final long elapsedNanos = System.nanoTime() - startTime;
+            opsPerSecond[i] = numOps / (elapsedNanos / 1e9);
+            totalOps += numOps;
+            totalNanos += elapsedNanos;
+            }
+         final long allocatedBytes = getAllocatedBytes(threadId) - allocatedBytesBefore;
+         final long numGarbageCollections = getNumGarbageCollections() - garbageCollectionsBefore;
+
+         double mean = 0;
+         for (final double value : opsPerSecond)
+            {
+            mean += value;
+            }
+         mean /= numIterations;
+         double sumOfSquares = 0;
+         for (final double value : opsPerSecond)
+            {
+            sumOfSquares += (value - mean) * (value - mean);
+            }
+         final double stdDev = (numIterations > 1) ? Math.sqrt(sumOfSquares / (numIterations - 1)) : 0;
+
+         return new Result(benchmark.getName(),
+                           mean,
+                           stdDev,
+                           (allocatedBytes < 0) ? Double.NaN : allocatedBytes / (double)totalOps,
+                           (allocatedBytes < 0) ? Double.NaN : (allocatedBytes / (1024.0 * 1024.0)) / (totalNanos / 1e9),
+                           numGarbageCollections);
+         }
+      finally
+         {
+         benchmark.tearDown();
+         if (blackhole == 42)
+            {
+            System.out.println("The answer!");
+            }
+         }
+      }
+
+   /** Runs operations until the iteration time has elapsed (always at least one), and returns how many were run. */
+   private long runIteration(@NotNull final Benchmark benchmark) throws IOException
+      {
+      final long startTime = System.nanoTime();
+      long numOps = 0;
+      do
+         {
+         blackhole += benchmark.run();
+         numOps++;
+         }
+      while (System.nanoTime() - startTime < iterationNanos);
+      return numOps;
+      }
+
+   private long getAllocatedBytes(final long threadId)
+      {
+      return (threadMXBean == null) ? -1 : threadMXBean.getThreadAllocatedBytes(threadId);
+      }
+
+   private static long getNumGarbageCollections()
+      {
+      long count = 0;
+      for (final GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+         {
+         count += Math.max(0, bean.getCollectionCount());
+         }
+      return count;
+      }
+   }
@@ -0,0 +1,94 @@
+package org.cmucreatelab.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Random;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Generates reproducible CSV files which look like the datastore exports of Speck and AirNow devices.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class SyntheticData
+   {
+   public static final int FIRST_EPOCH_TIME = 1383316440;
+   private static final long RANDOM_SEED = 1;
+
+   /** The non-ASCII start of every device name, and end of every line, in the synthetic devices file */
+   public static final String NON_ASCII_NAME_PREFIX = "\u00c9vry_";
+   public static final String NON_ASCII_LOCATION_SUFFIX = "\u00e9";
+
+   /** Writes a Speck file: one integer particle count every one or two seconds. */
+   public static void writeSpeckCsvFile(@NotNull final File file, final int numLines) throws IOException
+      {
+      final Random random = new Random(RANDOM_SEED);
+      final BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+      try
+         {
+         writer.write("EpochTime,particles\n");
+         int time = FIRST_EPOCH_TIME;
+         for (int i = 0; i < numLines; i++)
+            {
+            time += 1 + random.nextInt(2);
+            writer.write(time + "," + random.nextInt(5000) + "\n");
+            }
+         }
+      finally
+         {
+         writer.close();
+         }
+      }
+
+   /** Writes an AirNow file: one PM2.5 value with a single decimal place every hour. */
+   public static void writeAirNowCsvFile(@NotNull final File file, final int numLines) throws IOException
+      {
+      final Random random = new Random(RANDOM_SEED);
+      final BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+      try
+         {
+         writer.write("EpochTime,PM2_5_mass\n");
+         int time = FIRST_EPOCH_TIME;
+         for (int i = 0; i < numLines; i++)
+            {
+            time += 3600;
+            final int tenths = random.nextInt(1000) - 20;
+            writer.write(time + "," + (tenths < 0 ? "-" : "") + (Math.abs(tenths) / 10) + "." + (Math.abs(tenths) % 10) + "\n");
+            }
+         }
+      finally
+         {
+         writer.close();
+         }
+      }
+
+   /**
+    * Writes a devices file in UTF-8, whose lines begin with an accented device name and end with accented location
+    * details, so that reading it shows whether non-ASCII characters at the ends of lines survive trimming.
+    */
+   public static void writeDevicesCsvFile(@NotNull final File file, final int numLines) throws IOException
+      {
+      final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+      try
+         {
+         writer.write("name,prettyName,latitude,longitude,locationDetails\n");
+         for (int i = 0; i < numLines; i++)
+            {
+            writer.write(NON_ASCII_NAME_PREFIX + i + ",Device " + i + "," + (40.4 + (i % 100) / 1000.0) + "," + (-79.9 - (i / 100) / 1000.0) + ",Caf" + NON_ASCII_LOCATION_SUFFIX + "\n");
+            }
+         }
+      finally
+         {
+         writer.close();
+         }
+      }
+
+   private SyntheticData()
+      {
+      // private to prevent instantiation
+      }
+   }
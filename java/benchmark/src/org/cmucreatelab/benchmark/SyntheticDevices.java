@@ -0,0 +1,26 @@
+package org.cmucreatelab.benchmark;
+
+import org.cmucreatelab.visualization.GeolocatedDevices;
+
+/**
+ * A set of devices named <code>device_00000</code>, <code>device_00001</code>, etc, scattered around Pittsburgh.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class SyntheticDevices extends GeolocatedDevices
+   {
+   public static String getDeviceName(final int index)
+      {
+      return "device_" + String.format("%05d", index);
+      }
+
+   public SyntheticDevices(final int numDevices)
+      {
+      for (int i = 0; i < numDevices; i++)
+         {
+         final String latitude = String.valueOf(40.4 + (i % 100) / 1000.0);
+         final String longitude = String.valueOf(-79.9 - (i / 100) / 1000.0);
+         addDevice(new DeviceImpl(getDeviceName(i), "Device " + i, latitude, longitude, "location \"" + i + "\""));
+         }
+      }
+   }
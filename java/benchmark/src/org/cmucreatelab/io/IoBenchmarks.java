@@ -0,0 +1,342 @@
+package org.cmucreatelab.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.cmucreatelab.benchmark.Benchmark;
+import org.cmucreatelab.benchmark.BenchmarkAdapter;
+import org.cmucreatelab.benchmark.BenchmarkConfig;
+import org.cmucreatelab.benchmark.SyntheticData;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Benchmarks for {@link CsvReader} and {@link BinaryRecordWriter}, along with the JDK based approaches they replaced.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class IoBenchmarks
+   {
+   @NotNull
+   public static List<Benchmark> create(@NotNull final BenchmarkConfig config)
+      {
+      final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+      benchmarks.add(
+            new BenchmarkAdapter("csvReader.read.speck.stringListener")
+            {
+            private File file;
+
+            @Override
+            public void setUp() throws IOException
+               {
+               file = config.getSpeckCsvFile();
+               }
+
+            @Override
+            public long run()
+               {
+               final IntegerParsingListener listener = new IntegerParsingListener();
+               final CsvReader reader = new CsvReader(file, true, 2);
+               reader.addEventListener(listener);
+               reader.read();
+               return listener.checksum;
+               }
+            });
+      benchmarks.add(createNumericReadBenchmark("csvReader.read.speck.numericListener", config, true));
+      benchmarks.add(
+            new BenchmarkAdapter("csvReader.read.speck.timeWindow")
+            {
+            private File file;
+            private int startTime;
+            private int endTime;
+
+            @Override
+            public void setUp() throws IOException
+               {
+               // the synthetic lines are 1.5 seconds apart on average, so this is roughly the middle tenth of the file
+               file = config.getSpeckCsvFile();
+               startTime = SyntheticData.FIRST_EPOCH_TIME + (int)(config.getNumLines() * 1.5 * 0.45);
+               endTime = startTime + (int)(config.getNumLines() * 1.5 * 0.1);
+               }
+
+            @Override
+            public long run()
+               {
+               final NumericChecksumListener listener = new NumericChecksumListener();
+               final CsvReader reader = new CsvReader(file, true, 2);
+               reader.setTimeWindow(startTime, endTime);
+               reader.addNumericEventListener(listener);
+               reader.read();
+               return listener.checksum;
+               }
+            });
+      benchmarks.add(
+            new BenchmarkAdapter("csvReader.read.airnow.stringListener")
+            {
+            private File file;
+
+            @Override
+            public void setUp() throws IOException
+               {
+               file = config.getAirNowCsvFile();
+               }
+
+            @Override
+            public long run()
+               {
+               final DoubleParsingListener listener = new DoubleParsingListener();
+               final CsvReader reader = new CsvReader(file, true, 2);
+               reader.addEventListener(listener);
+               reader.read();
+               return listener.checksum;
+               }
+            });
+      benchmarks.add(createNumericReadBenchmark("csvReader.read.airnow.numericListener", config, false));
+      benchmarks.add(
+            new BenchmarkAdapter("csvReader.read.devices.stringListener")
+            {
+            private File file;
+
+            @Override
+            public void setUp() throws IOException
+               {
+               file = config.getDevicesCsvFile();
+               }
+
+            @Override
+            public long run()
+               {
+               final NonAsciiCheckingListener listener = new NonAsciiCheckingListener();
+               final CsvReader reader = new CsvReader(file, true, 5);
+               reader.addEventListener(listener);
+               reader.read();
+               return listener.checksum;
+               }
+            });
+
+      benchmarks.add(
+            new RecordWriterBenchmark("binaryWriter.dataOutputStream", config)
+            {
+            @Override
+            public long run() throws IOException
+               {
+               final DataOutputStream outputStream = new DataOutputStream(new FileOutputStream(getFile()));
+               for (int i = 0; i < getNumRecords(); i++)
+                  {
+                  outputStream.writeInt(getTime(i));
+                  outputStream.writeInt(getValue(i));
+                  }
+               outputStream.close();
+               return outputStream.size();
+               }
+            });
+      benchmarks.add(
+            new RecordWriterBenchmark("binaryWriter.bufferedDataOutputStream", config)
+            {
+            @Override
+            public long run() throws IOException
+               {
+               final DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getFile())));
+               for (int i = 0; i < getNumRecords(); i++)
+                  {
+                  outputStream.writeInt(getTime(i));
+                  outputStream.writeInt(getValue(i));
+                  }
+               outputStream.close();
+               return outputStream.size();
+               }
+            });
+      benchmarks.add(
+            new RecordWriterBenchmark("binaryWriter.binaryRecordWriter", config)
+            {
+            @Override
+            public long run() throws IOException
+               {
+               final BinaryRecordWriter writer = new BinaryRecordWriter(getFile());
+               for (int i = 0; i < getNumRecords(); i++)
+                  {
+                  writer.writeInt(getTime(i));
+                  writer.writeInt(getValue(i));
+                  }
+               writer.close();
+               return writer.getNumWriteCalls();
+               }
+            });
+
+      return benchmarks;
+      }
+
+   /**
+    * Creates a {@link CsvLine} with no fields which isn't attached to a reader, for benchmarks which drive
+    * {@link CsvReader.NumericEventListener}s directly.
+    */
+   @NotNull
+   public static CsvLine createDetachedCsvLine()
+      {
+      final CsvLine line = new CsvLine();
+      line.reset(ByteBuffer.allocate(0), 0, 0);
+      return line;
+      }
+
+   @NotNull
+   private static Benchmark createNumericReadBenchmark(@NotNull final String name, @NotNull final BenchmarkConfig config, final boolean isSpeck)
+      {
+      return new BenchmarkAdapter(name)
+      {
+      private File file;
+
+      @Override
+      public void setUp() throws IOException
+         {
+         file = isSpeck ? config.getSpeckCsvFile() : config.getAirNowCsvFile();
+         }
+
+      @Override
+      public long run()
+         {
+         final NumericChecksumListener listener = new NumericChecksumListener();
+         final CsvReader reader = new CsvReader(file, true, 2);
+         reader.addNumericEventListener(listener);
+         reader.read();
+         return listener.checksum;
+         }
+      };
+      }
+
+   private abstract static class RecordWriterBenchmark extends BenchmarkAdapter
+      {
+      @NotNull
+      private final BenchmarkConfig config;
+      private File file;
+
+      private RecordWriterBenchmark(@NotNull final String name, @NotNull final BenchmarkConfig config)
+         {
+         super(name);
+         this.config = config;
+         }
+
+      @Override
+      public final void setUp() throws IOException
+         {
+         file = config.createTempFile("records_", ".bin");
+         }
+
+      @Override
+      public final void tearDown()
+         {
+         //noinspection ResultOfMethodCallIgnored
+         file.delete();
+         }
+
+      protected final File getFile()
+         {
+         return file;
+         }
+
+      protected final int getNumRecords()
+         {
+         return config.getNumRecords();
+         }
+
+      protected static int getTime(final int i)
+         {
+         return 1383316440 + i;
+         }
+
+      protected static int getValue(final int i)
+         {
+         return i & 0xFFF;
+         }
+      }
+
+   private static final class IntegerParsingListener extends CsvReader.EventListenerAdapter
+      {
+      private long checksum = 0;
+
+      @Override
+      public void handleLine(@NotNull final String line, @NotNull final String[] values)
+         {
+         try
+            {
+            checksum += Integer.parseInt(values[0]) + Integer.parseInt(values[1]);
+            }
+         catch (NumberFormatException ignored)
+            {
+            // skip it
+            }
+         }
+      }
+
+   private static final class DoubleParsingListener extends CsvReader.EventListenerAdapter
+      {
+      private long checksum = 0;
+
+      @Override
+      public void handleLine(@NotNull final String line, @NotNull final String[] values)
+         {
+         try
+            {
+            checksum += Integer.parseInt(values[0]) + Math.round(Double.parseDouble(values[1]) * 10);
+            }
+         catch (NumberFormatException ignored)
+            {
+            // skip it
+            }
+         }
+      }
+
+   /** Fails loudly if the reader trimmed the non-ASCII characters at either end of a synthetic devices file line. */
+   private static final class NonAsciiCheckingListener extends CsvReader.EventListenerAdapter
+      {
+      private long checksum = 0;
+
+      @Override
+      public void handleLine(@NotNull final String line, @NotNull final String[] values)
+         {
+         if (!values[0].startsWith(SyntheticData.NON_ASCII_NAME_PREFIX) || !values[4].endsWith(SyntheticData.NON_ASCII_LOCATION_SUFFIX))
+            {
+            throw new IllegalStateException("Non-ASCII characters were trimmed from the line [" + line + "]");
+            }
+         checksum += line.length();
+         }
+      }
+
+   private static final class NumericChecksumListener implements CsvReader.NumericEventListener
+      {
+      private long checksum = 0;
+
+      @Override
+      public void handleBegin(@NotNull final File file)
+         {
+         // nothing to do
+         }
+
+      @Override
+      public void handleRecord(final int epochTimeInSeconds, @NotNull final double[] values, @NotNull final CsvLine line)
+         {
+         checksum += epochTimeInSeconds + Math.round(values[0] * 10);
+         }
+
+      @Override
+      public void handleMalformedLine(@NotNull final CsvLine line)
+         {
+         // skip it
+         }
+
+      @Override
+      public void handleEnd(@NotNull final File file, final int numRecords, final int numMalformedLines)
+         {
+         // nothing to do
+         }
+      }
+
+   private IoBenchmarks()
+      {
+      // private to prevent instantiation
+      }
+   }
@@ -0,0 +1,203 @@
+package org.cmucreatelab.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.cmucreatelab.benchmark.Benchmark;
+import org.cmucreatelab.benchmark.BenchmarkAdapter;
+import org.cmucreatelab.benchmark.BenchmarkConfig;
+import org.cmucreatelab.benchmark.SyntheticData;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Benchmarks for writing a {@link TimeSeriesStore}, and for querying and aggregating it.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class StoreBenchmarks
+   {
+   private static final int SECONDS_BETWEEN_RECORDS = 60;
+   private static final int QUERY_RANGE_SECS = 24 * 60 * 60;
+   private static final int NUM_QUERIES = 1000;
+   private static final int BUCKET_SECS = 60 * 60;
+
+   @NotNull
+   public static List<Benchmark> create(@NotNull final BenchmarkConfig config)
+      {
+      final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+      benchmarks.add(
+            new StoreBenchmark("timeSeriesStore.write", config)
+            {
+            @Override
+            public long run() throws IOException
+               {
+               writeStore();
+               return getNumDevices() * (long)getNumRecordsPerDevice();
+               }
+            });
+      benchmarks.add(
+            new StoreBenchmark("timeSeriesStore.query", config)
+            {
+            private TimeSeriesStore store;
+            private final Random random = new Random(1);
+
+            @Override
+            protected void setUpStore() throws IOException
+               {
+               writeStore();
+               store = TimeSeriesStore.open(getDirectory());
+               }
+
+            @Override
+            public long run() throws IOException
+               {
+               // one day long queries at random times, on random devices
+               final int lastTime = getTime(getNumRecordsPerDevice() - 1);
+               long checksum = 0;
+               for (int i = 0; i < NUM_QUERIES; i++)
+                  {
+                  final int startTime = SyntheticData.FIRST_EPOCH_TIME + random.nextInt(lastTime - SyntheticData.FIRST_EPOCH_TIME + 1);
+                  final TimeSeriesCursor cursor = store.query(getDeviceName(random.nextInt(getNumDevices())), startTime, startTime + QUERY_RANGE_SECS);
+                  while (cursor.next())
+                     {
+                     checksum += cursor.getRawValue();
+                     }
+                  }
+               return checksum;
+               }
+
+            @Override
+            protected void tearDownStore() throws IOException
+               {
+               store.close();
+               }
+            });
+      benchmarks.add(
+            new StoreBenchmark("timeSeriesStore.aggregate", config)
+            {
+            private TimeSeriesStore store;
+
+            @Override
+            protected void setUpStore() throws IOException
+               {
+               writeStore();
+               store = TimeSeriesStore.open(getDirectory());
+               }
+
+            @Override
+            public long run() throws IOException
+               {
+               // hourly buckets over the whole of every device's series
+               long checksum = 0;
+               for (int device = 0; device < getNumDevices(); device++)
+                  {
+                  final TimeSeriesAggregate aggregate = store.aggregate(getDeviceName(device), Integer.MIN_VALUE, Integer.MAX_VALUE, BUCKET_SECS);
+                  for (int bucket = 0; bucket < aggregate.getNumBuckets(); bucket++)
+                     {
+                     checksum += aggregate.getCount(bucket) + Math.round(aggregate.getMeanValue(bucket));
+                     }
+                  }
+               return checksum;
+               }
+
+            @Override
+            protected void tearDownStore() throws IOException
+               {
+               store.close();
+               }
+            });
+
+      return benchmarks;
+      }
+
+   private abstract static class StoreBenchmark extends BenchmarkAdapter
+      {
+      @NotNull
+      private final BenchmarkConfig config;
+      private File directory;
+
+      private StoreBenchmark(@NotNull final String name, @NotNull final BenchmarkConfig config)
+         {
+         super(name);
+         this.config = config;
+         }
+
+      @Override
+      public final void setUp() throws IOException
+         {
+         directory = config.createTempDirectory("store_");
+
+         // registered after the directory, so they're deleted before it
+         new File(directory, TimeSeriesStore.DATA_FILENAME).deleteOnExit();
+         new File(directory, TimeSeriesStore.INDEX_FILENAME).deleteOnExit();
+         setUpStore();
+         }
+
+      protected void setUpStore() throws IOException
+         {
+         // nothing to do
+         }
+
+      @Override
+      public final void tearDown() throws IOException
+         {
+         tearDownStore();
+         }
+
+      protected void tearDownStore() throws IOException
+         {
+         // nothing to do
+         }
+
+      /** Writes every device's records, one minute apart, to the store in the benchmark's directory. */
+      protected final void writeStore() throws IOException
+         {
+         final TimeSeriesStoreWriter writer = new TimeSeriesStoreWriter(directory, 1.0);
+         for (int device = 0; device < getNumDevices(); device++)
+            {
+            writer.beginSeries(getDeviceName(device));
+            for (int i = 0; i < getNumRecordsPerDevice(); i++)
+               {
+               writer.add(getTime(i), (i * 31 + device) & 0xFFF);
+               }
+            writer.endSeries();
+            }
+         writer.close();
+         }
+
+      protected final File getDirectory()
+         {
+         return directory;
+         }
+
+      /** The records per operation are split among the devices, so that the store's size doesn't depend on the number of devices. */
+      protected final int getNumRecordsPerDevice()
+         {
+         return Math.max(1, config.getNumRecords() / config.getNumDevices());
+         }
+
+      protected final int getNumDevices()
+         {
+         return config.getNumDevices();
+         }
+
+      protected static int getTime(final int i)
+         {
+         return SyntheticData.FIRST_EPOCH_TIME + i * SECONDS_BETWEEN_RECORDS;
+         }
+
+      @NotNull
+      protected static String getDeviceName(final int device)
+         {
+         return "device_" + device;
+         }
+      }
+
+   private StoreBenchmarks()
+      {
+      // private to prevent instantiation
+      }
+   }
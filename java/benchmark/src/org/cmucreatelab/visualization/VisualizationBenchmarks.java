@@ -0,0 +1,307 @@
+package org.cmucreatelab.visualization;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.cmucreatelab.benchmark.Benchmark;
+import org.cmucreatelab.benchmark.BenchmarkAdapter;
+import org.cmucreatelab.benchmark.BenchmarkConfig;
+import org.cmucreatelab.benchmark.SyntheticData;
+import org.cmucreatelab.benchmark.SyntheticDevices;
+import org.cmucreatelab.io.BinaryRecordWriter;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Benchmarks for the spatial queries of {@link GeolocatedDevices}, and for time range and threshold queries of a
+ * binary data file, with a {@link ZoneMapReader} and with a plain scan of each device's records.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class VisualizationBenchmarks
+   {
+   private static final int NUM_QUERIES = 1000;
+   private static final int NUM_NEAREST = 5;
+
+   /** The records per operation are split among this many devices, so that each has a long series */
+   private static final int NUM_ZONE_MAP_DEVICES = 10;
+   private static final int RECORD_SIZE_IN_BYTES = 8;
+   private static final int SECONDS_BETWEEN_RECORDS = 60;
+   private static final int QUERY_RANGE_SECS = 24 * 60 * 60;
+   private static final int NUM_RANGE_QUERIES = 100;
+   private static final int RECORDS_BETWEEN_SPIKES = 5000;
+   private static final int SPIKE_VALUE = 1000;
+   private static final int THRESHOLD = 500;
+   private static final int SCAN_BUFFER_SIZE_IN_BLOCKS = 32;
+
+   @NotNull
+   public static List<Benchmark> create(@NotNull final BenchmarkConfig config)
+      {
+      final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+      benchmarks.add(
+            new BenchmarkAdapter("geolocatedDevices.findNearest")
+            {
+            private SyntheticDevices devices;
+
+            @Override
+            public void setUp()
+               {
+               devices = new SyntheticDevices(config.getNumDevices());
+               devices.findNearest(0, 0, 1);    // builds the index
+               }
+
+            @Override
+            public long run()
+               {
+               long checksum = 0;
+               for (int i = 0; i < NUM_QUERIES; i++)
+                  {
+                  checksum += devices.findNearest(getQueryLatitude(i), getQueryLongitude(i), NUM_NEAREST).size();
+                  }
+               return checksum;
+               }
+            });
+
+      benchmarks.add(
+            new BenchmarkAdapter("geolocatedDevices.findWithin")
+            {
+            private SyntheticDevices devices;
+
+            @Override
+            public void setUp()
+               {
+               devices = new SyntheticDevices(config.getNumDevices());
+               devices.findNearest(0, 0, 1);    // builds the index
+               }
+
+            @Override
+            public long run()
+               {
+               long checksum = 0;
+               for (int i = 0; i < NUM_QUERIES; i++)
+                  {
+                  final double latitude = getQueryLatitude(i);
+                  final double longitude = getQueryLongitude(i);
+                  checksum += devices.findWithin(latitude - 0.005, longitude - 0.005, latitude + 0.005, longitude + 0.005).size();
+                  }
+               return checksum;
+               }
+            });
+
+      benchmarks.add(
+            new ZoneMapBenchmark("zoneMap.timeRange.indexed", config)
+            {
+            @Override
+            public long run() throws IOException
+               {
+               long checksum = 0;
+               for (int i = 0; i < NUM_RANGE_QUERIES; i++)
+                  {
+                  final int startTime = getRandomStartTime();
+                  checksum += getReader().query(getRandomDeviceName(), startTime, startTime + QUERY_RANGE_SECS, getChecksumHandler());
+                  }
+               return checksum + getChecksumHandler().checksum;
+               }
+            });
+      benchmarks.add(
+            new ZoneMapBenchmark("zoneMap.timeRange.scan", config)
+            {
+            @Override
+            public long run() throws IOException
+               {
+               long checksum = 0;
+               for (int i = 0; i < NUM_RANGE_QUERIES; i++)
+                  {
+                  final int startTime = getRandomStartTime();
+                  checksum += scan(getRandomDeviceName(), startTime, startTime + QUERY_RANGE_SECS, Integer.MIN_VALUE);
+                  }
+               return checksum + getChecksumHandler().checksum;
+               }
+            });
+      benchmarks.add(
+            new ZoneMapBenchmark("zoneMap.threshold.indexed", config)
+            {
+            @Override
+            public long run() throws IOException
+               {
+               long checksum = 0;
+               for (final String name : getReader().getDeviceNames())
+                  {
+                  checksum += getReader().queryAboveThreshold(name, Integer.MIN_VALUE, Integer.MAX_VALUE, THRESHOLD, getChecksumHandler());
+                  }
+               return checksum + getChecksumHandler().checksum;
+               }
+            });
+      benchmarks.add(
+            new ZoneMapBenchmark("zoneMap.threshold.scan", config)
+            {
+            @Override
+            public long run() throws IOException
+               {
+               long checksum = 0;
+               for (final String name : getReader().getDeviceNames())
+                  {
+                  checksum += scan(name, Integer.MIN_VALUE, Integer.MAX_VALUE, THRESHOLD);
+                  }
+               return checksum + getChecksumHandler().checksum;
+               }
+            });
+
+      return benchmarks;
+      }
+
+   /**
+    * Writes a data file in the records format, with its zone map, holding one minute samples of low values with an
+    * occasional spike, and opens it with a {@link ZoneMapReader}.  The scan reads each device's records the way a
+    * reader without the zone map has to, from its first record to its last, with reads the same size as the zone map
+    * reader's biggest.
+    */
+   private abstract static class ZoneMapBenchmark extends BenchmarkAdapter
+      {
+      @NotNull
+      private final BenchmarkConfig config;
+      @NotNull
+      private final Random random = new Random(1);
+      @NotNull
+      private final ChecksumHandler checksumHandler = new ChecksumHandler();
+      private ZoneMapReader reader;
+      private RandomAccessFile dataFile;
+      private ByteBuffer buffer;
+      private int numRecordsPerDevice;
+
+      private ZoneMapBenchmark(@NotNull final String name, @NotNull final BenchmarkConfig config)
+         {
+         super(name);
+         this.config = config;
+         }
+
+      @Override
+      public final void setUp() throws IOException
+         {
+         numRecordsPerDevice = Math.max(1, config.getNumRecords() / NUM_ZONE_MAP_DEVICES);
+         final File file = config.createTempFile("zone_map_data_", ".bin");
+         final File zoneMapFile = config.createTempFile("zone_map_", ".bin");
+         final BinaryRecordWriter writer = new BinaryRecordWriter(file);
+         final ZoneMap zoneMap = new ZoneMap(zoneMapFile, ZoneMap.DEFAULT_BLOCK_SIZE_IN_RECORDS, RECORD_SIZE_IN_BYTES, 4);
+         for (int device = 0; device < NUM_ZONE_MAP_DEVICES; device++)
+            {
+            zoneMap.handleBegin(getDeviceName(device));
+            for (int i = 0; i < numRecordsPerDevice; i++)
+               {
+               final int time = SyntheticData.FIRST_EPOCH_TIME + i * SECONDS_BETWEEN_RECORDS;
+               final int value = ((i + device * 997) % RECORDS_BETWEEN_SPIKES == 0) ? SPIKE_VALUE : ((i * 31 + device) & 0xFF);
+               writer.writeInt(time);
+               writer.writeInt(value);
+               zoneMap.handleRecord(time, value);
+               }
+            zoneMap.handleEnd();
+            }
+         writer.close();
+         zoneMap.finish();
+
+         reader = ZoneMapReader.open(file, zoneMapFile);
+         dataFile = new RandomAccessFile(file, "r");
+         buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE_IN_BLOCKS * ZoneMap.DEFAULT_BLOCK_SIZE_IN_RECORDS * RECORD_SIZE_IN_BYTES);
+         }
+
+      @Override
+      public final void tearDown() throws IOException
+         {
+         reader.close();
+         dataFile.close();
+         }
+
+      protected final ZoneMapReader getReader()
+         {
+         return reader;
+         }
+
+      protected final ChecksumHandler getChecksumHandler()
+         {
+         return checksumHandler;
+         }
+
+      protected final int getRandomStartTime()
+         {
+         return SyntheticData.FIRST_EPOCH_TIME + random.nextInt(numRecordsPerDevice) * SECONDS_BETWEEN_RECORDS;
+         }
+
+      @NotNull
+      protected final String getRandomDeviceName()
+         {
+         return getDeviceName(random.nextInt(NUM_ZONE_MAP_DEVICES));
+         }
+
+      /** Hands the named device's records in the time range with values above the threshold to the checksum handler. */
+      protected final int scan(@NotNull final String name, final int startTime, final int endTime, final int threshold) throws IOException
+         {
+         final FileChannel channel = dataFile.getChannel();
+         final long firstRecord = reader.getRecordOffset(name);
+         final int numRecords = reader.getNumRecords(name);
+         int numRecordsHandled = 0;
+         int record = 0;
+         while (record < numRecords)
+            {
+            final int numRecordsToRead = Math.min(buffer.capacity() / RECORD_SIZE_IN_BYTES, numRecords - record);
+            buffer.clear().limit(numRecordsToRead * RECORD_SIZE_IN_BYTES);
+            while (buffer.hasRemaining())
+               {
+               if (channel.read(buffer, (firstRecord + record) * RECORD_SIZE_IN_BYTES + buffer.position()) < 0)
+                  {
+                  throw new IOException("Unexpected end of the data file");
+                  }
+               }
+            for (int i = 0; i < numRecordsToRead; i++)
+               {
+               final int time = buffer.getInt(i * RECORD_SIZE_IN_BYTES);
+               final int value = buffer.getInt(i * RECORD_SIZE_IN_BYTES + 4);
+               if (time >= startTime && time < endTime && value > threshold)
+                  {
+                  checksumHandler.handleRecord(time, value);
+                  numRecordsHandled++;
+                  }
+               }
+            record += numRecordsToRead;
+            }
+         return numRecordsHandled;
+         }
+
+      @NotNull
+      private static String getDeviceName(final int device)
+         {
+         return "device_" + device;
+         }
+      }
+
+   private static final class ChecksumHandler implements ZoneMapReader.RecordHandler
+      {
+      private long checksum = 0;
+
+      @Override
+      public void handleRecord(final int epochTimeInSeconds, final int value)
+         {
+         checksum += epochTimeInSeconds + value;
+         }
+      }
+
+   /** Query points spread over the area covered by {@link SyntheticDevices} */
+   private static double getQueryLatitude(final int i)
+      {
+      return 40.4 + (i * 37 % 100) / 1000.0;
+      }
+
+   private static double getQueryLongitude(final int i)
+      {
+      return -79.9 - (i * 53 % 100) / 1000.0;
+      }
+
+   private VisualizationBenchmarks()
+      {
+      // private to prevent instantiation
+      }
+   }
@@ -0,0 +1,169 @@
+package org.cmucreatelab.visualization.airnow;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.cmucreatelab.benchmark.Benchmark;
+import org.cmucreatelab.benchmark.BenchmarkAdapter;
+import org.cmucreatelab.benchmark.BenchmarkConfig;
+import org.cmucreatelab.benchmark.SyntheticDevices;
+import org.cmucreatelab.io.CsvLine;
+import org.cmucreatelab.io.IoBenchmarks;
+import org.cmucreatelab.visualization.BinaryFormat;
+import org.cmucreatelab.visualization.Resampler;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Benchmarks for the AirNow listener chain and generators.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class AirNowBenchmarks
+   {
+   private static final int NUM_RECORDS_PER_DEVICE_FOR_METADATA = 10;
+
+   @NotNull
+   public static List<Benchmark> create(@NotNull final BenchmarkConfig config)
+      {
+      final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+      benchmarks.add(
+            new BenchmarkAdapter("airnow.listenerChain.dispatch")
+            {
+            private final File file = new File("benchmark.csv");
+            private final double[] values = new double[1];
+            private final CsvLine line = IoBenchmarks.createDetachedCsvLine();
+            private AirNowDataProcessor.AirNowCsvDataFileEventListener csvDataFileEventListener;
+            private CountingListener countingListener;
+
+            @Override
+            public void setUp() throws IOException
+               {
+               // the metadata generator has no devices, so it does all its per-record work but doesn't accumulate JSON
+               countingListener = new CountingListener();
+               csvDataFileEventListener = new AirNowDataProcessor.AirNowCsvDataFileEventListener();
+               csvDataFileEventListener.addEventListener(new AirNowDataProcessor.MetadataGenerator(config.createTempDirectory("airnow_"), new SyntheticDevices(0)));
+               csvDataFileEventListener.addEventListener(countingListener);
+               }
+
+            @Override
+            public long run()
+               {
+               csvDataFileEventListener.handleBegin(file);
+               int time = 1383316440;
+               for (int i = 0; i < config.getNumRecords(); i++)
+                  {
+                  values[0] = (i & 0x3FF) / 10.0;
+                  csvDataFileEventListener.handleRecord(time, values, line);
+                  time += 3600;
+                  }
+               csvDataFileEventListener.handleEnd(file, config.getNumRecords(), 0);
+               return countingListener.checksum;
+               }
+            });
+
+      benchmarks.add(createBinaryGeneratorBenchmark("airnow.binaryGenerator.write", config, BinaryFormat.RECORDS));
+      benchmarks.add(createBinaryGeneratorBenchmark("airnow.binaryGenerator.write.columnar", config, BinaryFormat.COLUMNAR));
+      benchmarks.add(createBinaryGeneratorBenchmark("airnow.binaryGenerator.write.aligned", config, BinaryFormat.ALIGNED));
+      benchmarks.add(createBinaryGeneratorBenchmark("airnow.binaryGenerator.write.resampled", config, BinaryFormat.RESAMPLED));
+
+      benchmarks.add(
+            new BenchmarkAdapter("airnow.metadataGenerator.write")
+            {
+            private File outputDirectory;
+            private SyntheticDevices devices;
+
+            @Override
+            public void setUp() throws IOException
+               {
+               outputDirectory = config.createTempDirectory("airnow_");
+               devices = new SyntheticDevices(config.getNumDevices());
+               }
+
+            @Override
+            public long run()
+               {
+               // the metadata is streamed out as each station ends, so the whole document is written on every iteration
+               final AirNowDataProcessor.MetadataGenerator metadataGenerator = new AirNowDataProcessor.MetadataGenerator(outputDirectory, devices);
+               for (int device = 0; device < config.getNumDevices(); device++)
+                  {
+                  metadataGenerator.handleBegin(SyntheticDevices.getDeviceName(device));
+                  for (int i = 0; i < NUM_RECORDS_PER_DEVICE_FOR_METADATA; i++)
+                     {
+                     final double value = (device + i) / 10.0;
+                     metadataGenerator.handleLine(1383316440 + i * 3600, value, (short)Math.round(value * 10));
+                     }
+                  metadataGenerator.handleEnd(NUM_RECORDS_PER_DEVICE_FOR_METADATA);
+                  }
+               metadataGenerator.finish();
+               return 1;
+               }
+            });
+
+      return benchmarks;
+      }
+
+   @NotNull
+   private static Benchmark createBinaryGeneratorBenchmark(@NotNull final String name, @NotNull final BenchmarkConfig config, @NotNull final BinaryFormat binaryFormat)
+      {
+      return new BenchmarkAdapter(name)
+      {
+      private File directory;
+
+      @Override
+      public void setUp() throws IOException
+         {
+         directory = config.createTempDirectory("airnow_");
+         }
+
+      @Override
+      public long run() throws IOException
+         {
+         final AirNowDataProcessor.BinaryGenerator binaryGenerator = new AirNowDataProcessor.BinaryGenerator(directory, binaryFormat);
+         if (binaryFormat == BinaryFormat.RESAMPLED)
+            {
+            binaryGenerator.setResampler(new Resampler(3600, Resampler.Aggregation.MEAN, 2));
+            }
+         binaryGenerator.handleBegin("device");
+         int time = 1383316440;
+         for (int i = 0; i < config.getNumRecords(); i++)
+            {
+            binaryGenerator.handleLine(time, (i & 0x3FF) / 10.0, (short)(i & 0x3FF));
+            time += 3600;
+            }
+         binaryGenerator.handleEnd(config.getNumRecords());
+         binaryGenerator.finish();
+         return time;
+         }
+      };
+      }
+
+   private static final class CountingListener implements AirNowDataProcessor.AirNowCsvDataFileEventListener.EventListener
+      {
+      private long checksum = 0;
+
+      @Override
+      public void handleBegin(@NotNull final String name)
+         {
+         checksum = 0;
+         }
+
+      @Override
+      public void handleLine(final int epochTimeInSeconds, final double value, final short valueAsShort)
+         {
+         checksum += valueAsShort;
+         }
+
+      @Override
+      public void handleEnd(final int numRecords)
+         {
+         // nothing to do
+         }
+      }
+
+   private AirNowBenchmarks()
+      {
+      // private to prevent instantiation
+      }
+   }
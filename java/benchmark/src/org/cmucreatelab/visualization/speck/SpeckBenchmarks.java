@@ -0,0 +1,166 @@
+package org.cmucreatelab.visualization.speck;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.cmucreatelab.benchmark.Benchmark;
+import org.cmucreatelab.benchmark.BenchmarkAdapter;
+import org.cmucreatelab.benchmark.BenchmarkConfig;
+import org.cmucreatelab.benchmark.SyntheticDevices;
+import org.cmucreatelab.io.CsvLine;
+import org.cmucreatelab.io.IoBenchmarks;
+import org.cmucreatelab.visualization.BinaryFormat;
+import org.cmucreatelab.visualization.Resampler;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Benchmarks for the Speck listener chain and generators.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class SpeckBenchmarks
+   {
+   private static final int NUM_RECORDS_PER_DEVICE_FOR_METADATA = 10;
+
+   @NotNull
+   public static List<Benchmark> create(@NotNull final BenchmarkConfig config)
+      {
+      final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+      benchmarks.add(
+            new BenchmarkAdapter("speck.listenerChain.dispatch")
+            {
+            private final File file = new File("benchmark.csv");
+            private final double[] values = new double[1];
+            private final CsvLine line = IoBenchmarks.createDetachedCsvLine();
+            private SpeckCsvDataFileEventListener csvDataFileEventListener;
+            private CountingListener countingListener;
+
+            @Override
+            public void setUp() throws IOException
+               {
+               // the metadata generator has no devices, so it does all its per-record work but doesn't accumulate JSON
+               countingListener = new CountingListener();
+               csvDataFileEventListener = new SpeckCsvDataFileEventListener();
+               csvDataFileEventListener.addEventListener(new SpeckDataProcessor.MetadataGenerator(1, config.createTempFile("metadata_", ".json"), new SyntheticDevices(0)));
+               csvDataFileEventListener.addEventListener(countingListener);
+               }
+
+            @Override
+            public long run()
+               {
+               csvDataFileEventListener.handleBegin(file);
+               int time = 1383316440;
+               for (int i = 0; i < config.getNumRecords(); i++)
+                  {
+                  values[0] = i & 0xFFF;
+                  csvDataFileEventListener.handleRecord(time++, values, line);
+                  }
+               csvDataFileEventListener.handleEnd(file, config.getNumRecords(), 0);
+               return countingListener.checksum;
+               }
+            });
+
+      benchmarks.add(createBinaryGeneratorBenchmark("speck.binaryGenerator.write", config, BinaryFormat.RECORDS));
+      benchmarks.add(createBinaryGeneratorBenchmark("speck.binaryGenerator.write.columnar", config, BinaryFormat.COLUMNAR));
+      benchmarks.add(createBinaryGeneratorBenchmark("speck.binaryGenerator.write.aligned", config, BinaryFormat.ALIGNED));
+      benchmarks.add(createBinaryGeneratorBenchmark("speck.binaryGenerator.write.resampled", config, BinaryFormat.RESAMPLED));
+
+      benchmarks.add(
+            new BenchmarkAdapter("speck.metadataGenerator.write")
+            {
+            private File file;
+            private SyntheticDevices devices;
+
+            @Override
+            public void setUp() throws IOException
+               {
+               file = config.createTempFile("speck_metadata_", ".json");
+               devices = new SyntheticDevices(config.getNumDevices());
+               }
+
+            @Override
+            public long run()
+               {
+               // the metadata is streamed out as each device ends, so the whole document is written on every iteration
+               final SpeckDataProcessor.MetadataGenerator metadataGenerator = new SpeckDataProcessor.MetadataGenerator(1, file, devices);
+               for (int device = 0; device < config.getNumDevices(); device++)
+                  {
+                  metadataGenerator.handleBegin(SyntheticDevices.getDeviceName(device));
+                  for (int i = 0; i < NUM_RECORDS_PER_DEVICE_FOR_METADATA; i++)
+                     {
+                     metadataGenerator.handleLine(1383316440 + i, device + i);
+                     }
+                  metadataGenerator.handleEnd(NUM_RECORDS_PER_DEVICE_FOR_METADATA);
+                  }
+               metadataGenerator.finish();
+               return file.length();
+               }
+            });
+
+      return benchmarks;
+      }
+
+   @NotNull
+   private static Benchmark createBinaryGeneratorBenchmark(@NotNull final String name, @NotNull final BenchmarkConfig config, @NotNull final BinaryFormat binaryFormat)
+      {
+      return new BenchmarkAdapter(name)
+      {
+      private File file;
+
+      @Override
+      public void setUp() throws IOException
+         {
+         file = config.createTempFile("speck_", ".bin");
+         }
+
+      @Override
+      public long run() throws IOException
+         {
+         final SpeckDataProcessor.BinaryGenerator binaryGenerator = new SpeckDataProcessor.BinaryGenerator(file, binaryFormat);
+         if (binaryFormat == BinaryFormat.RESAMPLED)
+            {
+            binaryGenerator.setResampler(new Resampler(1, Resampler.Aggregation.MEAN, 4));
+            }
+         binaryGenerator.handleBegin("device");
+         int time = 1383316440;
+         for (int i = 0; i < config.getNumRecords(); i++)
+            {
+            binaryGenerator.handleLine(time++, i & 0xFFF);
+            }
+         binaryGenerator.handleEnd(config.getNumRecords());
+         binaryGenerator.finish();
+         return file.length();
+         }
+      };
+      }
+
+   private static final class CountingListener implements SpeckCsvDataFileEventListener.EventListener
+      {
+      private long checksum = 0;
+
+      @Override
+      public void handleBegin(@NotNull final String name)
+         {
+         checksum = 0;
+         }
+
+      @Override
+      public void handleLine(final int epochTimeInSeconds, final int value)
+         {
+         checksum += value;
+         }
+
+      @Override
+      public void handleEnd(final int numRecords)
+         {
+         // nothing to do
+         }
+      }
+
+   private SpeckBenchmarks()
+      {
+      // private to prevent instantiation
+      }
+   }
@@ -0,0 +1,3 @@
+#!/bin/bash
+
+java -cp dist/environmental-sensor-data-processor.jar org.cmucreatelab.visualization.speck.GpsSpeckDataProcessor ../csv/gps_speck ../data;
@@ -0,0 +1,3 @@
+#!/bin/bash
+
+java -cp dist/environmental-sensor-data-processor.jar org.cmucreatelab.visualization.speck.SpeckAirNowJoinProcessor ./speck_scs_in_home_devices.csv ../csv/speck_scs_in_home ./airnow_devices.csv ../csv/airnow ../data;
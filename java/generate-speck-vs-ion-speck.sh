@@ -1,3 +1,4 @@
 #!/bin/bash
 
-java -cp dist/environmental-sensor-data-processor.jar org.cmucreatelab.visualization.speck.SpeckDataProcessor 1 ./speck_vs_ion_speck_devices.csv ../csv/speck_vs_ion_speck ../data speck_vs_ion_speck_metadata.json speck_vs_ion_speck_data.bin;
+# compares speck with ion_speck, the reference, over a rolling hour window
+java -cp dist/environmental-sensor-data-processor.jar org.cmucreatelab.visualization.speck.SpeckDataProcessor 1 ./speck_vs_ion_speck_devices.csv ../csv/speck_vs_ion_speck ../data speck_vs_ion_speck_metadata.json speck_vs_ion_speck_data.bin --compare ion_speck speck 3600;
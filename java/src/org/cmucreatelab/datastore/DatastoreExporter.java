@@ -0,0 +1,181 @@
+package org.cmucreatelab.datastore;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Runs the BodyTrack datastore's <code>export</code> program for a device channel and hands its CSV output, as it is
+ * produced, to a {@link StreamHandler}, so that the data can be processed without first being written to a CSV file.
+ * This does the same job as <code>export_csv_files_from_datastore.sh</code>, one device at a time.  Instances are
+ * immutable, so a single exporter can be used by several threads at once to run exports in parallel.
+ * </p>
+ * <p>
+ * The program is run as
+ * <code>&lt;export program&gt; [--start &lt;time&gt;] [--end &lt;time&gt;] --csv &lt;key-value store&gt; &lt;user id&gt; &lt;device&gt;.&lt;channel&gt;</code>,
+ * so anything taking the same arguments and writing CSV to stdout (such as
+ * <code>datastore_export_stand_in.sh</code>) can stand in for it.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class DatastoreExporter
+   {
+   private static final Logger LOG = Logger.getLogger(DatastoreExporter.class);
+
+   public static interface StreamHandler
+      {
+      /** Reads the export's standard output, which is closed once this returns. */
+      void handleStream(@NotNull final InputStream inputStream) throws IOException;
+      }
+
+   @NotNull
+   private final File exportProgram;
+   @NotNull
+   private final File keyValueStore;
+   @NotNull
+   private final String userId;
+   @NotNull
+   private final String channelName;
+   @Nullable
+   private final Integer startTime;
+   @Nullable
+   private final Integer endTime;
+
+   public DatastoreExporter(@NotNull final File exportProgram,
+                            @NotNull final File keyValueStore,
+                            @NotNull final String userId,
+                            @NotNull final String channelName)
+      {
+      this(exportProgram, keyValueStore, userId, channelName, null, null);
+      }
+
+   /** The start and end times, in epoch seconds, limit the export to that time range if not <code>null</code>. */
+   public DatastoreExporter(@NotNull final File exportProgram,
+                            @NotNull final File keyValueStore,
+                            @NotNull final String userId,
+                            @NotNull final String channelName,
+                            @Nullable final Integer startTime,
+                            @Nullable final Integer endTime)
+      {
+      this.exportProgram = exportProgram;
+      this.keyValueStore = keyValueStore;
+      this.userId = userId;
+      this.channelName = channelName;
+      this.startTime = startTime;
+      this.endTime = endTime;
+      }
+
+   /**
+    * Exports the channel of the given device, passing the output stream of the export process to the given handler,
+    * and then waits for the process to exit.  Anything the process writes to stderr is logged.
+    *
+    * @throws IOException if the process can't be started, the handler fails, or the process exits with an error
+    */
+   public void export(@NotNull final String deviceName, @NotNull final StreamHandler streamHandler) throws IOException
+      {
+      final List<String> command = new ArrayList<String>();
+      command.add(exportProgram.getPath());
+      if (startTime != null)
+         {
+         command.add("--start");
+         command.add(String.valueOf(startTime));
+         }
+      if (endTime != null)
+         {
+         command.add("--end");
+         command.add(String.valueOf(endTime));
+         }
+      command.add("--csv");
+      command.add(keyValueStore.getPath());
+      command.add(userId);
+      command.add(deviceName + "." + channelName);
+
+      final Process process = new ProcessBuilder(command).start();
+      try
+         {
+         // the process would block if nobody drained its stderr, so log it from another thread
+         final Thread errorLogger = new Thread(new ErrorStreamLogger(deviceName, process.getErrorStream()), "export-stderr-" + deviceName);
+         errorLogger.setDaemon(true);
+         errorLogger.start();
+
+         process.getOutputStream().close();
+         final InputStream inputStream = process.getInputStream();
+         try
+            {
+            streamHandler.handleStream(inputStream);
+            }
+         finally
+            {
+            inputStream.close();
+            }
+
+         final int exitValue = process.waitFor();
+         errorLogger.join();
+         if (exitValue != 0)
+            {
+            throw new IOException("Export of device [" + deviceName + "] failed with exit value [" + exitValue + "]");
+            }
+         }
+      catch (InterruptedException e)
+         {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while waiting for the export of device [" + deviceName + "]", e);
+         }
+      finally
+         {
+         process.destroy();
+         }
+      }
+
+   private static final class ErrorStreamLogger implements Runnable
+      {
+      @NotNull
+      private final String deviceName;
+      @NotNull
+      private final InputStream errorStream;
+
+      private ErrorStreamLogger(@NotNull final String deviceName, @NotNull final InputStream errorStream)
+         {
+         this.deviceName = deviceName;
+         this.errorStream = errorStream;
+         }
+
+      @Override
+      public void run()
+         {
+         final BufferedReader reader = new BufferedReader(new InputStreamReader(errorStream));
+         try
+            {
+            String line;
+            while ((line = reader.readLine()) != null)
+               {
+               LOG.warn("Export of device [" + deviceName + "]: " + line);
+               }
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException while reading the error output of the export of device [" + deviceName + "]", e);
+            }
+         finally
+            {
+            try
+               {
+               reader.close();
+               }
+            catch (IOException e)
+               {
+               LOG.error("IOException while trying to close the error output of the export of device [" + deviceName + "]", e);
+               }
+            }
+         }
+      }
+   }
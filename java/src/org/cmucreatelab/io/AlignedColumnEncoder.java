@@ -0,0 +1,125 @@
+package org.cmucreatelab.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * Accumulates a column of ints in memory as fixed-size, little-endian values, padded at the end to a multiple of
+ * {@link #ALIGNMENT_IN_BYTES}.  As long as each column starts where the previous one ended, every column in a file
+ * starts on an aligned boundary, so a browser can wrap a column directly in an <code>Int32Array</code> or
+ * <code>Int16Array</code> (whose byte order is the platform's, which is little-endian almost everywhere) without
+ * decoding it value by value.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class AlignedColumnEncoder implements ColumnEncoder
+   {
+   /** Typed arrays of up to 8 byte elements can be created at any multiple of this offset. */
+   public static final int ALIGNMENT_IN_BYTES = 8;
+
+   public static enum ValueType
+      {
+      INT16("int16", 2),
+      INT32("int32", 4);
+
+      @NotNull
+      private final String name;
+      private final int sizeInBytes;
+
+      ValueType(@NotNull final String name, final int sizeInBytes)
+         {
+         this.name = name;
+         this.sizeInBytes = sizeInBytes;
+         }
+
+      /** Returns the name given to the type in the metadata. */
+      @NotNull
+      public String getName()
+         {
+         return name;
+         }
+
+      public int getSizeInBytes()
+         {
+         return sizeInBytes;
+         }
+      }
+
+   private static final int INITIAL_CAPACITY = 1024;
+
+   @NotNull
+   private final ValueType valueType;
+   @NotNull
+   private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+   private int numValues = 0;
+
+   public AlignedColumnEncoder(@NotNull final ValueType valueType)
+      {
+      this.valueType = valueType;
+      }
+
+   @NotNull
+   public ValueType getValueType()
+      {
+      return valueType;
+      }
+
+   @Override
+   public void reset()
+      {
+      buffer.clear();
+      numValues = 0;
+      }
+
+   /** Adds the value, which, for {@link ValueType#INT16} columns, must already fit in a short. */
+   @Override
+   public void add(final int value)
+      {
+      if (buffer.remaining() < valueType.sizeInBytes)
+         {
+         final ByteBuffer biggerBuffer = ByteBuffer.allocate(buffer.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+         buffer.flip();
+         biggerBuffer.put(buffer);
+         buffer = biggerBuffer;
+         }
+      if (valueType == ValueType.INT16)
+         {
+         buffer.putShort((short)value);
+         }
+      else
+         {
+         buffer.putInt(value);
+         }
+      numValues++;
+      }
+
+   @Override
+   public int getNumValues()
+      {
+      return numValues;
+      }
+
+   /** Returns the length of the column so far, in bytes, including the padding. */
+   @Override
+   public int getLength()
+      {
+      return (buffer.position() + ALIGNMENT_IN_BYTES - 1) / ALIGNMENT_IN_BYTES * ALIGNMENT_IN_BYTES;
+      }
+
+   @Override
+   public void writeTo(@NotNull final BinaryRecordWriter writer) throws IOException
+      {
+      final int length = buffer.position();
+      final int paddedLength = getLength();
+      while (buffer.position() < paddedLength)
+         {
+         buffer.put((byte)0);
+         }
+      writer.write(buffer.array(), 0, paddedLength);
+      buffer.position(length);
+      }
+   }
@@ -0,0 +1,173 @@
+package org.cmucreatelab.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * Writes big-endian binary records (the same byte layout as {@link java.io.DataOutputStream}) to a file.  Values are
+ * accumulated in a large direct {@link ByteBuffer} and written to the {@link FileChannel} in big batches, so that
+ * writing millions of small records costs only a handful of write system calls.  Files meant to be viewed directly
+ * by JavaScript typed arrays, which use the platform's (almost always little-endian) byte order, can be written
+ * little-endian instead.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class BinaryRecordWriter
+   {
+   public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+   @NotNull
+   private final FileOutputStream outputStream;
+   @NotNull
+   private final FileChannel channel;
+   @NotNull
+   private final ByteBuffer buffer;
+   private long numWriteCalls = 0;
+   private long numBytesWritten = 0;
+
+   public BinaryRecordWriter(@NotNull final File file) throws IOException
+      {
+      this(file, DEFAULT_BUFFER_SIZE);
+      }
+
+   public BinaryRecordWriter(@NotNull final File file, final int bufferSize) throws IOException
+      {
+      this(file, bufferSize, false);
+      }
+
+   /** If <code>append</code> is <code>true</code>, records are appended to the file instead of replacing its contents. */
+   public BinaryRecordWriter(@NotNull final File file, final int bufferSize, final boolean append) throws IOException
+      {
+      this(file, bufferSize, append, ByteOrder.BIG_ENDIAN);
+      }
+
+   public BinaryRecordWriter(@NotNull final File file, final int bufferSize, final boolean append, @NotNull final ByteOrder byteOrder) throws IOException
+      {
+      outputStream = new FileOutputStream(file, append);
+      channel = outputStream.getChannel();
+      buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, 8));
+      buffer.order(byteOrder);
+      }
+
+   public void writeInt(final int value) throws IOException
+      {
+      if (buffer.remaining() < 4)
+         {
+         flush();
+         }
+      buffer.putInt(value);
+      }
+
+   public void writeShort(final short value) throws IOException
+      {
+      if (buffer.remaining() < 2)
+         {
+         flush();
+         }
+      buffer.putShort(value);
+      }
+
+   public void writeFloat(final float value) throws IOException
+      {
+      if (buffer.remaining() < 4)
+         {
+         flush();
+         }
+      buffer.putFloat(value);
+      }
+
+   public void write(@NotNull final byte[] bytes, final int offset, final int length) throws IOException
+      {
+      int position = offset;
+      final int end = offset + length;
+      while (position < end)
+         {
+         if (!buffer.hasRemaining())
+            {
+            flush();
+            }
+         final int count = Math.min(buffer.remaining(), end - position);
+         buffer.put(bytes, position, count);
+         position += count;
+         }
+      }
+
+   /**
+    * Appends the entire contents of the given file, using {@link FileChannel#transferFrom} so that the bytes can be
+    * copied by the operating system without passing through the Java heap.
+    */
+   public void transferFrom(@NotNull final File file) throws IOException
+      {
+      flush();
+      final FileInputStream inputStream = new FileInputStream(file);
+      try
+         {
+         final FileChannel source = inputStream.getChannel();
+         final long size = source.size();
+         long position = channel.position();
+         long numBytesTransferred = 0;
+         while (numBytesTransferred < size)
+            {
+            final long count = channel.transferFrom(source, position, size - numBytesTransferred);
+            if (count <= 0)
+               {
+               throw new IOException("Failed to transfer the contents of file [" + file + "]: only " + numBytesTransferred + " of " + size + " bytes were copied");
+               }
+            numWriteCalls++;
+            numBytesTransferred += count;
+            position += count;
+            }
+
+         // transferFrom() doesn't update the position of the destination channel
+         channel.position(position);
+         numBytesWritten += numBytesTransferred;
+         }
+      finally
+         {
+         inputStream.close();
+         }
+      }
+
+   public void flush() throws IOException
+      {
+      buffer.flip();
+      while (buffer.hasRemaining())
+         {
+         numBytesWritten += channel.write(buffer);
+         numWriteCalls++;
+         }
+      buffer.clear();
+      }
+
+   public void close() throws IOException
+      {
+      try
+         {
+         flush();
+         }
+      finally
+         {
+         outputStream.close();
+         }
+      }
+
+   /** Returns the number of write (or transfer) calls made on the underlying channel so far. */
+   public long getNumWriteCalls()
+      {
+      return numWriteCalls;
+      }
+
+   /** Returns the number of bytes written to the underlying channel so far, not including any still in the buffer. */
+   public long getNumBytesWritten()
+      {
+      return numBytesWritten;
+      }
+   }
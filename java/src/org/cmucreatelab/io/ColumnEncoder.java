@@ -0,0 +1,25 @@
+package org.cmucreatelab.io;
+
+import java.io.IOException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Accumulates a column of ints in memory, in some encoding, until it's written out all at once.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public interface ColumnEncoder
+   {
+   /** Empties the column, so that the encoder can be reused for another one. */
+   void reset();
+
+   void add(final int value);
+
+   /** Returns the number of values added so far. */
+   int getNumValues();
+
+   /** Returns the number of bytes that {@link #writeTo} would write. */
+   int getLength();
+
+   void writeTo(@NotNull final BinaryRecordWriter writer) throws IOException;
+   }
@@ -0,0 +1,250 @@
+package org.cmucreatelab.io;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * A reusable, byte-level view of a single line of a CSV file.  Instances are owned by the {@link CsvReader} and are
+ * recycled for every line, so listeners must not hold on to them (or to the underlying buffer) after the callback
+ * returns.  Field offsets are absolute indices into the buffer returned by {@link #getBuffer()}.
+ * </p>
+ * <p>
+ * Fields are split as described by RFC 4180: a field which begins with a double quote runs until the matching closing
+ * quote, and may contain commas, line terminators and escaped (doubled) quotes.  For a quoted field, the offset and
+ * length describe the raw bytes between the quotes, so any escaped quotes are still doubled there, but
+ * {@link #getField(int)} and {@link #getFields()} return the unescaped value.  Otherwise fields are split just as
+ * {@link String#split(String) String.split(",")} would split the line, so trailing empty (unquoted) fields are not
+ * counted.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class CsvLine
+   {
+   private static final Charset CHARSET = Charset.forName("UTF-8");
+   private static final int INITIAL_FIELD_CAPACITY = 16;
+   private static final byte QUOTE = '"';
+
+   private static final byte FLAG_QUOTED = 1;
+   private static final byte FLAG_ESCAPED_QUOTES = 2;
+
+   private ByteBuffer buffer = null;
+   private int offset = 0;
+   private int length = 0;
+   private int numFields = 0;
+   private int[] fieldOffsets = new int[INITIAL_FIELD_CAPACITY];
+   private int[] fieldLengths = new int[INITIAL_FIELD_CAPACITY];
+   private byte[] fieldFlags = new byte[INITIAL_FIELD_CAPACITY];
+
+   CsvLine()
+      {
+      }
+
+   void reset(@NotNull final ByteBuffer buffer, final int offset, final int length)
+      {
+      this.buffer = buffer;
+      this.offset = offset;
+      this.length = length;
+      this.numFields = 0;
+      }
+
+   void addField(final int fieldOffset, final int fieldLength)
+      {
+      addField(fieldOffset, fieldLength, (byte)0);
+      }
+
+   /**
+    * Adds a quoted field, given the offset and length of the bytes between the quotes, and whether they contain any
+    * escaped (doubled) quotes.
+    */
+   void addQuotedField(final int fieldOffset, final int fieldLength, final boolean hasEscapedQuotes)
+      {
+      addField(fieldOffset, fieldLength, hasEscapedQuotes ? (byte)(FLAG_QUOTED | FLAG_ESCAPED_QUOTES) : FLAG_QUOTED);
+      }
+
+   private void addField(final int fieldOffset, final int fieldLength, final byte flags)
+      {
+      if (numFields == fieldOffsets.length)
+         {
+         final int newCapacity = fieldOffsets.length * 2;
+         final int[] newFieldOffsets = new int[newCapacity];
+         final int[] newFieldLengths = new int[newCapacity];
+         final byte[] newFieldFlags = new byte[newCapacity];
+         System.arraycopy(fieldOffsets, 0, newFieldOffsets, 0, numFields);
+         System.arraycopy(fieldLengths, 0, newFieldLengths, 0, numFields);
+         System.arraycopy(fieldFlags, 0, newFieldFlags, 0, numFields);
+         fieldOffsets = newFieldOffsets;
+         fieldLengths = newFieldLengths;
+         fieldFlags = newFieldFlags;
+         }
+      fieldOffsets[numFields] = fieldOffset;
+      fieldLengths[numFields] = fieldLength;
+      fieldFlags[numFields] = flags;
+      numFields++;
+      }
+
+   /**
+    * Sets the bounds of the line to the given (possibly trimmed) range, shrinks the first and last fields to fit within
+    * it (unless they're quoted, in which case they already exclude the trimmed bytes), and then drops trailing empty
+    * unquoted fields to mimic the behavior of {@link String#split(String)}.
+    */
+   void trim(final int start, final int end)
+      {
+      offset = start;
+      length = end - start;
+      if (numFields > 0)
+         {
+         if ((fieldFlags[0] & FLAG_QUOTED) == 0)
+            {
+            fieldLengths[0] -= start - fieldOffsets[0];
+            fieldOffsets[0] = start;
+            }
+         final int last = numFields - 1;
+         if ((fieldFlags[last] & FLAG_QUOTED) == 0)
+            {
+            fieldLengths[last] = end - fieldOffsets[last];
+            }
+         }
+      while (numFields > 0 && fieldLengths[numFields - 1] == 0 && (fieldFlags[numFields - 1] & FLAG_QUOTED) == 0)
+         {
+         numFields--;
+         }
+      }
+
+   @NotNull
+   public ByteBuffer getBuffer()
+      {
+      return buffer;
+      }
+
+   /** Returns the absolute index of the first byte of the line in the buffer. */
+   public int getOffset()
+      {
+      return offset;
+      }
+
+   /** Returns the length of the line in bytes, not including the line terminator. */
+   public int getLength()
+      {
+      return length;
+      }
+
+   public int getNumFields()
+      {
+      return numFields;
+      }
+
+   /** Returns the absolute index of the first byte of the field with the given index in the buffer. */
+   public int getFieldOffset(final int fieldIndex)
+      {
+      checkFieldIndex(fieldIndex);
+      return fieldOffsets[fieldIndex];
+      }
+
+   /** Returns the length of the field with the given index in bytes. */
+   public int getFieldLength(final int fieldIndex)
+      {
+      checkFieldIndex(fieldIndex);
+      return fieldLengths[fieldIndex];
+      }
+
+   /** Returns whether the field with the given index was enclosed in double quotes. */
+   public boolean isFieldQuoted(final int fieldIndex)
+      {
+      checkFieldIndex(fieldIndex);
+      return (fieldFlags[fieldIndex] & FLAG_QUOTED) != 0;
+      }
+
+   /**
+    * Parses the field with the given index as a long without allocating, returning {@link NumberParser#MALFORMED_LONG}
+    * if the field isn't a valid long.
+    */
+   public long getFieldAsLong(final int fieldIndex)
+      {
+      checkFieldIndex(fieldIndex);
+      return NumberParser.parseLong(buffer, fieldOffsets[fieldIndex], fieldLengths[fieldIndex]);
+      }
+
+   /**
+    * Parses the field with the given index as a double without allocating (in the common case), returning
+    * {@link Double#NaN} if the field isn't a valid number.
+    */
+   public double getFieldAsDouble(final int fieldIndex)
+      {
+      checkFieldIndex(fieldIndex);
+      return NumberParser.parseDouble(buffer, fieldOffsets[fieldIndex], fieldLengths[fieldIndex]);
+      }
+
+   /** Materializes the field with the given index as a String.  This allocates, so use sparingly in hot code. */
+   @NotNull
+   public String getField(final int fieldIndex)
+      {
+      checkFieldIndex(fieldIndex);
+      return decodeField(fieldIndex);
+      }
+
+   /** Materializes all the fields as Strings.  This allocates, so use sparingly in hot code. */
+   @NotNull
+   public String[] getFields()
+      {
+      final String[] fields = new String[numFields];
+      for (int i = 0; i < numFields; i++)
+         {
+         fields[i] = decodeField(i);
+         }
+      return fields;
+      }
+
+   /** Materializes the entire line as a String.  This allocates, so use sparingly in hot code. */
+   @Override
+   public String toString()
+      {
+      return decode(offset, length);
+      }
+
+   private void checkFieldIndex(final int fieldIndex)
+      {
+      if (fieldIndex < 0 || fieldIndex >= numFields)
+         {
+         throw new IndexOutOfBoundsException("Field index [" + fieldIndex + "] is out of bounds for a line with [" + numFields + "] fields");
+         }
+      }
+
+   @NotNull
+   private String decodeField(final int fieldIndex)
+      {
+      if ((fieldFlags[fieldIndex] & FLAG_ESCAPED_QUOTES) == 0)
+         {
+         return decode(fieldOffsets[fieldIndex], fieldLengths[fieldIndex]);
+         }
+
+      // collapse each pair of quotes into one
+      final int start = fieldOffsets[fieldIndex];
+      final int end = start + fieldLengths[fieldIndex];
+      final byte[] bytes = new byte[fieldLengths[fieldIndex]];
+      int len = 0;
+      for (int i = start; i < end; i++)
+         {
+         final byte b = buffer.get(i);
+         bytes[len++] = b;
+         if (b == QUOTE && i + 1 < end && buffer.get(i + 1) == QUOTE)
+            {
+            i++;
+            }
+         }
+      return new String(bytes, 0, len, CHARSET);
+      }
+
+   @NotNull
+   private String decode(final int start, final int len)
+      {
+      final byte[] bytes = new byte[len];
+      for (int i = 0; i < len; i++)
+         {
+         bytes[i] = buffer.get(start + i);
+         }
+      return new String(bytes, CHARSET);
+      }
+   }
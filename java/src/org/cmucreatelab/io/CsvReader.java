@@ -1,17 +1,37 @@
 package org.cmucreatelab.io;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashSet;
-import java.util.Scanner;
 import java.util.Set;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 /**
+ * <p>
+ * Reads a CSV file by memory mapping it (or a CSV stream, by buffering it) and scanning the bytes for delimiters directly, in a single pass which also
+ * handles RFC 4180 quoting (see {@link CsvLine} for details).  Lines may end with CR, LF or CRLF.  Listeners which implement
+ * {@link ByteEventListener} are handed a reusable {@link CsvLine} which describes the fields as offsets into the
+ * mapped buffer, so no objects are allocated per line.  Listeners which implement the original String-based
+ * {@link EventListener} still work: the line and its fields are only materialized as Strings if at least one such
+ * listener is registered.
+ * </p>
+ * <p>
+ * Listeners which implement {@link NumericEventListener} go one step further and receive lines which have already
+ * been parsed into primitives, straight from the bytes.
+ * </p>
+ * <p>
+ * A reader can be limited to a {@link #setTimeWindow(Integer, Integer) time window}.  If the lines of the file are
+ * sorted by time, the first and last lines of the window are found with a binary search which only parses the time
+ * field of a few lines, so only the window itself is read.
+ * </p>
+ *
  * @author Chris Bartley (bartley@cmu.edu)
  */
 public final class CsvReader
@@ -19,6 +39,20 @@ public final class CsvReader
    private static final Logger LOG = Logger.getLogger(CsvReader.class);
    public static final String COMMA_DELIMITER = ",";
 
+   private static final byte COMMA = ',';
+   private static final byte CARRIAGE_RETURN = '\r';
+   private static final byte LINE_FEED = '\n';
+   private static final byte QUOTE = '"';
+
+   /** Files are mapped in regions of at most this many bytes, so that files larger than 2 GB can be read. */
+   private static final int MAX_MAPPED_REGION_SIZE = 256 * 1024 * 1024;
+
+   /** Initial size of the buffer used when reading from a stream, which grows if a line doesn't fit */
+   private static final int STREAM_BUFFER_SIZE = 1024 * 1024;
+
+   /** Size of the reads used to look for line boundaries when splitting a file into chunks, or searching it by time */
+   private static final int CHUNK_BOUNDARY_SCAN_SIZE = 64 * 1024;
+
    public static interface EventListener
       {
       void handleBegin(@NotNull final File file);
@@ -57,12 +91,85 @@ public final class CsvReader
          }
       }
 
+   /**
+    * Byte-level listener for hot code paths.  The {@link CsvLine} passed to {@link #handleHeader(CsvLine)} and
+    * {@link #handleLine(CsvLine)} is reused for every line and is only valid for the duration of the call.
+    */
+   public static interface ByteEventListener
+      {
+      void handleBegin(@NotNull final File file);
+
+      void handleHeader(@NotNull final CsvLine header);
+
+      void handleLine(@NotNull final CsvLine line);
+
+      void handleEnd(@NotNull final File file, final int numLines);
+      }
+
+   public static class ByteEventListenerAdapter implements ByteEventListener
+      {
+      @Override
+      public void handleBegin(@NotNull final File file)
+         {
+         // does nothing by default
+         }
+
+      @Override
+      public void handleHeader(@NotNull final CsvLine header)
+         {
+         // does nothing by default
+         }
+
+      @Override
+      public void handleLine(@NotNull final CsvLine line)
+         {
+         // does nothing by default
+         }
+
+      @Override
+      public void handleEnd(@NotNull final File file, final int numLines)
+         {
+         // does nothing by default
+         }
+      }
+
+   /**
+    * Listener for time series files, where the first field is the epoch time in seconds and the remaining fields are
+    * numbers.  The reader parses the epoch time as an int and the next <code>minimumNumFields - 1</code> fields as
+    * doubles, without allocating.  Lines containing a malformed number are reported to
+    * {@link #handleMalformedLine(CsvLine)} instead of {@link #handleRecord(int, double[], CsvLine)}.
+    */
+   public static interface NumericEventListener
+      {
+      void handleBegin(@NotNull final File file);
+
+      /**
+       * The <code>values</code> array and the <code>line</code> are reused for every line and are only valid for the
+       * duration of the call.
+       */
+      void handleRecord(final int epochTimeInSeconds, @NotNull final double[] values, @NotNull final CsvLine line);
+
+      void handleMalformedLine(@NotNull final CsvLine line);
+
+      void handleEnd(@NotNull final File file, final int numRecords, final int numMalformedLines);
+      }
+
    @NotNull
    private final File file;
    private final boolean hasHeader;
    private final int minimumNumFields;
    @NotNull
    private final Set<EventListener> eventListeners = new HashSet<EventListener>();
+   @NotNull
+   private final Set<ByteEventListener> byteEventListeners = new HashSet<ByteEventListener>();
+   @NotNull
+   private final Set<NumericEventListener> numericEventListeners = new HashSet<NumericEventListener>();
+   private long startOffset = 0;
+   private long limit = Long.MAX_VALUE;
+   private boolean willIgnoreIncompleteLastLine = false;
+   private long endOffset = 0;
+   private long windowStartTime = Long.MIN_VALUE;
+   private long windowEndTime = Long.MAX_VALUE;
 
    public CsvReader(@NotNull final File file, final boolean hasHeader, final int minimumNumFields)
       {
@@ -79,59 +186,718 @@ public final class CsvReader
          }
       }
 
-   public void read()
+   public void addByteEventListener(@Nullable final ByteEventListener listener)
+      {
+      if (listener != null)
+         {
+         byteEventListeners.add(listener);
+         }
+      }
+
+   public void addNumericEventListener(@Nullable final NumericEventListener listener)
+      {
+      if (listener != null)
+         {
+         numericEventListeners.add(listener);
+         }
+      }
+
+   /**
+    * Sets the byte offset at which reading begins, which must be the start of a line.  If greater than zero, the header
+    * (if any) is assumed to have been read already, so the first line read is treated as data.  Defaults to 0.
+    */
+   public void setStartOffset(final long startOffset)
+      {
+      this.startOffset = startOffset;
+      }
+
+   /**
+    * Sets the byte offset at which reading stops, which must be the start of a line (or the end of the file), so that
+    * a reader can be given just one of the chunks returned by {@link #findChunkOffsets(File, int, long)}.  Defaults to
+    * the end of the file.
+    */
+   public void setLimit(final long limit)
+      {
+      this.limit = limit;
+      }
+
+   /**
+    * Sets whether a final line without a line terminator should be ignored rather than handled, which is useful for
+    * files which are still being appended to, since such a line may be incomplete.  Defaults to <code>false</code>.
+    */
+   public void setWillIgnoreIncompleteLastLine(final boolean willIgnoreIncompleteLastLine)
+      {
+      this.willIgnoreIncompleteLastLine = willIgnoreIncompleteLastLine;
+      }
+
+   /**
+    * <p>
+    * Limits the records handed to the {@link NumericEventListener}s to those whose time is at least
+    * <code>startTime</code> and less than <code>endTime</code>, either of which may be <code>null</code> to leave that
+    * end of the window open.  Defaults to no window.
+    * </p>
+    * <p>
+    * When reading a file, the lines within {@link #setStartOffset(long) start offset} and {@link #setLimit(long)
+    * limit} are assumed to be sorted by time, and the window is found with {@link #findTimeOffset}, so that only the
+    * lines in the window are read (the header is still read, if any).  Other listeners only see the lines in the
+    * window, too.  If the lines aren't sorted, records outside the window are still never handed to the numeric
+    * listeners, but records inside it may be missed.  When reading a stream, every line is read, and the numeric
+    * listeners only get the records in the window.
+    * </p>
+    */
+   public void setTimeWindow(@Nullable final Integer startTime, @Nullable final Integer endTime)
+      {
+      windowStartTime = (startTime == null) ? Long.MIN_VALUE : startTime;
+      windowEndTime = (endTime == null) ? Long.MAX_VALUE : endTime;
+      }
+
+   private boolean hasTimeWindow()
+      {
+      return windowStartTime != Long.MIN_VALUE || windowEndTime != Long.MAX_VALUE;
+      }
+
+   /**
+    * Returns the byte offset just past the last line consumed by the most recent call to {@link #read()}, suitable for
+    * passing to {@link #setStartOffset(long)} in order to resume reading later on.
+    */
+   public long getEndOffset()
+      {
+      return endOffset;
+      }
+
+   /**
+    * Reads the file, and returns whether it was read to its end (or the limit).  The listeners are told about the end
+    * of the file even if the read is aborted part way through, so that every begin has an end, but callers which
+    * mustn't use a partially read file can check the returned value.  Nothing at all is sent to the listeners if the
+    * file can't be opened.
+    */
+   public boolean read()
+      {
+      endOffset = startOffset;
+
+      final RandomAccessFile randomAccessFile;
+      try
+         {
+         randomAccessFile = new RandomAccessFile(file, "r");
+         }
+      catch (FileNotFoundException e)
+         {
+         LOG.error("FileNotFoundException while trying to read file [" + file + "].  Read aborted", e);
+         return false;
+         }
+
+      final LineHandler lineHandler = createLineHandler();
+      lineHandler.handleBegin();
+      boolean isComplete = false;
+      try
+         {
+         final FileChannel channel = randomAccessFile.getChannel();
+         long readLimit = Math.min(channel.size(), limit);
+         if (hasTimeWindow())
+            {
+            // read the header, if any, and then skip ahead to the window
+            final ByteBuffer scanBuffer = ByteBuffer.allocate(CHUNK_BOUNDARY_SCAN_SIZE);
+            if (hasHeader && startOffset <= 0)
+               {
+               readRegions(channel, lineHandler, findNextLineStart(channel, scanBuffer, 0, readLimit));
+               }
+            final long windowStartOffset = findTimeOffset(channel, scanBuffer, endOffset, readLimit, windowStartTime);
+            readLimit = findTimeOffset(channel, scanBuffer, windowStartOffset, readLimit, windowEndTime);
+            endOffset = windowStartOffset;
+            }
+         readRegions(channel, lineHandler, readLimit);
+         isComplete = true;
+         }
+      catch (IOException e)
+         {
+         LOG.error("IOException while trying to read file [" + file + "].  Read aborted", e);
+         }
+      finally
+         {
+         lineHandler.handleEnd();
+         try
+            {
+            randomAccessFile.close();
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException while trying to close file [" + file + "]", e);
+            }
+         }
+      return isComplete;
+      }
+
+   /** Maps and handles the file from the current end offset up to the given limit, one region at a time. */
+   private void readRegions(@NotNull final FileChannel channel, @NotNull final LineHandler lineHandler, final long readLimit) throws IOException
       {
+      while (endOffset < readLimit)
+         {
+         final int regionSize = (int)Math.min(readLimit - endOffset, MAX_MAPPED_REGION_SIZE);
+         final boolean isLastRegion = endOffset + regionSize >= readLimit;
+         final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, endOffset, regionSize);
+         final int numBytesConsumed = lineHandler.handleRegion(buffer, regionSize, isLastRegion);
+         if (numBytesConsumed <= 0)
+            {
+            if (isLastRegion && willIgnoreIncompleteLastLine)
+               {
+               break;
+               }
+            throw new IOException("Line starting at byte [" + endOffset + "] is longer than the maximum supported length of [" + MAX_MAPPED_REGION_SIZE + "] bytes");
+            }
+         endOffset += numBytesConsumed;
+         }
+      }
+
+   /**
+    * Reads the CSV from the given stream, e.g. the output of another process, instead of from the file, which then
+    * only serves to identify the input to the listeners.  The stream is read in blocks into a buffer which is parsed
+    * exactly as a mapped region of the file would be, and is read to its end but not closed.  The stream is assumed
+    * to begin at the {@link #setStartOffset(long) start offset}, which still determines whether there's a header, and
+    * the {@link #setLimit(long) limit} is ignored.  As with {@link #read()}, the listeners are always told about the
+    * end, and the returned value says whether the stream was read to its end.
+    */
+   public boolean read(@NotNull final InputStream inputStream)
+      {
+      endOffset = startOffset;
+
+      final LineHandler lineHandler = createLineHandler();
+      lineHandler.handleBegin();
+      boolean isComplete = false;
       try
          {
-         final Scanner lineScanner = new Scanner(new BufferedReader(new FileReader(file)));
+         ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+         int numBytesBuffered = 0;
+         boolean isEndOfStream = false;
+         while (!isEndOfStream)
+            {
+            final byte[] bytes = buffer.array();
+            while (numBytesBuffered < bytes.length)
+               {
+               final int numBytesRead = inputStream.read(bytes, numBytesBuffered, bytes.length - numBytesBuffered);
+               if (numBytesRead < 0)
+                  {
+                  isEndOfStream = true;
+                  break;
+                  }
+               numBytesBuffered += numBytesRead;
+               }
 
-         // Tell listeners about the beginning of the file
-         for (final EventListener listener : eventListeners)
+            final int numBytesConsumed = lineHandler.handleRegion(buffer, numBytesBuffered, isEndOfStream);
+            if (numBytesConsumed <= 0 && !isEndOfStream)
+               {
+               // the buffer is full, but doesn't hold a whole line, so make room for more
+               if (bytes.length >= MAX_MAPPED_REGION_SIZE)
+                  {
+                  throw new IOException("Line starting at byte [" + endOffset + "] is longer than the maximum supported length of [" + MAX_MAPPED_REGION_SIZE + "] bytes");
+                  }
+               final ByteBuffer biggerBuffer = ByteBuffer.allocate(Math.min(bytes.length * 2, MAX_MAPPED_REGION_SIZE));
+               biggerBuffer.put(bytes, 0, numBytesBuffered);
+               buffer = biggerBuffer;
+               }
+            else
+               {
+               endOffset += numBytesConsumed;
+               numBytesBuffered -= numBytesConsumed;
+               System.arraycopy(bytes, numBytesConsumed, bytes, 0, numBytesBuffered);
+               }
+            }
+         isComplete = true;
+         }
+      catch (IOException e)
+         {
+         LOG.error("IOException while trying to read the stream for [" + file + "].  Read aborted", e);
+         }
+      finally
+         {
+         lineHandler.handleEnd();
+         }
+      return isComplete;
+      }
+
+   @NotNull
+   private LineHandler createLineHandler()
+      {
+      // copy the listeners into arrays so that we don't create an iterator for every line
+      return new LineHandler(eventListeners.toArray(new EventListener[eventListeners.size()]),
+                             byteEventListeners.toArray(new ByteEventListener[byteEventListeners.size()]),
+                             numericEventListeners.toArray(new NumericEventListener[numericEventListeners.size()]));
+      }
+
+   /**
+    * <p>
+    * Splits the given file into at most <code>maxNumChunks</code> chunks of roughly equal size, but no smaller than
+    * <code>minChunkSize</code> bytes, each starting at the start of a line, so that the chunks can be read in parallel
+    * by separate readers (see {@link #setStartOffset(long)} and {@link #setLimit(long)}).  Returns the start offsets of
+    * the chunks followed by the size of the file, so chunk <code>i</code> runs from <code>offsets[i]</code> up to
+    * <code>offsets[i + 1]</code>.  Only the first chunk contains the header.
+    * </p>
+    * <p>
+    * The boundaries are found by looking for the next line terminator, without parsing from the start of the file, so
+    * files with quoted fields containing line terminators must not be split.
+    * </p>
+    */
+   @NotNull
+   public static long[] findChunkOffsets(@NotNull final File file, final int maxNumChunks, final long minChunkSize) throws IOException
+      {
+      return findChunkOffsets(file, 0, Long.MAX_VALUE, maxNumChunks, minChunkSize);
+      }
+
+   /**
+    * Splits the part of the given file from <code>startOffset</code> (which must be the start of a line) up to
+    * <code>limit</code> (the start of a line, or the end of the file) into chunks, just like
+    * {@link #findChunkOffsets(File, int, long)} does for the whole file, e.g. to split just the lines of a
+    * {@link #findTimeWindowOffsets time window}.  The first chunk starts at <code>startOffset</code>, and the last
+    * ends at the limit, or the end of the file if that's sooner.
+    */
+   @NotNull
+   public static long[] findChunkOffsets(@NotNull final File file, final long startOffset, final long limit, final int maxNumChunks, final long minChunkSize) throws IOException
+      {
+      final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+      try
+         {
+         final FileChannel channel = randomAccessFile.getChannel();
+         final long end = Math.max(startOffset, Math.min(channel.size(), limit));
+         final long size = end - startOffset;
+         final long numChunks = Math.max(1, Math.min(maxNumChunks, size / Math.max(1, minChunkSize)));
+         final long[] offsets = new long[(int)numChunks + 1];
+         offsets[0] = startOffset;
+         int numOffsets = 1;
+         final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BOUNDARY_SCAN_SIZE);
+         for (long i = 1; i < numChunks; i++)
             {
-            listener.handleBegin(file);
+            final long lineStart = findNextLineStart(channel, buffer, Math.max(startOffset + size * i / numChunks, offsets[numOffsets - 1]), end);
+            if (lineStart >= end)
+               {
+               break;
+               }
+            if (lineStart > offsets[numOffsets - 1])
+               {
+               offsets[numOffsets++] = lineStart;
+               }
+            }
+         offsets[numOffsets++] = end;
+         final long[] chunkOffsets = new long[numOffsets];
+         System.arraycopy(offsets, 0, chunkOffsets, 0, numOffsets);
+         return chunkOffsets;
+         }
+      finally
+         {
+         randomAccessFile.close();
+         }
+      }
+
+   /**
+    * <p>
+    * Returns the offset of the start of the first line, at or after <code>startOffset</code> (which must be the start
+    * of a line, and not the header) and before <code>limit</code>, whose time (the first field, in epoch seconds) is
+    * at least the given time, or <code>limit</code> if there is no such line.  The lines must be sorted by time.
+    * </p>
+    * <p>
+    * This is a binary search over byte offsets: it seeks to the middle of the range, skips to the start of the next
+    * line, and parses only that line's time, so just a few small reads are needed, however big the file.  Lines
+    * whose time is malformed, such as blank lines, are skipped over.  As with {@link #findChunkOffsets}, quoted fields
+    * must not contain line terminators.
+    * </p>
+    */
+   public static long findTimeOffset(@NotNull final File file, final long startOffset, final long limit, final long epochTimeInSeconds) throws IOException
+      {
+      final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+      try
+         {
+         final FileChannel channel = randomAccessFile.getChannel();
+         return findTimeOffset(channel, ByteBuffer.allocate(CHUNK_BOUNDARY_SCAN_SIZE), startOffset, Math.min(channel.size(), limit), epochTimeInSeconds);
+         }
+      finally
+         {
+         randomAccessFile.close();
+         }
+      }
+
+   /**
+    * Returns the offsets of the first line of the given file in the time window (see
+    * {@link #setTimeWindow(Integer, Integer)}) and of the first line after it, found with {@link #findTimeOffset}.
+    * The header, if any, is skipped, so the window's lines can be read by a reader whose start offset and limit are
+    * set to these offsets.
+    */
+   @NotNull
+   public static long[] findTimeWindowOffsets(@NotNull final File file, final boolean hasHeader, @Nullable final Integer startTime, @Nullable final Integer endTime) throws IOException
+      {
+      final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+      try
+         {
+         final FileChannel channel = randomAccessFile.getChannel();
+         final long fileSize = channel.size();
+         final ByteBuffer buffer = ByteBuffer.allocate(CHUNK_BOUNDARY_SCAN_SIZE);
+         final long dataOffset = hasHeader ? findNextLineStart(channel, buffer, 0, fileSize) : 0;
+         final long windowStartOffset = (startTime == null) ? dataOffset : findTimeOffset(channel, buffer, dataOffset, fileSize, startTime);
+         final long windowEndOffset = (endTime == null) ? fileSize : findTimeOffset(channel, buffer, windowStartOffset, fileSize, endTime);
+         return new long[]{windowStartOffset, windowEndOffset};
+         }
+      finally
+         {
+         randomAccessFile.close();
+         }
+      }
+
+   private static long findTimeOffset(@NotNull final FileChannel channel, @NotNull final ByteBuffer buffer, final long startOffset, final long limit, final long epochTimeInSeconds) throws IOException
+      {
+      // the lines starting in [low, high) are yet to be searched, and result is the earliest line known to be at or
+      // after the time
+      long low = startOffset;
+      long high = limit;
+      long result = limit;
+      while (low < high)
+         {
+         final long middle = low + (high - low) / 2;
+
+         // find the first line starting at or after the middle which has a time
+         long lineStart = (middle == startOffset) ? startOffset : findNextLineStart(channel, buffer, middle - 1, limit);
+         long time = NumberParser.MALFORMED_INT;
+         while (lineStart < high && (time = readTime(channel, buffer, lineStart, limit)) == NumberParser.MALFORMED_INT)
+            {
+            lineStart = findNextLineStart(channel, buffer, lineStart, limit);
             }
 
-         // Tell listeners about the header, if any
-         if (hasHeader && lineScanner.hasNextLine())
+         if (lineStart >= high)
+            {
+            // no line in the upper half has a time, so only the lower half is left
+            high = middle;
+            }
+         else if (time >= epochTimeInSeconds)
+            {
+            result = lineStart;
+            high = middle;
+            }
+         else
             {
-            final String header = lineScanner.nextLine();
-            final String[] fieldNames = header.split(COMMA_DELIMITER);
-            for (final EventListener listener : eventListeners)
+            low = lineStart + 1;
+            }
+         }
+      return result;
+      }
+
+   /**
+    * Parses the first field of the line starting at the given offset as an int, ignoring leading whitespace, just as
+    * the line handler does, and returns {@link NumberParser#MALFORMED_INT} if it isn't one.
+    */
+   private static long readTime(@NotNull final FileChannel channel, @NotNull final ByteBuffer buffer, final long lineStart, final long limit) throws IOException
+      {
+      buffer.clear();
+      buffer.limit((int)Math.min(buffer.capacity(), limit - lineStart));
+      while (buffer.hasRemaining() && channel.read(buffer, lineStart + buffer.position()) > 0)
+         {
+         // keep reading until the buffer is full, or the file ends
+         }
+      final int numBytesRead = buffer.position();
+      int start = 0;
+      while (start < numBytesRead && NumberParser.isWhitespace(buffer.get(start)) && buffer.get(start) != LINE_FEED && buffer.get(start) != CARRIAGE_RETURN)
+         {
+         start++;
+         }
+      int end = start;
+      while (end < numBytesRead && buffer.get(end) != COMMA && buffer.get(end) != LINE_FEED && buffer.get(end) != CARRIAGE_RETURN)
+         {
+         end++;
+         }
+      return NumberParser.parseInt(buffer, start, end - start);
+      }
+
+   /**
+    * Returns the offset of the start of the first line which starts after the given position, treating CRLF as a
+    * single line terminator, or the file size if there is no such line.
+    */
+   private static long findNextLineStart(@NotNull final FileChannel channel, @NotNull final ByteBuffer buffer, final long position, final long fileSize) throws IOException
+      {
+      boolean isAfterCarriageReturn = false;
+      long bufferPosition = position;
+      while (bufferPosition < fileSize)
+         {
+         buffer.clear();
+         final int numBytesRead = channel.read(buffer, bufferPosition);
+         if (numBytesRead <= 0)
+            {
+            break;
+            }
+         for (int i = 0; i < numBytesRead; i++)
+            {
+            final byte b = buffer.get(i);
+            if (isAfterCarriageReturn)
                {
-               listener.handleHeader(header, fieldNames);
+               return (b == LINE_FEED) ? bufferPosition + i + 1 : bufferPosition + i;
                }
+            if (b == LINE_FEED)
+               {
+               return bufferPosition + i + 1;
+               }
+            isAfterCarriageReturn = (b == CARRIAGE_RETURN);
+            }
+         bufferPosition += numBytesRead;
+         }
+      return fileSize;
+      }
+
+   /**
+    * Scans mapped regions for lines and fields, and notifies the listeners.  Keeps track of whether the header has
+    * been seen yet, and the number of lines handed to the listeners.
+    */
+   private final class LineHandler
+      {
+      @NotNull
+      private final EventListener[] stringListeners;
+      @NotNull
+      private final ByteEventListener[] byteListeners;
+      @NotNull
+      private final NumericEventListener[] numericListeners;
+      @NotNull
+      private final CsvLine line = new CsvLine();
+      @NotNull
+      private final double[] values = new double[Math.max(0, minimumNumFields - 1)];
+      private boolean isHeaderPending = hasHeader && startOffset <= 0;
+      private int numLines = 0;
+      private int numRecords = 0;
+      private int numMalformedLines = 0;
+
+      /** The index of the closing quote of the current field, or -1 if the current field isn't quoted */
+      private int closingQuoteIndex = -1;
+      private boolean hasEscapedQuotes = false;
+
+      private LineHandler(@NotNull final EventListener[] stringListeners,
+                          @NotNull final ByteEventListener[] byteListeners,
+                          @NotNull final NumericEventListener[] numericListeners)
+         {
+         this.stringListeners = stringListeners;
+         this.byteListeners = byteListeners;
+         this.numericListeners = numericListeners;
+         }
+
+      /** Tells the listeners about the beginning of the file. */
+      private void handleBegin()
+         {
+         for (final NumericEventListener listener : numericListeners)
+            {
+            listener.handleBegin(file);
+            }
+         for (final ByteEventListener listener : byteListeners)
+            {
+            listener.handleBegin(file);
+            }
+         for (final EventListener listener : stringListeners)
+            {
+            listener.handleBegin(file);
+            }
+         }
+
+      /** Tells the listeners about the end of the file. */
+      private void handleEnd()
+         {
+         for (final NumericEventListener listener : numericListeners)
+            {
+            listener.handleEnd(file, numRecords, numMalformedLines);
+            }
+         for (final ByteEventListener listener : byteListeners)
+            {
+            listener.handleEnd(file, numLines);
             }
+         for (final EventListener listener : stringListeners)
+            {
+            listener.handleEnd(file, numLines);
+            }
+         }
 
-         int numLines = 0;
-         while (lineScanner.hasNextLine())
+      /**
+       * Handles all the complete lines in the given buffer and returns the number of bytes consumed.  The final line
+       * is only considered complete without a line terminator if this is the last region of the file, and incomplete
+       * last lines aren't being ignored.  A quoted field which is still open at the end of the last region runs to the
+       * end of the file.
+       */
+      private int handleRegion(@NotNull final ByteBuffer buffer, final int limit, final boolean isLastRegion)
+         {
+         int lineStart = 0;
+         int fieldStart = 0;
+         line.reset(buffer, 0, 0);
+         closingQuoteIndex = -1;
+         for (int i = 0; i < limit; i++)
             {
-            final String line = lineScanner.nextLine().trim();
+            final byte b = buffer.get(i);
 
-            // ignore empty lines
-            if (line.length() > 0)
+            // the bytes with special meaning all sort at or below the comma, so digits only need this one comparison
+            if (b <= COMMA)
                {
-               final String[] fields = line.split(COMMA_DELIMITER);
+               if (b == COMMA)
+                  {
+                  addField(fieldStart, i);
+                  fieldStart = i + 1;
+                  }
+               else if (b == LINE_FEED || b == CARRIAGE_RETURN)
+                  {
+                  addField(fieldStart, i);
+                  handleLine(buffer, lineStart, i);
+                  lineStart = i + 1;
+                  fieldStart = lineStart;
+                  line.reset(buffer, lineStart, 0);
+                  }
+               else if (b == QUOTE && i == fieldStart)
+                  {
+                  closingQuoteIndex = findClosingQuote(buffer, i + 1, limit, isLastRegion);
+                  if (closingQuoteIndex < 0)
+                     {
+                     if (!isLastRegion || willIgnoreIncompleteLastLine)
+                        {
+                        return lineStart;
+                        }
+                     closingQuoteIndex = limit;
+                     }
+
+                  // any bytes between the closing quote and the next delimiter are ignored
+                  i = closingQuoteIndex;
+                  }
+               }
+            }
+
+         if (isLastRegion && lineStart < limit && !willIgnoreIncompleteLastLine)
+            {
+            addField(fieldStart, limit);
+            handleLine(buffer, lineStart, limit);
+            return limit;
+            }
+         return lineStart;
+         }
 
-               // ignore lines with too few fields
-               if (fields.length >= minimumNumFields)
+      /**
+       * Returns the index of the quote which closes the quoted field whose content starts at the given index, skipping
+       * escaped (doubled) quotes, or -1 if the field isn't closed before the limit.  A quote right at the limit of a
+       * region other than the last might be the first half of an escaped quote, so it doesn't count.
+       */
+      private int findClosingQuote(@NotNull final ByteBuffer buffer, final int start, final int limit, final boolean isLastRegion)
+         {
+         hasEscapedQuotes = false;
+         for (int i = start; i < limit; i++)
+            {
+            if (buffer.get(i) == QUOTE)
+               {
+               if (i + 1 < limit)
                   {
-                  for (final EventListener listener : eventListeners)
+                  if (buffer.get(i + 1) != QUOTE)
                      {
-                     listener.handleLine(line, fields);
+                     return i;
                      }
-                  numLines++;
+                  hasEscapedQuotes = true;
+                  i++;
+                  }
+               else
+                  {
+                  return isLastRegion ? i : -1;
                   }
                }
             }
+         return -1;
+         }
 
-         for (final EventListener listener : eventListeners)
+      /** Adds the field which started at the given index to the line, taking the quotes into account if it's quoted. */
+      private void addField(final int fieldStart, final int fieldEnd)
+         {
+         if (closingQuoteIndex >= 0)
             {
-            listener.handleEnd(file, numLines);
+            line.addQuotedField(fieldStart + 1, closingQuoteIndex - fieldStart - 1, hasEscapedQuotes);
+            closingQuoteIndex = -1;
+            }
+         else
+            {
+            line.addField(fieldStart, fieldEnd - fieldStart);
             }
          }
-      catch (FileNotFoundException e)
+
+      private void handleLine(@NotNull final ByteBuffer buffer, final int lineStart, final int lineEnd)
          {
-         LOG.error("FileNotFoundException while trying to read file [" + file + "].  Read aborted", e);
+         if (isHeaderPending)
+            {
+            isHeaderPending = false;
+            line.trim(lineStart, lineEnd);
+            for (final ByteEventListener listener : byteListeners)
+               {
+               listener.handleHeader(line);
+               }
+            if (stringListeners.length > 0)
+               {
+               final String header = line.toString();
+               final String[] fieldNames = line.getFields();
+               for (final EventListener listener : stringListeners)
+                  {
+                  listener.handleHeader(header, fieldNames);
+                  }
+               }
+            return;
+            }
+
+         // trim whitespace from both ends of the line, just like String.trim() does
+         int start = lineStart;
+         int end = lineEnd;
+         while (start < end && NumberParser.isWhitespace(buffer.get(start)))
+            {
+            start++;
+            }
+         while (end > start && NumberParser.isWhitespace(buffer.get(end - 1)))
+            {
+            end--;
+            }
+
+         // ignore empty lines
+         if (start < end)
+            {
+            line.trim(start, end);
+
+            // ignore lines with too few fields
+            if (line.getNumFields() >= minimumNumFields)
+               {
+               if (numericListeners.length > 0)
+                  {
+                  handleNumericLine();
+                  }
+               for (final ByteEventListener listener : byteListeners)
+                  {
+                  listener.handleLine(line);
+                  }
+               if (stringListeners.length > 0)
+                  {
+                  final String lineAsString = line.toString();
+                  final String[] fields = line.getFields();
+                  for (final EventListener listener : stringListeners)
+                     {
+                     listener.handleLine(lineAsString, fields);
+                     }
+                  }
+               numLines++;
+               }
+            }
+         }
+
+      private void handleNumericLine()
+         {
+         final ByteBuffer buffer = line.getBuffer();
+         final long epochTimeInSeconds = (line.getNumFields() > 0) ? NumberParser.parseInt(buffer, line.getFieldOffset(0), line.getFieldLength(0)) : NumberParser.MALFORMED_INT;
+         boolean isMalformed = (epochTimeInSeconds == NumberParser.MALFORMED_INT);
+         for (int i = 0; i < values.length && !isMalformed; i++)
+            {
+            values[i] = NumberParser.parseDouble(buffer, line.getFieldOffset(i + 1), line.getFieldLength(i + 1));
+            isMalformed = Double.isNaN(values[i]);
+            }
+
+         if (isMalformed)
+            {
+            numMalformedLines++;
+            for (final NumericEventListener listener : numericListeners)
+               {
+               listener.handleMalformedLine(line);
+               }
+            }
+         else if (epochTimeInSeconds >= windowStartTime && epochTimeInSeconds < windowEndTime)
+            {
+            numRecords++;
+            for (final NumericEventListener listener : numericListeners)
+               {
+               listener.handleRecord((int)epochTimeInSeconds, values, line);
+               }
+            }
          }
       }
    }
@@ -0,0 +1,275 @@
+package org.cmucreatelab.io;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Writes a JSON document token by token, straight through to the underlying {@link Writer}, so that large documents
+ * never need to be held in memory.  Commas between object members and array elements are inserted automatically, and
+ * strings are escaped as required by RFC 7159.
+ * </p>
+ * <p>
+ * Output is compact, except for line breaks requested with {@link #newline()}.  A line break is deferred until the next
+ * token is written, and placed after any comma which that token needs, so that, for example, each element of an array
+ * can start on a line of its own.  This class does not check that the tokens form a well-formed document.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class JsonWriter
+   {
+   private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+   private static final int INITIAL_MAX_DEPTH = 8;
+   private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+   /** Creates a JSON writer which writes UTF-8 to the given file through a buffer, replacing any existing file. */
+   @NotNull
+   public static JsonWriter create(@NotNull final File file) throws IOException
+      {
+      return new JsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), DEFAULT_BUFFER_SIZE));
+      }
+
+   @NotNull
+   private final Writer writer;
+
+   /** Whether the object or array at each depth has had no members or elements written yet */
+   @NotNull
+   private boolean[] isEmpty = new boolean[INITIAL_MAX_DEPTH];
+   private int depth = 0;
+   private boolean isAfterName = false;
+   private boolean isNewlinePending = false;
+
+   public JsonWriter(@NotNull final Writer writer)
+      {
+      this.writer = writer;
+      }
+
+   @NotNull
+   public JsonWriter beginObject() throws IOException
+      {
+      beforeValue();
+      writer.write('{');
+      push();
+      return this;
+      }
+
+   @NotNull
+   public JsonWriter endObject() throws IOException
+      {
+      return end('}');
+      }
+
+   @NotNull
+   public JsonWriter beginArray() throws IOException
+      {
+      beforeValue();
+      writer.write('[');
+      push();
+      return this;
+      }
+
+   @NotNull
+   public JsonWriter endArray() throws IOException
+      {
+      return end(']');
+      }
+
+   /** Writes the name of the next member of the current object. */
+   @NotNull
+   public JsonWriter name(@NotNull final String name) throws IOException
+      {
+      beforeValue();
+      writeString(name);
+      writer.write(':');
+      isAfterName = true;
+      return this;
+      }
+
+   /** Writes the given string, or <code>null</code> if it is <code>null</code>. */
+   @NotNull
+   public JsonWriter value(@Nullable final String value) throws IOException
+      {
+      beforeValue();
+      if (value == null)
+         {
+         writer.write("null");
+         }
+      else
+         {
+         writeString(value);
+         }
+      return this;
+      }
+
+   @NotNull
+   public JsonWriter value(final long value) throws IOException
+      {
+      beforeValue();
+      writer.write(Long.toString(value));
+      return this;
+      }
+
+   /** Writes the given number, or <code>null</code> if it is NaN or infinite, since JSON can't represent those. */
+   @NotNull
+   public JsonWriter value(final double value) throws IOException
+      {
+      beforeValue();
+      writer.write((Double.isNaN(value) || Double.isInfinite(value)) ? "null" : Double.toString(value));
+      return this;
+      }
+
+   /**
+    * Writes the given number, formatted as a float (so without spurious digits from widening it to a double), or
+    * <code>null</code> if it is NaN or infinite.
+    */
+   @NotNull
+   public JsonWriter value(final float value) throws IOException
+      {
+      beforeValue();
+      writer.write((Float.isNaN(value) || Float.isInfinite(value)) ? "null" : Float.toString(value));
+      return this;
+      }
+
+   /**
+    * Writes the given text verbatim as a number, e.g. a latitude read from a CSV file, so that it isn't reformatted.
+    * Writes <code>null</code> if the text is <code>null</code>.
+    */
+   @NotNull
+   public JsonWriter numberValue(@Nullable final String number) throws IOException
+      {
+      beforeValue();
+      writer.write(number == null ? "null" : number);
+      return this;
+      }
+
+   /** Requests a line break before the next token (or at {@link #close()}). */
+   @NotNull
+   public JsonWriter newline()
+      {
+      isNewlinePending = true;
+      return this;
+      }
+
+   public void flush() throws IOException
+      {
+      writePendingNewline();
+      writer.flush();
+      }
+
+   public void close() throws IOException
+      {
+      writePendingNewline();
+      writer.close();
+      }
+
+   private void beforeValue() throws IOException
+      {
+      if (isAfterName)
+         {
+         // the value of a member follows its name directly
+         isAfterName = false;
+         }
+      else if (depth > 0)
+         {
+         if (isEmpty[depth - 1])
+            {
+            isEmpty[depth - 1] = false;
+            }
+         else
+            {
+            writer.write(',');
+            }
+         }
+      writePendingNewline();
+      }
+
+   private void push()
+      {
+      if (depth == isEmpty.length)
+         {
+         isEmpty = Arrays.copyOf(isEmpty, depth * 2);
+         }
+      isEmpty[depth++] = true;
+      }
+
+   @NotNull
+   private JsonWriter end(final char c) throws IOException
+      {
+      if (depth > 0)
+         {
+         depth--;
+         }
+      writePendingNewline();
+      writer.write(c);
+      return this;
+      }
+
+   private void writePendingNewline() throws IOException
+      {
+      if (isNewlinePending)
+         {
+         isNewlinePending = false;
+         writer.write('\n');
+         }
+      }
+
+   private void writeString(@NotNull final String s) throws IOException
+      {
+      writer.write('"');
+
+      // write runs of characters which need no escaping in one go
+      int start = 0;
+      final int length = s.length();
+      for (int i = 0; i < length; i++)
+         {
+         final char c = s.charAt(i);
+         if (c < 0x20 || c == '"' || c == '\\' || c == '\u2028' || c == '\u2029')
+            {
+            writer.write(s, start, i - start);
+            start = i + 1;
+            switch (c)
+               {
+               case '"':
+                  writer.write("\\\"");
+                  break;
+               case '\\':
+                  writer.write("\\\\");
+                  break;
+               case '\n':
+                  writer.write("\\n");
+                  break;
+               case '\r':
+                  writer.write("\\r");
+                  break;
+               case '\t':
+                  writer.write("\\t");
+                  break;
+               case '\b':
+                  writer.write("\\b");
+                  break;
+               case '\f':
+                  writer.write("\\f");
+                  break;
+               default:
+                  // other control characters, and the line and paragraph separators which JavaScript can't take raw
+                  writer.write("\\u");
+                  writer.write(HEX_DIGITS[(c >> 12) & 0xF]);
+                  writer.write(HEX_DIGITS[(c >> 8) & 0xF]);
+                  writer.write(HEX_DIGITS[(c >> 4) & 0xF]);
+                  writer.write(HEX_DIGITS[c & 0xF]);
+               }
+            }
+         }
+      writer.write(s, start, length - start);
+
+      writer.write('"');
+      }
+   }
@@ -0,0 +1,261 @@
+package org.cmucreatelab.io;
+
+import java.nio.ByteBuffer;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * Parses numbers directly from ASCII bytes in a {@link ByteBuffer}, without creating intermediate Strings and without
+ * throwing exceptions for malformed input.  Malformed input is instead signaled with a sentinel return value:
+ * {@link #MALFORMED_LONG} for integers, and {@link Double#NaN} for doubles.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class NumberParser
+   {
+   /** Returned by {@link #parseLong(ByteBuffer, int, int)} for malformed input, so {@link Long#MIN_VALUE} itself can't be parsed. */
+   public static final long MALFORMED_LONG = Long.MIN_VALUE;
+
+   /** Returned by {@link #parseInt(ByteBuffer, int, int)} for malformed or out of range input. */
+   public static final long MALFORMED_INT = MALFORMED_LONG;
+
+   private static final byte SPACE = ' ';
+
+   /** Doubles with at most this many significant digits can be accumulated exactly in a long. */
+   private static final int MAX_SIGNIFICANT_DIGITS = 18;
+
+   /** Integers up to 2^53 are exactly representable as doubles. */
+   private static final long MAX_EXACT_DOUBLE_MANTISSA = 1L << 53;
+
+   /** Powers of ten which are exactly representable as doubles. */
+   private static final double[] EXACT_POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+                                                        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+   /**
+    * Parses the given bytes as a base 10 long, with the same strictness as {@link Long#parseLong(String)}, and
+    * returns {@link #MALFORMED_LONG} if the bytes don't represent a long.
+    */
+   public static long parseLong(@NotNull final ByteBuffer buffer, final int offset, final int length)
+      {
+      if (length <= 0)
+         {
+         return MALFORMED_LONG;
+         }
+
+      int i = offset;
+      final int end = offset + length;
+      boolean isNegative = false;
+      final byte first = buffer.get(i);
+      if (first == '-' || first == '+')
+         {
+         isNegative = (first == '-');
+         i++;
+         if (i == end)
+            {
+            return MALFORMED_LONG;
+            }
+         }
+
+      // accumulate negatively, just like Long.parseLong(), so that overflow can be detected
+      final long limit = isNegative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+      final long multiplicationLimit = limit / 10;
+      long result = 0;
+      for (; i < end; i++)
+         {
+         final int digit = buffer.get(i) - '0';
+         if (digit < 0 || digit > 9 || result < multiplicationLimit)
+            {
+            return MALFORMED_LONG;
+            }
+         result *= 10;
+         if (result < limit + digit)
+            {
+            return MALFORMED_LONG;
+            }
+         result -= digit;
+         }
+      return isNegative ? result : -result;
+      }
+
+   /**
+    * Parses the given bytes as a base 10 int, with the same strictness as {@link Integer#parseInt(String)}, and
+    * returns {@link #MALFORMED_INT} if the bytes don't represent an int.  The return type is long so that every int
+    * value remains distinguishable from the sentinel.
+    */
+   public static long parseInt(@NotNull final ByteBuffer buffer, final int offset, final int length)
+      {
+      final long value = parseLong(buffer, offset, length);
+      return (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) ? MALFORMED_INT : value;
+      }
+
+   /**
+    * Parses the given bytes as a decimal number (optionally with an exponent), ignoring leading and trailing
+    * whitespace, and returns {@link Double#NaN} if the bytes don't represent a number.  Results are identical to
+    * {@link Double#parseDouble(String)}: values with at most 15 significant digits and small exponents (the vast
+    * majority of sensor data) are converted without allocating, everything else falls back to the JDK.
+    */
+   public static double parseDouble(@NotNull final ByteBuffer buffer, final int offset, final int length)
+      {
+      int start = offset;
+      int end = offset + length;
+      while (start < end && isWhitespace(buffer.get(start)))
+         {
+         start++;
+         }
+      while (end > start && isWhitespace(buffer.get(end - 1)))
+         {
+         end--;
+         }
+      if (start == end)
+         {
+         return Double.NaN;
+         }
+
+      int i = start;
+      boolean isNegative = false;
+      final byte first = buffer.get(i);
+      if (first == '-' || first == '+')
+         {
+         isNegative = (first == '-');
+         i++;
+         }
+
+      long mantissa = 0;
+      int numSignificantDigits = 0;
+      int exponent = 0;
+      boolean isExact = true;
+      boolean hasDigits = false;
+      boolean hasDecimalPoint = false;
+      for (; i < end; i++)
+         {
+         final byte b = buffer.get(i);
+         if (b >= '0' && b <= '9')
+            {
+            hasDigits = true;
+            if (mantissa == 0 && b == '0')
+               {
+               // leading zeros aren't significant
+               if (hasDecimalPoint)
+                  {
+                  exponent--;
+                  }
+               }
+            else if (numSignificantDigits < MAX_SIGNIFICANT_DIGITS)
+               {
+               mantissa = mantissa * 10 + (b - '0');
+               numSignificantDigits++;
+               if (hasDecimalPoint)
+                  {
+                  exponent--;
+                  }
+               }
+            else
+               {
+               // too many digits to accumulate, so just keep track of the magnitude
+               isExact = isExact && b == '0';
+               if (!hasDecimalPoint)
+                  {
+                  exponent++;
+                  }
+               }
+            }
+         else if (b == '.' && !hasDecimalPoint)
+            {
+            hasDecimalPoint = true;
+            }
+         else
+            {
+            break;
+            }
+         }
+      if (!hasDigits)
+         {
+         return Double.NaN;
+         }
+
+      if (i < end)
+         {
+         final byte e = buffer.get(i);
+         if (e != 'e' && e != 'E')
+            {
+            return Double.NaN;
+            }
+         i++;
+         boolean isExponentNegative = false;
+         if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+'))
+            {
+            isExponentNegative = (buffer.get(i) == '-');
+            i++;
+            }
+         if (i == end)
+            {
+            return Double.NaN;
+            }
+         int explicitExponent = 0;
+         for (; i < end; i++)
+            {
+            final int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9)
+               {
+               return Double.NaN;
+               }
+            // clamp absurdly large exponents, the fallback below will compute the correct infinity or zero
+            if (explicitExponent < 100000)
+               {
+               explicitExponent = explicitExponent * 10 + digit;
+               }
+            }
+         exponent += isExponentNegative ? -explicitExponent : explicitExponent;
+         }
+
+      final double value;
+      if (mantissa == 0)
+         {
+         value = 0.0;
+         }
+      else if (isExact && mantissa <= MAX_EXACT_DOUBLE_MANTISSA && exponent >= -22 && exponent <= 22)
+         {
+         // both operands are exact, so a single IEEE operation yields the correctly rounded result
+         value = (exponent >= 0) ? mantissa * EXACT_POWERS_OF_TEN[exponent] : mantissa / EXACT_POWERS_OF_TEN[-exponent];
+         }
+      else
+         {
+         return parseDoubleSlowly(buffer, start, end);
+         }
+      return isNegative ? -value : value;
+      }
+
+   private static double parseDoubleSlowly(@NotNull final ByteBuffer buffer, final int start, final int end)
+      {
+      final char[] chars = new char[end - start];
+      for (int i = 0; i < chars.length; i++)
+         {
+         chars[i] = (char)buffer.get(start + i);
+         }
+      try
+         {
+         return Double.parseDouble(new String(chars));
+         }
+      catch (NumberFormatException ignored)
+         {
+         // shouldn't happen since the syntax has already been validated
+         return Double.NaN;
+         }
+      }
+
+   /**
+    * Returns whether the byte is whitespace as far as {@link String#trim()} is concerned.  Bytes are signed, so the
+    * bytes of multi-byte UTF-8 characters, which are all 0x80 or above, mustn't be compared with a plain
+    * <code>&lt;=</code>, or they'd be trimmed too.
+    */
+   static boolean isWhitespace(final byte b)
+      {
+      return b >= 0 && b <= SPACE;
+      }
+
+   private NumberParser()
+      {
+      // private to prevent instantiation
+      }
+   }
@@ -0,0 +1,59 @@
+package org.cmucreatelab.io;
+
+import java.nio.ByteBuffer;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Decodes columns written by {@link VarintColumnEncoder}.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class VarintColumnDecoder
+   {
+   /**
+    * Decodes <code>numValues</code> values from the column starting at the given absolute index of the buffer into
+    * the given array, and returns the index just past the end of the column.
+    *
+    * @throws IllegalArgumentException if the column is truncated or corrupt
+    */
+   public static int decode(@NotNull final ByteBuffer buffer,
+                            final int offset,
+                            @NotNull final VarintColumnEncoder.Encoding encoding,
+                            @NotNull final int[] values,
+                            final int numValues)
+      {
+      int position = offset;
+      long previousValue = 0;
+      long previousDelta = 0;
+      for (int i = 0; i < numValues; i++)
+         {
+         // read the varint
+         long zigzagValue = 0;
+         int shift = 0;
+         byte b;
+         do
+            {
+            if (position >= buffer.limit() || shift > 63)
+               {
+               throw new IllegalArgumentException("Truncated or corrupt varint column at index [" + position + "]");
+               }
+            b = buffer.get(position++);
+            zigzagValue |= (long)(b & 0x7F) << shift;
+            shift += 7;
+            }
+         while ((b & 0x80) != 0);
+
+         final long encodedValue = (zigzagValue >>> 1) ^ -(zigzagValue & 1);
+         final long delta = (encoding == VarintColumnEncoder.Encoding.DELTA) ? encodedValue : encodedValue + previousDelta;
+         previousValue += delta;
+         previousDelta = delta;
+         values[i] = (int)previousValue;
+         }
+      return position;
+      }
+
+   private VarintColumnDecoder()
+      {
+      // private to prevent instantiation
+      }
+   }
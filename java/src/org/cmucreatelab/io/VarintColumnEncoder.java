@@ -0,0 +1,104 @@
+package org.cmucreatelab.io;
+
+import java.io.IOException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * Accumulates a column of ints in memory as zigzag encoded, base 128 varints.  The first value is stored as is, and
+ * every following value is stored relative to the previous ones according to the {@link Encoding}, so slowly changing
+ * values (and especially regularly spaced timestamps) shrink to a single byte or less per value.
+ * </p>
+ * <p>
+ * Columns are decoded with {@link VarintColumnDecoder}.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class VarintColumnEncoder implements ColumnEncoder
+   {
+   public static enum Encoding
+      {
+      /** Each value is stored as the difference from the previous value. */
+      DELTA,
+
+      /** Each value is stored as the difference between its delta and the previous delta, which is ideal for timestamps. */
+      DELTA_OF_DELTA
+      }
+
+   private static final int INITIAL_CAPACITY = 1024;
+
+   /** A zigzag encoded long takes at most 10 bytes as a varint. */
+   private static final int MAX_VARINT_LENGTH = 10;
+
+   @NotNull
+   private final Encoding encoding;
+   @NotNull
+   private byte[] bytes = new byte[INITIAL_CAPACITY];
+   private int length = 0;
+   private int numValues = 0;
+   private long previousValue = 0;
+   private long previousDelta = 0;
+
+   public VarintColumnEncoder(@NotNull final Encoding encoding)
+      {
+      this.encoding = encoding;
+      }
+
+   @Override
+   public void reset()
+      {
+      length = 0;
+      numValues = 0;
+      previousValue = 0;
+      previousDelta = 0;
+      }
+
+   @Override
+   public void add(final int value)
+      {
+      // the first value is stored relative to zero, and so are both the first delta and the first delta of deltas
+      final long delta = (long)value - previousValue;
+      final long encodedValue = (encoding == Encoding.DELTA) ? delta : delta - previousDelta;
+      previousValue = value;
+      previousDelta = delta;
+      numValues++;
+      writeVarint((encodedValue << 1) ^ (encodedValue >> 63));
+      }
+
+   @Override
+   public int getNumValues()
+      {
+      return numValues;
+      }
+
+   /** Returns the length of the encoded column so far, in bytes. */
+   @Override
+   public int getLength()
+      {
+      return length;
+      }
+
+   @Override
+   public void writeTo(@NotNull final BinaryRecordWriter writer) throws IOException
+      {
+      writer.write(bytes, 0, length);
+      }
+
+   private void writeVarint(final long zigzagValue)
+      {
+      if (length + MAX_VARINT_LENGTH > bytes.length)
+         {
+         final byte[] newBytes = new byte[bytes.length * 2];
+         System.arraycopy(bytes, 0, newBytes, 0, length);
+         bytes = newBytes;
+         }
+      long remaining = zigzagValue;
+      while ((remaining & ~0x7FL) != 0)
+         {
+         bytes[length++] = (byte)((remaining & 0x7F) | 0x80);
+         remaining >>>= 7;
+         }
+      bytes[length++] = (byte)remaining;
+      }
+   }
@@ -0,0 +1,75 @@
+package org.cmucreatelab.store;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The count, minimum, maximum and mean of a series' values in each fixed-length bucket of time.  Buckets are aligned to
+ * multiples of the bucket length (in epoch seconds), and only those holding at least one record are included, in time
+ * order.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class TimeSeriesAggregate
+   {
+   private final int bucketSecs;
+   @NotNull
+   private final int[] bucketStartTimes;
+   @NotNull
+   private final int[] counts;
+   @NotNull
+   private final double[] minValues;
+   @NotNull
+   private final double[] maxValues;
+   @NotNull
+   private final double[] meanValues;
+
+   TimeSeriesAggregate(final int bucketSecs,
+                       @NotNull final int[] bucketStartTimes,
+                       @NotNull final int[] counts,
+                       @NotNull final double[] minValues,
+                       @NotNull final double[] maxValues,
+                       @NotNull final double[] meanValues)
+      {
+      this.bucketSecs = bucketSecs;
+      this.bucketStartTimes = bucketStartTimes;
+      this.counts = counts;
+      this.minValues = minValues;
+      this.maxValues = maxValues;
+      this.meanValues = meanValues;
+      }
+
+   public int getBucketSecs()
+      {
+      return bucketSecs;
+      }
+
+   public int getNumBuckets()
+      {
+      return bucketStartTimes.length;
+      }
+
+   public int getBucketStartTime(final int bucket)
+      {
+      return bucketStartTimes[bucket];
+      }
+
+   public int getCount(final int bucket)
+      {
+      return counts[bucket];
+      }
+
+   public double getMinValue(final int bucket)
+      {
+      return minValues[bucket];
+      }
+
+   public double getMaxValue(final int bucket)
+      {
+      return maxValues[bucket];
+      }
+
+   public double getMeanValue(final int bucket)
+      {
+      return meanValues[bucket];
+      }
+   }
@@ -0,0 +1,75 @@
+package org.cmucreatelab.store;
+
+import java.nio.IntBuffer;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Iterates over a range of a series' records, straight from the mapped columns, without allocating anything per
+ * record.  Call {@link #next()} before reading each record.  A cursor isn't thread safe, but any number of cursors can
+ * be used at once, from any threads.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class TimeSeriesCursor
+   {
+   @Nullable
+   private final IntBuffer times;
+   @Nullable
+   private final IntBuffer rawValues;
+   private final double valueScale;
+   private final int start;
+   private final int end;
+   private int position;
+
+   /** Creates an empty cursor. */
+   TimeSeriesCursor()
+      {
+      this(null, null, 1.0, 0, 0);
+      }
+
+   TimeSeriesCursor(@Nullable final IntBuffer times, @Nullable final IntBuffer rawValues, final double valueScale, final int start, final int end)
+      {
+      this.times = times;
+      this.rawValues = rawValues;
+      this.valueScale = valueScale;
+      this.start = start;
+      this.end = end;
+      position = start - 1;
+      }
+
+   /** Moves to the next record, and returns <code>false</code> if there isn't one. */
+   public boolean next()
+      {
+      if (position < end)
+         {
+         position++;
+         }
+      return position < end;
+      }
+
+   /** Returns the number of records in the cursor's range. */
+   public int size()
+      {
+      return end - start;
+      }
+
+   /** Returns the current record's time, in epoch seconds. */
+   public int getTime()
+      {
+      //noinspection ConstantConditions
+      return times.get(position);
+      }
+
+   /** Returns the current record's value, as stored. */
+   public int getRawValue()
+      {
+      //noinspection ConstantConditions
+      return rawValues.get(position);
+      }
+
+   /** Returns the current record's value, i.e. the raw value multiplied by the store's value scale. */
+   public double getValue()
+      {
+      return getRawValue() * valueScale;
+      }
+   }
@@ -0,0 +1,295 @@
+package org.cmucreatelab.store;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.cmucreatelab.util.TimeIntervals;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Read-only, random access to the time series written by a {@link TimeSeriesStoreWriter}.  Each device's series is a
+ * segment of the data file, sorted by time, holding a column of times (epoch seconds) followed by a column of raw
+ * values, both little-endian ints.  A segment is memory-mapped the first time it's queried, so its records are read
+ * straight from the operating system's page cache rather than copied onto the heap, and a store can be much bigger
+ * than the heap.  Queries find their range with a binary search over the time column.
+ * </p>
+ * <p>
+ * A store is thread safe.  Mapped segments stay mapped until the store is garbage collected, since Java has no way to
+ * unmap them sooner.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class TimeSeriesStore
+   {
+   static final String DATA_FILENAME = "series.bin";
+   static final String INDEX_FILENAME = "index.bin";
+   static final int MAGIC_NUMBER = 0x54535331;  // "TSS1"
+   static final int VERSION = 1;
+   static final int RECORD_SIZE_IN_BYTES = 8;
+
+   private static final class Series
+      {
+      @NotNull
+      private final String name;
+      private final long offset;
+      private final int numRecords;
+      private final int minTime;
+      private final int maxTime;
+
+      /** Mapped on first use */
+      @Nullable
+      private IntBuffer times = null;
+      @Nullable
+      private IntBuffer rawValues = null;
+
+      private Series(@NotNull final String name, final long offset, final int numRecords, final int minTime, final int maxTime)
+         {
+         this.name = name;
+         this.offset = offset;
+         this.numRecords = numRecords;
+         this.minTime = minTime;
+         this.maxTime = maxTime;
+         }
+      }
+
+   /** Opens the store in the given directory. */
+   @NotNull
+   public static TimeSeriesStore open(@NotNull final File directory) throws IOException
+      {
+      final Map<String, Series> seriesByName = new LinkedHashMap<String, Series>();
+      final double valueScale;
+      final DataInputStream indexStream = new DataInputStream(new BufferedInputStream(new FileInputStream(new File(directory, INDEX_FILENAME))));
+      try
+         {
+         if (indexStream.readInt() != MAGIC_NUMBER)
+            {
+            throw new IOException("The directory [" + directory + "] doesn't hold a time series store");
+            }
+         final int version = indexStream.readInt();
+         if (version != VERSION)
+            {
+            throw new IOException("The time series store in [" + directory + "] is version " + version + ", but only version " + VERSION + " is supported");
+            }
+         valueScale = indexStream.readDouble();
+         final int numSeries = indexStream.readInt();
+         for (int i = 0; i < numSeries; i++)
+            {
+            final Series series = new Series(indexStream.readUTF(), indexStream.readLong(), indexStream.readInt(), indexStream.readInt(), indexStream.readInt());
+            seriesByName.put(series.name, series);
+            }
+         }
+      finally
+         {
+         indexStream.close();
+         }
+      return new TimeSeriesStore(new RandomAccessFile(new File(directory, DATA_FILENAME), "r"), valueScale, seriesByName);
+      }
+
+   @NotNull
+   private final RandomAccessFile dataFile;
+   private final double valueScale;
+   @NotNull
+   private final Map<String, Series> seriesByName;
+
+   private TimeSeriesStore(@NotNull final RandomAccessFile dataFile, final double valueScale, @NotNull final Map<String, Series> seriesByName)
+      {
+      this.dataFile = dataFile;
+      this.valueScale = valueScale;
+      this.seriesByName = seriesByName;
+      }
+
+   /** Returns the names of the series, in the order they were written. */
+   @NotNull
+   public List<String> getSeriesNames()
+      {
+      return new ArrayList<String>(seriesByName.keySet());
+      }
+
+   public boolean contains(@Nullable final String name)
+      {
+      return seriesByName.containsKey(name);
+      }
+
+   /** Returns the number of records in the named series, or 0 if there's no such series. */
+   public int getNumRecords(@NotNull final String name)
+      {
+      final Series series = seriesByName.get(name);
+      return (series == null) ? 0 : series.numRecords;
+      }
+
+   /** Returns the time of the named series' first record, or 0 if it's empty or there's no such series. */
+   public int getMinTime(@NotNull final String name)
+      {
+      final Series series = seriesByName.get(name);
+      return (series == null) ? 0 : series.minTime;
+      }
+
+   /** Returns the time of the named series' last record, or 0 if it's empty or there's no such series. */
+   public int getMaxTime(@NotNull final String name)
+      {
+      final Series series = seriesByName.get(name);
+      return (series == null) ? 0 : series.maxTime;
+      }
+
+   /** Returns the factor by which raw values are multiplied to get the values. */
+   public double getValueScale()
+      {
+      return valueScale;
+      }
+
+   /**
+    * Returns a cursor over the named series' records whose times are at least <code>startTime</code> and less than
+    * <code>endTime</code>.  The cursor is empty if there's no such series.
+    */
+   @NotNull
+   public TimeSeriesCursor query(@NotNull final String name, final int startTime, final int endTime) throws IOException
+      {
+      final Series series = seriesByName.get(name);
+      if (series == null || series.numRecords == 0 || startTime >= endTime)
+         {
+         return new TimeSeriesCursor();
+         }
+      map(series);
+      final int start = findFirstAtOrAfter(series.times, series.numRecords, startTime);
+      final int end = findFirstAtOrAfter(series.times, series.numRecords, endTime);
+      return new TimeSeriesCursor(series.times, series.rawValues, valueScale, start, end);
+      }
+
+   /**
+    * Aggregates the named series' records whose times are at least <code>startTime</code> and less than
+    * <code>endTime</code> into buckets of the given length.
+    */
+   @NotNull
+   public TimeSeriesAggregate aggregate(@NotNull final String name, final int startTime, final int endTime, final int bucketSecs) throws IOException
+      {
+      if (bucketSecs <= 0)
+         {
+         throw new IllegalArgumentException("The bucket length must be positive");
+         }
+      final TimeSeriesCursor cursor = query(name, startTime, endTime);
+
+      // count the buckets first, so that the arrays can be allocated exactly
+      int numBuckets = 0;
+      long previousBucket = Long.MIN_VALUE;
+      while (cursor.next())
+         {
+         final long bucket = TimeIntervals.floor(cursor.getTime(), bucketSecs);
+         if (bucket != previousBucket)
+            {
+            numBuckets++;
+            previousBucket = bucket;
+            }
+         }
+
+      final int[] bucketStartTimes = new int[numBuckets];
+      final int[] counts = new int[numBuckets];
+      final double[] minValues = new double[numBuckets];
+      final double[] maxValues = new double[numBuckets];
+      final double[] meanValues = new double[numBuckets];
+      final TimeSeriesCursor bucketCursor = query(name, startTime, endTime);
+      int bucket = -1;
+      int minRawValue = 0;
+      int maxRawValue = 0;
+      long sumOfRawValues = 0;
+      while (bucketCursor.next())
+         {
+         final int bucketStartTime = (int)TimeIntervals.floor(bucketCursor.getTime(), bucketSecs);
+         final int rawValue = bucketCursor.getRawValue();
+         if (bucket < 0 || bucketStartTime != bucketStartTimes[bucket])
+            {
+            if (bucket >= 0)
+               {
+               finishBucket(bucket, counts, minValues, maxValues, meanValues, minRawValue, maxRawValue, sumOfRawValues);
+               }
+            bucket++;
+            bucketStartTimes[bucket] = bucketStartTime;
+            minRawValue = rawValue;
+            maxRawValue = rawValue;
+            sumOfRawValues = 0;
+            }
+         counts[bucket]++;
+         minRawValue = Math.min(minRawValue, rawValue);
+         maxRawValue = Math.max(maxRawValue, rawValue);
+         sumOfRawValues += rawValue;
+         }
+      if (bucket >= 0)
+         {
+         finishBucket(bucket, counts, minValues, maxValues, meanValues, minRawValue, maxRawValue, sumOfRawValues);
+         }
+      return new TimeSeriesAggregate(bucketSecs, bucketStartTimes, counts, minValues, maxValues, meanValues);
+      }
+
+   private void finishBucket(final int bucket,
+                             @NotNull final int[] counts,
+                             @NotNull final double[] minValues,
+                             @NotNull final double[] maxValues,
+                             @NotNull final double[] meanValues,
+                             final int minRawValue,
+                             final int maxRawValue,
+                             final long sumOfRawValues)
+      {
+      minValues[bucket] = minRawValue * valueScale;
+      maxValues[bucket] = maxRawValue * valueScale;
+      meanValues[bucket] = sumOfRawValues * valueScale / counts[bucket];
+      }
+
+   /** Closes the data file.  Segments which are already mapped stay readable. */
+   public void close() throws IOException
+      {
+      dataFile.close();
+      }
+
+   private synchronized void map(@NotNull final Series series) throws IOException
+      {
+      if (series.times == null)
+         {
+         final long length = (long)series.numRecords * RECORD_SIZE_IN_BYTES;
+         if (length > Integer.MAX_VALUE)
+            {
+            throw new IOException("The series [" + series.name + "] is too big to map: " + length + " bytes");
+            }
+         final ByteBuffer segment = dataFile.getChannel().map(FileChannel.MapMode.READ_ONLY, series.offset, length);
+         segment.order(ByteOrder.LITTLE_ENDIAN);
+         final IntBuffer columns = segment.asIntBuffer();
+         columns.limit(series.numRecords);
+         final IntBuffer times = columns.slice();
+         columns.limit(2 * series.numRecords).position(series.numRecords);
+         series.rawValues = columns.slice();
+         series.times = times;
+         }
+      }
+
+   /** Returns the index of the first time which isn't less than the given one, or the number of times if they all are. */
+   private static int findFirstAtOrAfter(@NotNull final IntBuffer times, final int numTimes, final int time)
+      {
+      int low = 0;
+      int high = numTimes;
+      while (low < high)
+         {
+         final int middle = (low + high) >>> 1;
+         if (times.get(middle) < time)
+            {
+            low = middle + 1;
+            }
+         else
+            {
+            high = middle;
+            }
+         }
+      return low;
+      }
+   }
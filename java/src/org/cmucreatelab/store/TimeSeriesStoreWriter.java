@@ -0,0 +1,161 @@
+package org.cmucreatelab.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.log4j.Logger;
+import org.cmucreatelab.io.BinaryRecordWriter;
+import org.cmucreatelab.util.TimeSeriesBuffer;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * Writes a {@link TimeSeriesStore}, one device's series at a time.  A series' records are buffered until the series
+ * ends, sorted by time if they arrived out of order, and then appended to the data file as two columns: the times and
+ * then the raw values.  The index, listing each series' name, offset, record count and time range, is written by
+ * {@link #close()}, so a store whose writer wasn't closed can't be opened.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class TimeSeriesStoreWriter
+   {
+   private static final Logger LOG = Logger.getLogger(TimeSeriesStoreWriter.class);
+
+   private static final class SeriesEntry
+      {
+      @NotNull
+      private final String name;
+      private final long offset;
+      private final int numRecords;
+      private final int minTime;
+      private final int maxTime;
+
+      private SeriesEntry(@NotNull final String name, final long offset, final int numRecords, final int minTime, final int maxTime)
+         {
+         this.name = name;
+         this.offset = offset;
+         this.numRecords = numRecords;
+         this.minTime = minTime;
+         this.maxTime = maxTime;
+         }
+      }
+
+   @NotNull
+   private final File directory;
+   private final double valueScale;
+   @NotNull
+   private final BinaryRecordWriter dataWriter;
+   @NotNull
+   private final List<SeriesEntry> entries = new ArrayList<SeriesEntry>();
+   @NotNull
+   private final Set<String> names = new HashSet<String>();
+   private long dataOffset = 0;
+
+   private String name = null;
+   @NotNull
+   private final TimeSeriesBuffer records = new TimeSeriesBuffer();
+
+   /**
+    * Creates the store in the given directory, replacing any store already there.  Raw values are multiplied by the
+    * given scale to get the values returned by queries, e.g. 0.1 for values stored as tenths.
+    */
+   public TimeSeriesStoreWriter(@NotNull final File directory, final double valueScale) throws IOException
+      {
+      if (!(valueScale > 0))
+         {
+         throw new IllegalArgumentException("The value scale must be positive");
+         }
+      this.directory = directory;
+      this.valueScale = valueScale;
+      //noinspection ResultOfMethodCallIgnored
+      directory.mkdirs();
+
+      // the index goes last, so remove any old one first, so that a failed write can't leave a mismatched store
+      //noinspection ResultOfMethodCallIgnored
+      new File(directory, TimeSeriesStore.INDEX_FILENAME).delete();
+      dataWriter = new BinaryRecordWriter(new File(directory, TimeSeriesStore.DATA_FILENAME), BinaryRecordWriter.DEFAULT_BUFFER_SIZE, false, ByteOrder.LITTLE_ENDIAN);
+      }
+
+   /** Starts a new series.  Series with a name that was already written are skipped. */
+   public void beginSeries(@NotNull final String name)
+      {
+      if (names.add(name))
+         {
+         this.name = name;
+         }
+      else
+         {
+         LOG.warn("The store already has a series named [" + name + "], so this one is skipped");
+         this.name = null;
+         }
+      records.clear();
+      }
+
+   public void add(final int epochTimeInSeconds, final int rawValue)
+      {
+      if (name == null)
+         {
+         return;
+         }
+      records.add(epochTimeInSeconds, rawValue);
+      }
+
+   public void endSeries() throws IOException
+      {
+      if (name == null)
+         {
+         return;
+         }
+      records.sortByTime();
+      final int numRecords = records.size();
+      for (int i = 0; i < numRecords; i++)
+         {
+         dataWriter.writeInt(records.getTime(i));
+         }
+      for (int i = 0; i < numRecords; i++)
+         {
+         dataWriter.writeInt(records.getValue(i));
+         }
+      final int minTime = (numRecords > 0) ? records.getTime(0) : 0;
+      final int maxTime = (numRecords > 0) ? records.getTime(numRecords - 1) : 0;
+      entries.add(new SeriesEntry(name, dataOffset, numRecords, minTime, maxTime));
+      dataOffset += (long)numRecords * TimeSeriesStore.RECORD_SIZE_IN_BYTES;
+      name = null;
+      records.clear();
+      }
+
+   /** Finishes the data file and writes the index. */
+   public void close() throws IOException
+      {
+      dataWriter.close();
+      final DataOutputStream indexStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, TimeSeriesStore.INDEX_FILENAME))));
+      try
+         {
+         indexStream.writeInt(TimeSeriesStore.MAGIC_NUMBER);
+         indexStream.writeInt(TimeSeriesStore.VERSION);
+         indexStream.writeDouble(valueScale);
+         indexStream.writeInt(entries.size());
+         for (final SeriesEntry entry : entries)
+            {
+            indexStream.writeUTF(entry.name);
+            indexStream.writeLong(entry.offset);
+            indexStream.writeInt(entry.numRecords);
+            indexStream.writeInt(entry.minTime);
+            indexStream.writeInt(entry.maxTime);
+            }
+         }
+      finally
+         {
+         indexStream.close();
+         }
+      LOG.debug("Wrote " + entries.size() + " series (" + dataOffset + " bytes) to the store in [" + directory + "]");
+      }
+   }
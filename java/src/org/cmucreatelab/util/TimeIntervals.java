@@ -0,0 +1,24 @@
+package org.cmucreatelab.util;
+
+/**
+ * Helpers for dividing time into fixed intervals, such as sample intervals, buckets and windows.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class TimeIntervals
+   {
+   /**
+    * Rounds the time down to a multiple of the given positive interval.  It floors, rather than truncates, so that
+    * times before 1970 land in the right interval too, and returns a long, so that rounding down the earliest int
+    * times can't overflow.
+    */
+   public static long floor(final long epochTimeInSeconds, final int intervalSecs)
+      {
+      return epochTimeInSeconds - (((epochTimeInSeconds % intervalSecs) + intervalSecs) % intervalSecs);
+      }
+
+   private TimeIntervals()
+      {
+      // private to prevent instantiation
+      }
+   }
@@ -0,0 +1,114 @@
+package org.cmucreatelab.util;
+
+import java.util.Arrays;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * A growable buffer of one time series' records, each an int time and an int value, for the generators which need all
+ * of a device's records at once, e.g. to sort them.  {@link #sortByTime()} sorts records which were added out of time
+ * order, keeping those with the same time in the order they were added, so that "first" and "last" still mean what
+ * they say.
+ * </p>
+ * <p>
+ * {@link #clear()} empties the buffer for the next series, but drops its arrays if they grew unusually big, so that
+ * one huge series doesn't pin its memory for the rest of the run.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class TimeSeriesBuffer
+   {
+   private static final int INITIAL_CAPACITY = 1024;
+   private static final int MAX_RETAINED_CAPACITY = INITIAL_CAPACITY * 1024;
+
+   /**
+    * Stably sorts the first <code>length</code> times into ascending order, and returns the permutation applied, so
+    * that any values kept in parallel arrays can be reordered to match: the time now at index <code>i</code> was at
+    * index <code>permutation[i]</code>.
+    */
+   @NotNull
+   public static int[] sortByTime(@NotNull final int[] times, final int length)
+      {
+      // the index in the low bits makes every key unique, so ties keep their original order
+      final long[] keys = new long[length];
+      for (int i = 0; i < length; i++)
+         {
+         keys[i] = ((long)times[i] << 32) | i;
+         }
+      Arrays.sort(keys);
+      final int[] permutation = new int[length];
+      for (int i = 0; i < length; i++)
+         {
+         times[i] = (int)(keys[i] >> 32);
+         permutation[i] = (int)keys[i];
+         }
+      return permutation;
+      }
+
+   @NotNull
+   private int[] times = new int[INITIAL_CAPACITY];
+   @NotNull
+   private int[] values = new int[INITIAL_CAPACITY];
+   private int size = 0;
+   private boolean isSorted = true;
+
+   public void add(final int epochTimeInSeconds, final int value)
+      {
+      if (size == times.length)
+         {
+         times = Arrays.copyOf(times, times.length * 2);
+         values = Arrays.copyOf(values, values.length * 2);
+         }
+      if (size > 0 && times[size - 1] > epochTimeInSeconds)
+         {
+         isSorted = false;
+         }
+      times[size] = epochTimeInSeconds;
+      values[size] = value;
+      size++;
+      }
+
+   public int size()
+      {
+      return size;
+      }
+
+   public int getTime(final int index)
+      {
+      return times[index];
+      }
+
+   public int getValue(final int index)
+      {
+      return values[index];
+      }
+
+   /** Sorts the records by time, if they were added out of order, keeping those with the same time in added order. */
+   public void sortByTime()
+      {
+      if (isSorted)
+         {
+         return;
+         }
+      final int[] permutation = sortByTime(times, size);
+      final int[] sortedValues = new int[values.length];
+      for (int i = 0; i < size; i++)
+         {
+         sortedValues[i] = values[permutation[i]];
+         }
+      values = sortedValues;
+      isSorted = true;
+      }
+
+   public void clear()
+      {
+      size = 0;
+      isSorted = true;
+      if (times.length > MAX_RETAINED_CAPACITY)
+         {
+         times = new int[INITIAL_CAPACITY];
+         values = new int[INITIAL_CAPACITY];
+         }
+      }
+   }
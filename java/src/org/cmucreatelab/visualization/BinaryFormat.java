@@ -0,0 +1,115 @@
+package org.cmucreatelab.visualization;
+
+import java.io.IOException;
+import org.cmucreatelab.io.AlignedColumnEncoder;
+import org.cmucreatelab.io.ColumnEncoder;
+import org.cmucreatelab.io.JsonWriter;
+import org.cmucreatelab.io.VarintColumnEncoder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The layouts in which the data processors can write the binary data file.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public enum BinaryFormat
+   {
+   /** Each record is written as the time followed by the value, big-endian. */
+   RECORDS("records"),
+
+   /** Each device's times and values are written as two columns of zigzag varints (see {@link VarintColumnEncoder}). */
+   COLUMNAR("columnar"),
+
+   /**
+    * Each device's times and values are written as two columns of little-endian ints, each starting on an aligned
+    * boundary (see {@link AlignedColumnEncoder}), so that the browser can view them as typed arrays without decoding.
+    */
+   ALIGNED("aligned"),
+
+   /**
+    * Each device's records are resampled onto a fixed grid of the sample interval, and only the values are written, so
+    * that a sample's time is implied by its position (see {@link Resampler}).
+    */
+   RESAMPLED("resampled");
+
+   @NotNull
+   private final String name;
+
+   BinaryFormat(@NotNull final String name)
+      {
+      this.name = name;
+      }
+
+   /** Returns the name given to the format in the metadata. */
+   @NotNull
+   public String getName()
+      {
+      return name;
+      }
+
+   /** Returns whether each device's records are written as columns, whose offsets and lengths go in the metadata. */
+   public boolean isColumnar()
+      {
+      return this == COLUMNAR || this == ALIGNED;
+      }
+
+   /** Creates the encoder for a device's time column, or returns <code>null</code> if the format isn't columnar. */
+   @Nullable
+   public ColumnEncoder createTimeColumnEncoder()
+      {
+      switch (this)
+         {
+         case COLUMNAR:
+            return new VarintColumnEncoder(VarintColumnEncoder.Encoding.DELTA_OF_DELTA);
+         case ALIGNED:
+            return new AlignedColumnEncoder(AlignedColumnEncoder.ValueType.INT32);
+         default:
+            return null;
+         }
+      }
+
+   /**
+    * Creates the encoder for a device's value column, or returns <code>null</code> if the format isn't columnar.  Aligned
+    * value columns are of the given type.
+    */
+   @Nullable
+   public ColumnEncoder createValueColumnEncoder(@NotNull final AlignedColumnEncoder.ValueType alignedValueType)
+      {
+      switch (this)
+         {
+         case COLUMNAR:
+            return new VarintColumnEncoder(VarintColumnEncoder.Encoding.DELTA);
+         case ALIGNED:
+            return new AlignedColumnEncoder(alignedValueType);
+         default:
+            return null;
+         }
+      }
+
+   /**
+    * Describes the format in the metadata header, where aligned value columns are of the given type.  Nothing is written
+    * for {@link #RECORDS}, which is what clients assume when the metadata doesn't say, nor for {@link #RESAMPLED}, which
+    * is described by its {@link Resampler}.
+    */
+   public void writeJson(@NotNull final JsonWriter json, @NotNull final AlignedColumnEncoder.ValueType alignedValueType) throws IOException
+      {
+      switch (this)
+         {
+         case COLUMNAR:
+            json.name("binaryFormat").value(name);
+            json.name("timeEncoding").value("varint-delta-of-delta");
+            json.name("valueEncoding").value("varint-delta");
+            break;
+         case ALIGNED:
+            json.name("binaryFormat").value(name);
+            json.name("byteOrder").value("little-endian");
+            json.name("columnAlignmentInBytes").value(AlignedColumnEncoder.ALIGNMENT_IN_BYTES);
+            json.name("timeType").value(AlignedColumnEncoder.ValueType.INT32.getName());
+            json.name("valueType").value(alignedValueType.getName());
+            break;
+         default:
+            // nothing to do
+         }
+      }
+   }
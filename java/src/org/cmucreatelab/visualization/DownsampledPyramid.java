@@ -0,0 +1,269 @@
+package org.cmucreatelab.visualization;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.cmucreatelab.io.BinaryRecordWriter;
+import org.cmucreatelab.io.JsonWriter;
+import org.cmucreatelab.util.TimeIntervals;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * Writes pre-aggregated copies of every device's time series at several coarser resolutions (levels), so that a
+ * viewer can fetch only the resolution it needs for the current zoom.  Each level is written to a binary file of its
+ * own, named <code>&lt;prefix&gt;_&lt;level name&gt;.bin</code>, holding one big-endian bucket after another: the
+ * bucket's start time (int, epoch seconds, a multiple of the level's bucket size), the minimum, maximum and mean
+ * values (floats) and the number of samples in the bucket (int).  Buckets are sorted by time within each device, and
+ * the devices appear in the same order as in the main binary file.
+ * </p>
+ * <p>
+ * Only levels which are coarser than the sample interval are written.  Usage is the same as the other generators:
+ * call {@link #handleBegin()}, then {@link #handleRecord(int, double)} for each record, then {@link #handleEnd()} for
+ * each device, and finally {@link #finish()}.  The bucket offsets and counts of the current device are available as
+ * soon as its last record has been handled.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class DownsampledPyramid
+   {
+   /** Bucket sizes of the levels, in seconds, and the names used for their files */
+   private static final int[] LEVEL_BUCKET_SECS = {60, 10 * 60, 60 * 60, 24 * 60 * 60};
+   private static final String[] LEVEL_NAMES = {"1m", "10m", "1h", "1d"};
+
+   private static final String BINARY_FILE_EXTENSION = ".bin";
+
+   public static final int BUCKET_SIZE_IN_BYTES = 20;
+
+   @NotNull
+   private final String[] levelFilenames;
+   @NotNull
+   private final Level[] levels;
+
+   public DownsampledPyramid(final int sampleIntervalSecs, @NotNull final File outputDirectory, @NotNull final String filenamePrefix) throws IOException
+      {
+      int numLevels = 0;
+      for (final int bucketSecs : LEVEL_BUCKET_SECS)
+         {
+         if (bucketSecs > sampleIntervalSecs)
+            {
+            numLevels++;
+            }
+         }
+
+      levels = new Level[numLevels];
+      levelFilenames = new String[numLevels];
+      int i = 0;
+      for (int j = 0; j < LEVEL_BUCKET_SECS.length; j++)
+         {
+         if (LEVEL_BUCKET_SECS[j] > sampleIntervalSecs)
+            {
+            levelFilenames[i] = filenamePrefix + "_" + LEVEL_NAMES[j] + BINARY_FILE_EXTENSION;
+            levels[i] = new Level(LEVEL_NAMES[j], LEVEL_BUCKET_SECS[j], new BinaryRecordWriter(new File(outputDirectory, levelFilenames[i])));
+            i++;
+            }
+         }
+      }
+
+   public void handleBegin()
+      {
+      for (final Level level : levels)
+         {
+         level.handleBegin();
+         }
+      }
+
+   public void handleRecord(final int epochTimeInSeconds, final double value)
+      {
+      for (final Level level : levels)
+         {
+         level.add(epochTimeInSeconds, value);
+         }
+      }
+
+   public void handleEnd() throws IOException
+      {
+      for (final Level level : levels)
+         {
+         level.handleEnd();
+         }
+      }
+
+   public void finish() throws IOException
+      {
+      for (final Level level : levels)
+         {
+         level.writer.close();
+         }
+      }
+
+   /**
+    * Writes the description of the levels as the <code>"levels"</code> member of the current metadata JSON object: an
+    * array of objects with the name, bucket size, file name and bucket size in bytes of each level.
+    */
+   public void writeLevelsJson(@NotNull final JsonWriter json) throws IOException
+      {
+      json.name("levels").beginArray();
+      for (int i = 0; i < levels.length; i++)
+         {
+         json.beginObject();
+         json.name("name").value(levels[i].name);
+         json.name("bucketSecs").value(levels[i].bucketSecs);
+         json.name("file").value(levelFilenames[i]);
+         json.name("bucketSizeInBytes").value(BUCKET_SIZE_IN_BYTES);
+         json.endObject();
+         }
+      json.endArray();
+      }
+
+   /**
+    * Writes the current device's bucket offsets and counts as the <code>"levelBucketOffsets"</code> and
+    * <code>"levelNumBuckets"</code> members of the current device metadata JSON object, in the same order as the
+    * levels.  Offsets are in buckets, not bytes.
+    */
+   public void writeDeviceJson(@NotNull final JsonWriter json) throws IOException
+      {
+      json.name("levelBucketOffsets").beginArray();
+      for (final Level level : levels)
+         {
+         json.value(level.deviceBucketOffset);
+         }
+      json.endArray();
+      json.name("levelNumBuckets").beginArray();
+      for (final Level level : levels)
+         {
+         json.value(level.numBuckets);
+         }
+      json.endArray();
+      }
+
+   /**
+    * Accumulates the buckets of a single device for one level, in primitive arrays sorted by start time.  Records
+    * usually arrive in time order, so a record almost always belongs to the last bucket or starts a new one, but
+    * out of order records are handled too.
+    */
+   private static final class Level
+      {
+      private static final int INITIAL_CAPACITY = 256;
+
+      @NotNull
+      private final String name;
+      private final int bucketSecs;
+      @NotNull
+      private final BinaryRecordWriter writer;
+      private long deviceBucketOffset = 0;
+      private long nextBucketOffset = 0;
+      private int numBuckets = 0;
+      private int[] startTimes = new int[INITIAL_CAPACITY];
+      private double[] minValues = new double[INITIAL_CAPACITY];
+      private double[] maxValues = new double[INITIAL_CAPACITY];
+      private double[] sums = new double[INITIAL_CAPACITY];
+      private int[] counts = new int[INITIAL_CAPACITY];
+
+      private Level(@NotNull final String name, final int bucketSecs, @NotNull final BinaryRecordWriter writer)
+         {
+         this.name = name;
+         this.bucketSecs = bucketSecs;
+         this.writer = writer;
+         }
+
+      private void handleBegin()
+         {
+         deviceBucketOffset = nextBucketOffset;
+         numBuckets = 0;
+         }
+
+      private void add(final int epochTimeInSeconds, final double value)
+         {
+         // the bucket of the very earliest int times would start before Integer.MIN_VALUE, so it starts there instead
+         final int startTime = (int)Math.max(Integer.MIN_VALUE, TimeIntervals.floor(epochTimeInSeconds, bucketSecs));
+
+         final int index;
+         if (numBuckets > 0 && startTimes[numBuckets - 1] == startTime)
+            {
+            index = numBuckets - 1;
+            }
+         else if (numBuckets == 0 || startTimes[numBuckets - 1] < startTime)
+            {
+            index = insertBucket(numBuckets, startTime);
+            }
+         else
+            {
+            final int searchResult = binarySearch(startTime);
+            index = (searchResult >= 0) ? searchResult : insertBucket(-(searchResult + 1), startTime);
+            }
+
+         minValues[index] = Math.min(minValues[index], value);
+         maxValues[index] = Math.max(maxValues[index], value);
+         sums[index] += value;
+         counts[index]++;
+         }
+
+      private int binarySearch(final int startTime)
+         {
+         int low = 0;
+         int high = numBuckets - 1;
+         while (low <= high)
+            {
+            final int middle = (low + high) >>> 1;
+            if (startTimes[middle] < startTime)
+               {
+               low = middle + 1;
+               }
+            else if (startTimes[middle] > startTime)
+               {
+               high = middle - 1;
+               }
+            else
+               {
+               return middle;
+               }
+            }
+         return -(low + 1);
+         }
+
+      /** Inserts an empty bucket at the given index, shifting later buckets along, and returns the index. */
+      private int insertBucket(final int index, final int startTime)
+         {
+         if (numBuckets == startTimes.length)
+            {
+            final int newCapacity = startTimes.length * 2;
+            startTimes = Arrays.copyOf(startTimes, newCapacity);
+            minValues = Arrays.copyOf(minValues, newCapacity);
+            maxValues = Arrays.copyOf(maxValues, newCapacity);
+            sums = Arrays.copyOf(sums, newCapacity);
+            counts = Arrays.copyOf(counts, newCapacity);
+            }
+         final int numToShift = numBuckets - index;
+         if (numToShift > 0)
+            {
+            System.arraycopy(startTimes, index, startTimes, index + 1, numToShift);
+            System.arraycopy(minValues, index, minValues, index + 1, numToShift);
+            System.arraycopy(maxValues, index, maxValues, index + 1, numToShift);
+            System.arraycopy(sums, index, sums, index + 1, numToShift);
+            System.arraycopy(counts, index, counts, index + 1, numToShift);
+            }
+         startTimes[index] = startTime;
+         minValues[index] = Double.POSITIVE_INFINITY;
+         maxValues[index] = Double.NEGATIVE_INFINITY;
+         sums[index] = 0;
+         counts[index] = 0;
+         numBuckets++;
+         return index;
+         }
+
+      private void handleEnd() throws IOException
+         {
+         for (int i = 0; i < numBuckets; i++)
+            {
+            writer.writeInt(startTimes[i]);
+            writer.writeFloat((float)minValues[i]);
+            writer.writeFloat((float)maxValues[i]);
+            writer.writeFloat((float)(sums[i] / counts[i]));
+            writer.writeInt(counts[i]);
+            }
+         nextBucketOffset += numBuckets;
+         }
+      }
+   }
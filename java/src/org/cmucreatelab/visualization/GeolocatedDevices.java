@@ -1,18 +1,32 @@
 package org.cmucreatelab.visualization;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 /**
+ * <p>
+ * A set of devices, by name, with spatial queries answered by a {@link SpatialIndex} which is built from the devices'
+ * parsed coordinates on the first query after devices are added.  Devices whose coordinates aren't numbers are left
+ * out of the index.
+ * </p>
+ *
  * @author Chris Bartley (bartley@cmu.edu)
  */
 public abstract class GeolocatedDevices
    {
+   private static final Logger LOG = Logger.getLogger(GeolocatedDevices.class);
+
    private final SortedMap<String, Device> devices = new TreeMap<String, Device>();
 
+   @Nullable
+   private SpatialIndex<Device> spatialIndex = null;
+
    public static interface Device
       {
       @NotNull
@@ -36,6 +50,10 @@ public abstract class GeolocatedDevices
       if (device != null)
          {
          devices.put(device.getName(), device);
+         synchronized (this)
+            {
+            spatialIndex = null;
+            }
          }
       }
 
@@ -61,6 +79,69 @@ public abstract class GeolocatedDevices
       return devices.get(name);
       }
 
+   /**
+    * Returns the devices within the given bounding box, edges included, sorted by name.  If the minimum longitude is
+    * greater than the maximum, the box is taken to cross the antimeridian.
+    */
+   @NotNull
+   public final List<Device> findWithin(final double minLatitude, final double minLongitude, final double maxLatitude, final double maxLongitude)
+      {
+      final SortedMap<String, Device> foundByName = new TreeMap<String, Device>();
+      for (final Device device : getSpatialIndex().findWithin(minLatitude, minLongitude, maxLatitude, maxLongitude))
+         {
+         foundByName.put(device.getName(), device);
+         }
+      return new ArrayList<Device>(foundByName.values());
+      }
+
+   /** Returns up to <code>k</code> devices nearest to the given point, by great-circle distance, nearest first. */
+   @NotNull
+   public final List<Device> findNearest(final double latitude, final double longitude, final int k)
+      {
+      return getSpatialIndex().findNearest(latitude, longitude, k);
+      }
+
+   /**
+    * Returns up to <code>k</code> devices nearest to the given point, nearest first, ignoring any further away than the
+    * given great-circle distance.
+    */
+   @NotNull
+   public final List<Device> findNearest(final double latitude, final double longitude, final int k, final double maxDistanceInMeters)
+      {
+      return getSpatialIndex().findNearest(latitude, longitude, k, maxDistanceInMeters);
+      }
+
+   @NotNull
+   private synchronized SpatialIndex<Device> getSpatialIndex()
+      {
+      if (spatialIndex == null)
+         {
+         final List<Device> indexedDevices = new ArrayList<Device>(devices.size());
+         final double[] latitudes = new double[devices.size()];
+         final double[] longitudes = new double[devices.size()];
+         for (final Device device : devices.values())
+            {
+            try
+               {
+               final double latitude = Double.parseDouble(device.getLatitude());
+               final double longitude = Double.parseDouble(device.getLongitude());
+               if (!Double.isNaN(latitude) && !Double.isNaN(longitude))
+                  {
+                  latitudes[indexedDevices.size()] = latitude;
+                  longitudes[indexedDevices.size()] = longitude;
+                  indexedDevices.add(device);
+                  }
+               }
+            catch (NumberFormatException e)
+               {
+               LOG.error("Invalid coordinates for device [" + device.getName() + "].  Leaving it out of the spatial index.");
+               }
+            }
+         spatialIndex = new SpatialIndex<Device>(indexedDevices, latitudes, longitudes);
+         }
+      return spatialIndex;
+      }
+
    protected static final class DeviceImpl implements Device
       {
       @NotNull
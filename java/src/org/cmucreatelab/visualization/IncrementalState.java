@@ -0,0 +1,329 @@
+package org.cmucreatelab.visualization;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * Persistent state for incremental processing, kept in a directory of its own.  For each device, the state records
+ * the byte offset just past the last CSV line ingested, the latest epoch time ingested (the high-water mark), the
+ * number of records ingested so far, and the statistics needed to write the device's metadata.  The binary records
+ * of each device are kept in a segment file of their own, so that a run only needs to append the new records to the
+ * segments and then rebuild the combined binary file by concatenating them.
+ * </p>
+ * <p>
+ * Segments are always appended to before the state is saved, so if a run dies in between, the segments may contain
+ * records which the state doesn't know about.  {@link #prepareSegmentFile} truncates those before they're appended
+ * to again.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class IncrementalState
+   {
+   private static final Logger LOG = Logger.getLogger(IncrementalState.class);
+
+   private static final String STATE_FILENAME = "state.properties";
+   private static final String SEGMENT_FILE_EXTENSION = ".bin";
+
+   private static final String CSV_OFFSET_KEY = "csvOffset";
+   private static final String HIGH_WATER_TIME_KEY = "highWaterTime";
+   private static final String NUM_RECORDS_KEY = "numRecords";
+   private static final String MIN_TIME_KEY = "minTime";
+   private static final String MAX_TIME_KEY = "maxTime";
+   private static final String MIN_VALUE_KEY = "minValue";
+   private static final String MAX_VALUE_KEY = "maxValue";
+   private static final String MIN_VALUE_TIME_KEY = "minValueTime";
+   private static final String MAX_VALUE_TIME_KEY = "maxValueTime";
+
+   public static final class DeviceState
+      {
+      @NotNull
+      private final String name;
+      private boolean isNew = true;
+      private long csvOffset = 0;
+      private int highWaterTime = Integer.MIN_VALUE;
+      private int numRecords = 0;
+      private int minTime = 0;
+      private int maxTime = 0;
+      private double minValue = 0;
+      private double maxValue = 0;
+      private int minValueTime = 0;
+      private int maxValueTime = 0;
+
+      private DeviceState(@NotNull final String name)
+         {
+         this.name = name;
+         }
+
+      @NotNull
+      public String getName()
+         {
+         return name;
+         }
+
+      /** Returns <code>true</code> if nothing has been ingested for this device yet, so there are no statistics. */
+      public boolean isNew()
+         {
+         return isNew;
+         }
+
+      /** Returns the byte offset just past the last CSV line ingested. */
+      public long getCsvOffset()
+         {
+         return csvOffset;
+         }
+
+      /** Returns the latest epoch time ingested, or {@link Integer#MIN_VALUE} if nothing has been ingested yet. */
+      public int getHighWaterTime()
+         {
+         return highWaterTime;
+         }
+
+      public int getNumRecords()
+         {
+         return numRecords;
+         }
+
+      public int getMinTime()
+         {
+         return minTime;
+         }
+
+      public int getMaxTime()
+         {
+         return maxTime;
+         }
+
+      public double getMinValue()
+         {
+         return minValue;
+         }
+
+      public double getMaxValue()
+         {
+         return maxValue;
+         }
+
+      public int getMinValueTime()
+         {
+         return minValueTime;
+         }
+
+      public int getMaxValueTime()
+         {
+         return maxValueTime;
+         }
+
+      public void setProgress(final long csvOffset, final int highWaterTime, final int numRecords)
+         {
+         this.csvOffset = csvOffset;
+         this.highWaterTime = highWaterTime;
+         this.numRecords = numRecords;
+         isNew = false;
+         }
+
+      public void setStatistics(final int minTime,
+                                final int maxTime,
+                                final double minValue,
+                                final double maxValue,
+                                final int minValueTime,
+                                final int maxValueTime)
+         {
+         this.minTime = minTime;
+         this.maxTime = maxTime;
+         this.minValue = minValue;
+         this.maxValue = maxValue;
+         this.minValueTime = minValueTime;
+         this.maxValueTime = maxValueTime;
+         }
+
+      private void reset()
+         {
+         isNew = true;
+         csvOffset = 0;
+         highWaterTime = Integer.MIN_VALUE;
+         numRecords = 0;
+         setStatistics(0, 0, 0, 0, 0, 0);
+         }
+      }
+
+   @NotNull
+   private final File directory;
+
+   @NotNull
+   private final Map<String, DeviceState> deviceStates = new TreeMap<String, DeviceState>();
+
+   /** Loads the state from the given directory, creating the directory if it doesn't exist yet. */
+   public IncrementalState(@NotNull final File directory) throws IOException
+      {
+      this.directory = directory;
+
+      //noinspection ResultOfMethodCallIgnored
+      directory.mkdirs();
+      if (!directory.isDirectory())
+         {
+         throw new IOException("The incremental state directory is invalid.  It is either not a directory, or could not be created: " + directory.getCanonicalPath());
+         }
+
+      final File stateFile = new File(directory, STATE_FILENAME);
+      if (stateFile.isFile())
+         {
+         final Properties properties = new Properties();
+         final InputStream inputStream = new FileInputStream(stateFile);
+         try
+            {
+            properties.load(inputStream);
+            }
+         finally
+            {
+            inputStream.close();
+            }
+
+         for (final String key : properties.stringPropertyNames())
+            {
+            final int dotPosition = key.lastIndexOf('.');
+            if (dotPosition > 0)
+               {
+               getDeviceState(key.substring(0, dotPosition)).isNew = false;
+               }
+            }
+         for (final DeviceState state : deviceStates.values())
+            {
+            try
+               {
+               state.csvOffset = Long.parseLong(getProperty(properties, state, CSV_OFFSET_KEY));
+               state.highWaterTime = Integer.parseInt(getProperty(properties, state, HIGH_WATER_TIME_KEY));
+               state.numRecords = Integer.parseInt(getProperty(properties, state, NUM_RECORDS_KEY));
+               state.minTime = Integer.parseInt(getProperty(properties, state, MIN_TIME_KEY));
+               state.maxTime = Integer.parseInt(getProperty(properties, state, MAX_TIME_KEY));
+               state.minValue = Double.parseDouble(getProperty(properties, state, MIN_VALUE_KEY));
+               state.maxValue = Double.parseDouble(getProperty(properties, state, MAX_VALUE_KEY));
+               state.minValueTime = Integer.parseInt(getProperty(properties, state, MIN_VALUE_TIME_KEY));
+               state.maxValueTime = Integer.parseInt(getProperty(properties, state, MAX_VALUE_TIME_KEY));
+               }
+            catch (NumberFormatException e)
+               {
+               LOG.error("Invalid incremental state for device [" + state.getName() + "].  It will be processed from scratch.", e);
+               state.reset();
+               }
+            }
+         }
+      }
+
+   /** Returns the state for the device with the given name, creating a new one if the device hasn't been seen before. */
+   @NotNull
+   public DeviceState getDeviceState(@NotNull final String name)
+      {
+      DeviceState state = deviceStates.get(name);
+      if (state == null)
+         {
+         state = new DeviceState(name);
+         deviceStates.put(name, state);
+         }
+      return state;
+      }
+
+   /**
+    * Returns the segment file for the given device, after making sure that it agrees with the device's state, given
+    * the size of each record.  Records appended by a run which died before saving the state are truncated.  If the
+    * segment is missing records, or the CSV file has shrunk since it was last read (so it must have been replaced),
+    * the device is reset so that it's processed from scratch.
+    */
+   @NotNull
+   public File prepareSegmentFile(@NotNull final DeviceState state, @NotNull final File csvFile, final int recordSize) throws IOException
+      {
+      final File segmentFile = new File(directory, state.getName() + SEGMENT_FILE_EXTENSION);
+      final long expectedLength = (long)state.getNumRecords() * recordSize;
+      final long actualLength = segmentFile.isFile() ? segmentFile.length() : 0;
+      if (actualLength < expectedLength || csvFile.length() < state.getCsvOffset())
+         {
+         LOG.info("Incremental state for device [" + state.getName() + "] doesn't match its files.  It will be processed from scratch.");
+         state.reset();
+         truncate(segmentFile, 0);
+         }
+      else if (actualLength > expectedLength)
+         {
+         truncate(segmentFile, expectedLength);
+         }
+      return segmentFile;
+      }
+
+   /** Saves the state of all the devices, replacing the state file only once the new one has been written completely. */
+   public void save() throws IOException
+      {
+      final Properties properties = new Properties();
+      for (final DeviceState state : deviceStates.values())
+         {
+         if (!state.isNew())
+            {
+            setProperty(properties, state, CSV_OFFSET_KEY, String.valueOf(state.getCsvOffset()));
+            setProperty(properties, state, HIGH_WATER_TIME_KEY, String.valueOf(state.getHighWaterTime()));
+            setProperty(properties, state, NUM_RECORDS_KEY, String.valueOf(state.getNumRecords()));
+            setProperty(properties, state, MIN_TIME_KEY, String.valueOf(state.getMinTime()));
+            setProperty(properties, state, MAX_TIME_KEY, String.valueOf(state.getMaxTime()));
+            setProperty(properties, state, MIN_VALUE_KEY, String.valueOf(state.getMinValue()));
+            setProperty(properties, state, MAX_VALUE_KEY, String.valueOf(state.getMaxValue()));
+            setProperty(properties, state, MIN_VALUE_TIME_KEY, String.valueOf(state.getMinValueTime()));
+            setProperty(properties, state, MAX_VALUE_TIME_KEY, String.valueOf(state.getMaxValueTime()));
+            }
+         }
+
+      final File stateFile = new File(directory, STATE_FILENAME);
+      final File temporaryStateFile = new File(directory, STATE_FILENAME + ".tmp");
+      final OutputStream outputStream = new FileOutputStream(temporaryStateFile);
+      try
+         {
+         properties.store(outputStream, "Incremental processing state");
+         }
+      finally
+         {
+         outputStream.close();
+         }
+
+      // File.renameTo() won't replace an existing file on all platforms
+      if ((stateFile.exists() && !stateFile.delete()) || !temporaryStateFile.renameTo(stateFile))
+         {
+         throw new IOException("Failed to replace the incremental state file: " + stateFile.getCanonicalPath());
+         }
+      }
+
+   @NotNull
+   private static String getProperty(@NotNull final Properties properties, @NotNull final DeviceState state, @NotNull final String key)
+      {
+      final String value = properties.getProperty(state.getName() + "." + key);
+      if (value == null)
+         {
+         throw new NumberFormatException("Missing value for [" + key + "]");
+         }
+      return value;
+      }
+
+   private static void setProperty(@NotNull final Properties properties, @NotNull final DeviceState state, @NotNull final String key, @NotNull final String value)
+      {
+      properties.setProperty(state.getName() + "." + key, value);
+      }
+
+   private static void truncate(@NotNull final File file, final long length) throws IOException
+      {
+      final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+      try
+         {
+         randomAccessFile.setLength(length);
+         }
+      finally
+         {
+         randomAccessFile.close();
+         }
+      }
+   }
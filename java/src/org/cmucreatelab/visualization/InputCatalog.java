@@ -0,0 +1,74 @@
+package org.cmucreatelab.visualization;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Lists the input directory once, recording the size of each file with the given extension, so that the processors
+ * can find each device's file, and schedule the biggest ones first, without probing the file system per device.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class InputCatalog
+   {
+   private static final Logger LOG = Logger.getLogger(InputCatalog.class);
+
+   @NotNull
+   private final File directory;
+   @NotNull
+   private final String extension;
+   @NotNull
+   private final Map<String, Long> sizesByName = new HashMap<String, Long>();
+   private long totalSize = 0;
+
+   public InputCatalog(@NotNull final File directory, @NotNull final String extension)
+      {
+      this.directory = directory;
+      this.extension = extension;
+      final File[] files = directory.listFiles();
+      if (files == null)
+         {
+         LOG.error("Failed to list the input directory [" + directory + "]");
+         return;
+         }
+      for (final File file : files)
+         {
+         final String filename = file.getName();
+         if (filename.endsWith(extension) && file.isFile())
+            {
+            final long size = file.length();
+            sizesByName.put(filename.substring(0, filename.length() - extension.length()), size);
+            totalSize += size;
+            }
+         }
+      }
+
+   /** Returns the file for the named device, or <code>null</code> if the directory doesn't have one. */
+   @Nullable
+   public File getFile(@NotNull final String name)
+      {
+      return sizesByName.containsKey(name) ? new File(directory, name + extension) : null;
+      }
+
+   /** Returns the size of the named device's file, in bytes, or 0 if the directory doesn't have one. */
+   public long getSize(@NotNull final String name)
+      {
+      final Long size = sizesByName.get(name);
+      return (size == null) ? 0 : size;
+      }
+
+   /** Returns the number of files with the extension. */
+   public int size()
+      {
+      return sizesByName.size();
+      }
+
+   public long getTotalSize()
+      {
+      return totalSize;
+      }
+   }
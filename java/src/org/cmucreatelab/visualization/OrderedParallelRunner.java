@@ -0,0 +1,236 @@
+package org.cmucreatelab.visualization;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Runs tasks concurrently on a fixed size thread pool, but hands their results to a {@link ResultHandler} on the
+ * calling thread in the same order as the tasks were given.  At most a small multiple of the number of threads are
+ * in flight at once, so that the buffered results of fast tasks can't pile up while waiting on a slow one.
+ * </p>
+ * <p>
+ * If the tasks' sizes are given, the tasks are started largest first (longest processing time first scheduling),
+ * choosing from a window of the next few tasks in order, so that a big task near the end doesn't leave the other
+ * threads idle while it finishes alone.  The window bounds the number of results waiting to be handled, and thus the
+ * memory they hold.  How long each task took, and on which thread, is recorded for {@link #printTimingReport}.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class OrderedParallelRunner<T>
+   {
+   private static final int MAX_TASKS_IN_FLIGHT_PER_THREAD = 2;
+   private static final int SCHEDULING_WINDOW_TASKS_PER_THREAD = 8;
+   private static final double NANOS_PER_MILLI = 1000000.0;
+
+   public static interface ResultHandler<T>
+      {
+      void handleResult(@NotNull final T result) throws IOException;
+      }
+
+   private final int numThreads;
+
+   private long[] taskSizes = new long[0];
+   private long[] taskDurationNanos = new long[0];
+   private String[] taskThreadNames = new String[0];
+   private long wallTimeNanos = 0;
+
+   public OrderedParallelRunner(final int numThreads)
+      {
+      this.numThreads = Math.max(1, numThreads);
+      }
+
+   public void run(@NotNull final List<Callable<T>> tasks, @NotNull final ResultHandler<T> resultHandler) throws IOException
+      {
+      run(tasks, null, resultHandler);
+      }
+
+   /**
+    * Runs the tasks, starting the largest first if their sizes are given (in any units, e.g. bytes of input), and
+    * otherwise in order.
+    */
+   public void run(@NotNull final List<Callable<T>> tasks, @Nullable final List<Long> sizes, @NotNull final ResultHandler<T> resultHandler) throws IOException
+      {
+      final int numTasks = tasks.size();
+      taskSizes = new long[numTasks];
+      for (int i = 0; sizes != null && i < numTasks; i++)
+         {
+         taskSizes[i] = sizes.get(i);
+         }
+      taskDurationNanos = new long[numTasks];
+      taskThreadNames = new String[numTasks];
+
+      // without sizes, the earliest task is always the "largest" one, and the window is just the tasks in flight
+      final int maxTasksInFlight = numThreads * MAX_TASKS_IN_FLIGHT_PER_THREAD;
+      final int windowSize = (sizes == null) ? maxTasksInFlight : numThreads * SCHEDULING_WINDOW_TASKS_PER_THREAD;
+
+      final long runStartNanos = System.nanoTime();
+      final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+      try
+         {
+         final CompletionService<T> completionService = new ExecutorCompletionService<T>(executor);
+         final List<Future<T>> futures = new ArrayList<Future<T>>(Collections.<Future<T>>nCopies(numTasks, null));
+         final boolean[] isSubmitted = new boolean[numTasks];
+         int numInFlight = 0;
+         int nextTaskToHandle = 0;
+         while (nextTaskToHandle < numTasks)
+            {
+            while (numInFlight < maxTasksInFlight)
+               {
+               final int taskIndex = findLargestUnsubmittedTask(isSubmitted, nextTaskToHandle, Math.min(numTasks, nextTaskToHandle + windowSize));
+               if (taskIndex < 0)
+                  {
+                  break;
+                  }
+               futures.set(taskIndex, completionService.submit(createTimedTask(tasks.get(taskIndex), taskIndex)));
+               isSubmitted[taskIndex] = true;
+               numInFlight++;
+               }
+
+            final Future<T> future = futures.get(nextTaskToHandle);
+            if (future != null && future.isDone())
+               {
+               futures.set(nextTaskToHandle, null);
+               nextTaskToHandle++;
+               resultHandler.handleResult(future.get());
+               }
+            else
+               {
+               // wait for any task to finish, which frees a slot for the next one
+               completionService.take();
+               numInFlight--;
+               }
+            }
+         }
+      catch (InterruptedException e)
+         {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while waiting for a task to complete", e);
+         }
+      catch (ExecutionException e)
+         {
+         throw new IOException("Task failed: " + e.getCause(), e.getCause());
+         }
+      finally
+         {
+         executor.shutdownNow();
+         wallTimeNanos = System.nanoTime() - runStartNanos;
+         }
+      }
+
+   private int findLargestUnsubmittedTask(@NotNull final boolean[] isSubmitted, final int start, final int end)
+      {
+      int largestTaskIndex = -1;
+      for (int i = start; i < end; i++)
+         {
+         if (!isSubmitted[i] && (largestTaskIndex < 0 || taskSizes[i] > taskSizes[largestTaskIndex]))
+            {
+            largestTaskIndex = i;
+            }
+         }
+      return largestTaskIndex;
+      }
+
+   @NotNull
+   private Callable<T> createTimedTask(@NotNull final Callable<T> task, final int taskIndex)
+      {
+      return new Callable<T>()
+      {
+      @Override
+      public T call() throws Exception
+         {
+         // these are only read once the task's future is done, which makes the writes visible
+         taskThreadNames[taskIndex] = Thread.currentThread().getName();
+         final long startNanos = System.nanoTime();
+         try
+            {
+            return task.call();
+            }
+         finally
+            {
+            taskDurationNanos[taskIndex] = System.nanoTime() - startNanos;
+            }
+         }
+      };
+      }
+
+   /**
+    * Prints how long the last run's tasks took, totalled by the given labels (one per task, in order, so that the
+    * chunks of a device can share its name), slowest first, followed by how busy each thread was.
+    */
+   public void printTimingReport(@NotNull final List<String> taskLabels)
+      {
+      final Map<String, long[]> totalsByLabel = new LinkedHashMap<String, long[]>();
+      final Map<String, long[]> totalsByThread = new TreeMap<String, long[]>();
+      long busyNanos = 0;
+      for (int i = 0; i < taskLabels.size() && i < taskDurationNanos.length; i++)
+         {
+         // the number of tasks, their total duration, and their total size
+         addToTotals(totalsByLabel, taskLabels.get(i), taskDurationNanos[i], taskSizes[i]);
+         if (taskThreadNames[i] != null)
+            {
+            addToTotals(totalsByThread, taskThreadNames[i], taskDurationNanos[i], taskSizes[i]);
+            }
+         busyNanos += taskDurationNanos[i];
+         }
+
+      final List<Map.Entry<String, long[]>> labels = new ArrayList<Map.Entry<String, long[]>>(totalsByLabel.entrySet());
+      Collections.sort(labels,
+                       new Comparator<Map.Entry<String, long[]>>()
+                       {
+                       @Override
+                       public int compare(final Map.Entry<String, long[]> entry1, final Map.Entry<String, long[]> entry2)
+                          {
+                          final long duration1 = entry1.getValue()[1];
+                          final long duration2 = entry2.getValue()[1];
+                          return (duration1 > duration2) ? -1 : ((duration1 == duration2) ? 0 : 1);
+                          }
+                       });
+
+      System.out.println("Task Timing (slowest first):");
+      System.out.printf("   %-40s %6s %12s %14s%n", "Name", "Tasks", "Time (ms)", "Size");
+      for (final Map.Entry<String, long[]> entry : labels)
+         {
+         final long[] totals = entry.getValue();
+         System.out.printf("   %-40s %6d %12.1f %14d%n", entry.getKey(), totals[0], totals[1] / NANOS_PER_MILLI, totals[2]);
+         }
+      System.out.println("Thread Load Balance:");
+      System.out.printf("   %-40s %6s %12s %14s%n", "Thread", "Tasks", "Busy (ms)", "Size");
+      for (final Map.Entry<String, long[]> entry : totalsByThread.entrySet())
+         {
+         final long[] totals = entry.getValue();
+         System.out.printf("   %-40s %6d %12.1f %14d%n", entry.getKey(), totals[0], totals[1] / NANOS_PER_MILLI, totals[2]);
+         }
+      final double utilization = (wallTimeNanos > 0) ? 100.0 * busyNanos / ((double)wallTimeNanos * numThreads) : 0;
+      System.out.printf("   Wall time %.1f ms, %d threads, %.1f%% busy%n", wallTimeNanos / NANOS_PER_MILLI, numThreads, utilization);
+      }
+
+   private static void addToTotals(@NotNull final Map<String, long[]> totalsByKey, @NotNull final String key, final long durationNanos, final long size)
+      {
+      long[] totals = totalsByKey.get(key);
+      if (totals == null)
+         {
+         totals = new long[3];
+         totalsByKey.put(key, totals);
+         }
+      totals[0]++;
+      totals[1] += durationNanos;
+      totals[2] += size;
+      }
+   }
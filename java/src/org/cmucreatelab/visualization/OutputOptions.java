@@ -0,0 +1,125 @@
+package org.cmucreatelab.visualization;
+
+import org.cmucreatelab.store.TimeSeriesStore;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The options, common to the data processors, for what gets written and which records it's written for.  The defaults
+ * write the records of every time to the binary file, and nothing else.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class OutputOptions
+   {
+   @NotNull
+   private BinaryFormat binaryFormat = BinaryFormat.RECORDS;
+
+   @NotNull
+   private Resampler.Aggregation aggregation = Resampler.Aggregation.MEAN;
+
+   private boolean isPyramid = false;
+   private boolean isGrid = false;
+   private boolean isStore = false;
+   private boolean isZoneMap = false;
+
+   @Nullable
+   private Integer startTime = null;
+
+   @Nullable
+   private Integer endTime = null;
+
+   @NotNull
+   public BinaryFormat getBinaryFormat()
+      {
+      return binaryFormat;
+      }
+
+   public void setBinaryFormat(@NotNull final BinaryFormat binaryFormat)
+      {
+      this.binaryFormat = binaryFormat;
+      }
+
+   /** Returns how the records sharing a sample time are combined, when the binary format is {@link BinaryFormat#RESAMPLED}. */
+   @NotNull
+   public Resampler.Aggregation getAggregation()
+      {
+      return aggregation;
+      }
+
+   public void setAggregation(@NotNull final Resampler.Aggregation aggregation)
+      {
+      this.aggregation = aggregation;
+      }
+
+   /** Returns whether to also write the downsampled levels of a {@link DownsampledPyramid}. */
+   public boolean isPyramid()
+      {
+      return isPyramid;
+      }
+
+   public void setPyramid(final boolean isPyramid)
+      {
+      this.isPyramid = isPyramid;
+      }
+
+   /**
+    * Returns whether to also write the values as a frame-major grid, for devices laid out by row and column.  Only the
+    * Speck data processor writes grids.
+    */
+   public boolean isGrid()
+      {
+      return isGrid;
+      }
+
+   public void setGrid(final boolean isGrid)
+      {
+      this.isGrid = isGrid;
+      }
+
+   /** Returns whether to also write the records to a {@link TimeSeriesStore}. */
+   public boolean isStore()
+      {
+      return isStore;
+      }
+
+   public void setStore(final boolean isStore)
+      {
+      this.isStore = isStore;
+      }
+
+   /** Returns whether to also write a {@link ZoneMap} of the binary file. */
+   public boolean isZoneMap()
+      {
+      return isZoneMap;
+      }
+
+   public void setZoneMap(final boolean isZoneMap)
+      {
+      this.isZoneMap = isZoneMap;
+      }
+
+   /** Only records at or after this time (in epoch seconds) are processed, or all of them if <code>null</code>. */
+   @Nullable
+   public Integer getStartTime()
+      {
+      return startTime;
+      }
+
+   public void setStartTime(@Nullable final Integer startTime)
+      {
+      this.startTime = startTime;
+      }
+
+   /** Only records before this time (in epoch seconds) are processed, or all of them if <code>null</code>. */
+   @Nullable
+   public Integer getEndTime()
+      {
+      return endTime;
+      }
+
+   public void setEndTime(@Nullable final Integer endTime)
+      {
+      this.endTime = endTime;
+      }
+   }
@@ -0,0 +1,254 @@
+package org.cmucreatelab.visualization;
+
+import java.io.IOException;
+import org.apache.log4j.Logger;
+import org.cmucreatelab.io.BinaryRecordWriter;
+import org.cmucreatelab.io.JsonWriter;
+import org.cmucreatelab.util.TimeIntervals;
+import org.cmucreatelab.util.TimeSeriesBuffer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Resamples each device's records onto a fixed grid of the sample interval, so that the binary data file only needs
+ * to hold the values: the <code>i</code>th sample of a device is at <code>firstSampleTime + i * valueIntervalSecs</code>.
+ * Each record's time is snapped down to a multiple of the interval, the values of records which snap to the same time
+ * are combined by the {@link Aggregation}, and times with no records get the gap value, the minimum value of the
+ * sample type, which no reading ever takes.  Samples are big-endian ints or shorts, the same as the values in the
+ * records format.
+ * </p>
+ * <p>
+ * Since every interval between a device's first and last records takes a sample, one bad timestamp, e.g. a record at
+ * epoch 0 in a device from 2017, would make billions of gap samples.  A device spanning more than
+ * {@link #MAX_NUM_SAMPLES_PER_DEVICE} samples is therefore logged as an error and gets no samples at all.
+ * </p>
+ * <p>
+ * Usage is the same as the other generators: call {@link #handleBegin(String)}, then {@link #handleRecord(int, int)} for
+ * each record, then {@link #handleEnd(BinaryRecordWriter)} for each device.  A device's records are buffered until its
+ * end, since they may be out of order, but records with the same time keep the order they were handled in, so that
+ * {@link Aggregation#FIRST} and {@link Aggregation#LAST} really are the first and last.  The sample offset and count of
+ * the current device are available as soon as its last record has been handled.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class Resampler
+   {
+   private static final Logger LOG = Logger.getLogger(Resampler.class);
+
+   /** Enough for a year of one second samples, or many years at coarser intervals */
+   public static final int MAX_NUM_SAMPLES_PER_DEVICE = 32 * 1024 * 1024;
+
+   /** How the values of records which snap to the same sample time are combined. */
+   public static enum Aggregation
+      {
+      FIRST("first"),
+      LAST("last"),
+      MIN("min"),
+      MAX("max"),
+      MEAN("mean");
+
+      /** Returns the aggregation with the given name, or <code>null</code> if there's no such aggregation. */
+      @Nullable
+      public static Aggregation findByName(@Nullable final String name)
+         {
+         for (final Aggregation aggregation : values())
+            {
+            if (aggregation.name.equals(name))
+               {
+               return aggregation;
+               }
+            }
+         return null;
+         }
+
+      @NotNull
+      private final String name;
+
+      Aggregation(@NotNull final String name)
+         {
+         this.name = name;
+         }
+
+      @NotNull
+      public String getName()
+         {
+         return name;
+         }
+      }
+
+   private final int intervalSecs;
+   @NotNull
+   private final Aggregation aggregation;
+   private final int valueSizeInBytes;
+   private final int gapValue;
+
+   private long nextSampleOffset = 0;
+   private long sampleOffset = 0;
+   private String name = null;
+   @NotNull
+   private final TimeSeriesBuffer records = new TimeSeriesBuffer();
+   private int minTime = Integer.MAX_VALUE;
+   private int maxTime = Integer.MIN_VALUE;
+
+   /** Creates a resampler onto the given interval, writing samples of the given size in bytes, either 2 or 4. */
+   public Resampler(final int intervalSecs, @NotNull final Aggregation aggregation, final int valueSizeInBytes)
+      {
+      if (intervalSecs <= 0)
+         {
+         throw new IllegalArgumentException("The sample interval must be positive");
+         }
+      if (valueSizeInBytes != 2 && valueSizeInBytes != 4)
+         {
+         throw new IllegalArgumentException("The samples must be 2 or 4 bytes");
+         }
+      this.intervalSecs = intervalSecs;
+      this.aggregation = aggregation;
+      this.valueSizeInBytes = valueSizeInBytes;
+      gapValue = (valueSizeInBytes == 2) ? Short.MIN_VALUE : Integer.MIN_VALUE;
+      }
+
+   public void handleBegin(@NotNull final String name)
+      {
+      this.name = name;
+      sampleOffset = nextSampleOffset;
+      records.clear();
+      minTime = Integer.MAX_VALUE;
+      maxTime = Integer.MIN_VALUE;
+      }
+
+   public void handleRecord(final int epochTimeInSeconds, final int value)
+      {
+      records.add(epochTimeInSeconds, value);
+      minTime = Math.min(minTime, epochTimeInSeconds);
+      maxTime = Math.max(maxTime, epochTimeInSeconds);
+      }
+
+   /** Writes the current device's samples, one per interval from its first sample time to its last. */
+   public void handleEnd(@NotNull final BinaryRecordWriter writer) throws IOException
+      {
+      final int numSamples = getNumSamples();
+      nextSampleOffset += numSamples;
+      final int numRecords = records.size();
+      if (numRecords == 0)
+         {
+         return;
+         }
+      if (isTooLong())
+         {
+         LOG.error("Device [" + name + "] spans " + getSpanInSamples() + " samples, from " + minTime + " to " + maxTime + ", which is more than the maximum of " + MAX_NUM_SAMPLES_PER_DEVICE + ", so none of its samples are written.  Some of its times are probably wrong.");
+         return;
+         }
+      records.sortByTime();
+
+      long sampleTime = getFirstSampleTime();
+      int i = 0;
+      while (i < numRecords)
+         {
+         final long recordSampleTime = TimeIntervals.floor(records.getTime(i), intervalSecs);
+         while (sampleTime < recordSampleTime)
+            {
+            writeSample(writer, gapValue);
+            sampleTime += intervalSecs;
+            }
+
+         // combine the run of records which snap to this sample time
+         final int firstValue = records.getValue(i);
+         int lastValue = firstValue;
+         int minValue = firstValue;
+         int maxValue = firstValue;
+         long sum = 0;
+         int count = 0;
+         while (i < numRecords && TimeIntervals.floor(records.getTime(i), intervalSecs) == recordSampleTime)
+            {
+            lastValue = records.getValue(i);
+            minValue = Math.min(minValue, lastValue);
+            maxValue = Math.max(maxValue, lastValue);
+            sum += lastValue;
+            count++;
+            i++;
+            }
+         switch (aggregation)
+            {
+            case FIRST:
+               writeSample(writer, firstValue);
+               break;
+            case LAST:
+               writeSample(writer, lastValue);
+               break;
+            case MIN:
+               writeSample(writer, minValue);
+               break;
+            case MAX:
+               writeSample(writer, maxValue);
+               break;
+            default:
+               writeSample(writer, (int)Math.round((double)sum / count));
+            }
+         sampleTime += intervalSecs;
+         }
+      }
+
+   /** Returns the time of the current device's first sample, or 0 if it has no samples. */
+   public long getFirstSampleTime()
+      {
+      return (records.size() == 0 || isTooLong()) ? 0 : TimeIntervals.floor(minTime, intervalSecs);
+      }
+
+   /**
+    * Returns the number of samples of the current device, including the gaps between its records, or 0 if it has no
+    * records or spans too many samples.
+    */
+   public int getNumSamples()
+      {
+      return (records.size() == 0 || isTooLong()) ? 0 : (int)getSpanInSamples();
+      }
+
+   /**
+    * Describes the resampled format in the metadata header: the format name, the sample type and byte order, the
+    * aggregation and the gap value.
+    */
+   public void writeJson(@NotNull final JsonWriter json) throws IOException
+      {
+      json.name("binaryFormat").value(BinaryFormat.RESAMPLED.getName());
+      json.name("byteOrder").value("big-endian");
+      json.name("valueType").value((valueSizeInBytes == 2) ? "int16" : "int32");
+      json.name("aggregation").value(aggregation.getName());
+      json.name("gapValue").value(gapValue);
+      }
+
+   /**
+    * Writes the current device's first sample time, sample offset and sample count as the
+    * <code>"firstSampleTime"</code>, <code>"sampleOffset"</code> and <code>"numSamples"</code> members of the current
+    * device metadata JSON object.  The offset is in samples, not bytes.
+    */
+   public void writeDeviceJson(@NotNull final JsonWriter json) throws IOException
+      {
+      json.name("firstSampleTime").value(getFirstSampleTime());
+      json.name("sampleOffset").value(sampleOffset);
+      json.name("numSamples").value(getNumSamples());
+      }
+
+   private long getSpanInSamples()
+      {
+      return (TimeIntervals.floor(maxTime, intervalSecs) - TimeIntervals.floor(minTime, intervalSecs)) / intervalSecs + 1;
+      }
+
+   private boolean isTooLong()
+      {
+      return getSpanInSamples() > MAX_NUM_SAMPLES_PER_DEVICE;
+      }
+
+   private void writeSample(@NotNull final BinaryRecordWriter writer, final int value) throws IOException
+      {
+      if (valueSizeInBytes == 2)
+         {
+         writer.writeShort((short)value);
+         }
+      else
+         {
+         writer.writeInt(value);
+         }
+      }
+   }
@@ -0,0 +1,422 @@
+package org.cmucreatelab.visualization;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * An immutable k-d tree over items located by latitude and longitude (in degrees), for finding the items within a
+ * bounding box, or the items nearest to a point by great-circle distance.  The tree is implicit: the items and their
+ * coordinates are held in primitive arrays, ordered so that each node is the median of its index range, and each node
+ * also holds the bounding box of its subtree, which lets searches skip whole subtrees.  Each node splits its range on
+ * whichever of latitude or longitude is more spread out.
+ * </p>
+ * <p>
+ * Instances are thread safe, since they are never modified after construction.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class SpatialIndex<T>
+   {
+   /** The mean radius of the Earth */
+   public static final double EARTH_RADIUS_IN_METERS = 6371008.8;
+
+   /** Deep enough for any tree of up to 2^31 items, since each level of the tree pushes at most two ranges */
+   private static final int MAX_STACK_SIZE = 4 * 34;
+
+   /**
+    * Returns the great-circle distance, in meters, between the two points, computed with the haversine formula.
+    */
+   public static double distanceInMeters(final double latitude1, final double longitude1, final double latitude2, final double longitude2)
+      {
+      final double latitude1Radians = Math.toRadians(latitude1);
+      final double latitude2Radians = Math.toRadians(latitude2);
+      return EARTH_RADIUS_IN_METERS * centralAngle(latitude1Radians, Math.cos(latitude1Radians), Math.toRadians(longitude1),
+                                                   latitude2Radians, Math.cos(latitude2Radians), Math.toRadians(longitude2));
+      }
+
+   /** Returns the central angle between two points, in radians, given their coordinates in radians and the cosines of their latitudes. */
+   private static double centralAngle(final double latitude1,
+                                      final double cosLatitude1,
+                                      final double longitude1,
+                                      final double latitude2,
+                                      final double cosLatitude2,
+                                      final double longitude2)
+      {
+      final double sinHalfLatitudeDelta = Math.sin((latitude2 - latitude1) / 2);
+      final double sinHalfLongitudeDelta = Math.sin((longitude2 - longitude1) / 2);
+      final double a = sinHalfLatitudeDelta * sinHalfLatitudeDelta + cosLatitude1 * cosLatitude2 * sinHalfLongitudeDelta * sinHalfLongitudeDelta;
+      return 2 * Math.asin(Math.min(1, Math.sqrt(a)));
+      }
+
+   @NotNull
+   private final Object[] items;
+   @NotNull
+   private final double[] latitudes;
+   @NotNull
+   private final double[] longitudes;
+
+   /** The coordinates in radians, and the cosines of the latitudes, for computing distances, filled in after building */
+   @NotNull
+   private final double[] latitudesInRadians;
+   @NotNull
+   private final double[] longitudesInRadians;
+   @NotNull
+   private final double[] cosLatitudes;
+
+   /** The bounding box of each node's subtree, indexed by the node's position */
+   @NotNull
+   private final double[] minLatitudes;
+   @NotNull
+   private final double[] maxLatitudes;
+   @NotNull
+   private final double[] minLongitudes;
+   @NotNull
+   private final double[] maxLongitudes;
+
+   /**
+    * Builds the index over the given items, whose coordinates are given in the same order.  The lists and arrays are
+    * copied, so the caller may reuse them.
+    */
+   public SpatialIndex(@NotNull final List<T> items, @NotNull final double[] latitudes, @NotNull final double[] longitudes)
+      {
+      final int numItems = items.size();
+      if (latitudes.length < numItems || longitudes.length < numItems)
+         {
+         throw new IllegalArgumentException("There must be a latitude and longitude for each item");
+         }
+      this.items = items.toArray();
+      this.latitudes = new double[numItems];
+      this.longitudes = new double[numItems];
+      System.arraycopy(latitudes, 0, this.latitudes, 0, numItems);
+      System.arraycopy(longitudes, 0, this.longitudes, 0, numItems);
+      minLatitudes = new double[numItems];
+      maxLatitudes = new double[numItems];
+      minLongitudes = new double[numItems];
+      maxLongitudes = new double[numItems];
+      build(0, numItems);
+
+      latitudesInRadians = new double[numItems];
+      longitudesInRadians = new double[numItems];
+      cosLatitudes = new double[numItems];
+      for (int i = 0; i < numItems; i++)
+         {
+         latitudesInRadians[i] = Math.toRadians(this.latitudes[i]);
+         longitudesInRadians[i] = Math.toRadians(this.longitudes[i]);
+         cosLatitudes[i] = Math.cos(latitudesInRadians[i]);
+         }
+      }
+
+   public int size()
+      {
+      return items.length;
+      }
+
+   /**
+    * Returns the items within the given bounding box, edges included, in no particular order.  If the minimum
+    * longitude is greater than the maximum, the box is taken to cross the antimeridian.
+    */
+   @NotNull
+   public List<T> findWithin(final double minLatitude, final double minLongitude, final double maxLatitude, final double maxLongitude)
+      {
+      final boolean crossesAntimeridian = minLongitude > maxLongitude;
+      final List<T> found = new ArrayList<T>();
+      final int[] stack = new int[MAX_STACK_SIZE];
+      int stackSize = 0;
+      if (items.length > 0)
+         {
+         stack[stackSize++] = 0;
+         stack[stackSize++] = items.length;
+         }
+      while (stackSize > 0)
+         {
+         final int hi = stack[--stackSize];
+         final int lo = stack[--stackSize];
+         final int node = (lo + hi) >>> 1;
+         if (maxLatitudes[node] < minLatitude || minLatitudes[node] > maxLatitude ||
+             !isLongitudeRangeOverlapping(minLongitudes[node], maxLongitudes[node], minLongitude, maxLongitude, crossesAntimeridian))
+            {
+            continue;
+            }
+
+         if (minLatitudes[node] >= minLatitude && maxLatitudes[node] <= maxLatitude &&
+             isLongitudeRangeContained(minLongitudes[node], maxLongitudes[node], minLongitude, maxLongitude, crossesAntimeridian))
+            {
+            // the whole subtree is inside the box
+            for (int i = lo; i < hi; i++)
+               {
+               found.add(getItem(i));
+               }
+            continue;
+            }
+
+         if (latitudes[node] >= minLatitude && latitudes[node] <= maxLatitude &&
+             isLongitudeRangeContained(longitudes[node], longitudes[node], minLongitude, maxLongitude, crossesAntimeridian))
+            {
+            found.add(getItem(node));
+            }
+         if (node > lo)
+            {
+            stack[stackSize++] = lo;
+            stack[stackSize++] = node;
+            }
+         if (hi > node + 1)
+            {
+            stack[stackSize++] = node + 1;
+            stack[stackSize++] = hi;
+            }
+         }
+      return found;
+      }
+
+   /** Returns up to <code>k</code> items nearest to the given point, nearest first. */
+   @NotNull
+   public List<T> findNearest(final double latitude, final double longitude, final int k)
+      {
+      return findNearest(latitude, longitude, k, Double.POSITIVE_INFINITY);
+      }
+
+   /**
+    * Returns up to <code>k</code> items nearest to the given point, nearest first, ignoring any further away than the
+    * given great-circle distance.
+    */
+   @NotNull
+   public List<T> findNearest(final double latitude, final double longitude, final int k, final double maxDistanceInMeters)
+      {
+      final int maxNumFound = Math.min(k, items.length);
+      final int[] foundPositions = new int[Math.max(0, maxNumFound)];
+      final double[] foundAngles = new double[foundPositions.length];
+      int numFound = 0;
+
+      final double latitudeRadians = Math.toRadians(latitude);
+      final double longitudeRadians = Math.toRadians(longitude);
+      final double cosLatitude = Math.cos(latitudeRadians);
+      final double maxAngle = maxDistanceInMeters / EARTH_RADIUS_IN_METERS;
+      final int[] stack = new int[MAX_STACK_SIZE];
+      int stackSize = 0;
+      if (maxNumFound > 0)
+         {
+         stack[stackSize++] = 0;
+         stack[stackSize++] = items.length;
+         }
+      while (stackSize > 0)
+         {
+         final int hi = stack[--stackSize];
+         final int lo = stack[--stackSize];
+         final int node = (lo + hi) >>> 1;
+         final double worstAngle = (numFound == maxNumFound) ? foundAngles[numFound - 1] : maxAngle;
+         if (minAngleToBox(latitudeRadians, cosLatitude, longitudeRadians, node) > worstAngle)
+            {
+            continue;
+            }
+
+         final double angle = centralAngle(latitudeRadians, cosLatitude, longitudeRadians, latitudesInRadians[node], cosLatitudes[node], longitudesInRadians[node]);
+         if (angle <= worstAngle)
+            {
+            // insertion sort, since k is small
+            int i = (numFound == maxNumFound) ? numFound - 1 : numFound++;
+            while (i > 0 && foundAngles[i - 1] > angle)
+               {
+               foundAngles[i] = foundAngles[i - 1];
+               foundPositions[i] = foundPositions[i - 1];
+               i--;
+               }
+            foundAngles[i] = angle;
+            foundPositions[i] = node;
+            }
+
+         // push the further child first, so that the nearer one is searched first and tightens the bound sooner
+         final boolean hasLeft = node > lo;
+         final boolean hasRight = hi > node + 1;
+         if (hasLeft && hasRight)
+            {
+            final double leftAngle = minAngleToBox(latitudeRadians, cosLatitude, longitudeRadians, (lo + node) >>> 1);
+            final double rightAngle = minAngleToBox(latitudeRadians, cosLatitude, longitudeRadians, (node + 1 + hi) >>> 1);
+            if (leftAngle < rightAngle)
+               {
+               stack[stackSize++] = node + 1;
+               stack[stackSize++] = hi;
+               stack[stackSize++] = lo;
+               stack[stackSize++] = node;
+               }
+            else
+               {
+               stack[stackSize++] = lo;
+               stack[stackSize++] = node;
+               stack[stackSize++] = node + 1;
+               stack[stackSize++] = hi;
+               }
+            }
+         else if (hasLeft)
+            {
+            stack[stackSize++] = lo;
+            stack[stackSize++] = node;
+            }
+         else if (hasRight)
+            {
+            stack[stackSize++] = node + 1;
+            stack[stackSize++] = hi;
+            }
+         }
+
+      final List<T> found = new ArrayList<T>(numFound);
+      for (int i = 0; i < numFound; i++)
+         {
+         found.add(getItem(foundPositions[i]));
+         }
+      return found;
+      }
+
+   @SuppressWarnings("unchecked")
+   private T getItem(final int position)
+      {
+      return (T)items[position];
+      }
+
+   /** Arranges the range so that its median, on the axis with the greater spread, is at its middle, and recurses. */
+   private void build(final int lo, final int hi)
+      {
+      if (lo >= hi)
+         {
+         return;
+         }
+      double minLatitude = Double.POSITIVE_INFINITY;
+      double maxLatitude = Double.NEGATIVE_INFINITY;
+      double minLongitude = Double.POSITIVE_INFINITY;
+      double maxLongitude = Double.NEGATIVE_INFINITY;
+      for (int i = lo; i < hi; i++)
+         {
+         minLatitude = Math.min(minLatitude, latitudes[i]);
+         maxLatitude = Math.max(maxLatitude, latitudes[i]);
+         minLongitude = Math.min(minLongitude, longitudes[i]);
+         maxLongitude = Math.max(maxLongitude, longitudes[i]);
+         }
+      final int node = (lo + hi) >>> 1;
+      select(lo, hi - 1, node, (maxLatitude - minLatitude >= maxLongitude - minLongitude) ? latitudes : longitudes);
+      minLatitudes[node] = minLatitude;
+      maxLatitudes[node] = maxLatitude;
+      minLongitudes[node] = minLongitude;
+      maxLongitudes[node] = maxLongitude;
+      build(lo, node);
+      build(node + 1, hi);
+      }
+
+   /** Quickselect: partially sorts [left, right] by the given keys so that position k holds the k-th smallest. */
+   private void select(int left, int right, final int k, @NotNull final double[] keys)
+      {
+      while (right > left)
+         {
+         final double pivot = keys[(left + right) >>> 1];
+         int i = left;
+         int j = right;
+         while (i <= j)
+            {
+            while (keys[i] < pivot)
+               {
+               i++;
+               }
+            while (keys[j] > pivot)
+               {
+               j--;
+               }
+            if (i <= j)
+               {
+               swap(i++, j--);
+               }
+            }
+         if (k <= j)
+            {
+            right = j;
+            }
+         else if (k >= i)
+            {
+            left = i;
+            }
+         else
+            {
+            return;
+            }
+         }
+      }
+
+   private void swap(final int i, final int j)
+      {
+      final Object item = items[i];
+      items[i] = items[j];
+      items[j] = item;
+      final double latitude = latitudes[i];
+      latitudes[i] = latitudes[j];
+      latitudes[j] = latitude;
+      final double longitude = longitudes[i];
+      longitudes[i] = longitudes[j];
+      longitudes[j] = longitude;
+      }
+
+   /**
+    * Returns a lower bound on the central angle between the given point (in radians) and any point in the bounding box
+    * of the given node's subtree.  It's exact for boxes narrower than 180 degrees of longitude.
+    */
+   private double minAngleToBox(final double latitude, final double cosLatitude, final double longitude, final int node)
+      {
+      final double minLatitude = Math.toRadians(minLatitudes[node]);
+      final double maxLatitude = Math.toRadians(maxLatitudes[node]);
+      final double minLongitude = Math.toRadians(minLongitudes[node]);
+      final double maxLongitude = Math.toRadians(maxLongitudes[node]);
+
+      if (normalizeAngle(longitude - minLongitude) <= maxLongitude - minLongitude)
+         {
+         // the nearest point is straight north or south
+         return Math.max(0, Math.max(minLatitude - latitude, latitude - maxLatitude));
+         }
+
+      // otherwise it's on the nearer of the two edge meridians, going whichever way around is shorter
+      final double toMinEdge = normalizeAngle(minLongitude - longitude);
+      final double toMaxEdge = normalizeAngle(longitude - maxLongitude);
+      final double edgeLongitude = (toMinEdge <= toMaxEdge) ? minLongitude : maxLongitude;
+      final double cosLongitudeDelta = Math.cos(Math.min(toMinEdge, toMaxEdge));
+      if (cosLongitudeDelta > 0)
+         {
+         // the distance along the meridian is smallest at its foot, and grows away from it
+         final double footLatitude = Math.atan(Math.tan(latitude) / cosLongitudeDelta);
+         final double nearestLatitude = Math.max(minLatitude, Math.min(maxLatitude, footLatitude));
+         return centralAngle(latitude, cosLatitude, longitude, nearestLatitude, Math.cos(nearestLatitude), edgeLongitude);
+         }
+      return Math.min(centralAngle(latitude, cosLatitude, longitude, minLatitude, Math.cos(minLatitude), edgeLongitude),
+                      centralAngle(latitude, cosLatitude, longitude, maxLatitude, Math.cos(maxLatitude), edgeLongitude));
+      }
+
+   /** Returns the given angle, in radians, moved into [0, 2 pi). */
+   private static double normalizeAngle(final double angle)
+      {
+      final double normalized = angle % (2 * Math.PI);
+      return (normalized < 0) ? normalized + 2 * Math.PI : normalized;
+      }
+
+   private static boolean isLongitudeRangeOverlapping(final double rangeMin,
+                                                      final double rangeMax,
+                                                      final double minLongitude,
+                                                      final double maxLongitude,
+                                                      final boolean crossesAntimeridian)
+      {
+      if (crossesAntimeridian)
+         {
+         return rangeMax >= minLongitude || rangeMin <= maxLongitude;
+         }
+      return rangeMax >= minLongitude && rangeMin <= maxLongitude;
+      }
+
+   private static boolean isLongitudeRangeContained(final double rangeMin,
+                                                    final double rangeMax,
+                                                    final double minLongitude,
+                                                    final double maxLongitude,
+                                                    final boolean crossesAntimeridian)
+      {
+      if (crossesAntimeridian)
+         {
+         return rangeMin >= minLongitude || rangeMax <= maxLongitude;
+         }
+      return rangeMin >= minLongitude && rangeMax <= maxLongitude;
+      }
+   }
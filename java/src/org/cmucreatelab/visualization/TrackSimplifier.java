@@ -0,0 +1,116 @@
+package org.cmucreatelab.visualization;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Simplifies polylines with the Douglas-Peucker algorithm, which keeps the end points and recursively keeps the point
+ * furthest from the line between the points kept so far, until no point is further away than the tolerance.  An
+ * explicit stack is used instead of recursion, so that long tracks can't overflow the call stack.
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class TrackSimplifier
+   {
+   /**
+    * Simplifies the polyline made of the points whose indices are given (in order), and returns the indices of the
+    * points to keep, in order.  The coordinates are planar, and the tolerance is in the same units.
+    */
+   @NotNull
+   public static int[] simplify(@NotNull final double[] x, @NotNull final double[] y, @NotNull final int[] indices, final double tolerance)
+      {
+      final int numPoints = indices.length;
+      if (numPoints <= 2)
+         {
+         return indices.clone();
+         }
+
+      final boolean[] isKept = new boolean[numPoints];
+      isKept[0] = true;
+      isKept[numPoints - 1] = true;
+      int numKept = 2;
+
+      // each pair on the stack is the first and last position (in indices) of a span still to be simplified
+      final int[] stack = new int[2 * numPoints];
+      int stackSize = 0;
+      stack[stackSize++] = 0;
+      stack[stackSize++] = numPoints - 1;
+      final double squaredTolerance = tolerance * tolerance;
+      while (stackSize > 0)
+         {
+         final int last = stack[--stackSize];
+         final int first = stack[--stackSize];
+
+         int furthest = -1;
+         double maxSquaredDistance = squaredTolerance;
+         for (int i = first + 1; i < last; i++)
+            {
+            final double squaredDistance = squaredDistanceToSegment(x, y, indices[i], indices[first], indices[last]);
+            if (squaredDistance > maxSquaredDistance)
+               {
+               maxSquaredDistance = squaredDistance;
+               furthest = i;
+               }
+            }
+
+         if (furthest >= 0)
+            {
+            isKept[furthest] = true;
+            numKept++;
+            if (furthest - first > 1)
+               {
+               stack[stackSize++] = first;
+               stack[stackSize++] = furthest;
+               }
+            if (last - furthest > 1)
+               {
+               stack[stackSize++] = furthest;
+               stack[stackSize++] = last;
+               }
+            }
+         }
+
+      final int[] keptIndices = new int[numKept];
+      int j = 0;
+      for (int i = 0; i < numPoints; i++)
+         {
+         if (isKept[i])
+            {
+            keptIndices[j++] = indices[i];
+            }
+         }
+      return keptIndices;
+      }
+
+   /** Returns the indices 0 to n - 1, for simplifying a whole polyline. */
+   @NotNull
+   public static int[] allIndices(final int n)
+      {
+      final int[] indices = new int[n];
+      for (int i = 0; i < n; i++)
+         {
+         indices[i] = i;
+         }
+      return indices;
+      }
+
+   private static double squaredDistanceToSegment(@NotNull final double[] x, @NotNull final double[] y, final int point, final int start, final int end)
+      {
+      final double dx = x[end] - x[start];
+      final double dy = y[end] - y[start];
+      final double squaredLength = dx * dx + dy * dy;
+      double t = 0;
+      if (squaredLength > 0)
+         {
+         t = ((x[point] - x[start]) * dx + (y[point] - y[start]) * dy) / squaredLength;
+         t = Math.max(0, Math.min(1, t));
+         }
+      final double px = x[start] + t * dx - x[point];
+      final double py = y[start] + t * dy - y[point];
+      return px * px + py * py;
+      }
+
+   private TrackSimplifier()
+      {
+      // private to prevent instantiation
+      }
+   }
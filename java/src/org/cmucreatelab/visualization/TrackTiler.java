@@ -0,0 +1,270 @@
+package org.cmucreatelab.visualization;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.log4j.Logger;
+import org.cmucreatelab.io.JsonWriter;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * Simplifies GPS tracks for each zoom level of a slippy map (the Web Mercator tiling used by Google Maps, OpenStreetMap,
+ * etc.) and buckets the remaining points into that zoom level's tiles, so that a map viewer only needs to fetch the
+ * tiles on screen, each holding no more detail than can be seen at that zoom.  Tracks are simplified with
+ * {@link TrackSimplifier} in projected coordinates, with a tolerance given in screen pixels, so the tolerance in
+ * meters halves with each zoom level.  Each zoom level is simplified from the next finer one, so the points kept at a
+ * zoom level are also kept at all finer ones.
+ * </p>
+ * <p>
+ * Tiles are written to <code>&lt;z&gt;/&lt;x&gt;/&lt;y&gt;.bin</code> in the output directory, each holding one
+ * big-endian record after another: the time (int, epoch seconds), latitude, longitude and value (floats), the index
+ * of the device in the index file's device list (int), and the index of the point in the device's simplified track
+ * at that zoom level (int).  Records are ordered by device and then point, and a tile also gets the points just before
+ * and after each of its points, so that the lines leaving the tile can be drawn.  A polyline thus continues for as
+ * long as the device is the same and the point index goes up by one.  The index file, <code>tiles.json</code>, lists
+ * the devices and, for each zoom level, the tiles and their record counts.
+ * </p>
+ * <p>
+ * The tiles are built in memory and written by {@link #finish()}.  {@link #simplify} is thread safe, but
+ * {@link #addTrack} must be called from a single thread.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class TrackTiler
+   {
+   private static final Logger LOG = Logger.getLogger(TrackTiler.class);
+
+   public static final String INDEX_FILENAME = "tiles.json";
+   public static final int TILE_SIZE_IN_PIXELS = 256;
+   public static final int RECORD_SIZE_IN_BYTES = 24;
+   public static final int MAX_ZOOM = 24;
+   public static final double DEFAULT_TOLERANCE_IN_PIXELS = 1.0;
+
+   /** The latitude at which the Web Mercator projection becomes square */
+   private static final double MAX_LATITUDE = 85.0511287798;
+
+   /** A track's points projected into world coordinates, and the indices of the points kept at each zoom level. */
+   public static final class SimplifiedTrack
+      {
+      @NotNull
+      private final double[] x;
+      @NotNull
+      private final double[] y;
+      @NotNull
+      private final int[][] keptIndices;
+
+      private SimplifiedTrack(@NotNull final double[] x, @NotNull final double[] y, @NotNull final int[][] keptIndices)
+         {
+         this.x = x;
+         this.y = y;
+         this.keptIndices = keptIndices;
+         }
+      }
+
+   @NotNull
+   private final File outputDirectory;
+   private final int minZoom;
+   private final int maxZoom;
+   private final double toleranceInPixels;
+   @NotNull
+   private final List<String> deviceNames = new ArrayList<String>();
+
+   /** The tiles of each zoom level, keyed by x in the high 32 bits and y in the low 32 bits so that they sort by x then y */
+   @NotNull
+   private final List<Map<Long, ByteBuffer>> tilesByZoom = new ArrayList<Map<Long, ByteBuffer>>();
+   @NotNull
+   private final long[] numPointsByZoom;
+
+   public TrackTiler(@NotNull final File outputDirectory, final int minZoom, final int maxZoom, final double toleranceInPixels)
+      {
+      if (minZoom < 0 || maxZoom > MAX_ZOOM || minZoom > maxZoom)
+         {
+         throw new IllegalArgumentException("Zoom levels must be within [0, " + MAX_ZOOM + "], with the minimum no greater than the maximum");
+         }
+      this.outputDirectory = outputDirectory;
+      this.minZoom = minZoom;
+      this.maxZoom = maxZoom;
+      this.toleranceInPixels = toleranceInPixels;
+      for (int zoom = minZoom; zoom <= maxZoom; zoom++)
+         {
+         tilesByZoom.add(new TreeMap<Long, ByteBuffer>());
+         }
+      numPointsByZoom = new long[maxZoom - minZoom + 1];
+      }
+
+   /** Projects and simplifies the given track for every zoom level.  This is the slow part, so it may be called in parallel. */
+   @NotNull
+   public SimplifiedTrack simplify(@NotNull final float[] latitudes, @NotNull final float[] longitudes, final int numPoints)
+      {
+      final double[] x = new double[numPoints];
+      final double[] y = new double[numPoints];
+      for (int i = 0; i < numPoints; i++)
+         {
+         x[i] = (longitudes[i] + 180.0) / 360.0;
+         final double latitude = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitudes[i])));
+         y[i] = (1.0 - Math.log(Math.tan(latitude) + 1.0 / Math.cos(latitude)) / Math.PI) / 2.0;
+         }
+
+      final int[][] keptIndices = new int[maxZoom - minZoom + 1][];
+      int[] indices = TrackSimplifier.allIndices(numPoints);
+      for (int zoom = maxZoom; zoom >= minZoom; zoom--)
+         {
+         final double tolerance = toleranceInPixels / ((double)TILE_SIZE_IN_PIXELS * (1L << zoom));
+         indices = TrackSimplifier.simplify(x, y, indices, tolerance);
+         keptIndices[zoom - minZoom] = indices;
+         }
+      return new SimplifiedTrack(x, y, keptIndices);
+      }
+
+   /** Adds the simplified track of the named device to the tiles of every zoom level. */
+   public void addTrack(@NotNull final String deviceName,
+                        @NotNull final int[] times,
+                        @NotNull final float[] latitudes,
+                        @NotNull final float[] longitudes,
+                        @NotNull final float[] values,
+                        @NotNull final SimplifiedTrack track)
+      {
+      final int deviceIndex = deviceNames.size();
+      deviceNames.add(deviceName);
+      for (int zoom = minZoom; zoom <= maxZoom; zoom++)
+         {
+         final int[] indices = track.keptIndices[zoom - minZoom];
+         final Map<Long, ByteBuffer> tiles = tilesByZoom.get(zoom - minZoom);
+         numPointsByZoom[zoom - minZoom] += indices.length;
+
+         final long numTiles = 1L << zoom;
+         final long[] tileKeys = new long[indices.length];
+         for (int k = 0; k < indices.length; k++)
+            {
+            final long tileX = Math.max(0, Math.min(numTiles - 1, (long)(track.x[indices[k]] * numTiles)));
+            final long tileY = Math.max(0, Math.min(numTiles - 1, (long)(track.y[indices[k]] * numTiles)));
+            tileKeys[k] = (tileX << 32) | tileY;
+            }
+
+         for (int k = 0; k < indices.length; k++)
+            {
+            // the point goes in its own tile and in those of its neighbours, each tile only once
+            final long key = tileKeys[k];
+            final long previousKey = (k > 0) ? tileKeys[k - 1] : key;
+            final long nextKey = (k + 1 < indices.length) ? tileKeys[k + 1] : key;
+            final int i = indices[k];
+            addRecord(tiles, key, times[i], latitudes[i], longitudes[i], values[i], deviceIndex, k);
+            if (previousKey != key)
+               {
+               addRecord(tiles, previousKey, times[i], latitudes[i], longitudes[i], values[i], deviceIndex, k);
+               }
+            if (nextKey != key && nextKey != previousKey)
+               {
+               addRecord(tiles, nextKey, times[i], latitudes[i], longitudes[i], values[i], deviceIndex, k);
+               }
+            }
+         }
+      }
+
+   private static void addRecord(@NotNull final Map<Long, ByteBuffer> tiles,
+                                 final long key,
+                                 final int time,
+                                 final float latitude,
+                                 final float longitude,
+                                 final float value,
+                                 final int deviceIndex,
+                                 final int pointIndex)
+      {
+      ByteBuffer tile = tiles.get(key);
+      if (tile == null)
+         {
+         tile = ByteBuffer.allocate(16 * RECORD_SIZE_IN_BYTES);
+         tiles.put(key, tile);
+         }
+      else if (tile.remaining() < RECORD_SIZE_IN_BYTES)
+         {
+         final ByteBuffer biggerTile = ByteBuffer.allocate(tile.capacity() * 2);
+         tile.flip();
+         biggerTile.put(tile);
+         tile = biggerTile;
+         tiles.put(key, tile);
+         }
+      tile.putInt(time);
+      tile.putFloat(latitude);
+      tile.putFloat(longitude);
+      tile.putFloat(value);
+      tile.putInt(deviceIndex);
+      tile.putInt(pointIndex);
+      }
+
+   /** Writes the tiles and the index file. */
+   public void finish() throws IOException
+      {
+      //noinspection ResultOfMethodCallIgnored
+      outputDirectory.mkdirs();
+      final JsonWriter json = JsonWriter.create(new File(outputDirectory, INDEX_FILENAME));
+      try
+         {
+         json.beginObject();
+         json.name("tileSizeInPixels").value(TILE_SIZE_IN_PIXELS);
+         json.name("recordSizeInBytes").value(RECORD_SIZE_IN_BYTES);
+         json.name("toleranceInPixels").value(toleranceInPixels);
+         json.name("minZoom").value(minZoom);
+         json.name("maxZoom").value(maxZoom);
+         json.name("devices").beginArray();
+         for (final String deviceName : deviceNames)
+            {
+            json.value(deviceName);
+            }
+         json.endArray();
+         json.name("zoomLevels").beginArray();
+         long numTilesWritten = 0;
+         for (int zoom = minZoom; zoom <= maxZoom; zoom++)
+            {
+            final Map<Long, ByteBuffer> tiles = tilesByZoom.get(zoom - minZoom);
+            json.newline().beginObject();
+            json.name("zoom").value(zoom);
+            json.name("numPoints").value(numPointsByZoom[zoom - minZoom]);
+            json.name("tiles").beginArray();
+            for (final Map.Entry<Long, ByteBuffer> entry : tiles.entrySet())
+               {
+               final long tileX = entry.getKey() >>> 32;
+               final long tileY = entry.getKey() & 0xffffffffL;
+               final ByteBuffer tile = entry.getValue();
+               writeTile(new File(outputDirectory, zoom + File.separator + tileX + File.separator + tileY + ".bin"), tile);
+               json.beginArray().value(tileX).value(tileY).value(tile.position() / RECORD_SIZE_IN_BYTES).endArray();
+               numTilesWritten++;
+               }
+            json.endArray();
+            json.endObject();
+
+            // let the tiles of this zoom level be garbage collected
+            tiles.clear();
+            }
+         json.newline().endArray().endObject().newline();
+         LOG.debug("Wrote " + numTilesWritten + " tiles to [" + outputDirectory + "]");
+         }
+      finally
+         {
+         json.close();
+         }
+      }
+
+   private static void writeTile(@NotNull final File file, @NotNull final ByteBuffer tile) throws IOException
+      {
+      //noinspection ResultOfMethodCallIgnored
+      file.getParentFile().mkdirs();
+      final OutputStream outputStream = new FileOutputStream(file);
+      try
+         {
+         outputStream.write(tile.array(), 0, tile.position());
+         }
+      finally
+         {
+         outputStream.close();
+         }
+      }
+   }
@@ -0,0 +1,213 @@
+package org.cmucreatelab.visualization;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.cmucreatelab.io.JsonWriter;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * Writes a zone map of the binary data file: each device's records are divided into fixed-size blocks, and each block
+ * is summarized by a zone holding the minimum and maximum times and values of its records, and the number of records.
+ * A reader can then skip the blocks which can't hold any record of interest, e.g. those outside a time range, or whose
+ * values never exceed a threshold, without reading them.  A block never spans devices, so only each device's last
+ * block can be partial.  For time-ordered records, the minimum and maximum times are a block's first and last times.
+ * </p>
+ * <p>
+ * The zone map file is big-endian, like the data file.  It starts with a header of {@link #HEADER_SIZE_IN_BYTES}
+ * bytes: a magic number, the version, the block size in records, the record and value sizes in bytes, the number of
+ * zones and the number of devices (all ints).  Then come the zones, each {@link #ZONE_SIZE_IN_BYTES} bytes: the
+ * minimum time, the maximum time, the minimum value, the maximum value and the number of records (all ints, with the
+ * values in the same units as the data file).  Last is the device table, in the same order as the data file, giving
+ * each device's name (modified UTF-8, as written by {@link DataOutputStream#writeUTF(String)}), the index of its first
+ * record (long), its number of records (int) and the index of its first zone (int).  The device's zone offset and count
+ * are also written to the metadata, so a browser doesn't need the device table.
+ * </p>
+ * <p>
+ * Usage is the same as the other generators: call {@link #handleBegin(String)}, then
+ * {@link #handleRecord(int, int)} for each record, in the same order as they're written to the data file, then
+ * {@link #handleEnd()} for each device, and finally {@link #finish()}.  The zones are small, at most one per
+ * {@link #DEFAULT_BLOCK_SIZE_IN_RECORDS} records, so they're kept in memory until then.  The zone offset and count of
+ * the current device are available as soon as its last record has been handled.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class ZoneMap
+   {
+   public static final int DEFAULT_BLOCK_SIZE_IN_RECORDS = 256;
+   public static final int HEADER_SIZE_IN_BYTES = 28;
+   public static final int ZONE_SIZE_IN_BYTES = 20;
+
+   static final int MAGIC_NUMBER = 0x5A4D4150;  // "ZMAP"
+   static final int VERSION = 1;
+
+   /** The number of ints in a zone, and the index of each within it */
+   static final int ZONE_SIZE_IN_INTS = 5;
+   static final int MIN_TIME = 0;
+   static final int MAX_TIME = 1;
+   static final int MIN_VALUE = 2;
+   static final int MAX_VALUE = 3;
+   static final int COUNT = 4;
+
+   private static final int INITIAL_CAPACITY_IN_ZONES = 1024;
+
+   private static final class Device
+      {
+      @NotNull
+      private final String name;
+      private final long recordOffset;
+      private final int numRecords;
+      private final int zoneOffset;
+
+      private Device(@NotNull final String name, final long recordOffset, final int numRecords, final int zoneOffset)
+         {
+         this.name = name;
+         this.recordOffset = recordOffset;
+         this.numRecords = numRecords;
+         this.zoneOffset = zoneOffset;
+         }
+      }
+
+   @NotNull
+   private final File outputFile;
+   private final int blockSizeInRecords;
+   private final int recordSizeInBytes;
+   private final int valueSizeInBytes;
+
+   @NotNull
+   private final List<Device> devices = new ArrayList<Device>();
+   private int[] zones = new int[INITIAL_CAPACITY_IN_ZONES * ZONE_SIZE_IN_INTS];
+   private int numZones = 0;
+   private long nextRecordOffset = 0;
+
+   private String name = null;
+   private int deviceZoneOffset = 0;
+   private int numRecords = 0;
+
+   /**
+    * Creates a zone map of a data file whose records are the given size, ending with a value of the given size, e.g.
+    * 8 and 4 for an int time and an int value.
+    */
+   public ZoneMap(@NotNull final File outputFile, final int blockSizeInRecords, final int recordSizeInBytes, final int valueSizeInBytes)
+      {
+      if (blockSizeInRecords <= 0)
+         {
+         throw new IllegalArgumentException("The block size must be positive");
+         }
+      this.outputFile = outputFile;
+      this.blockSizeInRecords = blockSizeInRecords;
+      this.recordSizeInBytes = recordSizeInBytes;
+      this.valueSizeInBytes = valueSizeInBytes;
+      }
+
+   @NotNull
+   public File getOutputFile()
+      {
+      return outputFile;
+      }
+
+   public void handleBegin(@NotNull final String name)
+      {
+      this.name = name;
+      deviceZoneOffset = numZones;
+      numRecords = 0;
+      }
+
+   public void handleRecord(final int epochTimeInSeconds, final int value)
+      {
+      final int zone;
+      if (numRecords % blockSizeInRecords == 0)
+         {
+         if ((numZones + 1) * ZONE_SIZE_IN_INTS > zones.length)
+            {
+            zones = Arrays.copyOf(zones, zones.length * 2);
+            }
+         zone = numZones * ZONE_SIZE_IN_INTS;
+         zones[zone + MIN_TIME] = epochTimeInSeconds;
+         zones[zone + MAX_TIME] = epochTimeInSeconds;
+         zones[zone + MIN_VALUE] = value;
+         zones[zone + MAX_VALUE] = value;
+         zones[zone + COUNT] = 0;
+         numZones++;
+         }
+      else
+         {
+         zone = (numZones - 1) * ZONE_SIZE_IN_INTS;
+         zones[zone + MIN_TIME] = Math.min(zones[zone + MIN_TIME], epochTimeInSeconds);
+         zones[zone + MAX_TIME] = Math.max(zones[zone + MAX_TIME], epochTimeInSeconds);
+         zones[zone + MIN_VALUE] = Math.min(zones[zone + MIN_VALUE], value);
+         zones[zone + MAX_VALUE] = Math.max(zones[zone + MAX_VALUE], value);
+         }
+      zones[zone + COUNT]++;
+      numRecords++;
+      }
+
+   public void handleEnd()
+      {
+      devices.add(new Device(name, nextRecordOffset, numRecords, deviceZoneOffset));
+      nextRecordOffset += numRecords;
+      name = null;
+      }
+
+   /** Writes the zone map file. */
+   public void finish() throws IOException
+      {
+      final DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)));
+      try
+         {
+         outputStream.writeInt(MAGIC_NUMBER);
+         outputStream.writeInt(VERSION);
+         outputStream.writeInt(blockSizeInRecords);
+         outputStream.writeInt(recordSizeInBytes);
+         outputStream.writeInt(valueSizeInBytes);
+         outputStream.writeInt(numZones);
+         outputStream.writeInt(devices.size());
+         for (int i = 0; i < numZones * ZONE_SIZE_IN_INTS; i++)
+            {
+            outputStream.writeInt(zones[i]);
+            }
+         for (final Device device : devices)
+            {
+            outputStream.writeUTF(device.name);
+            outputStream.writeLong(device.recordOffset);
+            outputStream.writeInt(device.numRecords);
+            outputStream.writeInt(device.zoneOffset);
+            }
+         }
+      finally
+         {
+         outputStream.close();
+         }
+      }
+
+   /**
+    * Writes the description of the zone map as the <code>"zoneMap"</code> member of the current metadata JSON object:
+    * the file name, the block size in records, and the offset in bytes of the first zone and the size of each.
+    */
+   public void writeJson(@NotNull final JsonWriter json) throws IOException
+      {
+      json.name("zoneMap").beginObject();
+      json.name("file").value(outputFile.getName());
+      json.name("blockSizeInRecords").value(blockSizeInRecords);
+      json.name("zonesOffset").value(HEADER_SIZE_IN_BYTES);
+      json.name("zoneSizeInBytes").value(ZONE_SIZE_IN_BYTES);
+      json.endObject();
+      }
+
+   /**
+    * Writes the current device's zone offset and count as the <code>"zoneOffset"</code> and <code>"numZones"</code>
+    * members of the current device metadata JSON object.  The offset is in zones, not bytes.
+    */
+   public void writeDeviceJson(@NotNull final JsonWriter json) throws IOException
+      {
+      json.name("zoneOffset").value(deviceZoneOffset);
+      json.name("numZones").value(numZones - deviceZoneOffset);
+      }
+   }
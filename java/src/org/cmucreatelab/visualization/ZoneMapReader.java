@@ -0,0 +1,292 @@
+package org.cmucreatelab.visualization;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * <p>
+ * Queries a binary data file in the records format using the zone map written alongside it by a {@link ZoneMap}.
+ * Only the blocks whose zones overlap the queried time range, and, for threshold queries, whose maximum value exceeds
+ * the threshold, are read, and runs of adjacent matching blocks are read together.
+ * </p>
+ * <p>
+ * Values are in the same units as the data file, e.g. tenths for AirNow.  A reader isn't thread safe, since its
+ * queries share a read buffer.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class ZoneMapReader
+   {
+   private static final int MAX_BLOCKS_PER_READ = 32;
+
+   public static interface RecordHandler
+      {
+      void handleRecord(final int epochTimeInSeconds, final int value);
+      }
+
+   private static final class Device
+      {
+      private final long recordOffset;
+      private final int numRecords;
+      private final int zoneOffset;
+      private final int numZones;
+
+      private Device(final long recordOffset, final int numRecords, final int zoneOffset, final int numZones)
+         {
+         this.recordOffset = recordOffset;
+         this.numRecords = numRecords;
+         this.zoneOffset = zoneOffset;
+         this.numZones = numZones;
+         }
+      }
+
+   /** Opens the given data file and its zone map. */
+   @NotNull
+   public static ZoneMapReader open(@NotNull final File dataFile, @NotNull final File zoneMapFile) throws IOException
+      {
+      final DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(zoneMapFile)));
+      try
+         {
+         if (inputStream.readInt() != ZoneMap.MAGIC_NUMBER)
+            {
+            throw new IOException("The file [" + zoneMapFile + "] isn't a zone map");
+            }
+         final int version = inputStream.readInt();
+         if (version != ZoneMap.VERSION)
+            {
+            throw new IOException("The zone map [" + zoneMapFile + "] is version " + version + ", but only version " + ZoneMap.VERSION + " is supported");
+            }
+         final int blockSizeInRecords = inputStream.readInt();
+         final int recordSizeInBytes = inputStream.readInt();
+         final int valueSizeInBytes = inputStream.readInt();
+         if (valueSizeInBytes != 2 && valueSizeInBytes != 4)
+            {
+            throw new IOException("The zone map [" + zoneMapFile + "] has values of an unsupported size: " + valueSizeInBytes + " bytes");
+            }
+         final int numZones = inputStream.readInt();
+         final int numDevices = inputStream.readInt();
+         final int[] zones = new int[numZones * ZoneMap.ZONE_SIZE_IN_INTS];
+         for (int i = 0; i < zones.length; i++)
+            {
+            zones[i] = inputStream.readInt();
+            }
+
+         // a device's zones end where the next device's begin, or at the end of the zones for the last device
+         final String[] names = new String[numDevices];
+         final long[] recordOffsets = new long[numDevices];
+         final int[] numRecords = new int[numDevices];
+         final int[] zoneOffsets = new int[numDevices + 1];
+         for (int i = 0; i < numDevices; i++)
+            {
+            names[i] = inputStream.readUTF();
+            recordOffsets[i] = inputStream.readLong();
+            numRecords[i] = inputStream.readInt();
+            zoneOffsets[i] = inputStream.readInt();
+            }
+         zoneOffsets[numDevices] = numZones;
+         final Map<String, Device> devicesByName = new LinkedHashMap<String, Device>();
+         for (int i = 0; i < numDevices; i++)
+            {
+            devicesByName.put(names[i], new Device(recordOffsets[i], numRecords[i], zoneOffsets[i], zoneOffsets[i + 1] - zoneOffsets[i]));
+            }
+         return new ZoneMapReader(new RandomAccessFile(dataFile, "r"), blockSizeInRecords, recordSizeInBytes, valueSizeInBytes, zones, devicesByName);
+         }
+      catch (EOFException e)
+         {
+         throw new IOException("The zone map [" + zoneMapFile + "] is truncated", e);
+         }
+      finally
+         {
+         inputStream.close();
+         }
+      }
+
+   @NotNull
+   private final RandomAccessFile dataFile;
+   @NotNull
+   private final FileChannel dataChannel;
+   private final int blockSizeInRecords;
+   private final int recordSizeInBytes;
+   private final int valueSizeInBytes;
+   @NotNull
+   private final int[] zones;
+   @NotNull
+   private final Map<String, Device> devicesByName;
+   @NotNull
+   private final ByteBuffer buffer;
+   private long numBlocksRead = 0;
+   private long numBlocksSkipped = 0;
+
+   private ZoneMapReader(@NotNull final RandomAccessFile dataFile,
+                         final int blockSizeInRecords,
+                         final int recordSizeInBytes,
+                         final int valueSizeInBytes,
+                         @NotNull final int[] zones,
+                         @NotNull final Map<String, Device> devicesByName)
+      {
+      this.dataFile = dataFile;
+      this.dataChannel = dataFile.getChannel();
+      this.blockSizeInRecords = blockSizeInRecords;
+      this.recordSizeInBytes = recordSizeInBytes;
+      this.valueSizeInBytes = valueSizeInBytes;
+      this.zones = zones;
+      this.devicesByName = devicesByName;
+      buffer = ByteBuffer.allocate(MAX_BLOCKS_PER_READ * blockSizeInRecords * recordSizeInBytes);
+      }
+
+   /** Returns the names of the devices, in the same order as the data file. */
+   @NotNull
+   public List<String> getDeviceNames()
+      {
+      return new ArrayList<String>(devicesByName.keySet());
+      }
+
+   public int getBlockSizeInRecords()
+      {
+      return blockSizeInRecords;
+      }
+
+   public int getRecordSizeInBytes()
+      {
+      return recordSizeInBytes;
+      }
+
+   /** Returns the index of the named device's first record in the data file, or -1 if there's no such device. */
+   public long getRecordOffset(@NotNull final String name)
+      {
+      final Device device = devicesByName.get(name);
+      return (device == null) ? -1 : device.recordOffset;
+      }
+
+   /** Returns the number of records of the named device, or 0 if there's no such device. */
+   public int getNumRecords(@NotNull final String name)
+      {
+      final Device device = devicesByName.get(name);
+      return (device == null) ? 0 : device.numRecords;
+      }
+
+   /**
+    * Hands the named device's records whose times are at least <code>startTime</code> and less than
+    * <code>endTime</code> to the handler, in the same order as the data file, and returns the number of records
+    * handled.
+    */
+   public int query(@NotNull final String name, final int startTime, final int endTime, @NotNull final RecordHandler handler) throws IOException
+      {
+      return query(name, startTime, endTime, false, 0, handler);
+      }
+
+   /**
+    * Hands the named device's records whose times are at least <code>startTime</code> and less than
+    * <code>endTime</code>, and whose values are greater than the threshold, to the handler, in the same order as the
+    * data file, and returns the number of records handled.
+    */
+   public int queryAboveThreshold(@NotNull final String name,
+                                  final int startTime,
+                                  final int endTime,
+                                  final int threshold,
+                                  @NotNull final RecordHandler handler) throws IOException
+      {
+      return query(name, startTime, endTime, true, threshold, handler);
+      }
+
+   /** Returns the number of blocks read so far, by all queries. */
+   public long getNumBlocksRead()
+      {
+      return numBlocksRead;
+      }
+
+   /** Returns the number of blocks skipped so far, by all queries, thanks to their zones. */
+   public long getNumBlocksSkipped()
+      {
+      return numBlocksSkipped;
+      }
+
+   public void close() throws IOException
+      {
+      dataFile.close();
+      }
+
+   private int query(@NotNull final String name,
+                     final int startTime,
+                     final int endTime,
+                     final boolean isThresholded,
+                     final int threshold,
+                     @NotNull final RecordHandler handler) throws IOException
+      {
+      final Device device = devicesByName.get(name);
+      if (device == null || startTime >= endTime)
+         {
+         return 0;
+         }
+
+      int numRecordsHandled = 0;
+      int block = 0;
+      while (block < device.numZones)
+         {
+         if (!isMatch(device.zoneOffset + block, startTime, endTime, isThresholded, threshold))
+            {
+            numBlocksSkipped++;
+            block++;
+            continue;
+            }
+
+         // read the run of matching blocks which starts here, up to the size of the buffer
+         int endBlock = block + 1;
+         while (endBlock < device.numZones && endBlock - block < MAX_BLOCKS_PER_READ && isMatch(device.zoneOffset + endBlock, startTime, endTime, isThresholded, threshold))
+            {
+            endBlock++;
+            }
+         final int firstRecord = block * blockSizeInRecords;
+         final int numRecords = Math.min(endBlock * blockSizeInRecords, device.numRecords) - firstRecord;
+         read((device.recordOffset + firstRecord) * recordSizeInBytes, numRecords * recordSizeInBytes);
+         numBlocksRead += endBlock - block;
+
+         for (int i = 0; i < numRecords; i++)
+            {
+            final int position = i * recordSizeInBytes;
+            final int time = buffer.getInt(position);
+            final int value = (valueSizeInBytes == 2) ? buffer.getShort(position + recordSizeInBytes - 2) : buffer.getInt(position + recordSizeInBytes - 4);
+            if (time >= startTime && time < endTime && (!isThresholded || value > threshold))
+               {
+               handler.handleRecord(time, value);
+               numRecordsHandled++;
+               }
+            }
+         block = endBlock;
+         }
+      return numRecordsHandled;
+      }
+
+   private boolean isMatch(final int zoneIndex, final int startTime, final int endTime, final boolean isThresholded, final int threshold)
+      {
+      final int zone = zoneIndex * ZoneMap.ZONE_SIZE_IN_INTS;
+      return zones[zone + ZoneMap.MAX_TIME] >= startTime &&
+             zones[zone + ZoneMap.MIN_TIME] < endTime &&
+             (!isThresholded || zones[zone + ZoneMap.MAX_VALUE] > threshold);
+      }
+
+   private void read(final long position, final int length) throws IOException
+      {
+      buffer.clear().limit(length);
+      while (buffer.hasRemaining())
+         {
+         if (dataChannel.read(buffer, position + buffer.position()) < 0)
+            {
+            throw new EOFException("The data file ends before the records listed in its zone map");
+            }
+         }
+      }
+   }
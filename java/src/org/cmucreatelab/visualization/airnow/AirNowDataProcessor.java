@@ -1,19 +1,35 @@
 package org.cmucreatelab.visualization.airnow;
 
-import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import org.apache.log4j.Logger;
+import org.cmucreatelab.io.CsvLine;
+import org.cmucreatelab.io.BinaryRecordWriter;
 import org.cmucreatelab.io.CsvReader;
+import org.cmucreatelab.io.JsonWriter;
+import org.cmucreatelab.io.AlignedColumnEncoder;
+import org.cmucreatelab.io.ColumnEncoder;
+import org.cmucreatelab.io.VarintColumnEncoder;
+import org.cmucreatelab.store.TimeSeriesStore;
+import org.cmucreatelab.store.TimeSeriesStoreWriter;
+import org.cmucreatelab.visualization.BinaryFormat;
+import org.cmucreatelab.visualization.DownsampledPyramid;
 import org.cmucreatelab.visualization.GeolocatedDevices;
+import org.cmucreatelab.visualization.Resampler;
+import org.cmucreatelab.visualization.InputCatalog;
+import org.cmucreatelab.visualization.IncrementalState;
+import org.cmucreatelab.visualization.OrderedParallelRunner;
+import org.cmucreatelab.visualization.OutputOptions;
+import org.cmucreatelab.visualization.ZoneMap;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -25,17 +41,115 @@ public class AirNowDataProcessor
    private static final Logger LOG = Logger.getLogger(AirNowDataProcessor.class);
 
    private static final String CSV_FILE_EXTENSION = ".csv";
+   private static final String THREADS_OPTION = "--threads";
+   private static final String INCREMENTAL_OPTION = "--incremental";
+   private static final String COLUMNAR_OPTION = "--columnar";
+   private static final String ALIGNED_OPTION = "--aligned";
+   private static final String RESAMPLED_OPTION = "--resampled";
+   private static final String PYRAMID_OPTION = "--pyramid";
+   private static final String STORE_OPTION = "--store";
+   private static final String ZONE_MAP_OPTION = "--zone-map";
+   private static final String START_OPTION = "--start";
+   private static final String END_OPTION = "--end";
+   private static final String DATA_FILENAME = "airnow_data.bin";
+   private static final String METADATA_FILENAME = "airnow_metadata.json";
+   private static final String PYRAMID_FILENAME_PREFIX = "airnow_data";
+   private static final String STORE_DIRECTORY_NAME = "airnow_store";
+   private static final String ZONE_MAP_FILENAME = "airnow_data_zones.bin";
+   private static final String INCREMENTAL_STATE_DIRECTORY_NAME = DATA_FILENAME + ".incremental";
+   private static final int RECORD_SIZE_IN_BYTES = 6;
+   private static final int NUM_REQUIRED_ARGS = 3;
+
+   public static final int SAMPLE_INTERVAL_SECS = 3600;    // AirNow data is every hour, which is 3600 secs
 
    public static void main(final String[] args) throws IOException
       {
-      if (args.length < 3)
+      if (args.length < NUM_REQUIRED_ARGS)
          {
          System.err.println("ERROR: the AirNow devices file and the input and output directories must all be specified.");
+         System.err.println("Usage: <devices file> <input directory> <output directory> [" + THREADS_OPTION + " <number of threads>] [" + INCREMENTAL_OPTION + "] [" + COLUMNAR_OPTION + " | " + ALIGNED_OPTION + " | " + RESAMPLED_OPTION + " <first|last|min|max|mean>] [" + PYRAMID_OPTION + "] [" + STORE_OPTION + "] [" + ZONE_MAP_OPTION + "] [" + START_OPTION + " <epoch seconds>] [" + END_OPTION + " <epoch seconds>]");
+         System.exit(1);
+         }
+      int numThreads = 1;
+      boolean isIncremental = false;
+      final OutputOptions outputOptions = new OutputOptions();
+      for (int i = NUM_REQUIRED_ARGS; i < args.length; i++)
+         {
+         if (THREADS_OPTION.equals(args[i]) && i + 1 < args.length)
+            {
+            numThreads = Integer.parseInt(args[++i]);
+            }
+         else if (INCREMENTAL_OPTION.equals(args[i]))
+            {
+            isIncremental = true;
+            }
+         else if (COLUMNAR_OPTION.equals(args[i]))
+            {
+            outputOptions.setBinaryFormat(BinaryFormat.COLUMNAR);
+            }
+         else if (ALIGNED_OPTION.equals(args[i]))
+            {
+            outputOptions.setBinaryFormat(BinaryFormat.ALIGNED);
+            }
+         else if (RESAMPLED_OPTION.equals(args[i]) && i + 1 < args.length)
+            {
+            final Resampler.Aggregation aggregation = Resampler.Aggregation.findByName(args[++i]);
+            if (aggregation == null)
+               {
+               System.err.println("Unknown aggregation for " + RESAMPLED_OPTION + ": " + args[i]);
+               System.exit(1);
+               }
+            outputOptions.setBinaryFormat(BinaryFormat.RESAMPLED);
+            outputOptions.setAggregation(aggregation);
+            }
+         else if (PYRAMID_OPTION.equals(args[i]))
+            {
+            outputOptions.setPyramid(true);
+            }
+         else if (STORE_OPTION.equals(args[i]))
+            {
+            outputOptions.setStore(true);
+            }
+         else if (ZONE_MAP_OPTION.equals(args[i]))
+            {
+            outputOptions.setZoneMap(true);
+            }
+         else if (START_OPTION.equals(args[i]) && i + 1 < args.length)
+            {
+            outputOptions.setStartTime(Integer.parseInt(args[++i]));
+            }
+         else if (END_OPTION.equals(args[i]) && i + 1 < args.length)
+            {
+            outputOptions.setEndTime(Integer.parseInt(args[++i]));
+            }
+         else
+            {
+            System.err.println("Unknown or incomplete option: " + args[i]);
+            System.exit(1);
+            }
+         }
+      final Integer startTime = outputOptions.getStartTime();
+      final Integer endTime = outputOptions.getEndTime();
+      if ((startTime != null || endTime != null) && isIncremental)
+         {
+         System.err.println("The " + START_OPTION + " and " + END_OPTION + " options can't be combined with " + INCREMENTAL_OPTION + ", since incremental processing picks up where the previous run left off.");
+         System.exit(1);
+         }
+      if (startTime != null && endTime != null && startTime >= endTime)
+         {
+         System.err.println("The " + START_OPTION + " time must be before the " + END_OPTION + " time.");
+         System.exit(1);
+         }
+      final BinaryFormat binaryFormat = outputOptions.getBinaryFormat();
+      if (outputOptions.isZoneMap() && binaryFormat != BinaryFormat.RECORDS)
+         {
+         System.err.println("The " + ZONE_MAP_OPTION + " option can't be combined with " + COLUMNAR_OPTION + ", " + ALIGNED_OPTION + " or " + RESAMPLED_OPTION + ", since the blocks must be contiguous runs of records.");
          System.exit(1);
          }
       final File airNowDevicesFile = new File(args[0]);
       final File inputDirectory = new File(args[1]);
       final File outputDirectory = new File(args[2]);
+      final File incrementalStateDirectory = isIncremental ? new File(outputDirectory, INCREMENTAL_STATE_DIRECTORY_NAME) : null;
 
       //noinspection ResultOfMethodCallIgnored
       outputDirectory.mkdirs();
@@ -43,6 +157,29 @@ public class AirNowDataProcessor
       System.out.println("AirNow Devices File:   " + airNowDevicesFile.getCanonicalPath());
       System.out.println("CSV Input Directory:   " + inputDirectory.getCanonicalPath());
       System.out.println("Data Output Directory: " + outputDirectory.getCanonicalPath());
+      System.out.println("Threads:               " + numThreads);
+      System.out.println("Binary Format:         " + binaryFormat.getName() + ((binaryFormat == BinaryFormat.RESAMPLED) ? " (" + outputOptions.getAggregation().getName() + ")" : ""));
+      System.out.println("Downsampled Levels:    " + (outputOptions.isPyramid() ? "yes" : "no"));
+      if (startTime != null)
+         {
+         System.out.println("Start Time:            " + startTime);
+         }
+      if (endTime != null)
+         {
+         System.out.println("End Time:              " + endTime + " (exclusive)");
+         }
+      if (incrementalStateDirectory != null)
+         {
+         System.out.println("Incremental State:     " + incrementalStateDirectory.getCanonicalPath());
+         }
+      if (outputOptions.isStore())
+         {
+         System.out.println("Time Series Store:     " + new File(outputDirectory, STORE_DIRECTORY_NAME).getCanonicalPath());
+         }
+      if (outputOptions.isZoneMap())
+         {
+         System.out.println("Zone Map File:         " + new File(outputDirectory, ZONE_MAP_FILENAME).getCanonicalPath());
+         }
       if (!airNowDevicesFile.isFile())
          {
          System.err.println("The specified AirNow devices file is invalid.  It is either not a file, or does not exist: " + inputDirectory.getCanonicalPath());
@@ -58,7 +195,7 @@ public class AirNowDataProcessor
          System.err.println("The specified output directory is invalid.  It is either not a directory, or does not exist: " + outputDirectory.getCanonicalPath());
          }
 
-      final AirNowDataProcessor airNowDataProcessor = new AirNowDataProcessor(airNowDevicesFile, inputDirectory, outputDirectory);
+      final AirNowDataProcessor airNowDataProcessor = new AirNowDataProcessor(airNowDevicesFile, inputDirectory, outputDirectory, numThreads, incrementalStateDirectory, outputOptions);
       airNowDataProcessor.run();
       }
 
@@ -71,11 +208,54 @@ public class AirNowDataProcessor
    @NotNull
    private final File outputDirectory;
 
-   private AirNowDataProcessor(@NotNull final File airNowDevicesFile, @NotNull final File inputDirectory, @NotNull final File outputDirectory)
+   private final int numThreads;
+
+   /** Directory holding the state for incremental processing, or <code>null</code> to process everything from scratch. */
+   @Nullable
+   private final File incrementalStateDirectory;
+
+   @NotNull
+   private final BinaryFormat binaryFormat;
+
+   /** How the records sharing a sample time are combined, when the binary format is {@link BinaryFormat#RESAMPLED} */
+   @NotNull
+   private final Resampler.Aggregation aggregation;
+
+   private final boolean isPyramid;
+
+   /** Whether to also write the records to a {@link TimeSeriesStore} */
+   private final boolean isStore;
+
+   /** Whether to also write a {@link ZoneMap} of the binary file */
+   private final boolean isZoneMap;
+
+   /** Only records at or after this time (in epoch seconds) are processed, or all of them if <code>null</code>. */
+   @Nullable
+   private final Integer startTime;
+
+   /** Only records before this time (in epoch seconds) are processed, or all of them if <code>null</code>. */
+   @Nullable
+   private final Integer endTime;
+
+   private AirNowDataProcessor(@NotNull final File airNowDevicesFile,
+                               @NotNull final File inputDirectory,
+                               @NotNull final File outputDirectory,
+                               final int numThreads,
+                               @Nullable final File incrementalStateDirectory,
+                               @NotNull final OutputOptions outputOptions)
       {
       this.airNowDevicesFile = airNowDevicesFile;
       this.inputDirectory = inputDirectory;
       this.outputDirectory = outputDirectory;
+      this.numThreads = numThreads;
+      this.incrementalStateDirectory = incrementalStateDirectory;
+      this.binaryFormat = outputOptions.getBinaryFormat();
+      this.aggregation = outputOptions.getAggregation();
+      this.isPyramid = outputOptions.isPyramid();
+      this.isStore = outputOptions.isStore();
+      this.isZoneMap = outputOptions.isZoneMap();
+      this.startTime = outputOptions.getStartTime();
+      this.endTime = outputOptions.getEndTime();
       }
 
    private void run() throws IOException
@@ -83,36 +263,406 @@ public class AirNowDataProcessor
       final GeolocatedDevices geolocatedDevices = new AirNowDevices(airNowDevicesFile);
       if (!geolocatedDevices.isEmpty())
          {
-         final AirNowCsvDataFileEventListener airNowCsvDataFileEventListener = new AirNowCsvDataFileEventListener();
          final MetadataGenerator metadataGenerator = new MetadataGenerator(outputDirectory, geolocatedDevices);
-         final BinaryGenerator binaryGenerator = new BinaryGenerator(outputDirectory);
+         final BinaryGenerator binaryGenerator = new BinaryGenerator(outputDirectory, binaryFormat);
+         if (binaryFormat.isColumnar())
+            {
+            metadataGenerator.setColumnarBinaryGenerator(binaryGenerator);
+            }
+         if (binaryFormat == BinaryFormat.RESAMPLED)
+            {
+            final Resampler resampler = new Resampler(SAMPLE_INTERVAL_SECS, aggregation, 2);
+            binaryGenerator.setResampler(resampler);
+            metadataGenerator.setResampler(resampler);
+            }
+         if (isZoneMap)
+            {
+            final ZoneMap zoneMap = new ZoneMap(new File(outputDirectory, ZONE_MAP_FILENAME), ZoneMap.DEFAULT_BLOCK_SIZE_IN_RECORDS, RECORD_SIZE_IN_BYTES, 2);
+            binaryGenerator.setZoneMap(zoneMap);
+            metadataGenerator.setZoneMap(zoneMap);
+            }
+         PyramidGenerator pyramidGenerator = null;
+         if (isPyramid)
+            {
+            final DownsampledPyramid pyramid = new DownsampledPyramid(MetadataGenerator.SAMPLE_INTERVAL_SECS, outputDirectory, PYRAMID_FILENAME_PREFIX);
+            pyramidGenerator = new PyramidGenerator(pyramid);
+            metadataGenerator.setPyramid(pyramid);
+            }
+         StoreGenerator storeGenerator = null;
+         if (isStore)
+            {
+            // values are stored as the tenths written to the binary file
+            storeGenerator = new StoreGenerator(new TimeSeriesStoreWriter(new File(outputDirectory, STORE_DIRECTORY_NAME), 0.1));
+            }
 
-         airNowCsvDataFileEventListener.addEventListener(metadataGenerator);
-         airNowCsvDataFileEventListener.addEventListener(binaryGenerator);
+         final InputCatalog inputCatalog = new InputCatalog(inputDirectory, CSV_FILE_EXTENSION);
+         System.out.println("Found " + inputCatalog.size() + " CSV files (" + inputCatalog.getTotalSize() + " bytes)");
 
          System.out.println("Processing " + geolocatedDevices.size() + " devices...");
-         final Iterator<GeolocatedDevices.Device> iterator = geolocatedDevices.iterator();
-         while (iterator.hasNext())
+         IncrementalState incrementalState = null;
+         if (incrementalStateDirectory != null)
+            {
+            incrementalState = new IncrementalState(incrementalStateDirectory);
+            processIncrementally(geolocatedDevices, inputCatalog, incrementalState, metadataGenerator, binaryGenerator, pyramidGenerator, storeGenerator);
+            }
+         else if (numThreads > 1)
             {
-            GeolocatedDevices.Device device = iterator.next();
-            final File deviceFile = new File(inputDirectory, device.getName() + CSV_FILE_EXTENSION);
-            if (deviceFile.isFile())
+            processInParallel(geolocatedDevices, inputCatalog, metadataGenerator, binaryGenerator, pyramidGenerator, storeGenerator);
+            }
+         else
+            {
+            final AirNowCsvDataFileEventListener airNowCsvDataFileEventListener = new AirNowCsvDataFileEventListener();
+            airNowCsvDataFileEventListener.addEventListener(metadataGenerator);
+            airNowCsvDataFileEventListener.addEventListener(binaryGenerator);
+            airNowCsvDataFileEventListener.addEventListener(pyramidGenerator);
+            airNowCsvDataFileEventListener.addEventListener(storeGenerator);
+
+            final Iterator<GeolocatedDevices.Device> iterator = geolocatedDevices.iterator();
+            while (iterator.hasNext())
                {
-               System.out.println("   " + deviceFile.getName());
-               final CsvReader csvReader = new CsvReader(deviceFile, true, 2);
-               csvReader.addEventListener(airNowCsvDataFileEventListener);
-               csvReader.read();
+               GeolocatedDevices.Device device = iterator.next();
+               final File deviceFile = inputCatalog.getFile(device.getName());
+               if (deviceFile != null)
+                  {
+                  System.out.println("   " + deviceFile.getName());
+                  final CsvReader csvReader = new CsvReader(deviceFile, true, 2);
+                  csvReader.setTimeWindow(startTime, endTime);
+                  csvReader.addNumericEventListener(airNowCsvDataFileEventListener);
+                  csvReader.read();
+                  }
                }
             }
 
          metadataGenerator.finish();
          binaryGenerator.finish();
+         if (pyramidGenerator != null)
+            {
+            pyramidGenerator.finish();
+            }
+         if (storeGenerator != null)
+            {
+            storeGenerator.finish();
+            }
+
+         // only save the state once the outputs are complete, so that a failed run is simply repeated next time
+         if (incrementalState != null)
+            {
+            incrementalState.save();
+            }
+         }
+      }
+
+   /**
+    * Reads only the CSV lines appended to each station file since the previous run, appending the new records to the
+    * station's segment and updating its state.  The segments are then concatenated, in station order, into the binary
+    * file, and the metadata is written from the statistics in the state.
+    */
+   private void processIncrementally(@NotNull final GeolocatedDevices geolocatedDevices,
+                                     @NotNull final InputCatalog inputCatalog,
+                                     @NotNull final IncrementalState incrementalState,
+                                     @NotNull final MetadataGenerator metadataGenerator,
+                                     @NotNull final BinaryGenerator binaryGenerator,
+                                     @Nullable final PyramidGenerator pyramidGenerator,
+                                     @Nullable final StoreGenerator storeGenerator) throws IOException
+      {
+      final List<Callable<IncrementalStationUpdater>> tasks = new ArrayList<Callable<IncrementalStationUpdater>>();
+      final List<Long> taskSizes = new ArrayList<Long>();
+      final List<String> taskLabels = new ArrayList<String>();
+      final Iterator<GeolocatedDevices.Device> iterator = geolocatedDevices.iterator();
+      while (iterator.hasNext())
+         {
+         final GeolocatedDevices.Device device = iterator.next();
+         final File deviceFile = inputCatalog.getFile(device.getName());
+         if (deviceFile != null)
+            {
+            final IncrementalState.DeviceState deviceState = incrementalState.getDeviceState(device.getName());
+
+            // only the lines appended since the previous run are read, unless the file was replaced by a shorter one
+            final long fileSize = inputCatalog.getSize(device.getName());
+            taskSizes.add((fileSize >= deviceState.getCsvOffset()) ? fileSize - deviceState.getCsvOffset() : fileSize);
+            taskLabels.add(device.getName());
+            tasks.add(
+                  new Callable<IncrementalStationUpdater>()
+                  {
+                  @Override
+                  public IncrementalStationUpdater call() throws IOException
+                     {
+                     final File segmentFile = incrementalState.prepareSegmentFile(deviceState, deviceFile, RECORD_SIZE_IN_BYTES);
+                     final IncrementalStationUpdater updater = new IncrementalStationUpdater(deviceFile, deviceState, segmentFile);
+                     updater.run();
+                     return updater;
+                     }
+                  });
+            }
+         }
+
+      final OrderedParallelRunner<IncrementalStationUpdater> runner = new OrderedParallelRunner<IncrementalStationUpdater>(numThreads);
+      runner.run(
+            tasks,
+            taskSizes,
+            new OrderedParallelRunner.ResultHandler<IncrementalStationUpdater>()
+            {
+            @Override
+            public void handleResult(@NotNull final IncrementalStationUpdater updater) throws IOException
+               {
+               System.out.println("   " + updater.getDeviceFile().getName() + " (" + updater.getNumNewRecords() + " new records)");
+               final IncrementalState.DeviceState deviceState = updater.getDeviceState();
+               binaryGenerator.appendSegment(updater.getSegmentFile(), deviceState.getName());
+               if (pyramidGenerator != null)
+                  {
+                  replaySegment(updater.getSegmentFile(), deviceState.getName(), pyramidGenerator);
+                  }
+               if (storeGenerator != null)
+                  {
+                  replaySegment(updater.getSegmentFile(), deviceState.getName(), storeGenerator);
+                  }
+               metadataGenerator.handleDevice(deviceState.getName(), updater.getStatistics(), deviceState.getNumRecords());
+               }
+            });
+      runner.printTimingReport(taskLabels);
+      }
+
+   /** Replays the records of an incremental segment file to the given listener, as a station of the given name. */
+   private static void replaySegment(@NotNull final File segmentFile,
+                                     @NotNull final String name,
+                                     @NotNull final AirNowCsvDataFileEventListener.EventListener listener) throws IOException
+      {
+      final int numRecords = (int)(segmentFile.length() / RECORD_SIZE_IN_BYTES);
+      final DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)));
+      try
+         {
+         listener.handleBegin(name);
+         for (int i = 0; i < numRecords; i++)
+            {
+            final int epochTimeInSeconds = inputStream.readInt();
+            final short valueAsShort = inputStream.readShort();
+            listener.handleLine(epochTimeInSeconds, valueAsShort / 10.0, valueAsShort);
+            }
+         listener.handleEnd(numRecords);
+         }
+      finally
+         {
+         inputStream.close();
+         }
+      }
+
+   /**
+    * Ingests the lines appended to a single station file since the previous run: records newer than the station's
+    * high-water mark are appended to its segment and folded into its statistics, and then the state is updated.
+    */
+   private static final class IncrementalStationUpdater implements AirNowCsvDataFileEventListener.EventListener
+      {
+      @NotNull
+      private final File deviceFile;
+      @NotNull
+      private final IncrementalState.DeviceState deviceState;
+      @NotNull
+      private final File segmentFile;
+      @NotNull
+      private final StationStatistics statistics = new StationStatistics();
+      private final int previousHighWaterTime;
+      private int highWaterTime;
+      private int numNewRecords = 0;
+      private int numStaleRecords = 0;
+      private BinaryRecordWriter segmentWriter = null;
+      private IOException writeException = null;
+
+      private IncrementalStationUpdater(@NotNull final File deviceFile, @NotNull final IncrementalState.DeviceState deviceState, @NotNull final File segmentFile)
+         {
+         this.deviceFile = deviceFile;
+         this.deviceState = deviceState;
+         this.segmentFile = segmentFile;
+         previousHighWaterTime = deviceState.getHighWaterTime();
+         highWaterTime = previousHighWaterTime;
+         if (!deviceState.isNew())
+            {
+            statistics.restore(deviceState);
+            }
+         }
+
+      private void run() throws IOException
+         {
+         final AirNowCsvDataFileEventListener airNowCsvDataFileEventListener = new AirNowCsvDataFileEventListener();
+         airNowCsvDataFileEventListener.addEventListener(this);
+         final CsvReader csvReader = new CsvReader(deviceFile, true, 2);
+         csvReader.addNumericEventListener(airNowCsvDataFileEventListener);
+         csvReader.setStartOffset(deviceState.getCsvOffset());
+
+         // the export may still be writing the last line, so leave it for next time
+         csvReader.setWillIgnoreIncompleteLastLine(true);
+
+         segmentWriter = new BinaryRecordWriter(segmentFile, BinaryRecordWriter.DEFAULT_BUFFER_SIZE, true);
+         try
+            {
+            csvReader.read();
+            }
+         finally
+            {
+            segmentWriter.close();
+            }
+         if (writeException != null)
+            {
+            throw writeException;
+            }
+         if (numStaleRecords > 0)
+            {
+            LOG.warn("Skipped " + numStaleRecords + " records in [" + deviceFile.getName() + "] which weren't newer than the previous run's latest record");
+            }
+
+         deviceState.setProgress(csvReader.getEndOffset(), highWaterTime, deviceState.getNumRecords() + numNewRecords);
+         statistics.save(deviceState);
+         }
+
+      @NotNull
+      private File getDeviceFile()
+         {
+         return deviceFile;
+         }
+
+      @NotNull
+      private IncrementalState.DeviceState getDeviceState()
+         {
+         return deviceState;
+         }
+
+      @NotNull
+      private File getSegmentFile()
+         {
+         return segmentFile;
+         }
+
+      @NotNull
+      private StationStatistics getStatistics()
+         {
+         return statistics;
+         }
+
+      private int getNumNewRecords()
+         {
+         return numNewRecords;
+         }
+
+      @Override
+      public void handleBegin(@NotNull final String name)
+         {
+         // nothing to do
+         }
+
+      @Override
+      public void handleLine(final int epochTimeInSeconds, final double value, final short valueAsShort)
+         {
+         if (epochTimeInSeconds <= previousHighWaterTime)
+            {
+            numStaleRecords++;
+            }
+         else if (writeException == null)
+            {
+            try
+               {
+               segmentWriter.writeInt(epochTimeInSeconds);
+               segmentWriter.writeShort(valueAsShort);
+               }
+            catch (IOException e)
+               {
+               writeException = e;
+               return;
+               }
+            statistics.handleLine(epochTimeInSeconds, value);
+            highWaterTime = Math.max(highWaterTime, epochTimeInSeconds);
+            numNewRecords++;
+            }
+         }
+
+      @Override
+      public void handleEnd(final int numRecords)
+         {
+         // nothing to do
+         }
+      }
+
+   /**
+    * Parses the station files concurrently, each with its own {@link AirNowCsvDataFileEventListener} and
+    * {@link StationRecordBuffer}, and then replays the buffers through the generators in station order so that the
+    * output is identical to that of a serial run.
+    */
+   private void processInParallel(@NotNull final GeolocatedDevices geolocatedDevices,
+                                  @NotNull final InputCatalog inputCatalog,
+                                  @NotNull final MetadataGenerator metadataGenerator,
+                                  @NotNull final BinaryGenerator binaryGenerator,
+                                  @Nullable final PyramidGenerator pyramidGenerator,
+                                  @Nullable final StoreGenerator storeGenerator) throws IOException
+      {
+      final List<Callable<StationRecordBuffer>> tasks = new ArrayList<Callable<StationRecordBuffer>>();
+      final List<Long> taskSizes = new ArrayList<Long>();
+      final List<String> taskLabels = new ArrayList<String>();
+      final Iterator<GeolocatedDevices.Device> iterator = geolocatedDevices.iterator();
+      while (iterator.hasNext())
+         {
+         final GeolocatedDevices.Device device = iterator.next();
+         final File deviceFile = inputCatalog.getFile(device.getName());
+         if (deviceFile != null)
+            {
+            taskSizes.add(inputCatalog.getSize(device.getName()));
+            taskLabels.add(device.getName());
+            tasks.add(
+                  new Callable<StationRecordBuffer>()
+                  {
+                  @Override
+                  public StationRecordBuffer call()
+                     {
+                     final StationRecordBuffer recordBuffer = new StationRecordBuffer(deviceFile);
+                     final AirNowCsvDataFileEventListener airNowCsvDataFileEventListener = new AirNowCsvDataFileEventListener();
+                     airNowCsvDataFileEventListener.addEventListener(recordBuffer);
+                     final CsvReader csvReader = new CsvReader(deviceFile, true, 2);
+                     csvReader.setTimeWindow(startTime, endTime);
+                     csvReader.addNumericEventListener(airNowCsvDataFileEventListener);
+                     if (!csvReader.read())
+                        {
+                        // a buffer which never ended isn't replayed
+                        return new StationRecordBuffer(deviceFile);
+                        }
+                     return recordBuffer;
+                     }
+                  });
+            }
          }
+
+      final OrderedParallelRunner<StationRecordBuffer> runner = new OrderedParallelRunner<StationRecordBuffer>(numThreads);
+      runner.run(
+            tasks,
+            taskSizes,
+            new OrderedParallelRunner.ResultHandler<StationRecordBuffer>()
+            {
+            @Override
+            public void handleResult(@NotNull final StationRecordBuffer recordBuffer)
+               {
+               System.out.println("   " + recordBuffer.getFile().getName());
+               if (recordBuffer.isComplete())
+                  {
+                  // the metadata generator goes last, since the metadata can include column, bucket and zone offsets
+                  recordBuffer.replay(binaryGenerator);
+                  if (pyramidGenerator != null)
+                     {
+                     recordBuffer.replay(pyramidGenerator);
+                     }
+                  if (storeGenerator != null)
+                     {
+                     recordBuffer.replay(storeGenerator);
+                     }
+                  recordBuffer.replay(metadataGenerator);
+                  }
+               else
+                  {
+                  LOG.error("Station file [" + recordBuffer.getFile().getName() + "] couldn't be read completely.  Skipping it.");
+                  }
+               }
+            });
+      runner.printTimingReport(taskLabels);
       }
 
-   private static final class AirNowCsvDataFileEventListener implements CsvReader.EventListener
+   static final class AirNowCsvDataFileEventListener implements CsvReader.NumericEventListener
       {
-      private static interface EventListener
+      static interface EventListener
          {
          void handleBegin(@NotNull String name);
 
@@ -123,10 +673,15 @@ public class AirNowDataProcessor
 
       private String name = null;
       private int numRecords = 0;
+      private int numMalformedLines = 0;
 
       @NotNull
       private final Set<EventListener> eventListeners = new HashSet<EventListener>();
 
+      /** Snapshot of the listeners, taken in {@link #handleBegin(File)} so that no iterator is created per line */
+      @NotNull
+      private EventListener[] eventListenersArray = new EventListener[0];
+
       public void addEventListener(@Nullable final EventListener listener)
          {
          if (listener != null)
@@ -142,87 +697,157 @@ public class AirNowDataProcessor
          final int dotPosition = filenameWithExtension.lastIndexOf(".");
          name = (dotPosition >= 0) ? filenameWithExtension.substring(0, dotPosition) : filenameWithExtension;
          numRecords = 0;
-         for (final EventListener listener : eventListeners)
+         numMalformedLines = 0;
+         eventListenersArray = eventListeners.toArray(new EventListener[eventListeners.size()]);
+         for (final EventListener listener : eventListenersArray)
             {
             listener.handleBegin(name);
             }
          }
 
       @Override
-      public final void handleHeader(@NotNull final String header, @NotNull final String[] fieldNames)
+      public final void handleRecord(final int epochTimeInSeconds, @NotNull final double[] values, @NotNull final CsvLine line)
          {
-         // nothing to do
+         final double value = values[0];
+         numRecords++;
+         for (final EventListener listener : eventListenersArray)
+            {
+            // we multiple the value by 10, round it, and store as a short to save space, but provide both
+            // the double version and the short version here so that the metadata can store the double version
+            // and the binary can store the short version (the client will divide by 10 when processing)
+            listener.handleLine(epochTimeInSeconds, value, (short)Math.round(value * 10));
+            }
          }
 
       @Override
-      public final void handleLine(@NotNull final String line, @NotNull final String[] values)
+      public final void handleMalformedLine(@NotNull final CsvLine line)
          {
-         try
+         // only log the first one, since materializing and logging every bad line is slow for files with lots of them
+         if (numMalformedLines == 0)
             {
-            final int epochTimeInSeconds = Integer.parseInt(values[0]);
-            final double value = Double.parseDouble(values[1]);
-            numRecords++;
-            for (final EventListener listener : eventListeners)
-               {
-               // we multiple the value by 10, round it, and store as a short to save space, but provide both
-               // the double version and the short version here so that the metadata can store the double version
-               // and the binary can store the short version (the client will divide by 10 when processing)
-               listener.handleLine(epochTimeInSeconds, value, (short)Math.round(value * 10));
-               }
-            }
-         catch (NumberFormatException ignored)
-            {
-            LOG.error("NumberFormatException while parsing line [" + line + "].  Skipping.");
+            LOG.error("Malformed number while parsing line [" + line + "] of [" + name + "].  Skipping.");
             }
+         numMalformedLines++;
          }
 
       @Override
-      public final void handleEnd(@NotNull final File file, final int numLines)
+      public final void handleEnd(@NotNull final File file, final int numRecords, final int numMalformedLines)
          {
-         for (final EventListener listener : eventListeners)
+         if (this.numMalformedLines > 1)
+            {
+            LOG.error("Skipped " + this.numMalformedLines + " lines with malformed numbers in [" + name + "]");
+            }
+         for (final EventListener listener : eventListenersArray)
             {
-            listener.handleEnd(numRecords);
+            listener.handleEnd(this.numRecords);
             }
          }
       }
 
-   private static final class MetadataGenerator implements AirNowCsvDataFileEventListener.EventListener
+   /**
+    * Holds all the records parsed from a single station file in primitive arrays, so that they can be replayed later,
+    * exactly as they were originally received, to any {@link AirNowCsvDataFileEventListener.EventListener}.
+    */
+   private static final class StationRecordBuffer implements AirNowCsvDataFileEventListener.EventListener
       {
-      private static final int SAMPLE_INTERVAL_SECS = 3600;    // AirNow data is every hour, which is 3600 secs
+      private static final int INITIAL_CAPACITY = 1024;
+
       @NotNull
-      private final File outputDirectory;
+      private final File file;
+      private String name = null;
+      private int[] times = new int[INITIAL_CAPACITY];
+      private double[] values = new double[INITIAL_CAPACITY];
+      private short[] valuesAsShorts = new short[INITIAL_CAPACITY];
+      private int numBufferedRecords = 0;
+      private boolean hasEnded = false;
+      private int numRecords = 0;
+
+      private StationRecordBuffer(@NotNull final File file)
+         {
+         this.file = file;
+         }
+
       @NotNull
-      private final GeolocatedDevices geolocatedDevices;
-      private final List<String> devicesJson;
+      private File getFile()
+         {
+         return file;
+         }
 
-      private String name = null;
+      @Override
+      public void handleBegin(@NotNull final String name)
+         {
+         this.name = name;
+         }
+
+      @Override
+      public void handleLine(final int epochTimeInSeconds, final double value, final short valueAsShort)
+         {
+         if (numBufferedRecords == times.length)
+            {
+            final int newCapacity = times.length * 2;
+            final int[] newTimes = new int[newCapacity];
+            final double[] newValues = new double[newCapacity];
+            final short[] newValuesAsShorts = new short[newCapacity];
+            System.arraycopy(times, 0, newTimes, 0, numBufferedRecords);
+            System.arraycopy(values, 0, newValues, 0, numBufferedRecords);
+            System.arraycopy(valuesAsShorts, 0, newValuesAsShorts, 0, numBufferedRecords);
+            times = newTimes;
+            values = newValues;
+            valuesAsShorts = newValuesAsShorts;
+            }
+         times[numBufferedRecords] = epochTimeInSeconds;
+         values[numBufferedRecords] = value;
+         valuesAsShorts[numBufferedRecords] = valueAsShort;
+         numBufferedRecords++;
+         }
+
+      @Override
+      public void handleEnd(final int numRecords)
+         {
+         this.numRecords = numRecords;
+         hasEnded = true;
+         }
+
+      /**
+       * Returns whether the station file was read from its beginning to its end.  A station which wasn't mustn't be
+       * replayed at all, since the listeners only finish a station, e.g. advance their offsets, at its end.
+       */
+      private boolean isComplete()
+         {
+         return name != null && hasEnded;
+         }
+
+      /** Replays the records of a {@link #isComplete() complete} station file, as if it were being read again. */
+      private void replay(@NotNull final AirNowCsvDataFileEventListener.EventListener listener)
+         {
+         listener.handleBegin(name);
+         for (int i = 0; i < numBufferedRecords; i++)
+            {
+            listener.handleLine(times[i], values[i], valuesAsShorts[i]);
+            }
+         listener.handleEnd(numRecords);
+         }
+      }
+
+   /** The per-station statistics written to the metadata. */
+   static final class StationStatistics
+      {
       private int minTime = Integer.MAX_VALUE;
       private int maxTime = Integer.MIN_VALUE;
       private int minValueTime = 0;
       private int maxValueTime = 0;
       private double minValue = Double.MAX_VALUE;
       private double maxValue = Double.MIN_VALUE;
-      private int recordOffset = 0;
 
-      public MetadataGenerator(@NotNull final File outputDirectory, @NotNull final GeolocatedDevices geolocatedDevices)
+      void reset()
          {
-         this.outputDirectory = outputDirectory;
-         this.geolocatedDevices = geolocatedDevices;
-         devicesJson = new ArrayList<String>(geolocatedDevices.size());
-         }
-
-      @Override
-      public void handleBegin(@NotNull String name)
-         {
-         this.name = name;
          minTime = Integer.MAX_VALUE;
          maxTime = Integer.MIN_VALUE;
          minValue = Double.MAX_VALUE;
          maxValue = Double.MIN_VALUE;
          }
 
-      @Override
-      public void handleLine(final int epochTimeInSeconds, final double value, final short valueAsShort)
+      void handleLine(final int epochTimeInSeconds, final double value)
          {
          minTime = Math.min(minTime, epochTimeInSeconds);
          maxTime = Math.max(maxTime, epochTimeInSeconds);
@@ -238,25 +863,163 @@ public class AirNowDataProcessor
             }
          }
 
+      void restore(@NotNull final IncrementalState.DeviceState state)
+         {
+         minTime = state.getMinTime();
+         maxTime = state.getMaxTime();
+         minValue = state.getMinValue();
+         maxValue = state.getMaxValue();
+         minValueTime = state.getMinValueTime();
+         maxValueTime = state.getMaxValueTime();
+         }
+
+      void save(@NotNull final IncrementalState.DeviceState state)
+         {
+         state.setStatistics(minTime, maxTime, minValue, maxValue, minValueTime, maxValueTime);
+         }
+      }
+
+   static final class MetadataGenerator implements AirNowCsvDataFileEventListener.EventListener
+      {
+      static final int SAMPLE_INTERVAL_SECS = AirNowDataProcessor.SAMPLE_INTERVAL_SECS;
+      @NotNull
+      private final File outputDirectory;
+      @NotNull
+      private final GeolocatedDevices geolocatedDevices;
+
+      @NotNull
+      private final StationStatistics statistics = new StationStatistics();
+
+      @Nullable
+      private BinaryGenerator columnarBinaryGenerator = null;
+
+      @Nullable
+      private DownsampledPyramid pyramid = null;
+
+      @Nullable
+      private ZoneMap zoneMap = null;
+
+      @Nullable
+      private Resampler resampler = null;
+
+      /** Opened, and the header written, when the first station is added, by which time all the options have been set */
+      @Nullable
+      private JsonWriter json = null;
+      private boolean hasFailed = false;
+
+      private String name = null;
+      private int recordOffset = 0;
+
+      public MetadataGenerator(@NotNull final File outputDirectory, @NotNull final GeolocatedDevices geolocatedDevices)
+         {
+         this.outputDirectory = outputDirectory;
+         this.geolocatedDevices = geolocatedDevices;
+         }
+
+      /**
+       * Makes the metadata describe the columns written by the given {@link BinaryGenerator} in a columnar format.  The
+       * generator must be given each station's lines before this generator's {@link #handleEnd(int)} is called.
+       */
+      void setColumnarBinaryGenerator(@Nullable final BinaryGenerator columnarBinaryGenerator)
+         {
+         this.columnarBinaryGenerator = columnarBinaryGenerator;
+         }
+
+      /**
+       * Makes the metadata describe the downsampled levels written by the given pyramid.  The pyramid must be given
+       * each station's records before this generator's {@link #handleEnd(int)} is called.
+       */
+      void setPyramid(@Nullable final DownsampledPyramid pyramid)
+         {
+         this.pyramid = pyramid;
+         }
+
+      /**
+       * Makes the metadata describe the zones written by the given zone map.  The zone map must be given each station's
+       * records before this generator's {@link #handleEnd(int)} is called.
+       */
+      void setZoneMap(@Nullable final ZoneMap zoneMap)
+         {
+         this.zoneMap = zoneMap;
+         }
+
+      /**
+       * Makes the metadata describe the samples written by the given resampler.  The resampler must be given each
+       * station's records before this generator's {@link #handleEnd(int)} is called.
+       */
+      void setResampler(@Nullable final Resampler resampler)
+         {
+         this.resampler = resampler;
+         }
+
+      @Override
+      public void handleBegin(@NotNull String name)
+         {
+         this.name = name;
+         statistics.reset();
+         }
+
+      @Override
+      public void handleLine(final int epochTimeInSeconds, final double value, final short valueAsShort)
+         {
+         statistics.handleLine(epochTimeInSeconds, value);
+         }
+
       @Override
       public void handleEnd(final int numRecords)
+         {
+         handleDevice(name, statistics, numRecords);
+         }
+
+      /** Adds the metadata for a station whose statistics were gathered elsewhere, e.g. during incremental processing. */
+      void handleDevice(@NotNull final String name, @NotNull final StationStatistics statistics, final int numRecords)
          {
          final GeolocatedDevices.Device device = geolocatedDevices.findByName(name);
          if (device != null)
             {
-            final StringBuilder sb = new StringBuilder("{");
-            sb.append("\"name\":").append("\"").append(name).append("\",");
-            sb.append("\"latitude\":").append(device.getLatitude()).append(",");
-            sb.append("\"longitude\":").append(device.getLongitude()).append(",");
-            sb.append("\"minTime\":").append(minTime).append(",");
-            sb.append("\"maxTime\":").append(maxTime).append(",");
-            sb.append("\"minValue\":").append(minValue).append(",");
-            sb.append("\"maxValue\":").append(maxValue).append(",");
-            sb.append("\"minValueTime\":").append(minValueTime).append(",");
-            sb.append("\"maxValueTime\":").append(maxValueTime).append(",");
-            sb.append("\"numRecords\":").append(numRecords).append(",");
-            sb.append("\"recordOffset\":").append(recordOffset).append("}");
-            devicesJson.add(sb.toString());
+            final JsonWriter json = getJsonWriter();
+            if (json != null)
+               {
+               try
+                  {
+                  json.newline().beginObject();
+                  json.name("name").value(name);
+                  json.name("latitude").numberValue(device.getLatitude());
+                  json.name("longitude").numberValue(device.getLongitude());
+                  json.name("minTime").value(statistics.minTime);
+                  json.name("maxTime").value(statistics.maxTime);
+                  json.name("minValue").value(statistics.minValue);
+                  json.name("maxValue").value(statistics.maxValue);
+                  json.name("minValueTime").value(statistics.minValueTime);
+                  json.name("maxValueTime").value(statistics.maxValueTime);
+                  json.name("numRecords").value(numRecords);
+                  json.name("recordOffset").value(recordOffset);
+                  if (columnarBinaryGenerator != null)
+                     {
+                     json.name("timeColumnOffset").value(columnarBinaryGenerator.getTimeColumnOffset());
+                     json.name("timeColumnLength").value(columnarBinaryGenerator.getTimeColumnLength());
+                     json.name("valueColumnOffset").value(columnarBinaryGenerator.getValueColumnOffset());
+                     json.name("valueColumnLength").value(columnarBinaryGenerator.getValueColumnLength());
+                     }
+                  if (pyramid != null)
+                     {
+                     pyramid.writeDeviceJson(json);
+                     }
+                  if (zoneMap != null)
+                     {
+                     zoneMap.writeDeviceJson(json);
+                     }
+                  if (resampler != null)
+                     {
+                     resampler.writeDeviceJson(json);
+                     }
+                  json.endObject();
+                  }
+               catch (IOException e)
+                  {
+                  handleWriteFailure(e);
+                  }
+               }
 
             recordOffset += numRecords;
             }
@@ -264,53 +1027,281 @@ public class AirNowDataProcessor
 
       public void finish()
          {
-         try
+         final JsonWriter json = getJsonWriter();
+         if (json != null)
+            {
+            try
+               {
+               json.newline().endArray().endObject().newline();
+               json.close();
+               }
+            catch (IOException e)
+               {
+               handleWriteFailure(e);
+               }
+            }
+         }
+
+      @Nullable
+      private JsonWriter getJsonWriter()
+         {
+         if (json == null && !hasFailed)
             {
-            final File file = new File(outputDirectory, "airnow_metadata.json");
-            final PrintWriter writer = new PrintWriter(new FileWriter(file));
-            writer.println("{\"valueIntervalSecs\":" + SAMPLE_INTERVAL_SECS + ",\"devices\" : [");
+            try
+               {
+               json = JsonWriter.create(new File(outputDirectory, METADATA_FILENAME));
+               json.beginObject();
+               json.name("valueIntervalSecs").value(SAMPLE_INTERVAL_SECS);
+               if (columnarBinaryGenerator != null)
+                  {
+                  columnarBinaryGenerator.getFormat().writeJson(json, AlignedColumnEncoder.ValueType.INT16);
+                  }
+               if (pyramid != null)
+                  {
+                  pyramid.writeLevelsJson(json);
+                  }
+               if (zoneMap != null)
+                  {
+                  zoneMap.writeJson(json);
+                  }
+               if (resampler != null)
+                  {
+                  resampler.writeJson(json);
+                  }
+               json.name("devices").beginArray();
+               }
+            catch (IOException e)
+               {
+               handleWriteFailure(e);
+               }
+            }
+         return json;
+         }
 
-            int i = 0;
-            for (final String json : devicesJson)
+      private void handleWriteFailure(@NotNull final IOException e)
+         {
+         LOG.error("IOException while trying to write the metadata file", e);
+         hasFailed = true;
+         if (json != null)
+            {
+            try
                {
-               writer.println(json + ((i == devicesJson.size() - 1) ? "" : ","));
-               i++;
+               json.close();
                }
-            writer.println("]}");
+            catch (IOException ignored)
+               {
+               // nothing more to do
+               }
+            json = null;
+            }
+         }
+      }
+
+   /**
+    * Writes each station's records, sorted by time, to a {@link TimeSeriesStore}, so that they can be queried later.  The
+    * values are stored as the tenths written to the binary file.
+    */
+   static final class StoreGenerator implements AirNowCsvDataFileEventListener.EventListener
+      {
+      @NotNull
+      private final TimeSeriesStoreWriter writer;
+
+      StoreGenerator(@NotNull final TimeSeriesStoreWriter writer)
+         {
+         this.writer = writer;
+         }
+
+      @Override
+      public void handleBegin(@NotNull final String name)
+         {
+         writer.beginSeries(name);
+         }
+
+      @Override
+      public void handleLine(final int epochTimeInSeconds, final double value, final short valueAsShort)
+         {
+         writer.add(epochTimeInSeconds, valueAsShort);
+         }
+
+      @Override
+      public void handleEnd(final int numRecords)
+         {
+         try
+            {
+            writer.endSeries();
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException while writing to the time series store", e);
+            }
+         }
 
+      public void finish()
+         {
+         try
+            {
             writer.close();
             }
          catch (IOException e)
             {
-            LOG.error("IOException while trying to write the metadata file", e);
+            LOG.error("IOException while trying to close the time series store", e);
+            }
+         }
+      }
+
+   /**
+    * Feeds each station's records to a {@link DownsampledPyramid}, which writes the downsampled levels.  The values are
+    * aggregated as the client sees them in the binary file, i.e. rounded to tenths, which also means that an
+    * incremental run, which only has the rounded values, produces exactly the same levels.
+    */
+   static final class PyramidGenerator implements AirNowCsvDataFileEventListener.EventListener
+      {
+      @NotNull
+      private final DownsampledPyramid pyramid;
+
+      PyramidGenerator(@NotNull final DownsampledPyramid pyramid)
+         {
+         this.pyramid = pyramid;
+         }
+
+      @Override
+      public void handleBegin(@NotNull final String name)
+         {
+         pyramid.handleBegin();
+         }
+
+      @Override
+      public void handleLine(final int epochTimeInSeconds, final double value, final short valueAsShort)
+         {
+         pyramid.handleRecord(epochTimeInSeconds, valueAsShort / 10.0);
+         }
+
+      @Override
+      public void handleEnd(final int numRecords)
+         {
+         try
+            {
+            pyramid.handleEnd();
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException while writing downsampled data", e);
+            }
+         }
+
+      public void finish()
+         {
+         try
+            {
+            pyramid.finish();
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException while trying to close the downsampled data output streams", e);
             }
          }
       }
 
-   private static final class BinaryGenerator implements AirNowCsvDataFileEventListener.EventListener
+   /**
+    * Writes the binary data file.  By default, each record is written as the time followed by the value.  In columnar
+    * mode, each station's records are instead written as two contiguous columns: the times, delta-of-delta encoded, and
+    * then the values, delta encoded, both as zigzag varints (see {@link VarintColumnEncoder}).  In aligned mode, the two
+    * columns are instead little-endian ints for the times and shorts for the values, each padded to an aligned length (see {@link AlignedColumnEncoder}), so
+    * that the browser can view them as typed arrays.  The offsets and lengths of the current station's columns are
+    * available to the {@link MetadataGenerator} once its last line has been handled.  If given a {@link ZoneMap}, the
+    * generator also feeds it every record, in the order written.  If given a {@link Resampler}, only the resampled values
+    * are written instead.
+    */
+   static final class BinaryGenerator implements AirNowCsvDataFileEventListener.EventListener
       {
       @NotNull
-      private final DataOutputStream outputStream;
+      private final BinaryRecordWriter writer;
+      @NotNull
+      private final BinaryFormat format;
+      @Nullable
+      private final ColumnEncoder timeColumn;
+      @Nullable
+      private final ColumnEncoder valueColumn;
+      private long columnsOffset = 0;
+      private long nextColumnsOffset = 0;
+      @Nullable
+      private ZoneMap zoneMap = null;
+      @Nullable
+      private Resampler resampler = null;
 
       public BinaryGenerator(@NotNull final File outputDirectory) throws IOException
          {
-         final File dataFile = new File(outputDirectory, "airnow_data.bin");
-         outputStream = new DataOutputStream(new FileOutputStream(dataFile));
+         this(outputDirectory, BinaryFormat.RECORDS);
+         }
+
+      BinaryGenerator(@NotNull final File outputDirectory, @NotNull final BinaryFormat format) throws IOException
+         {
+         final File dataFile = new File(outputDirectory, DATA_FILENAME);
+         writer = new BinaryRecordWriter(dataFile);
+         this.format = format;
+         timeColumn = format.createTimeColumnEncoder();
+         valueColumn = format.createValueColumnEncoder(AlignedColumnEncoder.ValueType.INT16);
+         }
+
+      @NotNull
+      BinaryFormat getFormat()
+         {
+         return format;
+         }
+
+      /** Sets the zone map to be fed the records, which only makes sense for the records format. */
+      void setZoneMap(@Nullable final ZoneMap zoneMap)
+         {
+         this.zoneMap = zoneMap;
+         }
+
+      /** Sets the resampler whose values are written instead of the records, for the resampled format. */
+      void setResampler(@Nullable final Resampler resampler)
+         {
+         this.resampler = resampler;
          }
 
       @Override
       public void handleBegin(@NotNull final String name)
          {
-         // nothing to do
+         if (zoneMap != null)
+            {
+            zoneMap.handleBegin(name);
+            }
+         if (resampler != null)
+            {
+            resampler.handleBegin(name);
+            }
+         if (timeColumn != null && valueColumn != null)
+            {
+            timeColumn.reset();
+            valueColumn.reset();
+            columnsOffset = nextColumnsOffset;
+            }
          }
 
       @Override
       public void handleLine(final int epochTimeInSeconds, final double value, final short valueAsShort)
          {
+         if (zoneMap != null)
+            {
+            zoneMap.handleRecord(epochTimeInSeconds, valueAsShort);
+            }
+         if (resampler != null)
+            {
+            resampler.handleRecord(epochTimeInSeconds, valueAsShort);
+            return;
+            }
+         if (timeColumn != null && valueColumn != null)
+            {
+            timeColumn.add(epochTimeInSeconds);
+            valueColumn.add(valueAsShort);
+            return;
+            }
          try
             {
-            outputStream.writeInt(epochTimeInSeconds);
-            outputStream.writeShort(valueAsShort);       // we write the short version of the value to save space
+            writer.writeInt(epochTimeInSeconds);
+            writer.writeShort(valueAsShort);       // we write the short version of the value to save space
             }
          catch (IOException e)
             {
@@ -321,19 +1312,91 @@ public class AirNowDataProcessor
       @Override
       public void handleEnd(final int numRecords)
          {
-         // nothing to do
+         if (zoneMap != null)
+            {
+            zoneMap.handleEnd();
+            }
+         if (resampler != null)
+            {
+            try
+               {
+               resampler.handleEnd(writer);
+               }
+            catch (IOException e)
+               {
+               LOG.error("IOException while writing binary data", e);
+               }
+            }
+         if (timeColumn != null && valueColumn != null)
+            {
+            try
+               {
+               timeColumn.writeTo(writer);
+               valueColumn.writeTo(writer);
+               }
+            catch (IOException e)
+               {
+               LOG.error("IOException while writing binary data", e);
+               }
+            nextColumnsOffset += timeColumn.getLength() + valueColumn.getLength();
+            }
+         }
+
+      /** Appends a station's records which were already written to a segment file, e.g. during incremental processing. */
+      void appendSegment(@NotNull final File segmentFile, @NotNull final String name) throws IOException
+         {
+         if (timeColumn == null && zoneMap == null && resampler == null)
+            {
+            writer.transferFrom(segmentFile);
+            return;
+            }
+
+         // segments hold records, so they need to be re-encoded as columns or samples, or summarized in the zone map
+         replaySegment(segmentFile, name, this);
+         }
+
+      long getTimeColumnOffset()
+         {
+         return columnsOffset;
+         }
+
+      int getTimeColumnLength()
+         {
+         return (timeColumn == null) ? 0 : timeColumn.getLength();
+         }
+
+      long getValueColumnOffset()
+         {
+         return columnsOffset + getTimeColumnLength();
+         }
+
+      int getValueColumnLength()
+         {
+         return (valueColumn == null) ? 0 : valueColumn.getLength();
          }
 
       public void finish()
          {
          try
             {
-            outputStream.close();
+            writer.close();
+            LOG.debug("Wrote " + writer.getNumBytesWritten() + " bytes of binary data in " + writer.getNumWriteCalls() + " write calls");
             }
          catch (IOException e)
             {
             LOG.error("IOException while trying to close the binary output stream", e);
             }
+         if (zoneMap != null)
+            {
+            try
+               {
+               zoneMap.finish();
+               }
+            catch (IOException e)
+               {
+               LOG.error("IOException while trying to write the zone map", e);
+               }
+            }
          }
       }
    }
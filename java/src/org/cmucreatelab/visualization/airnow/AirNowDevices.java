@@ -4,30 +4,128 @@ import java.io.File;
 import org.cmucreatelab.io.CsvReader;
 import org.cmucreatelab.visualization.GeolocatedDevices;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Chris Bartley (bartley@cmu.edu)
  */
 public class AirNowDevices extends GeolocatedDevices
    {
+   private static final int LATITUDE_COLUMN = 0;
+   private static final int LONGITUDE_COLUMN = 1;
+   private static final int ELEVATION_COLUMN = 2;
+   private static final int START_TIME_COLUMN = 3;
+   private static final int NAME_COLUMN = 4;
+   private static final int CHANNEL_DATA_COLUMN = 5;
+
    public AirNowDevices(@NotNull final File airNowDevicesFile)
       {
-      final CsvReader csvReader = new CsvReader(airNowDevicesFile, true, 6);
+      final CsvReader csvReader = new CsvReader(airNowDevicesFile, true, 5);
       csvReader.addEventListener(
             new CsvReader.EventListenerAdapter()
             {
             @Override
             public void handleLine(@NotNull final String line, @NotNull final String[] values)
                {
-               final String name = values[4];
-               final String latitude = values[0];
-               final String longitude = values[1];
+               final String name = values[NAME_COLUMN];
+               final String latitude = values[LATITUDE_COLUMN];
+               final String longitude = values[LONGITUDE_COLUMN];
                if (name != null && latitude != null && longitude != null)
                   {
-                  addDevice(new DeviceImpl(name, latitude, longitude));
+                  addDevice(new Station(name,
+                                        latitude,
+                                        longitude,
+                                        values[ELEVATION_COLUMN],
+                                        values[START_TIME_COLUMN],
+                                        (values.length > CHANNEL_DATA_COLUMN) ? values[CHANNEL_DATA_COLUMN] : null));
                   }
                }
             });
       csvReader.read();
       }
+
+   /**
+    * An AirNow monitoring station, with all the columns of the devices file.  The channel data is kept as the raw
+    * JSON array of <code>[channel name, min value, max value]</code> triples, e.g.
+    * <code>[["PM2_5_mass",-0.3,5.0],["Ozone",1.0,56.0]]</code>.
+    */
+   public static final class Station implements Device
+      {
+      @NotNull
+      private final String name;
+      @NotNull
+      private final String latitude;
+      @NotNull
+      private final String longitude;
+      @NotNull
+      private final String elevation;
+      @NotNull
+      private final String startTime;
+      @Nullable
+      private final String channelData;
+
+      private Station(@NotNull final String name,
+                      @NotNull final String latitude,
+                      @NotNull final String longitude,
+                      @NotNull final String elevation,
+                      @NotNull final String startTime,
+                      @Nullable final String channelData)
+         {
+         this.name = name;
+         this.latitude = latitude;
+         this.longitude = longitude;
+         this.elevation = elevation;
+         this.startTime = startTime;
+         this.channelData = channelData;
+         }
+
+      @NotNull
+      public String getName()
+         {
+         return name;
+         }
+
+      @Nullable
+      public String getPrettyName()
+         {
+         return null;
+         }
+
+      @NotNull
+      public String getLatitude()
+         {
+         return latitude;
+         }
+
+      @NotNull
+      public String getLongitude()
+         {
+         return longitude;
+         }
+
+      @Nullable
+      public String getLocationDetails()
+         {
+         return null;
+         }
+
+      @NotNull
+      public String getElevation()
+         {
+         return elevation;
+         }
+
+      /** Returns the time of the station's first sample, in epoch seconds, as written in the devices file. */
+      @NotNull
+      public String getStartTime()
+         {
+         return startTime;
+         }
+
+      @Nullable
+      public String getChannelData()
+         {
+         return channelData;
+         }
+      }
    }
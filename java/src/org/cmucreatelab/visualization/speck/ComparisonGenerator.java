@@ -0,0 +1,501 @@
+package org.cmucreatelab.visualization.speck;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.log4j.Logger;
+import org.cmucreatelab.io.BinaryRecordWriter;
+import org.cmucreatelab.io.JsonWriter;
+import org.cmucreatelab.util.TimeIntervals;
+import org.cmucreatelab.util.TimeSeriesBuffer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Compares two co-located devices, a reference and a device under test, over a rolling window of time, in a single
+ * pass.  Each device's records are first averaged over each sample interval, so that a device which reports more often
+ * than the other doesn't get more say, and the two means of each interval which both devices have records in make a
+ * pair.
+ * </p>
+ * <p>
+ * Only one of the two series is actually streamed.  Device files arrive one after another, not side by side, so
+ * whichever of the two devices is seen first has all its records buffered on the heap (8 bytes per record, and then
+ * 12 bytes per sample interval once they're averaged, when the other device begins), and only the other device's
+ * interval means are merge-joined with them as they stream in.  Memory is thus proportional to the length of the first
+ * device's series, not constant, but that's only one device's worth, and it's let go once the comparison is done.
+ * </p>
+ * <p>
+ * Every pair ends a window, which holds the pairs of the sample intervals starting within the window length before
+ * it, up to and including its own.  The window's pairs are kept in a ring buffer, and as each pair enters and the
+ * ones too old for the window leave, the Pearson correlation, the bias (the mean of the device's value minus the
+ * reference's) and the root mean square of the differences are updated with running co-moments, so that large values
+ * don't lose precision.  Removing pairs lets rounding errors build up, so the window's statistics are recomputed from
+ * the ring buffer each time as many pairs as it holds have been added, and a device whose values in the window are all
+ * the same is known to have no variance by counting its trailing run of equal values, rather than by trusting a sum of
+ * squares which may have come out a little above zero.  Pairs must arrive in time order for the window to roll, so a streamed interval which isn't
+ * later than the one before it is dropped, and the number dropped is logged.
+ * </p>
+ * <p>
+ * The windows are written to the comparison file, one big-endian record per pair: the start of the pair's sample
+ * interval, which ends the window (int, epoch seconds), the number of pairs in the window (int), and the correlation,
+ * bias and RMSE (floats, the correlation being NaN if either device's values didn't vary).  The same statistics over
+ * all the pairs go in the metadata.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class ComparisonGenerator implements SpeckCsvDataFileEventListener.EventListener
+   {
+   private static final Logger LOG = Logger.getLogger(ComparisonGenerator.class);
+
+   static final int RECORD_SIZE_IN_BYTES = 20;
+   private static final int INITIAL_WINDOW_CAPACITY = 64;
+
+   /** Accumulates the pairs of a window, or of the whole comparison. */
+   private static final class PairStatistics
+      {
+      private long numPairs = 0;
+      private double referenceMean = 0;
+      private double deviceMean = 0;
+      private double referenceSumOfSquares = 0;
+      private double deviceSumOfSquares = 0;
+      private double coMoment = 0;
+      private double sumOfDifferences = 0;
+      private double sumOfSquaredDifferences = 0;
+
+      private void add(final double referenceValue, final double deviceValue)
+         {
+         numPairs++;
+         final double referenceDelta = referenceValue - referenceMean;
+         final double deviceDelta = deviceValue - deviceMean;
+         referenceMean += referenceDelta / numPairs;
+         deviceMean += deviceDelta / numPairs;
+         referenceSumOfSquares += referenceDelta * (referenceValue - referenceMean);
+         deviceSumOfSquares += deviceDelta * (deviceValue - deviceMean);
+         coMoment += referenceDelta * (deviceValue - deviceMean);
+         final double difference = deviceValue - referenceValue;
+         sumOfDifferences += difference;
+         sumOfSquaredDifferences += difference * difference;
+         }
+
+      /** Undoes {@link #add(double, double)} of the given pair, by running the same updates backwards. */
+      private void remove(final double referenceValue, final double deviceValue)
+         {
+         if (numPairs <= 1)
+            {
+            reset();
+            return;
+            }
+         numPairs--;
+         final double previousReferenceMean = referenceMean;
+         final double previousDeviceMean = deviceMean;
+         referenceMean -= (referenceValue - referenceMean) / numPairs;
+         deviceMean -= (deviceValue - deviceMean) / numPairs;
+         final double referenceDelta = referenceValue - referenceMean;
+         final double deviceDelta = deviceValue - deviceMean;
+         referenceSumOfSquares -= referenceDelta * (referenceValue - previousReferenceMean);
+         deviceSumOfSquares -= deviceDelta * (deviceValue - previousDeviceMean);
+         coMoment -= referenceDelta * (deviceValue - previousDeviceMean);
+         final double difference = deviceValue - referenceValue;
+         sumOfDifferences -= difference;
+         sumOfSquaredDifferences -= difference * difference;
+         }
+
+      private double getCorrelation()
+         {
+         final double denominator = Math.sqrt(referenceSumOfSquares * deviceSumOfSquares);
+         return (denominator > 0) ? coMoment / denominator : Double.NaN;
+         }
+
+      private double getBias()
+         {
+         return (numPairs > 0) ? sumOfDifferences / numPairs : Double.NaN;
+         }
+
+      private double getRootMeanSquareError()
+         {
+         return (numPairs > 0) ? Math.sqrt(sumOfSquaredDifferences / numPairs) : Double.NaN;
+         }
+
+      private void reset()
+         {
+         numPairs = 0;
+         referenceMean = 0;
+         deviceMean = 0;
+         referenceSumOfSquares = 0;
+         deviceSumOfSquares = 0;
+         coMoment = 0;
+         sumOfDifferences = 0;
+         sumOfSquaredDifferences = 0;
+         }
+      }
+
+   private final int sampleIntervalSecs;
+   @NotNull
+   private final String referenceDeviceName;
+   @NotNull
+   private final String deviceName;
+   private final int windowSecs;
+   @NotNull
+   private final File outputFile;
+
+   @Nullable
+   private BinaryRecordWriter writer = null;
+   private boolean hasFailed = false;
+
+   /** Which of the two devices is currently being handled, or neither */
+   private boolean isHandlingReference = false;
+   private boolean isHandlingDevice = false;
+
+   /**
+    * The device seen first: its records, with their times moved to the start of their sample interval, and then, once
+    * the other device begins, the mean of each interval, in time order
+    */
+   private boolean isBufferedDeviceTheReference = false;
+   @Nullable
+   private TimeSeriesBuffer bufferedRecords = null;
+   private int[] bufferedIntervals = null;
+   private double[] bufferedMeans = null;
+   private int numBufferedIntervals = 0;
+   private boolean isMerging = false;
+   private boolean hasMerged = false;
+   private int cursor = 0;
+
+   /** The streamed device's current sample interval, whose records are being averaged */
+   private int streamedInterval = 0;
+   private long streamedSum = 0;
+   private int streamedCount = 0;
+
+   /** The latest streamed interval merged so far, or Long.MIN_VALUE before the first, and how many came after it */
+   private long lastMergedInterval = Long.MIN_VALUE;
+   private int numDroppedIntervals = 0;
+
+   /** The pairs in the window, oldest first, in a ring buffer starting at windowHead */
+   private int[] windowIntervals = new int[INITIAL_WINDOW_CAPACITY];
+   private double[] windowReferenceValues = new double[INITIAL_WINDOW_CAPACITY];
+   private double[] windowDeviceValues = new double[INITIAL_WINDOW_CAPACITY];
+   private int windowHead = 0;
+   private int windowSize = 0;
+   private int numPairsSinceRecompute = 0;
+
+   /** The number of pairs at the end of the window whose reference, or device, value is the same as the latest */
+   private int numSameReferenceValues = 0;
+   private int numSameDeviceValues = 0;
+   @NotNull
+   private final PairStatistics windowStatistics = new PairStatistics();
+   @NotNull
+   private final PairStatistics overallStatistics = new PairStatistics();
+   private int numWindows = 0;
+
+   ComparisonGenerator(final int sampleIntervalSecs,
+                       @NotNull final String referenceDeviceName,
+                       @NotNull final String deviceName,
+                       final int windowSecs,
+                       @NotNull final File outputFile)
+      {
+      this.sampleIntervalSecs = sampleIntervalSecs;
+      this.referenceDeviceName = referenceDeviceName;
+      this.deviceName = deviceName;
+      this.windowSecs = windowSecs;
+      this.outputFile = outputFile;
+      }
+
+   @NotNull
+   File getOutputFile()
+      {
+      return outputFile;
+      }
+
+   @Override
+   public void handleBegin(@NotNull final String name)
+      {
+      isHandlingReference = referenceDeviceName.equals(name);
+      isHandlingDevice = deviceName.equals(name);
+      if ((isHandlingReference || isHandlingDevice) && bufferedRecords == null && !hasMerged)
+         {
+         isBufferedDeviceTheReference = isHandlingReference;
+         bufferedRecords = new TimeSeriesBuffer();
+         }
+      else if (!hasMerged && ((isHandlingReference && !isBufferedDeviceTheReference) || (isHandlingDevice && isBufferedDeviceTheReference)))
+         {
+         averageBufferedRecords();
+         isMerging = true;
+         cursor = 0;
+         }
+      else
+         {
+         // a device which isn't compared, or one of the compared devices seen again, e.g. as an incremental segment
+         isHandlingReference = false;
+         isHandlingDevice = false;
+         }
+      }
+
+   @Override
+   public void handleLine(final int epochTimeInSeconds, final int value)
+      {
+      if (!isHandlingReference && !isHandlingDevice)
+         {
+         return;
+         }
+      final int interval = (int)TimeIntervals.floor(epochTimeInSeconds, sampleIntervalSecs);
+      if (isMerging)
+         {
+         if (streamedCount > 0 && interval != streamedInterval)
+            {
+            merge();
+            }
+         streamedInterval = interval;
+         streamedSum += value;
+         streamedCount++;
+         }
+      else
+         {
+         bufferedRecords.add(interval, value);
+         }
+      }
+
+   /** Sorts the buffered device's records, and replaces them with the mean of each sample interval. */
+   private void averageBufferedRecords()
+      {
+      final TimeSeriesBuffer records = bufferedRecords;
+      records.sortByTime();
+      bufferedIntervals = new int[records.size()];
+      bufferedMeans = new double[records.size()];
+      numBufferedIntervals = 0;
+      int i = 0;
+      while (i < records.size())
+         {
+         final int interval = records.getTime(i);
+         long sum = 0;
+         int count = 0;
+         while (i < records.size() && records.getTime(i) == interval)
+            {
+            sum += records.getValue(i);
+            count++;
+            i++;
+            }
+         bufferedIntervals[numBufferedIntervals] = interval;
+         bufferedMeans[numBufferedIntervals] = (double)sum / count;
+         numBufferedIntervals++;
+         }
+      }
+
+   /** Pairs the mean of the streamed device's current interval with the buffered device's mean, if it has one. */
+   private void merge()
+      {
+      final int interval = streamedInterval;
+      final double streamedMean = (double)streamedSum / streamedCount;
+      streamedSum = 0;
+      streamedCount = 0;
+
+      if (interval <= lastMergedInterval)
+         {
+         // the streamed data went back in time, and the window has already rolled past this interval
+         numDroppedIntervals++;
+         return;
+         }
+      lastMergedInterval = interval;
+
+      while (cursor < numBufferedIntervals && bufferedIntervals[cursor] < interval)
+         {
+         cursor++;
+         }
+      if (cursor < numBufferedIntervals && bufferedIntervals[cursor] == interval)
+         {
+         final double bufferedMean = bufferedMeans[cursor];
+         final double referenceValue = isBufferedDeviceTheReference ? bufferedMean : streamedMean;
+         final double deviceValue = isBufferedDeviceTheReference ? streamedMean : bufferedMean;
+         rollWindow(interval, referenceValue, deviceValue);
+         overallStatistics.add(referenceValue, deviceValue);
+         writeWindow(interval);
+         }
+      }
+
+   /** Adds the pair to the window, and removes the pairs which are now too old to be in it. */
+   private void rollWindow(final int interval, final double referenceValue, final double deviceValue)
+      {
+      final long oldestIntervalInWindow = (long)interval - windowSecs;
+      while (windowSize > 0 && windowIntervals[windowHead] <= oldestIntervalInWindow)
+         {
+         windowStatistics.remove(windowReferenceValues[windowHead], windowDeviceValues[windowHead]);
+         windowHead = (windowHead + 1) % windowIntervals.length;
+         windowSize--;
+         }
+
+      if (windowSize == windowIntervals.length)
+         {
+         // unroll the ring into bigger arrays, oldest first
+         final int newCapacity = windowIntervals.length * 2;
+         windowIntervals = unrollWindow(windowIntervals, newCapacity);
+         windowReferenceValues = unrollWindow(windowReferenceValues, newCapacity);
+         windowDeviceValues = unrollWindow(windowDeviceValues, newCapacity);
+         windowHead = 0;
+         }
+      final int tail = (windowHead + windowSize) % windowIntervals.length;
+      final int previous = (tail + windowIntervals.length - 1) % windowIntervals.length;
+      numSameReferenceValues = (windowSize > 0 && windowReferenceValues[previous] == referenceValue) ? numSameReferenceValues + 1 : 1;
+      numSameDeviceValues = (windowSize > 0 && windowDeviceValues[previous] == deviceValue) ? numSameDeviceValues + 1 : 1;
+      windowIntervals[tail] = interval;
+      windowReferenceValues[tail] = referenceValue;
+      windowDeviceValues[tail] = deviceValue;
+      windowSize++;
+
+      numPairsSinceRecompute++;
+      if (numPairsSinceRecompute >= windowIntervals.length)
+         {
+         // start again from the pairs themselves, so that the rounding errors of removing pairs don't build up
+         windowStatistics.reset();
+         for (int i = 0; i < windowSize; i++)
+            {
+            final int index = (windowHead + i) % windowIntervals.length;
+            windowStatistics.add(windowReferenceValues[index], windowDeviceValues[index]);
+            }
+         numPairsSinceRecompute = 0;
+         }
+      else
+         {
+         windowStatistics.add(referenceValue, deviceValue);
+         }
+      }
+
+   /** Returns the window's correlation, or NaN if either device's values in the window are all the same. */
+   private double getWindowCorrelation()
+      {
+      if (numSameReferenceValues >= windowSize || numSameDeviceValues >= windowSize)
+         {
+         return Double.NaN;
+         }
+      return Math.max(-1, Math.min(1, windowStatistics.getCorrelation()));
+      }
+
+   @NotNull
+   private int[] unrollWindow(@NotNull final int[] ring, final int newCapacity)
+      {
+      final int[] unrolled = Arrays.copyOfRange(ring, windowHead, windowHead + newCapacity);
+      System.arraycopy(ring, 0, unrolled, ring.length - windowHead, windowHead);
+      return unrolled;
+      }
+
+   @NotNull
+   private double[] unrollWindow(@NotNull final double[] ring, final int newCapacity)
+      {
+      final double[] unrolled = Arrays.copyOfRange(ring, windowHead, windowHead + newCapacity);
+      System.arraycopy(ring, 0, unrolled, ring.length - windowHead, windowHead);
+      return unrolled;
+      }
+
+   @Override
+   public void handleEnd(final int numRecords)
+      {
+      if (isMerging)
+         {
+         if (streamedCount > 0)
+            {
+            merge();
+            }
+         if (numDroppedIntervals > 0)
+            {
+            LOG.warn("Skipped " + numDroppedIntervals + " sample intervals of [" + (isBufferedDeviceTheReference ? deviceName : referenceDeviceName) + "] which weren't later than the intervals before them, since its data isn't in time order");
+            }
+         isMerging = false;
+         hasMerged = true;
+
+         // the comparison is done, so let the buffer be garbage collected
+         bufferedRecords = null;
+         bufferedIntervals = new int[0];
+         bufferedMeans = new double[0];
+         numBufferedIntervals = 0;
+         }
+      isHandlingReference = false;
+      isHandlingDevice = false;
+      }
+
+   /** Writes the statistics of the window ending with the given interval. */
+   private void writeWindow(final int interval)
+      {
+      final BinaryRecordWriter writer = getWriter();
+      if (writer != null)
+         {
+         try
+            {
+            writer.writeInt(interval);
+            writer.writeInt((int)windowStatistics.numPairs);
+            writer.writeFloat((float)getWindowCorrelation());
+            writer.writeFloat((float)windowStatistics.getBias());
+            writer.writeFloat((float)windowStatistics.getRootMeanSquareError());
+            }
+         catch (IOException e)
+            {
+            handleWriteFailure(e);
+            }
+         }
+      numWindows++;
+      }
+
+   /** Writes the comparison's summary to the metadata, as the value of a <code>comparison</code> field. */
+   void writeJson(@NotNull final JsonWriter json) throws IOException
+      {
+      json.name("comparison").beginObject();
+      json.name("referenceDevice").value(referenceDeviceName);
+      json.name("device").value(deviceName);
+      json.name("windowSecs").value(windowSecs);
+      json.name("file").value(outputFile.getName());
+      json.name("recordSizeInBytes").value(RECORD_SIZE_IN_BYTES);
+      json.name("numWindows").value(numWindows);
+      json.name("numPairs").value(overallStatistics.numPairs);
+      json.name("correlation").value(overallStatistics.getCorrelation());
+      json.name("bias").value(overallStatistics.getBias());
+      json.name("rmse").value(overallStatistics.getRootMeanSquareError());
+      json.endObject();
+      }
+
+   public void finish()
+      {
+      if (bufferedRecords == null && !hasMerged)
+         {
+         LOG.error("Neither [" + referenceDeviceName + "] nor [" + deviceName + "] had data, so there's nothing to compare");
+         }
+      else if (!hasMerged)
+         {
+         LOG.error("Only one of [" + referenceDeviceName + "] and [" + deviceName + "] had data, so there's nothing to compare");
+         }
+
+      // always write the file, even if empty, so that it matches the metadata
+      final BinaryRecordWriter writer = getWriter();
+      if (writer != null)
+         {
+         try
+            {
+            writer.close();
+            }
+         catch (IOException e)
+            {
+            handleWriteFailure(e);
+            }
+         }
+      }
+
+   @Nullable
+   private BinaryRecordWriter getWriter()
+      {
+      if (writer == null && !hasFailed)
+         {
+         try
+            {
+            writer = new BinaryRecordWriter(outputFile);
+            }
+         catch (IOException e)
+            {
+            handleWriteFailure(e);
+            }
+         }
+      return writer;
+      }
+
+   private void handleWriteFailure(@NotNull final IOException e)
+      {
+      LOG.error("IOException while trying to write the comparison file", e);
+      hasFailed = true;
+      }
+   }
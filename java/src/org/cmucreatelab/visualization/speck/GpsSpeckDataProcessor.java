@@ -0,0 +1,501 @@
+package org.cmucreatelab.visualization.speck;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.apache.log4j.Logger;
+import org.cmucreatelab.io.BinaryRecordWriter;
+import org.cmucreatelab.io.CsvLine;
+import org.cmucreatelab.io.CsvReader;
+import org.cmucreatelab.io.JsonWriter;
+import org.cmucreatelab.io.NumberParser;
+import org.cmucreatelab.visualization.OrderedParallelRunner;
+import org.cmucreatelab.visualization.TrackTiler;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Converts the CSV files of mobile GPS Specks, one per device, into either the JavaScript file written by
+ * <code>convert_gps_speck_csvs_to_js.sh</code>, or a binary file plus metadata like the other processors.  Only the
+ * lines with a valid GPS fix are kept.  Files are parsed in parallel, but written in the order of their names.
+ * </p>
+ * <p>
+ * The binary file holds one big-endian record after another: the time (int, epoch seconds), latitude, longitude and
+ * value (floats).  Each device's records are in file order, and the metadata gives each device's record offset and
+ * count, along with the ranges of its times, positions and values.
+ * </p>
+ * <p>
+ * With the <code>--tiles</code> option, the tracks are also simplified for each of the given zoom levels and bucketed
+ * into slippy map tiles by a {@link TrackTiler}, in the <code>gps_speck_tiles</code> subdirectory.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class GpsSpeckDataProcessor
+   {
+   private static final Logger LOG = Logger.getLogger(GpsSpeckDataProcessor.class);
+
+   private static final String THREADS_OPTION = "--threads";
+   private static final String BINARY_OPTION = "--binary";
+   private static final String TILES_OPTION = "--tiles";
+   private static final String JS_FILENAME = "gps_speck_data.js";
+   private static final String BINARY_FILENAME = "gps_speck_data.bin";
+   private static final String METADATA_FILENAME = "gps_speck_metadata.json";
+   private static final String TILES_DIRECTORY_NAME = "gps_speck_tiles";
+   private static final int NUM_REQUIRED_ARGS = 2;
+
+   /** Columns of the GPS Speck CSV files */
+   private static final int TIME_COLUMN = 0;
+   private static final int VALUE_COLUMN = 2;
+   private static final int GPS_VALID_COLUMN = 4;
+   private static final int LATITUDE_COLUMN = 5;
+   private static final int LONGITUDE_COLUMN = 6;
+   private static final int GPS_DETAILS_COLUMN = 7;
+   private static final int MINIMUM_NUM_FIELDS = LONGITUDE_COLUMN + 1;
+
+   private static final byte[] GPS_VALID_LOWER_CASE = {'t', 'r', 'u', 'e'};
+   private static final byte[] GPS_VALID_UPPER_CASE = {'T', 'R', 'U', 'E'};
+
+   public static final int RECORD_SIZE_IN_BYTES = 16;
+
+   public static void main(final String[] args) throws IOException
+      {
+      if (args.length < NUM_REQUIRED_ARGS)
+         {
+         System.err.println("Usage: <input directory> <output directory> [" + THREADS_OPTION + " <number of threads>] [" + BINARY_OPTION + "] [" + TILES_OPTION + " <min zoom> <max zoom>]");
+         System.err.println("Writes " + JS_FILENAME + " to the output directory, or " + BINARY_FILENAME + " and " + METADATA_FILENAME + " with " + BINARY_OPTION + ".");
+         System.err.println("With " + TILES_OPTION + ", also writes simplified tracks for each zoom level, in tiles, to the " + TILES_DIRECTORY_NAME + " subdirectory.");
+         System.exit(1);
+         }
+      int numThreads = 1;
+      boolean isBinary = false;
+      int minZoom = -1;
+      int maxZoom = -1;
+      for (int i = NUM_REQUIRED_ARGS; i < args.length; i++)
+         {
+         if (THREADS_OPTION.equals(args[i]) && i + 1 < args.length)
+            {
+            numThreads = Integer.parseInt(args[++i]);
+            }
+         else if (BINARY_OPTION.equals(args[i]))
+            {
+            isBinary = true;
+            }
+         else if (TILES_OPTION.equals(args[i]) && i + 2 < args.length)
+            {
+            minZoom = Integer.parseInt(args[++i]);
+            maxZoom = Integer.parseInt(args[++i]);
+            if (minZoom < 0 || maxZoom > TrackTiler.MAX_ZOOM || minZoom > maxZoom)
+               {
+               System.err.println("The zoom levels must be within [0, " + TrackTiler.MAX_ZOOM + "], with the minimum no greater than the maximum.");
+               System.exit(1);
+               }
+            }
+         else
+            {
+            System.err.println("Unknown or incomplete option: " + args[i]);
+            System.exit(1);
+            }
+         }
+      final File inputDirectory = new File(args[0]);
+      final File outputDirectory = new File(args[1]);
+
+      //noinspection ResultOfMethodCallIgnored
+      outputDirectory.mkdirs();
+
+      if (!inputDirectory.isDirectory())
+         {
+         System.err.println("The specified input directory is invalid.  It is either not a directory, or does not exist: " + inputDirectory.getCanonicalPath());
+         System.exit(1);
+         }
+
+      if (!outputDirectory.isDirectory())
+         {
+         System.err.println("The specified output directory is invalid.  It is either not a directory, or does not exist: " + outputDirectory.getCanonicalPath());
+         System.exit(1);
+         }
+
+      System.out.println("CSV Input Directory:      " + inputDirectory.getCanonicalPath());
+      System.out.println("Output Directory:         " + outputDirectory.getCanonicalPath());
+      System.out.println("Output Format:            " + (isBinary ? "binary" : "JavaScript"));
+      System.out.println("Threads:                  " + numThreads);
+      final TrackTiler trackTiler;
+      if (minZoom >= 0)
+         {
+         final File tilesDirectory = new File(outputDirectory, TILES_DIRECTORY_NAME);
+         System.out.println("Tiles Directory:          " + tilesDirectory.getCanonicalPath());
+         System.out.println("Zoom Levels:              " + minZoom + " to " + maxZoom);
+         trackTiler = new TrackTiler(tilesDirectory, minZoom, maxZoom, TrackTiler.DEFAULT_TOLERANCE_IN_PIXELS);
+         }
+      else
+         {
+         trackTiler = null;
+         }
+
+      final GpsSpeckDataProcessor dataProcessor = new GpsSpeckDataProcessor(inputDirectory, outputDirectory, numThreads, isBinary, trackTiler);
+      dataProcessor.run();
+      }
+
+   @NotNull
+   private final File inputDirectory;
+
+   @NotNull
+   private final File outputDirectory;
+
+   private final int numThreads;
+
+   private final boolean isBinary;
+
+   @Nullable
+   private final TrackTiler trackTiler;
+
+   GpsSpeckDataProcessor(@NotNull final File inputDirectory,
+                         @NotNull final File outputDirectory,
+                         final int numThreads,
+                         final boolean isBinary,
+                         @Nullable final TrackTiler trackTiler)
+      {
+      this.inputDirectory = inputDirectory;
+      this.outputDirectory = outputDirectory;
+      this.numThreads = numThreads;
+      this.isBinary = isBinary;
+      this.trackTiler = trackTiler;
+      }
+
+   public void run() throws IOException
+      {
+      final File[] files = inputDirectory.listFiles();
+      if (files == null)
+         {
+         LOG.error("Failed to list the files in [" + inputDirectory + "]");
+         return;
+         }
+      Arrays.sort(files);
+
+      final List<Callable<Track>> tasks = new ArrayList<Callable<Track>>();
+      for (final File file : files)
+         {
+         if (file.isFile())
+            {
+            tasks.add(
+                  new Callable<Track>()
+                  {
+                  @Override
+                  public Track call()
+                     {
+                     final Track track = new Track(file, !isBinary);
+                     final CsvReader csvReader = new CsvReader(file, true, MINIMUM_NUM_FIELDS);
+                     csvReader.addByteEventListener(track);
+                     csvReader.read();
+                     if (trackTiler != null)
+                        {
+                        track.simplifiedTrack = trackTiler.simplify(track.latitudes, track.longitudes, track.numRecords);
+                        }
+                     return track;
+                     }
+                  });
+            }
+         }
+
+      System.out.println("Processing " + tasks.size() + " devices...");
+      if (isBinary)
+         {
+         final BinaryGenerator binaryGenerator = new BinaryGenerator(new File(outputDirectory, BINARY_FILENAME), new File(outputDirectory, METADATA_FILENAME));
+         new OrderedParallelRunner<Track>(numThreads).run(tasks, new TileAddingResultHandler(binaryGenerator));
+         binaryGenerator.finish();
+         }
+      else
+         {
+         final JsGenerator jsGenerator = new JsGenerator(new File(outputDirectory, JS_FILENAME));
+         new OrderedParallelRunner<Track>(numThreads).run(tasks, new TileAddingResultHandler(jsGenerator));
+         jsGenerator.finish();
+         }
+      if (trackTiler != null)
+         {
+         System.out.println("Writing tiles...");
+         trackTiler.finish();
+         }
+      }
+
+   /** Hands each track to the given handler, and then, if tiling, adds it to the tiles. */
+   private final class TileAddingResultHandler implements OrderedParallelRunner.ResultHandler<Track>
+      {
+      @NotNull
+      private final OrderedParallelRunner.ResultHandler<Track> resultHandler;
+
+      private TileAddingResultHandler(@NotNull final OrderedParallelRunner.ResultHandler<Track> resultHandler)
+         {
+         this.resultHandler = resultHandler;
+         }
+
+      @Override
+      public void handleResult(@NotNull final Track track) throws IOException
+         {
+         resultHandler.handleResult(track);
+         if (trackTiler != null && track.simplifiedTrack != null)
+            {
+            trackTiler.addTrack(track.deviceName, track.times, track.latitudes, track.longitudes, track.values, track.simplifiedTrack);
+            }
+         }
+      }
+
+   /**
+    * The records of a single device with a valid GPS fix, parsed into primitive arrays, along with (optionally) the
+    * device's entries in the JavaScript output, copied byte for byte from the CSV fields.
+    */
+   private static final class Track extends CsvReader.ByteEventListenerAdapter
+      {
+      private static final int INITIAL_CAPACITY = 1024;
+      private static final int INITIAL_JS_CAPACITY = 64 * 1024;
+
+      @NotNull
+      private final File file;
+      @NotNull
+      private final String deviceName;
+      private int[] times = new int[INITIAL_CAPACITY];
+      private float[] latitudes = new float[INITIAL_CAPACITY];
+      private float[] longitudes = new float[INITIAL_CAPACITY];
+      private float[] values = new float[INITIAL_CAPACITY];
+      private int numRecords = 0;
+      private int numMalformedLines = 0;
+      private byte[] js;
+      private int jsLength = 0;
+      @Nullable
+      private TrackTiler.SimplifiedTrack simplifiedTrack = null;
+
+      private Track(@NotNull final File file, final boolean willGenerateJs)
+         {
+         this.file = file;
+         final String filename = file.getName();
+         final int dotPosition = filename.indexOf('.');
+         deviceName = (dotPosition >= 0) ? filename.substring(0, dotPosition) : filename;
+         js = willGenerateJs ? new byte[INITIAL_JS_CAPACITY] : null;
+         }
+
+      @Override
+      public void handleLine(@NotNull final CsvLine line)
+         {
+         final ByteBuffer buffer = line.getBuffer();
+         if (!isFieldEqualTo(line, GPS_VALID_COLUMN, GPS_VALID_LOWER_CASE) && !isFieldEqualTo(line, GPS_VALID_COLUMN, GPS_VALID_UPPER_CASE))
+            {
+            return;
+            }
+
+         final long time = NumberParser.parseInt(buffer, line.getFieldOffset(TIME_COLUMN), line.getFieldLength(TIME_COLUMN));
+         final double value = line.getFieldAsDouble(VALUE_COLUMN);
+         final double latitude = line.getFieldAsDouble(LATITUDE_COLUMN);
+         final double longitude = line.getFieldAsDouble(LONGITUDE_COLUMN);
+         if (time == NumberParser.MALFORMED_INT || Double.isNaN(value) || Double.isNaN(latitude) || Double.isNaN(longitude))
+            {
+            // only log the first one, since materializing and logging every bad line is slow for files with lots of them
+            if (numMalformedLines == 0)
+               {
+               LOG.error("Malformed number while parsing line [" + line + "] of [" + deviceName + "].  Skipping.");
+               }
+            numMalformedLines++;
+            return;
+            }
+
+         if (numRecords == times.length)
+            {
+            final int newCapacity = times.length * 2;
+            times = Arrays.copyOf(times, newCapacity);
+            latitudes = Arrays.copyOf(latitudes, newCapacity);
+            longitudes = Arrays.copyOf(longitudes, newCapacity);
+            values = Arrays.copyOf(values, newCapacity);
+            }
+         times[numRecords] = (int)time;
+         latitudes[numRecords] = (float)latitude;
+         longitudes[numRecords] = (float)longitude;
+         values[numRecords] = (float)value;
+         numRecords++;
+
+         if (js != null)
+            {
+            // [time,value,latitude,longitude,"details"],
+            appendJs('[');
+            appendJsField(line, TIME_COLUMN);
+            appendJs(',');
+            appendJsField(line, VALUE_COLUMN);
+            appendJs(',');
+            appendJsField(line, LATITUDE_COLUMN);
+            appendJs(',');
+            appendJsField(line, LONGITUDE_COLUMN);
+            appendJs(',');
+            appendJs('"');
+            if (line.getNumFields() > GPS_DETAILS_COLUMN)
+               {
+               appendJsField(line, GPS_DETAILS_COLUMN);
+               }
+            appendJs('"');
+            appendJs(']');
+            appendJs(',');
+            appendJs('\n');
+            }
+         }
+
+      @Override
+      public void handleEnd(@NotNull final File file, final int numLines)
+         {
+         if (numMalformedLines > 1)
+            {
+            LOG.error("Skipped " + numMalformedLines + " lines with malformed numbers in [" + deviceName + "]");
+            }
+         }
+
+      private static boolean isFieldEqualTo(@NotNull final CsvLine line, final int fieldIndex, @NotNull final byte[] expected)
+         {
+         if (line.getFieldLength(fieldIndex) != expected.length)
+            {
+            return false;
+            }
+         final ByteBuffer buffer = line.getBuffer();
+         final int offset = line.getFieldOffset(fieldIndex);
+         for (int i = 0; i < expected.length; i++)
+            {
+            if (buffer.get(offset + i) != expected[i])
+               {
+               return false;
+               }
+            }
+         return true;
+         }
+
+      private void appendJsField(@NotNull final CsvLine line, final int fieldIndex)
+         {
+         final ByteBuffer buffer = line.getBuffer();
+         final int offset = line.getFieldOffset(fieldIndex);
+         final int length = line.getFieldLength(fieldIndex);
+         ensureJsCapacity(length);
+         for (int i = 0; i < length; i++)
+            {
+            js[jsLength++] = buffer.get(offset + i);
+            }
+         }
+
+      private void appendJs(final char c)
+         {
+         ensureJsCapacity(1);
+         js[jsLength++] = (byte)c;
+         }
+
+      private void ensureJsCapacity(final int numBytes)
+         {
+         if (jsLength + numBytes > js.length)
+            {
+            js = Arrays.copyOf(js, Math.max(js.length * 2, jsLength + numBytes));
+            }
+         }
+      }
+
+   /** Writes the tracks to the JavaScript file, in the same format as <code>convert_gps_speck_csvs_to_js.sh</code>. */
+   private static final class JsGenerator implements OrderedParallelRunner.ResultHandler<Track>
+      {
+      private static final String CHARSET_NAME = "UTF-8";
+
+      @NotNull
+      private final OutputStream outputStream;
+
+      private JsGenerator(@NotNull final File outputFile) throws IOException
+         {
+         outputStream = new BufferedOutputStream(new FileOutputStream(outputFile), 1024 * 1024);
+         outputStream.write("// GPS Speck data\nvar DATA = {};\n\n".getBytes(CHARSET_NAME));
+         }
+
+      @Override
+      public void handleResult(@NotNull final Track track) throws IOException
+         {
+         System.out.println("   " + track.file.getName());
+         outputStream.write(("DATA[\"" + track.deviceName + "\"] = [\n").getBytes(CHARSET_NAME));
+         outputStream.write(track.js, 0, track.jsLength);
+         outputStream.write("[]];\n\n".getBytes(CHARSET_NAME));
+         }
+
+      private void finish() throws IOException
+         {
+         outputStream.close();
+         }
+      }
+
+   /** Writes the tracks to the binary file, and their metadata to the metadata file. */
+   private static final class BinaryGenerator implements OrderedParallelRunner.ResultHandler<Track>
+      {
+      @NotNull
+      private final BinaryRecordWriter writer;
+      @NotNull
+      private final JsonWriter json;
+      private long recordOffset = 0;
+
+      private BinaryGenerator(@NotNull final File binaryFile, @NotNull final File metadataFile) throws IOException
+         {
+         writer = new BinaryRecordWriter(binaryFile);
+         json = JsonWriter.create(metadataFile);
+         json.beginObject();
+         json.name("recordSizeInBytes").value(RECORD_SIZE_IN_BYTES);
+         json.name("devices").beginArray();
+         }
+
+      @Override
+      public void handleResult(@NotNull final Track track) throws IOException
+         {
+         System.out.println("   " + track.file.getName());
+         int minTime = Integer.MAX_VALUE;
+         int maxTime = Integer.MIN_VALUE;
+         float minLatitude = Float.POSITIVE_INFINITY;
+         float maxLatitude = Float.NEGATIVE_INFINITY;
+         float minLongitude = Float.POSITIVE_INFINITY;
+         float maxLongitude = Float.NEGATIVE_INFINITY;
+         float minValue = Float.POSITIVE_INFINITY;
+         float maxValue = Float.NEGATIVE_INFINITY;
+         for (int i = 0; i < track.numRecords; i++)
+            {
+            writer.writeInt(track.times[i]);
+            writer.writeFloat(track.latitudes[i]);
+            writer.writeFloat(track.longitudes[i]);
+            writer.writeFloat(track.values[i]);
+            minTime = Math.min(minTime, track.times[i]);
+            maxTime = Math.max(maxTime, track.times[i]);
+            minLatitude = Math.min(minLatitude, track.latitudes[i]);
+            maxLatitude = Math.max(maxLatitude, track.latitudes[i]);
+            minLongitude = Math.min(minLongitude, track.longitudes[i]);
+            maxLongitude = Math.max(maxLongitude, track.longitudes[i]);
+            minValue = Math.min(minValue, track.values[i]);
+            maxValue = Math.max(maxValue, track.values[i]);
+            }
+
+         json.newline().beginObject();
+         json.name("name").value(track.deviceName);
+         json.name("numRecords").value(track.numRecords);
+         json.name("recordOffset").value(recordOffset);
+         if (track.numRecords > 0)
+            {
+            json.name("minTime").value(minTime);
+            json.name("maxTime").value(maxTime);
+            json.name("minLatitude").value(minLatitude);
+            json.name("maxLatitude").value(maxLatitude);
+            json.name("minLongitude").value(minLongitude);
+            json.name("maxLongitude").value(maxLongitude);
+            json.name("minValue").value(minValue);
+            json.name("maxValue").value(maxValue);
+            }
+         json.endObject();
+         recordOffset += track.numRecords;
+         }
+
+      private void finish() throws IOException
+         {
+         writer.close();
+         json.newline().endArray().endObject().newline();
+         json.close();
+         LOG.debug("Wrote " + writer.getNumBytesWritten() + " bytes of binary data in " + writer.getNumWriteCalls() + " write calls");
+         }
+      }
+   }
@@ -0,0 +1,269 @@
+package org.cmucreatelab.visualization.speck;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.apache.log4j.Logger;
+import org.cmucreatelab.io.BinaryRecordWriter;
+import org.cmucreatelab.io.JsonWriter;
+import org.cmucreatelab.util.TimeIntervals;
+import org.cmucreatelab.util.TimeSeriesBuffer;
+import org.cmucreatelab.visualization.GeolocatedDevices;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Builds a time by row by column tensor of the values of devices laid out in a grid, such as the 12x12 Speck layout,
+ * whose devices file gives each device's row and column in place of its latitude and longitude.  Time is divided into
+ * frames of the sample interval, from the earliest record's to the latest's, and a cell whose device has no record in
+ * a frame holds {@link #MISSING_VALUE}.  If a device has more than one record in a frame, the latest one is used, and
+ * of records with the same time, the last one handled.
+ * </p>
+ * <p>
+ * The tensor is written frame-major, one frame after another, each frame being its cells in row-major order, as
+ * little-endian ints.  A frame is thus one contiguous, aligned slice of the file, which a viewer can animate by
+ * creating a single <code>Int32Array</code> per frame, instead of searching each device's records for the frame's
+ * time.  Since devices arrive one after another, their records are buffered (8 bytes each) until {@link #finish()},
+ * which sweeps through them all at once, frame by frame.
+ * </p>
+ * <p>
+ * Every frame from the earliest record to the latest is written, whether or not it has any records, so one bad
+ * timestamp could make the tensor enormous.  A tensor bigger than {@link #MAX_TENSOR_SIZE_IN_BYTES} is therefore logged
+ * as an error and written with no frames at all.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+final class GridTensorGenerator implements SpeckCsvDataFileEventListener.EventListener
+   {
+   private static final Logger LOG = Logger.getLogger(GridTensorGenerator.class);
+
+   static final int MISSING_VALUE = Integer.MIN_VALUE;
+   private static final int VALUE_SIZE_IN_BYTES = 4;
+
+   /** Enough for a year of one minute frames of a 40x40 grid */
+   static final long MAX_TENSOR_SIZE_IN_BYTES = 4L * 1024 * 1024 * 1024;
+
+   private final int sampleIntervalSecs;
+   @NotNull
+   private final File outputFile;
+   private final int numRows;
+   private final int numColumns;
+   @NotNull
+   private final Map<String, Integer> cellIndicesByName = new HashMap<String, Integer>();
+
+   /** Each cell's records, or <code>null</code> if the cell's device hasn't been seen */
+   @NotNull
+   private final TimeSeriesBuffer[] cellRecords;
+
+   /** The cell of the device currently being handled, or -1 if the device isn't in the grid */
+   private int cellIndex = -1;
+   private int minTime = Integer.MAX_VALUE;
+   private int maxTime = Integer.MIN_VALUE;
+   private long minFrameTime = 0;
+   private long numFrames = 0;
+
+   GridTensorGenerator(final int sampleIntervalSecs, @NotNull final GeolocatedDevices geolocatedDevices, @NotNull final File outputFile)
+      {
+      this.sampleIntervalSecs = sampleIntervalSecs;
+      this.outputFile = outputFile;
+
+      // find the size of the grid first, so that the cells can be numbered in row-major order
+      final Map<String, int[]> rowsAndColumnsByName = new HashMap<String, int[]>();
+      int maxRow = -1;
+      int maxColumn = -1;
+      final Iterator<GeolocatedDevices.Device> iterator = geolocatedDevices.iterator();
+      while (iterator.hasNext())
+         {
+         final GeolocatedDevices.Device device = iterator.next();
+         final int[] rowAndColumn = parseRowAndColumn(device);
+         if (rowAndColumn == null)
+            {
+            LOG.warn("Device [" + device.getName() + "] doesn't have a valid row and column, so it won't be in the grid");
+            }
+         else
+            {
+            rowsAndColumnsByName.put(device.getName(), rowAndColumn);
+            maxRow = Math.max(maxRow, rowAndColumn[0]);
+            maxColumn = Math.max(maxColumn, rowAndColumn[1]);
+            }
+         }
+      numRows = maxRow + 1;
+      numColumns = maxColumn + 1;
+
+      final int numCells = numRows * numColumns;
+      final boolean[] isCellTaken = new boolean[numCells];
+      for (final Map.Entry<String, int[]> entry : rowsAndColumnsByName.entrySet())
+         {
+         final int cell = entry.getValue()[0] * numColumns + entry.getValue()[1];
+         if (isCellTaken[cell])
+            {
+            LOG.warn("Device [" + entry.getKey() + "] is in the same cell as another device, so it won't be in the grid");
+            }
+         else
+            {
+            isCellTaken[cell] = true;
+            cellIndicesByName.put(entry.getKey(), cell);
+            }
+         }
+      cellRecords = new TimeSeriesBuffer[numCells];
+      }
+
+   @Nullable
+   private static int[] parseRowAndColumn(@NotNull final GeolocatedDevices.Device device)
+      {
+      try
+         {
+         final int row = Integer.parseInt(device.getLatitude().trim());
+         final int column = Integer.parseInt(device.getLongitude().trim());
+         if (row >= 0 && column >= 0)
+            {
+            return new int[]{row, column};
+            }
+         }
+      catch (NumberFormatException ignored)
+         {
+         // not a grid position
+         }
+      return null;
+      }
+
+   @NotNull
+   File getOutputFile()
+      {
+      return outputFile;
+      }
+
+   int getNumRows()
+      {
+      return numRows;
+      }
+
+   int getNumColumns()
+      {
+      return numColumns;
+      }
+
+   @Override
+   public void handleBegin(@NotNull final String name)
+      {
+      final Integer cell = cellIndicesByName.get(name);
+      if (cell != null && cellRecords[cell] != null)
+         {
+         LOG.warn("Device [" + name + "] was seen more than once, so only its first records are in the grid");
+         cellIndex = -1;
+         }
+      else if (cell != null)
+         {
+         cellIndex = cell;
+         cellRecords[cellIndex] = new TimeSeriesBuffer();
+         }
+      else
+         {
+         cellIndex = -1;
+         }
+      }
+
+   @Override
+   public void handleLine(final int epochTimeInSeconds, final int value)
+      {
+      if (cellIndex < 0)
+         {
+         return;
+         }
+      minTime = Math.min(minTime, epochTimeInSeconds);
+      maxTime = Math.max(maxTime, epochTimeInSeconds);
+      cellRecords[cellIndex].add(epochTimeInSeconds, value);
+      }
+
+   @Override
+   public void handleEnd(final int numRecords)
+      {
+      cellIndex = -1;
+      }
+
+   /** Writes the tensor's shape to the metadata, as the value of a <code>grid</code> field. */
+   void writeJson(@NotNull final JsonWriter json) throws IOException
+      {
+      json.name("grid").beginObject();
+      json.name("file").value(outputFile.getName());
+      json.name("numRows").value(numRows);
+      json.name("numColumns").value(numColumns);
+      json.name("startTime").value(numFrames > 0 ? minFrameTime : 0);
+      json.name("frameIntervalSecs").value(sampleIntervalSecs);
+      json.name("numFrames").value(numFrames);
+      json.name("frameSizeInBytes").value(numRows * numColumns * VALUE_SIZE_IN_BYTES);
+      json.name("valueType").value("int32");
+      json.name("byteOrder").value("little-endian");
+      json.name("missingValue").value(MISSING_VALUE);
+      json.endObject();
+      }
+
+   /** Writes the tensor, frame by frame.  Always writes the file, even if empty, so that it matches the metadata. */
+   public void finish()
+      {
+      final int numCells = numRows * numColumns;
+      if (minTime <= maxTime)
+         {
+         minFrameTime = TimeIntervals.floor(minTime, sampleIntervalSecs);
+         numFrames = (TimeIntervals.floor(maxTime, sampleIntervalSecs) - minFrameTime) / sampleIntervalSecs + 1;
+         if (numFrames * numCells * VALUE_SIZE_IN_BYTES > MAX_TENSOR_SIZE_IN_BYTES)
+            {
+            LOG.error("The grid spans " + numFrames + " frames, from " + minTime + " to " + maxTime + ", which would make a tensor bigger than the maximum of " + MAX_TENSOR_SIZE_IN_BYTES + " bytes, so no frames are written.  Some of the times are probably wrong.");
+            numFrames = 0;
+            }
+         }
+      for (int cell = 0; cell < numCells; cell++)
+         {
+         if (cellRecords[cell] != null)
+            {
+            // the sort is stable, so the last of a frame's records is the latest, or the last handled of a tie
+            cellRecords[cell].sortByTime();
+            }
+         }
+
+      try
+         {
+         final BinaryRecordWriter writer = new BinaryRecordWriter(outputFile, BinaryRecordWriter.DEFAULT_BUFFER_SIZE, false, ByteOrder.LITTLE_ENDIAN);
+         try
+            {
+            final int[] cursors = new int[numCells];
+            for (long frame = 0; frame < numFrames; frame++)
+               {
+               final long nextFrameTime = minFrameTime + (frame + 1) * sampleIntervalSecs;
+               for (int cell = 0; cell < numCells; cell++)
+                  {
+                  // the cell's records up to the end of this frame have all been consumed, so the last one is the latest
+                  int value = MISSING_VALUE;
+                  final TimeSeriesBuffer records = cellRecords[cell];
+                  int cursor = cursors[cell];
+                  while (records != null && cursor < records.size() && records.getTime(cursor) < nextFrameTime)
+                     {
+                     value = records.getValue(cursor);
+                     cursor++;
+                     }
+                  cursors[cell] = cursor;
+                  writer.writeInt(value);
+                  }
+               }
+            }
+         finally
+            {
+            writer.close();
+            }
+         LOG.debug("Wrote " + numFrames + " frames of " + numRows + "x" + numColumns + " cells to [" + outputFile + "]");
+         }
+      catch (IOException e)
+         {
+         LOG.error("IOException while trying to write the grid file", e);
+         }
+
+      // let the records be garbage collected
+      Arrays.fill(cellRecords, null);
+      }
+   }
@@ -0,0 +1,512 @@
+package org.cmucreatelab.visualization.speck;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import org.apache.log4j.Logger;
+import org.cmucreatelab.io.BinaryRecordWriter;
+import org.cmucreatelab.io.CsvLine;
+import org.cmucreatelab.io.CsvReader;
+import org.cmucreatelab.io.JsonWriter;
+import org.cmucreatelab.util.TimeIntervals;
+import org.cmucreatelab.util.TimeSeriesBuffer;
+import org.cmucreatelab.visualization.GeolocatedDevices;
+import org.cmucreatelab.visualization.OrderedParallelRunner;
+import org.cmucreatelab.visualization.SpatialIndex;
+import org.cmucreatelab.visualization.airnow.AirNowDataProcessor;
+import org.cmucreatelab.visualization.airnow.AirNowDevices;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * <p>
+ * Pairs each Speck with its nearest AirNow station and writes the two side by side, hour by hour, so that indoor
+ * readings can be compared against the regulatory monitor.  Each Speck's values are resampled to AirNow's sample
+ * interval by averaging the values within each hour, and the hourly means are merged, as the Speck's CSV file is
+ * streamed, with the station's series, so the Speck data is never held in memory.  Only the stations' hourly series
+ * are loaded, each once no matter how many Specks it is paired with.
+ * </p>
+ * <p>
+ * The binary file holds one big-endian record after another for every hour in which both the Speck and its station
+ * have data: the start of the hour (int, epoch seconds), the Speck's mean value and the station's value (floats).
+ * Each Speck's records are in time order, one per hour, and the metadata gives each Speck's station, its distance, and
+ * its record offset and count.  Since the Speck's file is streamed, a record from an earlier hour than the one before
+ * it can't be merged into that hour's mean any more, so it's dropped, and the number dropped is logged.
+ * </p>
+ *
+ * @author Chris Bartley (bartley@cmu.edu)
+ */
+public final class SpeckAirNowJoinProcessor
+   {
+   private static final Logger LOG = Logger.getLogger(SpeckAirNowJoinProcessor.class);
+
+   private static final String CSV_FILE_EXTENSION = ".csv";
+   private static final String THREADS_OPTION = "--threads";
+   private static final String MAX_DISTANCE_OPTION = "--max-distance";
+   private static final String DATA_FILENAME = "speck_airnow_join.bin";
+   private static final String METADATA_FILENAME = "speck_airnow_join_metadata.json";
+   private static final int NUM_REQUIRED_ARGS = 5;
+
+   public static final int RECORD_SIZE_IN_BYTES = 12;
+
+   public static void main(final String[] args) throws IOException
+      {
+      if (args.length < NUM_REQUIRED_ARGS)
+         {
+         System.err.println("ERROR: the Speck and AirNow devices files and input directories, and the output directory must all be specified.");
+         System.err.println("Usage: <Speck devices file> <Speck input directory> <AirNow devices file> <AirNow input directory> <output directory> [" + THREADS_OPTION + " <number of threads>] [" + MAX_DISTANCE_OPTION + " <meters>]");
+         System.exit(1);
+         }
+      int numThreads = 1;
+      double maxDistanceInMeters = Double.POSITIVE_INFINITY;
+      for (int i = NUM_REQUIRED_ARGS; i < args.length; i++)
+         {
+         if (THREADS_OPTION.equals(args[i]) && i + 1 < args.length)
+            {
+            numThreads = Integer.parseInt(args[++i]);
+            }
+         else if (MAX_DISTANCE_OPTION.equals(args[i]) && i + 1 < args.length)
+            {
+            maxDistanceInMeters = Double.parseDouble(args[++i]);
+            }
+         else
+            {
+            System.err.println("Unknown or incomplete option: " + args[i]);
+            System.exit(1);
+            }
+         }
+      final File speckDevicesFile = new File(args[0]);
+      final File speckInputDirectory = new File(args[1]);
+      final File airNowDevicesFile = new File(args[2]);
+      final File airNowInputDirectory = new File(args[3]);
+      final File outputDirectory = new File(args[4]);
+
+      //noinspection ResultOfMethodCallIgnored
+      outputDirectory.mkdirs();
+
+      System.out.println("Speck Devices File:       " + speckDevicesFile.getCanonicalPath());
+      System.out.println("Speck Input Directory:    " + speckInputDirectory.getCanonicalPath());
+      System.out.println("AirNow Devices File:      " + airNowDevicesFile.getCanonicalPath());
+      System.out.println("AirNow Input Directory:   " + airNowInputDirectory.getCanonicalPath());
+      System.out.println("Output Directory:         " + outputDirectory.getCanonicalPath());
+      System.out.println("Threads:                  " + numThreads);
+      System.out.println("Max Distance:             " + (Double.isInfinite(maxDistanceInMeters) ? "none" : maxDistanceInMeters + " m"));
+
+      for (final File file : new File[]{speckDevicesFile, airNowDevicesFile})
+         {
+         if (!file.isFile())
+            {
+            System.err.println("The specified devices file is invalid.  It is either not a file, or does not exist: " + file.getCanonicalPath());
+            System.exit(1);
+            }
+         }
+      for (final File directory : new File[]{speckInputDirectory, airNowInputDirectory, outputDirectory})
+         {
+         if (!directory.isDirectory())
+            {
+            System.err.println("The specified directory is invalid.  It is either not a directory, or does not exist: " + directory.getCanonicalPath());
+            System.exit(1);
+            }
+         }
+
+      final SpeckAirNowJoinProcessor joinProcessor = new SpeckAirNowJoinProcessor(speckDevicesFile,
+                                                                                  speckInputDirectory,
+                                                                                  airNowDevicesFile,
+                                                                                  airNowInputDirectory,
+                                                                                  outputDirectory,
+                                                                                  numThreads,
+                                                                                  maxDistanceInMeters);
+      joinProcessor.run();
+      }
+
+   @NotNull
+   private final File speckDevicesFile;
+   @NotNull
+   private final File speckInputDirectory;
+   @NotNull
+   private final File airNowDevicesFile;
+   @NotNull
+   private final File airNowInputDirectory;
+   @NotNull
+   private final File outputDirectory;
+   private final int numThreads;
+   private final double maxDistanceInMeters;
+
+   SpeckAirNowJoinProcessor(@NotNull final File speckDevicesFile,
+                            @NotNull final File speckInputDirectory,
+                            @NotNull final File airNowDevicesFile,
+                            @NotNull final File airNowInputDirectory,
+                            @NotNull final File outputDirectory,
+                            final int numThreads,
+                            final double maxDistanceInMeters)
+      {
+      this.speckDevicesFile = speckDevicesFile;
+      this.speckInputDirectory = speckInputDirectory;
+      this.airNowDevicesFile = airNowDevicesFile;
+      this.airNowInputDirectory = airNowInputDirectory;
+      this.outputDirectory = outputDirectory;
+      this.numThreads = numThreads;
+      this.maxDistanceInMeters = maxDistanceInMeters;
+      }
+
+   public void run() throws IOException
+      {
+      final GeolocatedDevices speckDevices = new SpeckDevices(speckDevicesFile);
+      final GeolocatedDevices airNowDevices = new AirNowDevices(airNowDevicesFile);
+
+      // pair each Speck having a data file with its nearest station having one, loading each station's series once
+      final Map<String, StationSeries> stationSeriesByName = new HashMap<String, StationSeries>();
+      final List<Callable<JoinedSeries>> tasks = new ArrayList<Callable<JoinedSeries>>();
+      final Iterator<GeolocatedDevices.Device> iterator = speckDevices.iterator();
+      while (iterator.hasNext())
+         {
+         final GeolocatedDevices.Device speck = iterator.next();
+         final File speckFile = new File(speckInputDirectory, speck.getName() + CSV_FILE_EXTENSION);
+         if (!speckFile.isFile())
+            {
+            continue;
+            }
+         final double latitude;
+         final double longitude;
+         try
+            {
+            latitude = Double.parseDouble(speck.getLatitude());
+            longitude = Double.parseDouble(speck.getLongitude());
+            }
+         catch (NumberFormatException e)
+            {
+            LOG.error("Invalid coordinates for Speck [" + speck.getName() + "].  Skipping.");
+            continue;
+            }
+
+         final StationSeries stationSeries = findNearestStationSeries(airNowDevices, latitude, longitude, stationSeriesByName);
+         if (stationSeries == null)
+            {
+            LOG.info("No AirNow station with data near Speck [" + speck.getName() + "].  Skipping.");
+            continue;
+            }
+
+         final double distanceInMeters = SpatialIndex.distanceInMeters(latitude,
+                                                                       longitude,
+                                                                       Double.parseDouble(stationSeries.station.getLatitude()),
+                                                                       Double.parseDouble(stationSeries.station.getLongitude()));
+         tasks.add(
+               new Callable<JoinedSeries>()
+               {
+               @Override
+               public JoinedSeries call()
+                  {
+                  final JoinedSeries joinedSeries = new JoinedSeries(speckFile, stationSeries, distanceInMeters);
+                  final SpeckCsvDataFileEventListener speckCsvDataFileEventListener = new SpeckCsvDataFileEventListener();
+                  speckCsvDataFileEventListener.addEventListener(joinedSeries);
+                  final CsvReader csvReader = new CsvReader(speckFile, true, 2);
+                  csvReader.addNumericEventListener(speckCsvDataFileEventListener);
+                  csvReader.read();
+                  return joinedSeries;
+                  }
+               });
+         }
+
+      System.out.println("Joining " + tasks.size() + " Specks with " + stationSeriesByName.size() + " AirNow stations...");
+      final JoinGenerator joinGenerator = new JoinGenerator(new File(outputDirectory, DATA_FILENAME), new File(outputDirectory, METADATA_FILENAME));
+      new OrderedParallelRunner<JoinedSeries>(numThreads).run(tasks, joinGenerator);
+      joinGenerator.finish();
+      }
+
+   /**
+    * Returns the series of the nearest station, within the maximum distance, which has a data file, reading it if it
+    * hasn't been read yet, or returns <code>null</code> if there's no such station.  Stations are searched for in
+    * growing batches, since few lack a data file.
+    */
+   @Nullable
+   private StationSeries findNearestStationSeries(@NotNull final GeolocatedDevices airNowDevices,
+                                                  final double latitude,
+                                                  final double longitude,
+                                                  @NotNull final Map<String, StationSeries> stationSeriesByName)
+      {
+      int numSearched = 0;
+      for (int k = 4; numSearched < airNowDevices.size(); k *= 2)
+         {
+         final List<GeolocatedDevices.Device> stations = airNowDevices.findNearest(latitude, longitude, k, maxDistanceInMeters);
+         for (int i = numSearched; i < stations.size(); i++)
+            {
+            final GeolocatedDevices.Device station = stations.get(i);
+            StationSeries stationSeries = stationSeriesByName.get(station.getName());
+            if (stationSeries == null)
+               {
+               final File stationFile = new File(airNowInputDirectory, station.getName() + CSV_FILE_EXTENSION);
+               if (stationFile.isFile())
+                  {
+                  stationSeries = StationSeries.read(station, stationFile);
+                  stationSeriesByName.put(station.getName(), stationSeries);
+                  }
+               }
+            if (stationSeries != null)
+               {
+               return stationSeries;
+               }
+            }
+         if (stations.size() < k)
+            {
+            // there are no more stations within the maximum distance
+            break;
+            }
+         numSearched = stations.size();
+         }
+      return null;
+      }
+
+   /**
+    * An AirNow station's series, with times moved to the start of their sample interval, and sorted by time if the file
+    * wasn't.  Samples with the same time keep their file order, so the join uses the first of them.
+    */
+   private static final class StationSeries implements CsvReader.NumericEventListener
+      {
+      private static final int INITIAL_CAPACITY = 1024;
+
+      @NotNull
+      private final GeolocatedDevices.Device station;
+      private int[] times = new int[INITIAL_CAPACITY];
+      private float[] values = new float[INITIAL_CAPACITY];
+      private int numRecords = 0;
+      private boolean isSorted = true;
+
+      @NotNull
+      private static StationSeries read(@NotNull final GeolocatedDevices.Device station, @NotNull final File file)
+         {
+         final StationSeries stationSeries = new StationSeries(station);
+         final CsvReader csvReader = new CsvReader(file, true, 2);
+         csvReader.addNumericEventListener(stationSeries);
+         csvReader.read();
+         if (!stationSeries.isSorted)
+            {
+            // the whole series is in memory, so it's cheap to put it in order for the join's cursor
+            final int[] permutation = TimeSeriesBuffer.sortByTime(stationSeries.times, stationSeries.numRecords);
+            final float[] sortedValues = new float[stationSeries.values.length];
+            for (int i = 0; i < stationSeries.numRecords; i++)
+               {
+               sortedValues[i] = stationSeries.values[permutation[i]];
+               }
+            stationSeries.values = sortedValues;
+            stationSeries.isSorted = true;
+            }
+         return stationSeries;
+         }
+
+      private StationSeries(@NotNull final GeolocatedDevices.Device station)
+         {
+         this.station = station;
+         }
+
+      @Override
+      public void handleBegin(@NotNull final File file)
+         {
+         // nothing to do
+         }
+
+      @Override
+      public void handleRecord(final int epochTimeInSeconds, @NotNull final double[] values, @NotNull final CsvLine line)
+         {
+         if (numRecords == times.length)
+            {
+            times = Arrays.copyOf(times, times.length * 2);
+            this.values = Arrays.copyOf(this.values, this.values.length * 2);
+            }
+         final int time = (int)TimeIntervals.floor(epochTimeInSeconds, AirNowDataProcessor.SAMPLE_INTERVAL_SECS);
+         if (numRecords > 0 && time < times[numRecords - 1])
+            {
+            isSorted = false;
+            }
+         times[numRecords] = time;
+         this.values[numRecords] = (float)values[0];
+         numRecords++;
+         }
+
+      @Override
+      public void handleMalformedLine(@NotNull final CsvLine line)
+         {
+         // counted by the reader, and logged in handleEnd()
+         }
+
+      @Override
+      public void handleEnd(@NotNull final File file, final int numRecords, final int numMalformedLines)
+         {
+         if (numMalformedLines > 0)
+            {
+            LOG.error("Skipped " + numMalformedLines + " lines with malformed numbers in [" + file.getName() + "]");
+            }
+         }
+      }
+
+   /**
+    * Averages a Speck's values over each of AirNow's sample intervals as they stream in, and merges each interval's
+    * mean with the station's value for the same interval, by advancing a cursor over the station's series.  Records
+    * from before the current interval are dropped, so that every interval is averaged, and written, only once.
+    */
+   private static final class JoinedSeries implements SpeckCsvDataFileEventListener.EventListener
+      {
+      private static final int INITIAL_CAPACITY = 1024;
+
+      @NotNull
+      private final File speckFile;
+      @NotNull
+      private final StationSeries stationSeries;
+      private final double distanceInMeters;
+      private String speckName = null;
+
+      private int[] times = new int[INITIAL_CAPACITY];
+      private float[] speckValues = new float[INITIAL_CAPACITY];
+      private float[] airNowValues = new float[INITIAL_CAPACITY];
+      private int numRecords = 0;
+
+      /** The interval being averaged, or Integer.MIN_VALUE before the first record */
+      private int intervalStart = Integer.MIN_VALUE;
+      private long intervalSum = 0;
+      private int intervalCount = 0;
+
+      /** Position in the station's series of the first sample not before the current interval */
+      private int cursor = 0;
+      private int numDroppedRecords = 0;
+
+      private JoinedSeries(@NotNull final File speckFile, @NotNull final StationSeries stationSeries, final double distanceInMeters)
+         {
+         this.speckFile = speckFile;
+         this.stationSeries = stationSeries;
+         this.distanceInMeters = distanceInMeters;
+         }
+
+      @Override
+      public void handleBegin(@NotNull final String name)
+         {
+         speckName = name;
+         }
+
+      @Override
+      public void handleLine(final int epochTimeInSeconds, final int value)
+         {
+         final int time = (int)TimeIntervals.floor(epochTimeInSeconds, AirNowDataProcessor.SAMPLE_INTERVAL_SECS);
+         if (time < intervalStart)
+            {
+            // the Speck's data went back in time, and the earlier interval has already been written
+            numDroppedRecords++;
+            return;
+            }
+         if (time != intervalStart)
+            {
+            finishInterval();
+            intervalStart = time;
+            }
+         intervalSum += value;
+         intervalCount++;
+         }
+
+      @Override
+      public void handleEnd(final int numRecords)
+         {
+         finishInterval();
+         if (numDroppedRecords > 0)
+            {
+            LOG.warn("Skipped " + numDroppedRecords + " records of Speck [" + speckName + "] which were from an earlier hour than the records before them, since its data isn't in time order");
+            }
+         }
+
+      private void finishInterval()
+         {
+         if (intervalCount == 0)
+            {
+            return;
+            }
+
+         final int[] stationTimes = stationSeries.times;
+         while (cursor < stationSeries.numRecords && stationTimes[cursor] < intervalStart)
+            {
+            cursor++;
+            }
+         if (cursor < stationSeries.numRecords && stationTimes[cursor] == intervalStart)
+            {
+            append(intervalStart, (float)((double)intervalSum / intervalCount), stationSeries.values[cursor]);
+            }
+
+         intervalSum = 0;
+         intervalCount = 0;
+         }
+
+      private void append(final int time, final float speckValue, final float airNowValue)
+         {
+         if (numRecords == times.length)
+            {
+            final int newCapacity = times.length * 2;
+            times = Arrays.copyOf(times, newCapacity);
+            speckValues = Arrays.copyOf(speckValues, newCapacity);
+            airNowValues = Arrays.copyOf(airNowValues, newCapacity);
+            }
+         times[numRecords] = time;
+         speckValues[numRecords] = speckValue;
+         airNowValues[numRecords] = airNowValue;
+         numRecords++;
+         }
+      }
+
+   /** Writes the joined series to the binary file, and their metadata to the metadata file. */
+   private static final class JoinGenerator implements OrderedParallelRunner.ResultHandler<JoinedSeries>
+      {
+      @NotNull
+      private final BinaryRecordWriter writer;
+      @NotNull
+      private final JsonWriter json;
+      private long recordOffset = 0;
+
+      private JoinGenerator(@NotNull final File binaryFile, @NotNull final File metadataFile) throws IOException
+         {
+         writer = new BinaryRecordWriter(binaryFile);
+         json = JsonWriter.create(metadataFile);
+         json.beginObject();
+         json.name("valueIntervalSecs").value(AirNowDataProcessor.SAMPLE_INTERVAL_SECS);
+         json.name("recordSizeInBytes").value(RECORD_SIZE_IN_BYTES);
+         json.name("devices").beginArray();
+         }
+
+      @Override
+      public void handleResult(@NotNull final JoinedSeries joinedSeries) throws IOException
+         {
+         System.out.println("   " + joinedSeries.speckFile.getName() + " -> " + joinedSeries.stationSeries.station.getName());
+         int minTime = Integer.MAX_VALUE;
+         int maxTime = Integer.MIN_VALUE;
+         for (int i = 0; i < joinedSeries.numRecords; i++)
+            {
+            writer.writeInt(joinedSeries.times[i]);
+            writer.writeFloat(joinedSeries.speckValues[i]);
+            writer.writeFloat(joinedSeries.airNowValues[i]);
+            minTime = Math.min(minTime, joinedSeries.times[i]);
+            maxTime = Math.max(maxTime, joinedSeries.times[i]);
+            }
+
+         json.newline().beginObject();
+         json.name("name").value(joinedSeries.speckName);
+         json.name("airNowStation").value(joinedSeries.stationSeries.station.getName());
+         json.name("distanceInMeters").value(Math.round(joinedSeries.distanceInMeters));
+         json.name("numRecords").value(joinedSeries.numRecords);
+         json.name("recordOffset").value(recordOffset);
+         if (joinedSeries.numRecords > 0)
+            {
+            json.name("minTime").value(minTime);
+            json.name("maxTime").value(maxTime);
+            }
+         json.endObject();
+         recordOffset += joinedSeries.numRecords;
+         }
+
+      private void finish() throws IOException
+         {
+         writer.close();
+         json.newline().endArray().endObject().newline();
+         json.close();
+         }
+      }
+   }
@@ -4,14 +4,16 @@ import java.io.File;
 import java.util.HashSet;
 import java.util.Set;
 import org.apache.log4j.Logger;
+import org.cmucreatelab.io.CsvLine;
 import org.cmucreatelab.io.CsvReader;
+import org.cmucreatelab.io.NumberParser;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Chris Bartley (bartley@cmu.edu)
  */
-final class SpeckCsvDataFileEventListener implements CsvReader.EventListener
+final class SpeckCsvDataFileEventListener implements CsvReader.NumericEventListener
    {
    private static final Logger LOG = Logger.getLogger(SpeckCsvDataFileEventListener.class);
 
@@ -26,10 +28,15 @@ final class SpeckCsvDataFileEventListener implements CsvReader.EventListener
 
    private String name = null;
    private int numRecords = 0;
+   private int numMalformedLines = 0;
 
    @NotNull
    private final Set<EventListener> eventListeners = new HashSet<EventListener>();
 
+   /** Snapshot of the listeners, taken in {@link #handleBegin(File)} so that no iterator is created per line */
+   @NotNull
+   private EventListener[] eventListenersArray = new EventListener[0];
+
    public void addEventListener(@Nullable final EventListener listener)
       {
       if (listener != null)
@@ -45,43 +52,54 @@ final class SpeckCsvDataFileEventListener implements CsvReader.EventListener
       final int dotPosition = filenameWithExtension.lastIndexOf(".");
       name = (dotPosition >= 0) ? filenameWithExtension.substring(0, dotPosition) : filenameWithExtension;
       numRecords = 0;
-      for (final EventListener listener : eventListeners)
+      numMalformedLines = 0;
+      eventListenersArray = eventListeners.toArray(new EventListener[eventListeners.size()]);
+      for (final EventListener listener : eventListenersArray)
          {
          listener.handleBegin(name);
          }
       }
 
    @Override
-   public final void handleHeader(@NotNull final String header, @NotNull final String[] fieldNames)
+   public final void handleRecord(final int epochTimeInSeconds, @NotNull final double[] values, @NotNull final CsvLine line)
       {
-      // nothing to do
+      // Speck values are integer particle counts, so reparse the value as strictly as the time, rejecting forms like
+      // "12.0" and "1e2" which parse as whole doubles
+      final long value = NumberParser.parseInt(line.getBuffer(), line.getFieldOffset(1), line.getFieldLength(1));
+      if (value == NumberParser.MALFORMED_INT)
+         {
+         handleMalformedLine(line);
+         return;
+         }
+
+      numRecords++;
+      for (final EventListener listener : eventListenersArray)
+         {
+         listener.handleLine(epochTimeInSeconds, (int)value);
+         }
       }
 
    @Override
-   public final void handleLine(@NotNull final String line, @NotNull final String[] values)
+   public final void handleMalformedLine(@NotNull final CsvLine line)
       {
-      try
-         {
-         final int epochTimeInSeconds = Integer.parseInt(values[0]);
-         final int value = Integer.parseInt(values[1]);
-         numRecords++;
-         for (final EventListener listener : eventListeners)
-            {
-            listener.handleLine(epochTimeInSeconds, value);
-            }
-         }
-      catch (NumberFormatException ignored)
+      // only log the first one, since materializing and logging every bad line is slow for files with lots of them
+      if (numMalformedLines == 0)
          {
-         LOG.error("NumberFormatException while parsing line [" + line + "].  Skipping.");
+         LOG.error("Malformed number while parsing line [" + line + "] of [" + name + "].  Skipping.");
          }
+      numMalformedLines++;
       }
 
    @Override
-   public final void handleEnd(@NotNull final File file, final int numLines)
+   public final void handleEnd(@NotNull final File file, final int numRecords, final int numMalformedLines)
       {
-      for (final EventListener listener : eventListeners)
+      if (this.numMalformedLines > 1)
+         {
+         LOG.error("Skipped " + this.numMalformedLines + " lines with malformed numbers in [" + name + "]");
+         }
+      for (final EventListener listener : eventListenersArray)
          {
-         listener.handleEnd(numRecords);
+         listener.handleEnd(this.numRecords);
          }
       }
    }
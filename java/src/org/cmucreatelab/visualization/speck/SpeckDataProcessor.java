@@ -1,18 +1,37 @@
 package org.cmucreatelab.visualization.speck;
 
-import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
 import org.apache.log4j.Logger;
+import org.cmucreatelab.datastore.DatastoreExporter;
+import org.cmucreatelab.io.BinaryRecordWriter;
 import org.cmucreatelab.io.CsvReader;
+import org.cmucreatelab.io.JsonWriter;
+import org.cmucreatelab.io.AlignedColumnEncoder;
+import org.cmucreatelab.io.ColumnEncoder;
+import org.cmucreatelab.io.VarintColumnEncoder;
+import org.cmucreatelab.store.TimeSeriesStore;
+import org.cmucreatelab.store.TimeSeriesStoreWriter;
+import org.cmucreatelab.visualization.BinaryFormat;
+import org.cmucreatelab.visualization.DownsampledPyramid;
 import org.cmucreatelab.visualization.GeolocatedDevices;
+import org.cmucreatelab.visualization.InputCatalog;
+import org.cmucreatelab.visualization.IncrementalState;
+import org.cmucreatelab.visualization.OrderedParallelRunner;
+import org.cmucreatelab.visualization.OutputOptions;
+import org.cmucreatelab.visualization.Resampler;
+import org.cmucreatelab.visualization.ZoneMap;
+import org.cmucreatelab.visualization.ZoneMapReader;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Chris Bartley (bartley@cmu.edu)
@@ -22,14 +41,124 @@ public final class SpeckDataProcessor
    private static final Logger LOG = Logger.getLogger(SpeckDataProcessor.class);
 
    private static final String CSV_FILE_EXTENSION = ".csv";
+   private static final String THREADS_OPTION = "--threads";
+   private static final String INCREMENTAL_OPTION = "--incremental";
+   private static final String COLUMNAR_OPTION = "--columnar";
+   private static final String ALIGNED_OPTION = "--aligned";
+   private static final String RESAMPLED_OPTION = "--resampled";
+   private static final String PYRAMID_OPTION = "--pyramid";
+   private static final String CHUNK_SIZE_OPTION = "--chunk-size";
+   private static final String EXPORT_OPTION = "--export";
+   private static final String COMPARE_OPTION = "--compare";
+   private static final String COMPARISON_FILENAME_SUFFIX = "_comparison.bin";
+   private static final String GRID_OPTION = "--grid";
+   private static final String GRID_FILENAME_SUFFIX = "_grid.bin";
+   private static final String STORE_OPTION = "--store";
+   private static final String STORE_DIRECTORY_SUFFIX = "_store";
+   private static final String ZONE_MAP_OPTION = "--zone-map";
+   private static final String ZONE_MAP_FILENAME_SUFFIX = "_zones.bin";
+   private static final String START_OPTION = "--start";
+   private static final String END_OPTION = "--end";
+   private static final String INCREMENTAL_STATE_DIRECTORY_SUFFIX = ".incremental";
+   private static final int RECORD_SIZE_IN_BYTES = 8;
+
+   /** When processing in parallel, device files at least twice this size are split into chunks parsed concurrently */
+   private static final long DEFAULT_MIN_CHUNK_SIZE_IN_BYTES = 64 * 1024 * 1024;
+   private static final int NUM_REQUIRED_ARGS = 6;
 
    public static void main(final String[] args) throws IOException
       {
-      if (args.length < 6)
+      if (args.length < NUM_REQUIRED_ARGS)
          {
-         System.err.println("Usage: <sample interval seconds> <devices file> <input directory> <output directory> <output metadata filename> <output binary filename>");
+         System.err.println("Usage: <sample interval seconds> <devices file> <input directory> <output directory> <output metadata filename> <output binary filename> [" + THREADS_OPTION + " <number of threads>] [" + INCREMENTAL_OPTION + "] [" + COLUMNAR_OPTION + " | " + ALIGNED_OPTION + " | " + RESAMPLED_OPTION + " <first|last|min|max|mean>] [" + PYRAMID_OPTION + "] [" + CHUNK_SIZE_OPTION + " <minimum bytes per chunk>] [" + EXPORT_OPTION + " <datastore export program> <datastore user id> <channel name>] [" + COMPARE_OPTION + " <reference device> <device> <window seconds>] [" + GRID_OPTION + "] [" + STORE_OPTION + "] [" + ZONE_MAP_OPTION + "] [" + START_OPTION + " <epoch seconds>] [" + END_OPTION + " <epoch seconds>]");
+         System.err.println("With " + RESAMPLED_OPTION + ", each device's records are snapped to multiples of the sample interval, those sharing a time are combined with the given aggregation, and only the values are written, with " + Integer.MIN_VALUE + " for the gaps, so that a sample's time is implied by its position.  A device spanning more than " + Resampler.MAX_NUM_SAMPLES_PER_DEVICE + " samples, which means some of its times are wrong, gets no samples.");
+         System.err.println("With " + EXPORT_OPTION + ", the input directory is the datastore's key-value store, and the CSVs are streamed from the export program instead of read from files.");
+         System.err.println("With " + COMPARE_OPTION + ", the two devices are also compared over a rolling window of the given length, pairing their means of each sample interval, and writing the window ending at each pair to <binary filename>" + COMPARISON_FILENAME_SUFFIX + " and a summary to the metadata.");
+         System.err.println("With " + GRID_OPTION + ", the devices file gives each device's row and column instead of its latitude and longitude, and the values are also written as a frame-major time by row by column grid to <binary filename>" + GRID_FILENAME_SUFFIX + ".");
+         System.err.println("With " + STORE_OPTION + ", the records are also written, sorted by time, to a time series store in <binary filename>" + STORE_DIRECTORY_SUFFIX + ", which can be queried with " + TimeSeriesStore.class.getName() + ".");
+         System.err.println("With " + ZONE_MAP_OPTION + ", each block of " + ZoneMap.DEFAULT_BLOCK_SIZE_IN_RECORDS + " records in the binary file is summarized in <binary filename>" + ZONE_MAP_FILENAME_SUFFIX + ", so that " + ZoneMapReader.class.getName() + " can skip the blocks a query doesn't need.  It needs the default binary format.");
+         System.err.println("With " + START_OPTION + " and/or " + END_OPTION + ", only the records at or after the start time and before the end time are processed.  The CSV files must be sorted by time, so that the lines in the window can be found with a binary search instead of parsing the whole file.");
          System.exit(1);
          }
+      int numThreads = 1;
+      boolean isIncremental = false;
+      final OutputOptions outputOptions = new OutputOptions();
+      long minChunkSize = DEFAULT_MIN_CHUNK_SIZE_IN_BYTES;
+      String[] exportArgs = null;
+      String[] compareArgs = null;
+      for (int i = NUM_REQUIRED_ARGS; i < args.length; i++)
+         {
+         if (THREADS_OPTION.equals(args[i]) && i + 1 < args.length)
+            {
+            numThreads = Integer.parseInt(args[++i]);
+            }
+         else if (INCREMENTAL_OPTION.equals(args[i]))
+            {
+            isIncremental = true;
+            }
+         else if (COLUMNAR_OPTION.equals(args[i]))
+            {
+            outputOptions.setBinaryFormat(BinaryFormat.COLUMNAR);
+            }
+         else if (ALIGNED_OPTION.equals(args[i]))
+            {
+            outputOptions.setBinaryFormat(BinaryFormat.ALIGNED);
+            }
+         else if (RESAMPLED_OPTION.equals(args[i]) && i + 1 < args.length)
+            {
+            final Resampler.Aggregation aggregation = Resampler.Aggregation.findByName(args[++i]);
+            if (aggregation == null)
+               {
+               System.err.println("Unknown aggregation for " + RESAMPLED_OPTION + ": " + args[i]);
+               System.exit(1);
+               }
+            outputOptions.setBinaryFormat(BinaryFormat.RESAMPLED);
+            outputOptions.setAggregation(aggregation);
+            }
+         else if (PYRAMID_OPTION.equals(args[i]))
+            {
+            outputOptions.setPyramid(true);
+            }
+         else if (GRID_OPTION.equals(args[i]))
+            {
+            outputOptions.setGrid(true);
+            }
+         else if (STORE_OPTION.equals(args[i]))
+            {
+            outputOptions.setStore(true);
+            }
+         else if (ZONE_MAP_OPTION.equals(args[i]))
+            {
+            outputOptions.setZoneMap(true);
+            }
+         else if (START_OPTION.equals(args[i]) && i + 1 < args.length)
+            {
+            outputOptions.setStartTime(Integer.parseInt(args[++i]));
+            }
+         else if (END_OPTION.equals(args[i]) && i + 1 < args.length)
+            {
+            outputOptions.setEndTime(Integer.parseInt(args[++i]));
+            }
+         else if (CHUNK_SIZE_OPTION.equals(args[i]) && i + 1 < args.length)
+            {
+            minChunkSize = Long.parseLong(args[++i]);
+            }
+         else if (EXPORT_OPTION.equals(args[i]) && i + 3 < args.length)
+            {
+            exportArgs = new String[]{args[i + 1], args[i + 2], args[i + 3]};
+            i += 3;
+            }
+         else if (COMPARE_OPTION.equals(args[i]) && i + 3 < args.length)
+            {
+            compareArgs = new String[]{args[i + 1], args[i + 2], args[i + 3]};
+            i += 3;
+            }
+         else
+            {
+            System.err.println("Unknown or incomplete option: " + args[i]);
+            System.exit(1);
+            }
+         }
       final int sampleIntervalSecs = Integer.parseInt(args[0]);
       final File devicesFile = new File(args[1]);
       final File inputDirectory = new File(args[2]);
@@ -55,14 +184,94 @@ public final class SpeckDataProcessor
 
       final File outputMetadataFile = new File(outputDirectory, args[4]);
       final File outputBinaryFile = new File(outputDirectory, args[5]);
+      final File incrementalStateDirectory = isIncremental ? new File(outputDirectory, args[5] + INCREMENTAL_STATE_DIRECTORY_SUFFIX) : null;
+      final Integer startTime = outputOptions.getStartTime();
+      final Integer endTime = outputOptions.getEndTime();
+      final DatastoreExporter exporter = (exportArgs == null) ? null : new DatastoreExporter(new File(exportArgs[0]), inputDirectory, exportArgs[1], exportArgs[2], startTime, endTime);
+      if (exporter != null && isIncremental)
+         {
+         System.err.println("The " + EXPORT_OPTION + " and " + INCREMENTAL_OPTION + " options can't be combined, since incremental processing needs CSV files.");
+         System.exit(1);
+         }
+      if ((startTime != null || endTime != null) && isIncremental)
+         {
+         System.err.println("The " + START_OPTION + " and " + END_OPTION + " options can't be combined with " + INCREMENTAL_OPTION + ", since incremental processing picks up where the previous run left off.");
+         System.exit(1);
+         }
+      if (startTime != null && endTime != null && startTime >= endTime)
+         {
+         System.err.println("The " + START_OPTION + " time must be before the " + END_OPTION + " time.");
+         System.exit(1);
+         }
+      final BinaryFormat binaryFormat = outputOptions.getBinaryFormat();
+      if (outputOptions.isZoneMap() && binaryFormat != BinaryFormat.RECORDS)
+         {
+         System.err.println("The " + ZONE_MAP_OPTION + " option can't be combined with " + COLUMNAR_OPTION + ", " + ALIGNED_OPTION + " or " + RESAMPLED_OPTION + ", since the blocks must be contiguous runs of records.");
+         System.exit(1);
+         }
+      ComparisonGenerator comparisonGenerator = null;
+      if (compareArgs != null)
+         {
+         final int windowSecs = Integer.parseInt(compareArgs[2]);
+         if (compareArgs[0].equals(compareArgs[1]) || windowSecs <= 0)
+            {
+            System.err.println("The " + COMPARE_OPTION + " option needs two different devices and a positive window length.");
+            System.exit(1);
+            }
+         final File comparisonFile = new File(outputDirectory, getFilenameWithoutExtension(outputBinaryFile) + COMPARISON_FILENAME_SUFFIX);
+         comparisonGenerator = new ComparisonGenerator(sampleIntervalSecs, compareArgs[0], compareArgs[1], windowSecs, comparisonFile);
+         }
 
       System.out.println("Sample Interval Seconds:  " + sampleIntervalSecs);
       System.out.println("Speck Devices File:       " + devicesFile.getCanonicalPath());
-      System.out.println("CSV Input Directory:      " + inputDirectory.getCanonicalPath());
+      if (exporter == null)
+         {
+         System.out.println("CSV Input Directory:      " + inputDirectory.getCanonicalPath());
+         }
+      else
+         {
+         System.out.println("Key-Value Store:          " + inputDirectory.getCanonicalPath());
+         System.out.println("Export Program:           " + new File(exportArgs[0]).getCanonicalPath());
+         System.out.println("Datastore User ID:        " + exportArgs[1]);
+         System.out.println("Datastore Channel:        " + exportArgs[2]);
+         }
       System.out.println("Output Metadata File:     " + outputMetadataFile.getCanonicalPath());
       System.out.println("Output Binary File:       " + outputBinaryFile.getCanonicalPath());
+      System.out.println("Threads:                  " + numThreads);
+      System.out.println("Minimum Chunk Size:       " + minChunkSize + " bytes");
+      System.out.println("Binary Format:            " + binaryFormat.getName() + ((binaryFormat == BinaryFormat.RESAMPLED) ? " (" + outputOptions.getAggregation().getName() + ")" : ""));
+      System.out.println("Downsampled Levels:       " + (outputOptions.isPyramid() ? "yes" : "no"));
+      if (startTime != null)
+         {
+         System.out.println("Start Time:               " + startTime);
+         }
+      if (endTime != null)
+         {
+         System.out.println("End Time:                 " + endTime + " (exclusive)");
+         }
+      if (incrementalStateDirectory != null)
+         {
+         System.out.println("Incremental State:        " + incrementalStateDirectory.getCanonicalPath());
+         }
+      if (comparisonGenerator != null)
+         {
+         System.out.println("Comparison:               " + compareArgs[1] + " vs. " + compareArgs[0] + ", over " + compareArgs[2] + " second windows");
+         System.out.println("Comparison File:          " + comparisonGenerator.getOutputFile().getCanonicalPath());
+         }
+      if (outputOptions.isGrid())
+         {
+         System.out.println("Grid File:                " + new File(outputDirectory, getFilenameWithoutExtension(outputBinaryFile) + GRID_FILENAME_SUFFIX).getCanonicalPath());
+         }
+      if (outputOptions.isStore())
+         {
+         System.out.println("Time Series Store:        " + new File(outputDirectory, getFilenameWithoutExtension(outputBinaryFile) + STORE_DIRECTORY_SUFFIX).getCanonicalPath());
+         }
+      if (outputOptions.isZoneMap())
+         {
+         System.out.println("Zone Map File:            " + new File(outputDirectory, getFilenameWithoutExtension(outputBinaryFile) + ZONE_MAP_FILENAME_SUFFIX).getCanonicalPath());
+         }
 
-      final SpeckDataProcessor dataProcessor = new SpeckDataProcessor(sampleIntervalSecs, devicesFile, inputDirectory, outputMetadataFile, outputBinaryFile);
+      final SpeckDataProcessor dataProcessor = new SpeckDataProcessor(sampleIntervalSecs, devicesFile, inputDirectory, outputMetadataFile, outputBinaryFile, numThreads, minChunkSize, incrementalStateDirectory, exporter, comparisonGenerator, outputOptions);
       dataProcessor.run();
       }
 
@@ -80,17 +289,87 @@ public final class SpeckDataProcessor
    @NotNull
    private final File outputBinaryFile;
 
+   private final int numThreads;
+
+   /** Minimum size of the chunks that device files are split into when processing in parallel */
+   private final long minChunkSize;
+
+   /** Directory holding the state for incremental processing, or <code>null</code> to process everything from scratch. */
+   @Nullable
+   private final File incrementalStateDirectory;
+
+   /** Runs the datastore export program to stream the CSVs, or <code>null</code> to read CSV files instead. */
+   @Nullable
+   private final DatastoreExporter exporter;
+
+   /** Compares two of the devices, or <code>null</code> if no comparison was asked for. */
+   @Nullable
+   private final ComparisonGenerator comparisonGenerator;
+
+   @NotNull
+   private final BinaryFormat binaryFormat;
+
+   /** How the records sharing a sample time are combined, when the binary format is {@link BinaryFormat#RESAMPLED} */
+   @NotNull
+   private final Resampler.Aggregation aggregation;
+
+   private final boolean isPyramid;
+
+   /** Whether to also write the values as a frame-major grid, for devices laid out by row and column */
+   private final boolean isGrid;
+
+   /** Whether to also write the records to a {@link TimeSeriesStore} */
+   private final boolean isStore;
+
+   /** Whether to also write a {@link ZoneMap} of the binary file */
+   private final boolean isZoneMap;
+
+   /** Only records at or after this time (in epoch seconds) are processed, or all of them if <code>null</code>. */
+   @Nullable
+   private final Integer startTime;
+
+   /** Only records before this time (in epoch seconds) are processed, or all of them if <code>null</code>. */
+   @Nullable
+   private final Integer endTime;
+
    SpeckDataProcessor(final int sampleIntervalSecs,
                       @NotNull final File devicesFile,
                       @NotNull final File inputDirectory,
                       @NotNull final File outputMetadataFile,
-                      @NotNull final File outputBinaryFile)
+                      @NotNull final File outputBinaryFile,
+                      final int numThreads,
+                      final long minChunkSize,
+                      @Nullable final File incrementalStateDirectory,
+                      @Nullable final DatastoreExporter exporter,
+                      @Nullable final ComparisonGenerator comparisonGenerator,
+                      @NotNull final OutputOptions outputOptions)
       {
       this.sampleIntervalSecs = sampleIntervalSecs;
       this.devicesFile = devicesFile;
       this.inputDirectory = inputDirectory;
       this.outputMetadataFile = outputMetadataFile;
       this.outputBinaryFile = outputBinaryFile;
+      this.numThreads = numThreads;
+      this.minChunkSize = minChunkSize;
+      this.incrementalStateDirectory = incrementalStateDirectory;
+      this.exporter = exporter;
+      this.comparisonGenerator = comparisonGenerator;
+      this.binaryFormat = outputOptions.getBinaryFormat();
+      this.aggregation = outputOptions.getAggregation();
+      this.isPyramid = outputOptions.isPyramid();
+      this.isGrid = outputOptions.isGrid();
+      this.isStore = outputOptions.isStore();
+      this.isZoneMap = outputOptions.isZoneMap();
+      this.startTime = outputOptions.getStartTime();
+      this.endTime = outputOptions.getEndTime();
+      }
+
+   @NotNull
+   private static String getFilenameWithoutExtension(@NotNull final File file)
+      {
+      final String filename = file.getName();
+      final int dotPosition = filename.lastIndexOf(".");
+      return (dotPosition > 0) ? filename.substring(0, dotPosition) : filename;
       }
 
    public final void run() throws IOException
@@ -98,149 +377,318 @@ public final class SpeckDataProcessor
       final GeolocatedDevices geolocatedDevices = new SpeckDevices(devicesFile);
       if (!geolocatedDevices.isEmpty())
          {
-         final SpeckCsvDataFileEventListener csvDataFileEventListener = new SpeckCsvDataFileEventListener();
          final MetadataGenerator metadataGenerator = new MetadataGenerator(sampleIntervalSecs, outputMetadataFile, geolocatedDevices);
-         final BinaryGenerator binaryGenerator = new BinaryGenerator(outputBinaryFile);
+         final BinaryGenerator binaryGenerator = new BinaryGenerator(outputBinaryFile, binaryFormat);
+         if (binaryFormat.isColumnar())
+            {
+            metadataGenerator.setColumnarBinaryGenerator(binaryGenerator);
+            }
+         if (binaryFormat == BinaryFormat.RESAMPLED)
+            {
+            final Resampler resampler = new Resampler(sampleIntervalSecs, aggregation, 4);
+            binaryGenerator.setResampler(resampler);
+            metadataGenerator.setResampler(resampler);
+            }
+         if (isZoneMap)
+            {
+            final ZoneMap zoneMap = new ZoneMap(new File(outputBinaryFile.getAbsoluteFile().getParentFile(), getFilenameWithoutExtension(outputBinaryFile) + ZONE_MAP_FILENAME_SUFFIX), ZoneMap.DEFAULT_BLOCK_SIZE_IN_RECORDS, RECORD_SIZE_IN_BYTES, 4);
+            binaryGenerator.setZoneMap(zoneMap);
+            metadataGenerator.setZoneMap(zoneMap);
+            }
+         PyramidGenerator pyramidGenerator = null;
+         if (isPyramid)
+            {
+            final DownsampledPyramid pyramid = new DownsampledPyramid(sampleIntervalSecs, outputBinaryFile.getAbsoluteFile().getParentFile(), getFilenameWithoutExtension(outputBinaryFile));
+            pyramidGenerator = new PyramidGenerator(pyramid);
+            metadataGenerator.setPyramid(pyramid);
+            }
+         metadataGenerator.setComparisonGenerator(comparisonGenerator);
+         GridTensorGenerator gridGenerator = null;
+         if (isGrid)
+            {
+            final File gridFile = new File(outputBinaryFile.getAbsoluteFile().getParentFile(), getFilenameWithoutExtension(outputBinaryFile) + GRID_FILENAME_SUFFIX);
+            gridGenerator = new GridTensorGenerator(sampleIntervalSecs, geolocatedDevices, gridFile);
+            metadataGenerator.setGridGenerator(gridGenerator);
+            }
+         StoreGenerator storeGenerator = null;
+         if (isStore)
+            {
+            storeGenerator = new StoreGenerator(new TimeSeriesStoreWriter(new File(outputBinaryFile.getAbsoluteFile().getParentFile(), getFilenameWithoutExtension(outputBinaryFile) + STORE_DIRECTORY_SUFFIX), 1.0));
+            }
 
-         csvDataFileEventListener.addEventListener(metadataGenerator);
-         csvDataFileEventListener.addEventListener(binaryGenerator);
+         // the exports don't read CSV files, so there's nothing to list
+         InputCatalog inputCatalog = null;
+         if (exporter == null)
+            {
+            inputCatalog = new InputCatalog(inputDirectory, CSV_FILE_EXTENSION);
+            System.out.println("Found " + inputCatalog.size() + " CSV files (" + inputCatalog.getTotalSize() + " bytes)");
+            }
 
          System.out.println("Processing " + geolocatedDevices.size() + " devices...");
-         final Iterator<GeolocatedDevices.Device> iterator = geolocatedDevices.iterator();
-         while (iterator.hasNext())
+         IncrementalState incrementalState = null;
+         if (incrementalStateDirectory != null)
+            {
+            incrementalState = new IncrementalState(incrementalStateDirectory);
+            processIncrementally(geolocatedDevices, inputCatalog, incrementalState, metadataGenerator, binaryGenerator, pyramidGenerator, comparisonGenerator, gridGenerator, storeGenerator);
+            }
+         else if (exporter != null)
+            {
+            processExports(geolocatedDevices, exporter, metadataGenerator, binaryGenerator, pyramidGenerator, comparisonGenerator, gridGenerator, storeGenerator);
+            }
+         else if (numThreads > 1)
+            {
+            processInParallel(geolocatedDevices, inputCatalog, metadataGenerator, binaryGenerator, pyramidGenerator, comparisonGenerator, gridGenerator, storeGenerator);
+            }
+         else
             {
-            GeolocatedDevices.Device device = iterator.next();
-            final File deviceFile = new File(inputDirectory, device.getName() + CSV_FILE_EXTENSION);
-            if (deviceFile.isFile())
+            final SpeckCsvDataFileEventListener csvDataFileEventListener = new SpeckCsvDataFileEventListener();
+            csvDataFileEventListener.addEventListener(metadataGenerator);
+            csvDataFileEventListener.addEventListener(binaryGenerator);
+            csvDataFileEventListener.addEventListener(pyramidGenerator);
+            csvDataFileEventListener.addEventListener(comparisonGenerator);
+            csvDataFileEventListener.addEventListener(gridGenerator);
+            csvDataFileEventListener.addEventListener(storeGenerator);
+
+            final Iterator<GeolocatedDevices.Device> iterator = geolocatedDevices.iterator();
+            while (iterator.hasNext())
                {
-               System.out.println("   " + deviceFile.getName());
-               final CsvReader csvReader = new CsvReader(deviceFile, true, 2);
-               csvReader.addEventListener(csvDataFileEventListener);
-               csvReader.read();
+               GeolocatedDevices.Device device = iterator.next();
+               final File deviceFile = inputCatalog.getFile(device.getName());
+               if (deviceFile != null)
+                  {
+                  System.out.println("   " + deviceFile.getName());
+                  final CsvReader csvReader = new CsvReader(deviceFile, true, 2);
+                  csvReader.setTimeWindow(startTime, endTime);
+                  csvReader.addNumericEventListener(csvDataFileEventListener);
+                  csvReader.read();
+                  }
                }
             }
 
+         // the comparison and grid go first, since their summaries are written to the metadata
+         if (comparisonGenerator != null)
+            {
+            comparisonGenerator.finish();
+            }
+         if (gridGenerator != null)
+            {
+            gridGenerator.finish();
+            }
          metadataGenerator.finish();
          binaryGenerator.finish();
+         if (pyramidGenerator != null)
+            {
+            pyramidGenerator.finish();
+            }
+         if (storeGenerator != null)
+            {
+            storeGenerator.finish();
+            }
+
+         // only save the state once the outputs are complete, so that a failed run is simply repeated next time
+         if (incrementalState != null)
+            {
+            incrementalState.save();
+            }
          }
       }
 
-   private static final class MetadataGenerator implements SpeckCsvDataFileEventListener.EventListener
+   /**
+    * Reads only the CSV lines appended to each device file since the previous run, appending the new records to the
+    * device's segment and updating its state.  The segments are then concatenated, in device order, into the binary
+    * file, and the metadata is written from the statistics in the state.
+    */
+   private void processIncrementally(@NotNull final GeolocatedDevices geolocatedDevices,
+                                     @NotNull final InputCatalog inputCatalog,
+                                     @NotNull final IncrementalState incrementalState,
+                                     @NotNull final MetadataGenerator metadataGenerator,
+                                     @NotNull final BinaryGenerator binaryGenerator,
+                                     @Nullable final PyramidGenerator pyramidGenerator,
+                                     @Nullable final ComparisonGenerator comparisonGenerator,
+                                     @Nullable final GridTensorGenerator gridGenerator,
+                                     @Nullable final StoreGenerator storeGenerator) throws IOException
       {
-      private final int sampleIntervalSecs;
-
-      @NotNull
-      private final File outputFile;
-
-      @NotNull
-      private final GeolocatedDevices geolocatedDevices;
+      final List<Callable<IncrementalDeviceUpdater>> tasks = new ArrayList<Callable<IncrementalDeviceUpdater>>();
+      final List<Long> taskSizes = new ArrayList<Long>();
+      final List<String> taskLabels = new ArrayList<String>();
+      final Iterator<GeolocatedDevices.Device> iterator = geolocatedDevices.iterator();
+      while (iterator.hasNext())
+         {
+         final GeolocatedDevices.Device device = iterator.next();
+         final File deviceFile = inputCatalog.getFile(device.getName());
+         if (deviceFile != null)
+            {
+            final IncrementalState.DeviceState deviceState = incrementalState.getDeviceState(device.getName());
 
-      @NotNull
-      private final List<String> devicesJson;
+            // only the lines appended since the previous run are read, unless the file was replaced by a shorter one
+            final long fileSize = inputCatalog.getSize(device.getName());
+            taskSizes.add((fileSize >= deviceState.getCsvOffset()) ? fileSize - deviceState.getCsvOffset() : fileSize);
+            taskLabels.add(device.getName());
+            tasks.add(
+                  new Callable<IncrementalDeviceUpdater>()
+                  {
+                  @Override
+                  public IncrementalDeviceUpdater call() throws IOException
+                     {
+                     final File segmentFile = incrementalState.prepareSegmentFile(deviceState, deviceFile, RECORD_SIZE_IN_BYTES);
+                     final IncrementalDeviceUpdater updater = new IncrementalDeviceUpdater(deviceFile, deviceState, segmentFile);
+                     updater.run();
+                     return updater;
+                     }
+                  });
+            }
+         }
 
-      private String name = null;
-      private int minTime = Integer.MAX_VALUE;
-      private int maxTime = Integer.MIN_VALUE;
-      private int minValueTime = 0;
-      private int maxValueTime = 0;
-      private int minValue = Integer.MAX_VALUE;
-      private int maxValue = Integer.MIN_VALUE;
-      private int recordOffset = 0;
+      final OrderedParallelRunner<IncrementalDeviceUpdater> runner = new OrderedParallelRunner<IncrementalDeviceUpdater>(numThreads);
+      runner.run(
+            tasks,
+            taskSizes,
+            new OrderedParallelRunner.ResultHandler<IncrementalDeviceUpdater>()
+            {
+            @Override
+            public void handleResult(@NotNull final IncrementalDeviceUpdater updater) throws IOException
+               {
+               System.out.println("   " + updater.getDeviceFile().getName() + " (" + updater.getNumNewRecords() + " new records)");
+               final IncrementalState.DeviceState deviceState = updater.getDeviceState();
+               binaryGenerator.appendSegment(updater.getSegmentFile(), deviceState.getName());
+               if (pyramidGenerator != null)
+                  {
+                  replaySegment(updater.getSegmentFile(), deviceState.getName(), pyramidGenerator);
+                  }
+               if (comparisonGenerator != null)
+                  {
+                  replaySegment(updater.getSegmentFile(), deviceState.getName(), comparisonGenerator);
+                  }
+               if (gridGenerator != null)
+                  {
+                  replaySegment(updater.getSegmentFile(), deviceState.getName(), gridGenerator);
+                  }
+               if (storeGenerator != null)
+                  {
+                  replaySegment(updater.getSegmentFile(), deviceState.getName(), storeGenerator);
+                  }
+               metadataGenerator.handleDevice(deviceState.getName(), updater.getStatistics(), deviceState.getNumRecords());
+               }
+            });
+      runner.printTimingReport(taskLabels);
+      }
 
-      private MetadataGenerator(final int sampleIntervalSecs, @NotNull final File outputFile, @NotNull final GeolocatedDevices geolocatedDevices)
+   /** Replays the records of an incremental segment file to the given listener, as a device of the given name. */
+   private static void replaySegment(@NotNull final File segmentFile,
+                                     @NotNull final String name,
+                                     @NotNull final SpeckCsvDataFileEventListener.EventListener listener) throws IOException
+      {
+      final int numRecords = (int)(segmentFile.length() / RECORD_SIZE_IN_BYTES);
+      final DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile)));
+      try
          {
-         this.sampleIntervalSecs = sampleIntervalSecs;
-         this.outputFile = outputFile;
-         this.geolocatedDevices = geolocatedDevices;
-         devicesJson = new ArrayList<String>();
+         listener.handleBegin(name);
+         for (int i = 0; i < numRecords; i++)
+            {
+            listener.handleLine(inputStream.readInt(), inputStream.readInt());
+            }
+         listener.handleEnd(numRecords);
          }
-
-      @Override
-      public void handleBegin(@NotNull String name)
+      finally
          {
-         this.name = name;
-         minTime = Integer.MAX_VALUE;
-         maxTime = Integer.MIN_VALUE;
-         minValue = Integer.MAX_VALUE;
-         maxValue = Integer.MIN_VALUE;
+         inputStream.close();
          }
+      }
 
-      @Override
-      public void handleLine(final int epochTimeInSeconds, final int value)
+   /**
+    * Ingests the lines appended to a single device file since the previous run: records newer than the device's
+    * high-water mark are appended to its segment and folded into its statistics, and then the state is updated.
+    */
+   private static final class IncrementalDeviceUpdater implements SpeckCsvDataFileEventListener.EventListener
+      {
+      @NotNull
+      private final File deviceFile;
+      @NotNull
+      private final IncrementalState.DeviceState deviceState;
+      @NotNull
+      private final File segmentFile;
+      @NotNull
+      private final DeviceStatistics statistics = new DeviceStatistics();
+      private final int previousHighWaterTime;
+      private int highWaterTime;
+      private int numNewRecords = 0;
+      private int numStaleRecords = 0;
+      private BinaryRecordWriter segmentWriter = null;
+      private IOException writeException = null;
+
+      private IncrementalDeviceUpdater(@NotNull final File deviceFile, @NotNull final IncrementalState.DeviceState deviceState, @NotNull final File segmentFile)
          {
-         minTime = Math.min(minTime, epochTimeInSeconds);
-         maxTime = Math.max(maxTime, epochTimeInSeconds);
-         if (value <= minValue)
-            {
-            minValue = value;
-            minValueTime = epochTimeInSeconds;
-            }
-         if (value >= maxValue)
+         this.deviceFile = deviceFile;
+         this.deviceState = deviceState;
+         this.segmentFile = segmentFile;
+         previousHighWaterTime = deviceState.getHighWaterTime();
+         highWaterTime = previousHighWaterTime;
+         if (!deviceState.isNew())
             {
-            maxValue = value;
-            maxValueTime = epochTimeInSeconds;
+            statistics.restore(deviceState);
             }
          }
 
-      @Override
-      public void handleEnd(final int numRecords)
+      private void run() throws IOException
          {
-         final GeolocatedDevices.Device device = geolocatedDevices.findByName(name);
-         if (device != null)
-            {
-            final StringBuilder sb = new StringBuilder("{");
-            sb.append("\"name\":").append("\"").append(name).append("\",");
-            sb.append("\"prettyName\":").append("\"").append(device.getPrettyName()).append("\",");
-            sb.append("\"latitude\":").append(device.getLatitude()).append(",");
-            sb.append("\"longitude\":").append(device.getLongitude()).append(",");
-            final String locationDetails = device.getLocationDetails();
-            sb.append("\"locationDetails\":").append("\"").append(locationDetails == null ? "" : locationDetails).append("\",");
-            sb.append("\"minTime\":").append(minTime).append(",");
-            sb.append("\"maxTime\":").append(maxTime).append(",");
-            sb.append("\"minValue\":").append(minValue).append(",");
-            sb.append("\"maxValue\":").append(maxValue).append(",");
-            sb.append("\"minValueTime\":").append(minValueTime).append(",");
-            sb.append("\"maxValueTime\":").append(maxValueTime).append(",");
-            sb.append("\"numRecords\":").append(numRecords).append(",");
-            sb.append("\"recordOffset\":").append(recordOffset).append("}");
-            devicesJson.add(sb.toString());
+         final SpeckCsvDataFileEventListener csvDataFileEventListener = new SpeckCsvDataFileEventListener();
+         csvDataFileEventListener.addEventListener(this);
+         final CsvReader csvReader = new CsvReader(deviceFile, true, 2);
+         csvReader.addNumericEventListener(csvDataFileEventListener);
+         csvReader.setStartOffset(deviceState.getCsvOffset());
 
-            recordOffset += numRecords;
-            }
-         }
+         // the export may still be writing the last line, so leave it for next time
+         csvReader.setWillIgnoreIncompleteLastLine(true);
 
-      public void finish()
-         {
+         segmentWriter = new BinaryRecordWriter(segmentFile, BinaryRecordWriter.DEFAULT_BUFFER_SIZE, true);
          try
             {
-            final PrintWriter writer = new PrintWriter(new FileWriter(outputFile));
-            writer.println("{\"valueIntervalSecs\":" + sampleIntervalSecs + ",\"devices\" : [");
-
-            int i = 0;
-            for (final String json : devicesJson)
-               {
-               writer.println(json + ((i == devicesJson.size() - 1) ? "" : ","));
-               i++;
-               }
-            writer.println("]}");
-
-            writer.close();
+            csvReader.read();
             }
-         catch (IOException e)
+         finally
+            {
+            segmentWriter.close();
+            }
+         if (writeException != null)
+            {
+            throw writeException;
+            }
+         if (numStaleRecords > 0)
             {
-            LOG.error("IOException while trying to write the metadata file", e);
+            LOG.warn("Skipped " + numStaleRecords + " records in [" + deviceFile.getName() + "] which weren't newer than the previous run's latest record");
             }
+
+         deviceState.setProgress(csvReader.getEndOffset(), highWaterTime, deviceState.getNumRecords() + numNewRecords);
+         statistics.save(deviceState);
          }
-      }
 
-   private static final class BinaryGenerator implements SpeckCsvDataFileEventListener.EventListener
-      {
       @NotNull
-      private final DataOutputStream outputStream;
+      private File getDeviceFile()
+         {
+         return deviceFile;
+         }
 
-      public BinaryGenerator(@NotNull final File outputFile) throws IOException
+      @NotNull
+      private IncrementalState.DeviceState getDeviceState()
+         {
+         return deviceState;
+         }
+
+      @NotNull
+      private File getSegmentFile()
+         {
+         return segmentFile;
+         }
+
+      @NotNull
+      private DeviceStatistics getStatistics()
+         {
+         return statistics;
+         }
+
+      private int getNumNewRecords()
          {
-         outputStream = new DataOutputStream(new FileOutputStream(outputFile));
+         return numNewRecords;
          }
 
       @Override
@@ -252,14 +700,25 @@ public final class SpeckDataProcessor
       @Override
       public void handleLine(final int epochTimeInSeconds, final int value)
          {
-         try
+         if (epochTimeInSeconds <= previousHighWaterTime)
             {
-            outputStream.writeInt(epochTimeInSeconds);
-            outputStream.writeInt(value);
+            numStaleRecords++;
             }
-         catch (IOException e)
+         else if (writeException == null)
             {
-            LOG.error("IOException while writing binary data", e);
+            try
+               {
+               segmentWriter.writeInt(epochTimeInSeconds);
+               segmentWriter.writeInt(value);
+               }
+            catch (IOException e)
+               {
+               writeException = e;
+               return;
+               }
+            statistics.handleLine(epochTimeInSeconds, value);
+            highWaterTime = Math.max(highWaterTime, epochTimeInSeconds);
+            numNewRecords++;
             }
          }
 
@@ -268,16 +727,923 @@ public final class SpeckDataProcessor
          {
          // nothing to do
          }
+      }
 
-      public void finish()
+   /**
+    * Parses the device files concurrently, each into its own {@link DeviceRecordBuffer}, and then replays the buffers
+    * through the generators in device order so that the output is identical to that of a serial run.
+    */
+   private void processInParallel(@NotNull final GeolocatedDevices geolocatedDevices,
+                                  @NotNull final InputCatalog inputCatalog,
+                                  @NotNull final MetadataGenerator metadataGenerator,
+                                  @NotNull final BinaryGenerator binaryGenerator,
+                                  @Nullable final PyramidGenerator pyramidGenerator,
+                                  @Nullable final ComparisonGenerator comparisonGenerator,
+                                  @Nullable final GridTensorGenerator gridGenerator,
+                                  @Nullable final StoreGenerator storeGenerator) throws IOException
+      {
+      // large files are split into chunks at line boundaries, so that a single huge file can't hold up the whole run
+      final List<Callable<DeviceRecordBuffer>> tasks = new ArrayList<Callable<DeviceRecordBuffer>>();
+      final List<Long> taskSizes = new ArrayList<Long>();
+      final List<String> taskLabels = new ArrayList<String>();
+      final Iterator<GeolocatedDevices.Device> iterator = geolocatedDevices.iterator();
+      while (iterator.hasNext())
          {
-         try
+         final GeolocatedDevices.Device device = iterator.next();
+         final File deviceFile = inputCatalog.getFile(device.getName());
+         if (deviceFile != null)
             {
-            outputStream.close();
+            // with a time window, only the lines in the window are split, so that they're still spread over the threads
+            final long[] chunkOffsets;
+            if (startTime == null && endTime == null)
+               {
+               chunkOffsets = CsvReader.findChunkOffsets(deviceFile, numThreads, minChunkSize);
+               }
+            else
+               {
+               final long[] windowOffsets = CsvReader.findTimeWindowOffsets(deviceFile, true, startTime, endTime);
+               chunkOffsets = CsvReader.findChunkOffsets(deviceFile, windowOffsets[0], windowOffsets[1], numThreads, minChunkSize);
+               }
+            final int numChunks = chunkOffsets.length - 1;
+            for (int i = 0; i < numChunks; i++)
+               {
+               final int chunkIndex = i;
+               taskSizes.add(chunkOffsets[chunkIndex + 1] - chunkOffsets[chunkIndex]);
+               taskLabels.add(device.getName());
+               tasks.add(
+                     new Callable<DeviceRecordBuffer>()
+                     {
+                     @Override
+                     public DeviceRecordBuffer call()
+                        {
+                        final DeviceRecordBuffer recordBuffer = new DeviceRecordBuffer(deviceFile, chunkIndex == numChunks - 1);
+                        final SpeckCsvDataFileEventListener csvDataFileEventListener = new SpeckCsvDataFileEventListener();
+                        csvDataFileEventListener.addEventListener(recordBuffer);
+                        final CsvReader csvReader = new CsvReader(deviceFile, true, 2);
+                        csvReader.setStartOffset(chunkOffsets[chunkIndex]);
+                        csvReader.setLimit(chunkOffsets[chunkIndex + 1]);
+                        csvReader.setTimeWindow(startTime, endTime);
+                        csvReader.addNumericEventListener(csvDataFileEventListener);
+                        if (!csvReader.read())
+                           {
+                           // a chunk which never ended keeps the whole device from being replayed
+                           return new DeviceRecordBuffer(deviceFile, chunkIndex == numChunks - 1);
+                           }
+                        return recordBuffer;
+                        }
+                     });
+               }
             }
-         catch (IOException e)
-            {
-            LOG.error("IOException while trying to close the binary output stream", e);
+         }
+
+      final OrderedParallelRunner<DeviceRecordBuffer> runner = new OrderedParallelRunner<DeviceRecordBuffer>(numThreads);
+      runner.run(tasks, taskSizes, new DeviceChunkReplayer(metadataGenerator, binaryGenerator, pyramidGenerator, comparisonGenerator, gridGenerator, storeGenerator));
+      runner.printTimingReport(taskLabels);
+      }
+
+   /**
+    * Streams each device's CSV straight from the datastore export program into the parser, without ever writing a CSV
+    * file, running as many exports at once as there are threads.  Devices whose export fails are skipped.
+    */
+   private void processExports(@NotNull final GeolocatedDevices geolocatedDevices,
+                               @NotNull final DatastoreExporter exporter,
+                               @NotNull final MetadataGenerator metadataGenerator,
+                               @NotNull final BinaryGenerator binaryGenerator,
+                               @Nullable final PyramidGenerator pyramidGenerator,
+                               @Nullable final ComparisonGenerator comparisonGenerator,
+                               @Nullable final GridTensorGenerator gridGenerator,
+                               @Nullable final StoreGenerator storeGenerator) throws IOException
+      {
+      final List<Callable<DeviceRecordBuffer>> tasks = new ArrayList<Callable<DeviceRecordBuffer>>();
+      final List<String> taskLabels = new ArrayList<String>();
+      final Iterator<GeolocatedDevices.Device> iterator = geolocatedDevices.iterator();
+      while (iterator.hasNext())
+         {
+         final String deviceName = iterator.next().getName();
+         taskLabels.add(deviceName);
+         tasks.add(
+               new Callable<DeviceRecordBuffer>()
+               {
+               @Override
+               public DeviceRecordBuffer call()
+                  {
+                  // there's no file, but the listeners take the device name from the file name
+                  final File deviceFile = new File(deviceName + CSV_FILE_EXTENSION);
+                  final DeviceRecordBuffer recordBuffer = new DeviceRecordBuffer(deviceFile, true);
+                  final SpeckCsvDataFileEventListener csvDataFileEventListener = new SpeckCsvDataFileEventListener();
+                  csvDataFileEventListener.addEventListener(recordBuffer);
+                  final CsvReader csvReader = new CsvReader(deviceFile, true, 2);
+                  csvReader.setTimeWindow(startTime, endTime);
+                  csvReader.addNumericEventListener(csvDataFileEventListener);
+                  try
+                     {
+                     exporter.export(deviceName,
+                                     new DatastoreExporter.StreamHandler()
+                                     {
+                                     @Override
+                                     public void handleStream(@NotNull final InputStream inputStream) throws IOException
+                                        {
+                                        if (!csvReader.read(inputStream))
+                                           {
+                                           throw new IOException("Failed to read the export of device [" + deviceName + "]");
+                                           }
+                                        }
+                                     });
+                     }
+                  catch (IOException e)
+                     {
+                     LOG.error("IOException while trying to export device [" + deviceName + "].  Skipping it.", e);
+
+                     // a buffer which never ended isn't replayed
+                     return new DeviceRecordBuffer(deviceFile, true);
+                     }
+                  return recordBuffer;
+                  }
+               });
+         }
+
+      // the size of an export isn't known until it's done, so the devices are exported in order
+      final OrderedParallelRunner<DeviceRecordBuffer> runner = new OrderedParallelRunner<DeviceRecordBuffer>(numThreads);
+      runner.run(tasks, new DeviceChunkReplayer(metadataGenerator, binaryGenerator, pyramidGenerator, comparisonGenerator, gridGenerator, storeGenerator));
+      runner.printTimingReport(taskLabels);
+      }
+
+   /**
+    * Collects the chunks of each device, as they arrive in order from an {@link OrderedParallelRunner}, until the last
+    * one arrives, and then hands all the device's records to the generators at once.
+    */
+   private static final class DeviceChunkReplayer implements OrderedParallelRunner.ResultHandler<DeviceRecordBuffer>
+      {
+      @NotNull
+      private final MetadataGenerator metadataGenerator;
+      @NotNull
+      private final BinaryGenerator binaryGenerator;
+      @Nullable
+      private final PyramidGenerator pyramidGenerator;
+      @Nullable
+      private final ComparisonGenerator comparisonGenerator;
+      @Nullable
+      private final GridTensorGenerator gridGenerator;
+      @Nullable
+      private final StoreGenerator storeGenerator;
+      @NotNull
+      private final List<DeviceRecordBuffer> deviceChunks = new ArrayList<DeviceRecordBuffer>();
+
+      private DeviceChunkReplayer(@NotNull final MetadataGenerator metadataGenerator,
+                                  @NotNull final BinaryGenerator binaryGenerator,
+                                  @Nullable final PyramidGenerator pyramidGenerator,
+                                  @Nullable final ComparisonGenerator comparisonGenerator,
+                                  @Nullable final GridTensorGenerator gridGenerator,
+                                  @Nullable final StoreGenerator storeGenerator)
+         {
+         this.metadataGenerator = metadataGenerator;
+         this.binaryGenerator = binaryGenerator;
+         this.pyramidGenerator = pyramidGenerator;
+         this.comparisonGenerator = comparisonGenerator;
+         this.gridGenerator = gridGenerator;
+         this.storeGenerator = storeGenerator;
+         }
+
+      @Override
+      public void handleResult(@NotNull final DeviceRecordBuffer recordBuffer)
+         {
+         deviceChunks.add(recordBuffer);
+         if (recordBuffer.isLastChunk())
+            {
+            System.out.println("   " + recordBuffer.getFile().getName());
+            if (DeviceRecordBuffer.isComplete(deviceChunks))
+               {
+               // the metadata generator goes last, since the metadata can include column, bucket and zone offsets
+               DeviceRecordBuffer.replay(deviceChunks, binaryGenerator);
+               if (pyramidGenerator != null)
+                  {
+                  DeviceRecordBuffer.replay(deviceChunks, pyramidGenerator);
+                  }
+               if (comparisonGenerator != null)
+                  {
+                  DeviceRecordBuffer.replay(deviceChunks, comparisonGenerator);
+                  }
+               if (gridGenerator != null)
+                  {
+                  DeviceRecordBuffer.replay(deviceChunks, gridGenerator);
+                  }
+               if (storeGenerator != null)
+                  {
+                  DeviceRecordBuffer.replay(deviceChunks, storeGenerator);
+                  }
+               DeviceRecordBuffer.replay(deviceChunks, metadataGenerator);
+               }
+            else
+               {
+               LOG.error("Device file [" + recordBuffer.getFile().getName() + "] couldn't be read completely.  Skipping it.");
+               }
+            deviceChunks.clear();
+            }
+         }
+      }
+
+   /**
+    * Holds all the records parsed from a single device file (or one chunk of it) in primitive arrays, so that they
+    * can be replayed later, exactly as they were originally received, to any
+    * {@link SpeckCsvDataFileEventListener.EventListener}.
+    */
+   private static final class DeviceRecordBuffer implements SpeckCsvDataFileEventListener.EventListener
+      {
+      private static final int INITIAL_CAPACITY = 1024;
+
+      @NotNull
+      private final File file;
+      private final boolean isLastChunk;
+      private String name = null;
+      private int[] times = new int[INITIAL_CAPACITY];
+      private int[] values = new int[INITIAL_CAPACITY];
+      private int numBufferedRecords = 0;
+      private boolean hasEnded = false;
+      private int numRecords = 0;
+
+      private DeviceRecordBuffer(@NotNull final File file, final boolean isLastChunk)
+         {
+         this.file = file;
+         this.isLastChunk = isLastChunk;
+         }
+
+      @NotNull
+      private File getFile()
+         {
+         return file;
+         }
+
+      private boolean isLastChunk()
+         {
+         return isLastChunk;
+         }
+
+      @Override
+      public void handleBegin(@NotNull final String name)
+         {
+         this.name = name;
+         }
+
+      @Override
+      public void handleLine(final int epochTimeInSeconds, final int value)
+         {
+         if (numBufferedRecords == times.length)
+            {
+            final int newCapacity = times.length * 2;
+            final int[] newTimes = new int[newCapacity];
+            final int[] newValues = new int[newCapacity];
+            System.arraycopy(times, 0, newTimes, 0, numBufferedRecords);
+            System.arraycopy(values, 0, newValues, 0, numBufferedRecords);
+            times = newTimes;
+            values = newValues;
+            }
+         times[numBufferedRecords] = epochTimeInSeconds;
+         values[numBufferedRecords] = value;
+         numBufferedRecords++;
+         }
+
+      @Override
+      public void handleEnd(final int numRecords)
+         {
+         this.numRecords = numRecords;
+         hasEnded = true;
+         }
+
+      /**
+       * Returns whether every chunk of a device file was read from its beginning to its end.  A device with a chunk
+       * which wasn't mustn't be replayed at all, since the listeners only finish a device, e.g. advance their offsets,
+       * at its end.
+       */
+      private static boolean isComplete(@NotNull final List<DeviceRecordBuffer> chunks)
+         {
+         for (final DeviceRecordBuffer chunk : chunks)
+            {
+            if (chunk.name == null || !chunk.hasEnded)
+               {
+               return false;
+               }
+            }
+         return true;
+         }
+
+      /**
+       * Replays the records of all the chunks of a {@link #isComplete(List) complete} device file, in order, as if the
+       * file had been read in one go.
+       */
+      private static void replay(@NotNull final List<DeviceRecordBuffer> chunks, @NotNull final SpeckCsvDataFileEventListener.EventListener listener)
+         {
+         listener.handleBegin(chunks.get(0).name);
+         int numRecords = 0;
+         for (final DeviceRecordBuffer chunk : chunks)
+            {
+            for (int i = 0; i < chunk.numBufferedRecords; i++)
+               {
+               listener.handleLine(chunk.times[i], chunk.values[i]);
+               }
+            numRecords += chunk.numRecords;
+            }
+         listener.handleEnd(numRecords);
+         }
+      }
+
+   /** The per-device statistics written to the metadata. */
+   static final class DeviceStatistics
+      {
+      private int minTime = Integer.MAX_VALUE;
+      private int maxTime = Integer.MIN_VALUE;
+      private int minValueTime = 0;
+      private int maxValueTime = 0;
+      private int minValue = Integer.MAX_VALUE;
+      private int maxValue = Integer.MIN_VALUE;
+
+      void reset()
+         {
+         minTime = Integer.MAX_VALUE;
+         maxTime = Integer.MIN_VALUE;
+         minValue = Integer.MAX_VALUE;
+         maxValue = Integer.MIN_VALUE;
+         }
+
+      void handleLine(final int epochTimeInSeconds, final int value)
+         {
+         minTime = Math.min(minTime, epochTimeInSeconds);
+         maxTime = Math.max(maxTime, epochTimeInSeconds);
+         if (value <= minValue)
+            {
+            minValue = value;
+            minValueTime = epochTimeInSeconds;
+            }
+         if (value >= maxValue)
+            {
+            maxValue = value;
+            maxValueTime = epochTimeInSeconds;
+            }
+         }
+
+      void restore(@NotNull final IncrementalState.DeviceState state)
+         {
+         minTime = state.getMinTime();
+         maxTime = state.getMaxTime();
+         minValue = (int)state.getMinValue();
+         maxValue = (int)state.getMaxValue();
+         minValueTime = state.getMinValueTime();
+         maxValueTime = state.getMaxValueTime();
+         }
+
+      void save(@NotNull final IncrementalState.DeviceState state)
+         {
+         state.setStatistics(minTime, maxTime, minValue, maxValue, minValueTime, maxValueTime);
+         }
+      }
+
+   static final class MetadataGenerator implements SpeckCsvDataFileEventListener.EventListener
+      {
+      private final int sampleIntervalSecs;
+
+      @NotNull
+      private final File outputFile;
+
+      @NotNull
+      private final GeolocatedDevices geolocatedDevices;
+
+      @NotNull
+      private final DeviceStatistics statistics = new DeviceStatistics();
+
+      @Nullable
+      private BinaryGenerator columnarBinaryGenerator = null;
+
+      @Nullable
+      private DownsampledPyramid pyramid = null;
+
+      @Nullable
+      private ComparisonGenerator comparisonGenerator = null;
+
+      @Nullable
+      private GridTensorGenerator gridGenerator = null;
+
+      @Nullable
+      private ZoneMap zoneMap = null;
+
+      @Nullable
+      private Resampler resampler = null;
+
+      /** Opened, and the header written, when the first device is added, by which time all the options have been set */
+      @Nullable
+      private JsonWriter json = null;
+      private boolean hasFailed = false;
+
+      private String name = null;
+      private int recordOffset = 0;
+
+      MetadataGenerator(final int sampleIntervalSecs, @NotNull final File outputFile, @NotNull final GeolocatedDevices geolocatedDevices)
+         {
+         this.sampleIntervalSecs = sampleIntervalSecs;
+         this.outputFile = outputFile;
+         this.geolocatedDevices = geolocatedDevices;
+         }
+
+      /**
+       * Makes the metadata describe the columns written by the given {@link BinaryGenerator} in a columnar format.  The
+       * generator must be given each device's lines before this generator's {@link #handleEnd(int)} is called.
+       */
+      void setColumnarBinaryGenerator(@Nullable final BinaryGenerator columnarBinaryGenerator)
+         {
+         this.columnarBinaryGenerator = columnarBinaryGenerator;
+         }
+
+      /**
+       * Makes the metadata describe the downsampled levels written by the given pyramid.  The pyramid must be given
+       * each device's records before this generator's {@link #handleEnd(int)} is called.
+       */
+      void setPyramid(@Nullable final DownsampledPyramid pyramid)
+         {
+         this.pyramid = pyramid;
+         }
+
+      /**
+       * Makes the metadata include the summary of the given comparison, which must be finished before this generator's
+       * {@link #finish()} is called.
+       */
+      void setComparisonGenerator(@Nullable final ComparisonGenerator comparisonGenerator)
+         {
+         this.comparisonGenerator = comparisonGenerator;
+         }
+
+      /**
+       * Makes the metadata describe the grid written by the given generator, which must be finished before this
+       * generator's {@link #finish()} is called.
+       */
+      void setGridGenerator(@Nullable final GridTensorGenerator gridGenerator)
+         {
+         this.gridGenerator = gridGenerator;
+         }
+
+      /**
+       * Makes the metadata describe the zones written by the given zone map.  The zone map must be given each device's
+       * records before this generator's {@link #handleEnd(int)} is called.
+       */
+      void setZoneMap(@Nullable final ZoneMap zoneMap)
+         {
+         this.zoneMap = zoneMap;
+         }
+
+      /**
+       * Makes the metadata describe the samples written by the given resampler.  The resampler must be given each
+       * device's records before this generator's {@link #handleEnd(int)} is called.
+       */
+      void setResampler(@Nullable final Resampler resampler)
+         {
+         this.resampler = resampler;
+         }
+
+      @Override
+      public void handleBegin(@NotNull String name)
+         {
+         this.name = name;
+         statistics.reset();
+         }
+
+      @Override
+      public void handleLine(final int epochTimeInSeconds, final int value)
+         {
+         statistics.handleLine(epochTimeInSeconds, value);
+         }
+
+      @Override
+      public void handleEnd(final int numRecords)
+         {
+         handleDevice(name, statistics, numRecords);
+         }
+
+      /** Adds the metadata for a device whose statistics were gathered elsewhere, e.g. during incremental processing. */
+      void handleDevice(@NotNull final String name, @NotNull final DeviceStatistics statistics, final int numRecords)
+         {
+         final GeolocatedDevices.Device device = geolocatedDevices.findByName(name);
+         if (device != null)
+            {
+            final JsonWriter json = getJsonWriter();
+            if (json != null)
+               {
+               try
+                  {
+                  json.newline().beginObject();
+                  json.name("name").value(name);
+                  json.name("prettyName").value(device.getPrettyName());
+                  json.name("latitude").numberValue(device.getLatitude());
+                  json.name("longitude").numberValue(device.getLongitude());
+                  final String locationDetails = device.getLocationDetails();
+                  json.name("locationDetails").value(locationDetails == null ? "" : locationDetails);
+                  json.name("minTime").value(statistics.minTime);
+                  json.name("maxTime").value(statistics.maxTime);
+                  json.name("minValue").value(statistics.minValue);
+                  json.name("maxValue").value(statistics.maxValue);
+                  json.name("minValueTime").value(statistics.minValueTime);
+                  json.name("maxValueTime").value(statistics.maxValueTime);
+                  json.name("numRecords").value(numRecords);
+                  json.name("recordOffset").value(recordOffset);
+                  if (columnarBinaryGenerator != null)
+                     {
+                     json.name("timeColumnOffset").value(columnarBinaryGenerator.getTimeColumnOffset());
+                     json.name("timeColumnLength").value(columnarBinaryGenerator.getTimeColumnLength());
+                     json.name("valueColumnOffset").value(columnarBinaryGenerator.getValueColumnOffset());
+                     json.name("valueColumnLength").value(columnarBinaryGenerator.getValueColumnLength());
+                     }
+                  if (pyramid != null)
+                     {
+                     pyramid.writeDeviceJson(json);
+                     }
+                  if (zoneMap != null)
+                     {
+                     zoneMap.writeDeviceJson(json);
+                     }
+                  if (resampler != null)
+                     {
+                     resampler.writeDeviceJson(json);
+                     }
+                  json.endObject();
+                  }
+               catch (IOException e)
+                  {
+                  handleWriteFailure(e);
+                  }
+               }
+
+            recordOffset += numRecords;
+            }
+         }
+
+      public void finish()
+         {
+         final JsonWriter json = getJsonWriter();
+         if (json != null)
+            {
+            try
+               {
+               json.newline().endArray();
+               if (comparisonGenerator != null)
+                  {
+                  comparisonGenerator.writeJson(json);
+                  }
+               if (gridGenerator != null)
+                  {
+                  gridGenerator.writeJson(json);
+                  }
+               json.endObject().newline();
+               json.close();
+               }
+            catch (IOException e)
+               {
+               handleWriteFailure(e);
+               }
+            }
+         }
+
+      @Nullable
+      private JsonWriter getJsonWriter()
+         {
+         if (json == null && !hasFailed)
+            {
+            try
+               {
+               json = JsonWriter.create(outputFile);
+               json.beginObject();
+               json.name("valueIntervalSecs").value(sampleIntervalSecs);
+               if (columnarBinaryGenerator != null)
+                  {
+                  columnarBinaryGenerator.getFormat().writeJson(json, AlignedColumnEncoder.ValueType.INT32);
+                  }
+               if (pyramid != null)
+                  {
+                  pyramid.writeLevelsJson(json);
+                  }
+               if (zoneMap != null)
+                  {
+                  zoneMap.writeJson(json);
+                  }
+               if (resampler != null)
+                  {
+                  resampler.writeJson(json);
+                  }
+               json.name("devices").beginArray();
+               }
+            catch (IOException e)
+               {
+               handleWriteFailure(e);
+               }
+            }
+         return json;
+         }
+
+      private void handleWriteFailure(@NotNull final IOException e)
+         {
+         LOG.error("IOException while trying to write the metadata file", e);
+         hasFailed = true;
+         if (json != null)
+            {
+            try
+               {
+               json.close();
+               }
+            catch (IOException ignored)
+               {
+               // nothing more to do
+               }
+            json = null;
+            }
+         }
+      }
+
+   /** Writes each device's records, sorted by time, to a {@link TimeSeriesStore}, so that they can be queried later. */
+   static final class StoreGenerator implements SpeckCsvDataFileEventListener.EventListener
+      {
+      @NotNull
+      private final TimeSeriesStoreWriter writer;
+
+      StoreGenerator(@NotNull final TimeSeriesStoreWriter writer)
+         {
+         this.writer = writer;
+         }
+
+      @Override
+      public void handleBegin(@NotNull final String name)
+         {
+         writer.beginSeries(name);
+         }
+
+      @Override
+      public void handleLine(final int epochTimeInSeconds, final int value)
+         {
+         writer.add(epochTimeInSeconds, value);
+         }
+
+      @Override
+      public void handleEnd(final int numRecords)
+         {
+         try
+            {
+            writer.endSeries();
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException while writing to the time series store", e);
+            }
+         }
+
+      public void finish()
+         {
+         try
+            {
+            writer.close();
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException while trying to close the time series store", e);
+            }
+         }
+      }
+
+   /** Feeds each device's records to a {@link DownsampledPyramid}, which writes the downsampled levels. */
+   static final class PyramidGenerator implements SpeckCsvDataFileEventListener.EventListener
+      {
+      @NotNull
+      private final DownsampledPyramid pyramid;
+
+      PyramidGenerator(@NotNull final DownsampledPyramid pyramid)
+         {
+         this.pyramid = pyramid;
+         }
+
+      @Override
+      public void handleBegin(@NotNull final String name)
+         {
+         pyramid.handleBegin();
+         }
+
+      @Override
+      public void handleLine(final int epochTimeInSeconds, final int value)
+         {
+         pyramid.handleRecord(epochTimeInSeconds, value);
+         }
+
+      @Override
+      public void handleEnd(final int numRecords)
+         {
+         try
+            {
+            pyramid.handleEnd();
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException while writing downsampled data", e);
+            }
+         }
+
+      public void finish()
+         {
+         try
+            {
+            pyramid.finish();
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException while trying to close the downsampled data output streams", e);
+            }
+         }
+      }
+
+   /**
+    * Writes the binary data file.  By default, each record is written as the time followed by the value.  In columnar
+    * mode, each device's records are instead written as two contiguous columns: the times, delta-of-delta encoded, and
+    * then the values, delta encoded, both as zigzag varints (see {@link VarintColumnEncoder}).  In aligned mode, the two
+    * columns are instead little-endian ints, each padded to an aligned length (see {@link AlignedColumnEncoder}), so
+    * that the browser can view them as typed arrays.  The offsets and lengths of the current device's columns are
+    * available to the {@link MetadataGenerator} once its last line has been handled.  If given a {@link ZoneMap}, the
+    * generator also feeds it every record, in the order written.  If given a {@link Resampler}, only the resampled values
+    * are written instead.
+    */
+   static final class BinaryGenerator implements SpeckCsvDataFileEventListener.EventListener
+      {
+      @NotNull
+      private final BinaryRecordWriter writer;
+      @NotNull
+      private final BinaryFormat format;
+      @Nullable
+      private final ColumnEncoder timeColumn;
+      @Nullable
+      private final ColumnEncoder valueColumn;
+      private long columnsOffset = 0;
+      private long nextColumnsOffset = 0;
+      @Nullable
+      private ZoneMap zoneMap = null;
+      @Nullable
+      private Resampler resampler = null;
+
+      public BinaryGenerator(@NotNull final File outputFile) throws IOException
+         {
+         this(outputFile, BinaryFormat.RECORDS);
+         }
+
+      BinaryGenerator(@NotNull final File outputFile, @NotNull final BinaryFormat format) throws IOException
+         {
+         writer = new BinaryRecordWriter(outputFile);
+         this.format = format;
+         timeColumn = format.createTimeColumnEncoder();
+         valueColumn = format.createValueColumnEncoder(AlignedColumnEncoder.ValueType.INT32);
+         }
+
+      @NotNull
+      BinaryFormat getFormat()
+         {
+         return format;
+         }
+
+      /** Sets the zone map to be fed the records, which only makes sense for the records format. */
+      void setZoneMap(@Nullable final ZoneMap zoneMap)
+         {
+         this.zoneMap = zoneMap;
+         }
+
+      /** Sets the resampler whose values are written instead of the records, for the resampled format. */
+      void setResampler(@Nullable final Resampler resampler)
+         {
+         this.resampler = resampler;
+         }
+
+      @Override
+      public void handleBegin(@NotNull final String name)
+         {
+         if (zoneMap != null)
+            {
+            zoneMap.handleBegin(name);
+            }
+         if (resampler != null)
+            {
+            resampler.handleBegin(name);
+            }
+         if (timeColumn != null && valueColumn != null)
+            {
+            timeColumn.reset();
+            valueColumn.reset();
+            columnsOffset = nextColumnsOffset;
+            }
+         }
+
+      @Override
+      public void handleLine(final int epochTimeInSeconds, final int value)
+         {
+         if (zoneMap != null)
+            {
+            zoneMap.handleRecord(epochTimeInSeconds, value);
+            }
+         if (resampler != null)
+            {
+            resampler.handleRecord(epochTimeInSeconds, value);
+            return;
+            }
+         if (timeColumn != null && valueColumn != null)
+            {
+            timeColumn.add(epochTimeInSeconds);
+            valueColumn.add(value);
+            return;
+            }
+         try
+            {
+            writer.writeInt(epochTimeInSeconds);
+            writer.writeInt(value);
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException while writing binary data", e);
+            }
+         }
+
+      @Override
+      public void handleEnd(final int numRecords)
+         {
+         if (zoneMap != null)
+            {
+            zoneMap.handleEnd();
+            }
+         if (resampler != null)
+            {
+            try
+               {
+               resampler.handleEnd(writer);
+               }
+            catch (IOException e)
+               {
+               LOG.error("IOException while writing binary data", e);
+               }
+            }
+         if (timeColumn != null && valueColumn != null)
+            {
+            try
+               {
+               timeColumn.writeTo(writer);
+               valueColumn.writeTo(writer);
+               }
+            catch (IOException e)
+               {
+               LOG.error("IOException while writing binary data", e);
+               }
+            nextColumnsOffset += timeColumn.getLength() + valueColumn.getLength();
+            }
+         }
+
+      /** Appends a device's records which were already written to a segment file, e.g. during incremental processing. */
+      void appendSegment(@NotNull final File segmentFile, @NotNull final String name) throws IOException
+         {
+         if (timeColumn == null && zoneMap == null && resampler == null)
+            {
+            writer.transferFrom(segmentFile);
+            return;
+            }
+
+         // segments hold records, so they need to be re-encoded as columns or samples, or summarized in the zone map
+         replaySegment(segmentFile, name, this);
+         }
+
+      long getTimeColumnOffset()
+         {
+         return columnsOffset;
+         }
+
+      int getTimeColumnLength()
+         {
+         return (timeColumn == null) ? 0 : timeColumn.getLength();
+         }
+
+      long getValueColumnOffset()
+         {
+         return columnsOffset + getTimeColumnLength();
+         }
+
+      int getValueColumnLength()
+         {
+         return (valueColumn == null) ? 0 : valueColumn.getLength();
+         }
+
+      public void finish()
+         {
+         try
+            {
+            writer.close();
+            LOG.debug("Wrote " + writer.getNumBytesWritten() + " bytes of binary data in " + writer.getNumWriteCalls() + " write calls");
+            }
+         catch (IOException e)
+            {
+            LOG.error("IOException while trying to close the binary output stream", e);
+            }
+         if (zoneMap != null)
+            {
+            try
+               {
+               zoneMap.finish();
+               }
+            catch (IOException e)
+               {
+               LOG.error("IOException while trying to write the zone map", e);
+               }
             }
          }
       }